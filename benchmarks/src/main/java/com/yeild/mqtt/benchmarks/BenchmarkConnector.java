@@ -0,0 +1,65 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.MqttConnector;
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * opens the connector internals the benchmarks drive without a broker
+ */
+public class BenchmarkConnector extends MqttConnector {
+
+	public BenchmarkConnector(MqttConfig config) {
+		super(config);
+	}
+
+	/**
+	 * create the configured push queue as run() does
+	 */
+	public void initPushQueue() {
+		pushMsgQueue = createPushQueue();
+	}
+
+	public PushMqttMessage takePushed() throws InterruptedException {
+		return pushMsgQueue.take();
+	}
+
+	public void dispatch(PushMqttMessage message) {
+		callReceiveMessage(message);
+	}
+
+	/**
+	 * the config is loaded from a temporary mqtt.properties, so the client topics are built as for a deployed client
+	 * @return a config that needs no files besides its own and keeps no data between runs
+	 * @throws IOException
+	 */
+	public static MqttConfig createConfig(String uri, String clientid) throws IOException {
+		File dir = File.createTempFile("mqtt-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		dir.deleteOnExit();
+		File confFile = new File(dir, "mqtt.properties");
+		confFile.deleteOnExit();
+		Properties properties = new Properties();
+		properties.setProperty("mqtt.uri.ssl", "");
+		properties.setProperty("mqtt.uri.tcp", uri);
+		properties.setProperty("mqtt.clientid", clientid);
+		properties.setProperty("mqtt.persistence", "memory");
+		properties.setProperty("mqtt.jmx", "false");
+		OutputStream out = new FileOutputStream(confFile);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		MqttConfig config = new MqttConfig();
+		config.load(dir.getPath() + File.separator);
+		return config;
+	}
+}
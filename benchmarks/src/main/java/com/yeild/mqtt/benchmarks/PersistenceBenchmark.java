@@ -0,0 +1,164 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.persist.MappedLogPersistence;
+import com.yeild.mqtt.persist.SyncPolicy;
+
+/**
+ * the persistence traffic of an in-flight qos 1 message: put when sent, remove when acked,
+ * with a window of {@value #WINDOW} messages in flight. {@link #putRemove()} does both on one thread,
+ * the paho group puts on the sending thread and removes on the receiving thread like paho does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+	private static final int WINDOW = 10;
+
+	@Param({"file", "mapped-always", "mapped-group", "mapped-os", "memory"})
+	public String persistence;
+
+	@Param({"256"})
+	public int payloadSize;
+
+	private File dir;
+	private MqttClientPersistence clientPersistence;
+	private MqttPersistable packet;
+	private int sequence = 0;
+	/**
+	 * the keys put by the paho group and not removed yet, the in-flight window
+	 */
+	private ArrayBlockingQueue<String> inflight;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		dir = File.createTempFile("mqtt-persistence", "");
+		dir.delete();
+		if("file".equals(persistence)) {
+			clientPersistence = new MqttDefaultFilePersistence(dir.getPath());
+		} else if("memory".equals(persistence)) {
+			clientPersistence = new MemoryPersistence();
+		} else {
+			SyncPolicy policy = SyncPolicy.valueOf(persistence.substring("mapped-".length()).toUpperCase());
+			// the sync interval of mqtt.properties
+			clientPersistence = new MappedLogPersistence(dir.getPath(), policy, 5, MappedLogPersistence.DEFAULT_SEGMENT_SIZE);
+		}
+		clientPersistence.open("bench", "tcp://127.0.0.1:1883");
+		inflight = new ArrayBlockingQueue<String>(WINDOW);
+		packet = new Packet(new byte[]{0x32, 0, 0, 5, 't', 'o', 'p', 'i', 'c', 0, 1}, new byte[payloadSize]);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		clientPersistence.clear();
+		clientPersistence.close();
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Benchmark
+	public void putRemove() throws Exception {
+		int id = sequence++;
+		clientPersistence.put("s-" + id, packet);
+		if(id >= WINDOW) {
+			clientPersistence.remove("s-" + (id - WINDOW));
+		}
+	}
+
+	@Benchmark
+	@Group("paho")
+	@GroupThreads(1)
+	public void send() throws Exception {
+		String key = "s-" + (sequence++);
+		clientPersistence.put(key, packet);
+		// timed, the ack thread may have stopped at the end of the iteration already
+		if(!inflight.offer(key, 10, TimeUnit.MILLISECONDS)) {
+			clientPersistence.remove(key);
+		}
+	}
+
+	@Benchmark
+	@Group("paho")
+	@GroupThreads(1)
+	public void ack() throws Exception {
+		String key = inflight.poll(10, TimeUnit.MILLISECONDS);
+		if(key != null) {
+			clientPersistence.remove(key);
+		}
+	}
+
+	private static final class Packet implements MqttPersistable {
+		private final byte[] header;
+		private final byte[] payload;
+
+		Packet(byte[] header, byte[] payload) {
+			this.header = header;
+			this.payload = payload;
+		}
+
+		@Override
+		public byte[] getHeaderBytes() {
+			return header;
+		}
+
+		@Override
+		public int getHeaderLength() {
+			return header.length;
+		}
+
+		@Override
+		public int getHeaderOffset() {
+			return 0;
+		}
+
+		@Override
+		public byte[] getPayloadBytes() {
+			return payload;
+		}
+
+		@Override
+		public int getPayloadLength() {
+			return payload.length;
+		}
+
+		@Override
+		public int getPayloadOffset() {
+			return 0;
+		}
+	}
+}
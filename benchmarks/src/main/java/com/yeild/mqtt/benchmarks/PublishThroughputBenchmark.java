@@ -0,0 +1,116 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.MqttAsyncConnector;
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.MqttConnector;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.broker.EmbeddedBroker;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+
+/**
+ * end to end publish against the {@link EmbeddedBroker}: an operation is one message pushed and acked by the broker,
+ * at most {@link #window} messages are pushed and not yet acked
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishThroughputBenchmark {
+	/**
+	 * sync: one publish at a time, batch: mqtt.push.batchsize 64, async: {@link MqttAsyncConnector}
+	 */
+	@Param({"sync", "batch", "async"})
+	public String mode;
+
+	@Param({"1"})
+	public int qos;
+
+	@Param({"256"})
+	public int payloadSize;
+
+	@Param({"1000"})
+	public int window;
+
+	/**
+	 * delay of every packet sent by the broker, measured in milliseconds
+	 */
+	@Param({"0"})
+	public long latency;
+
+	private EmbeddedBroker broker;
+	private MqttConnector connector;
+	private Thread connectorThread;
+	private Semaphore inflight;
+	private byte[] payload;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+		broker.setLatency(latency);
+		MqttConfig config = BenchmarkConnector.createConfig(broker.getUri(), "bench-" + mode);
+		config.setMaxMessageQueue(window * 2);
+		if("batch".equals(mode)) {
+			config.setPushBatchSize(64);
+		}
+		connector = "async".equals(mode) ? new MqttAsyncConnector(config) : new MqttConnector(config);
+		inflight = new Semaphore(window);
+		connector.addMqttMessageListener(new OnMqttMessageListener() {
+			@Override
+			public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+			}
+
+			@Override
+			public void pushMessageResult(PushMqttMessage message, Error error) {
+				inflight.release();
+			}
+		});
+		connectorThread = new Thread(connector, "bench-connector");
+		connectorThread.setDaemon(true);
+		connectorThread.start();
+		if(!connector.waitLoginComplete(10*1000)) {
+			throw new IllegalStateException("connector did not login to " + broker.getUri());
+		}
+		payload = new byte[payloadSize];
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		connector.stop();
+		connectorThread.join(5*1000);
+		broker.stop();
+	}
+
+	@Benchmark
+	public boolean publish() throws InterruptedException {
+		inflight.acquire();
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/bench/publish");
+		message.setPayload(payload);
+		message.setQos(qos);
+		if(!connector.pushMessage(message)) {
+			inflight.release();
+			return false;
+		}
+		return true;
+	}
+}
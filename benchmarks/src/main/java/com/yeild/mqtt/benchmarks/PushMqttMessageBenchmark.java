@@ -0,0 +1,83 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.codec.StringCodec;
+
+/**
+ * building the messages pushed and received
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushMqttMessageBenchmark {
+	private final String topic = "/rpc/device-0001/status/telemetry";
+	private final String payload = "{\"temperature\":21.5,\"humidity\":40}";
+	private final MqttMessage received = new MqttMessage(payload.getBytes());
+	private final String unicodePayload = "{\"\u6e29\u5ea6\":21.5,\"\u6e7f\u5ea6\":40,\"\u4f4d\u7f6e\":\"\u5317\u4eac\"}";
+	private int sequence = 0;
+
+	@Benchmark
+	public PushMqttMessage construct() {
+		return new PushMqttMessage();
+	}
+
+	@Benchmark
+	public PushMqttMessage setTopic() {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setPayload(payload);
+		return message;
+	}
+
+	/**
+	 * topics never seen before, they miss the interner
+	 */
+	@Benchmark
+	public PushMqttMessage setUniqueTopic() {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic + (sequence++));
+		return message;
+	}
+
+	/**
+	 * the former setPayload(String), the jdk encoder sizes its array for the worst case and copies it
+	 */
+	@Benchmark
+	public byte[] encodeUnicodeJdk() {
+		return unicodePayload.getBytes(Charset.forName("UTF-8"));
+	}
+
+	@Benchmark
+	public PushMqttMessage encodeUnicode() {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setPayload(unicodePayload);
+		return message;
+	}
+
+	@Benchmark
+	public String decodeCodec() throws Exception {
+		return StringCodec.UTF8.decode(received.getPayload());
+	}
+
+	@Benchmark
+	public PushMqttMessage wrapReceived() {
+		return PushMqttMessage.wrap(topic, received);
+	}
+}
@@ -0,0 +1,104 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * pushMessage from 1, 4 and 16 producer threads while one thread drains the queue like the publish loop
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PushQueueBenchmark {
+	@Param({"linked", "ring"})
+	public String queue;
+
+	@Param({"1"})
+	public int lanes;
+
+	private BenchmarkConnector connector;
+	private Thread consumer;
+	private volatile boolean draining;
+
+	@State(Scope.Thread)
+	public static class Producer {
+		final PushMqttMessage message = new PushMqttMessage();
+
+		@Setup
+		public void setup() throws IOException {
+			message.setTopic("/bench/push");
+			message.setPayload("payload");
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		MqttConfig config = BenchmarkConnector.createConfig("tcp://127.0.0.1:1883", "bench");
+		config.setPushQueueType(queue);
+		config.setMaxMessageQueue(8192);
+		config.setPushLanes(lanes);
+		connector = new BenchmarkConnector(config);
+		connector.initPushQueue();
+		draining = true;
+		consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(draining) {
+					try {
+						connector.takePushed();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "bench-consumer");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		draining = false;
+		consumer.interrupt();
+		consumer.join();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean push1(Producer producer) {
+		return connector.pushMessage(producer.message);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean push4(Producer producer) {
+		return connector.pushMessage(producer.message);
+	}
+
+	@Benchmark
+	@Threads(16)
+	public boolean push16(Producer producer) {
+		return connector.pushMessage(producer.message);
+	}
+}
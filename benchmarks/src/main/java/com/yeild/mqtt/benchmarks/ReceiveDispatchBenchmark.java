@@ -0,0 +1,73 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+
+/**
+ * callReceiveMessage with many listeners, either all called or filtered by their topic filter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceiveDispatchBenchmark {
+	@Param({"1", "16", "256"})
+	public int listeners;
+
+	/**
+	 * plain: every listener gets every message, filtered: each listener has its own topic filter
+	 */
+	@Param({"plain", "filtered"})
+	public String registration;
+
+	private BenchmarkConnector connector;
+	private PushMqttMessage message;
+
+	@Setup(Level.Trial)
+	public void setup(final Blackhole blackhole) throws IOException {
+		connector = new BenchmarkConnector(BenchmarkConnector.createConfig("tcp://127.0.0.1:1883", "bench"));
+		for(int i=0; i<listeners; i++) {
+			OnMqttMessageListener listener = new OnMqttMessageListener() {
+				@Override
+				public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+					blackhole.consume(pmessage);
+				}
+
+				@Override
+				public void pushMessageResult(PushMqttMessage message, Error error) {
+				}
+			};
+			if("filtered".equals(registration)) {
+				connector.addMqttMessageListener("/devices/device-" + i + "/+", listener);
+			} else {
+				connector.addMqttMessageListener(listener);
+			}
+		}
+		message = PushMqttMessage.wrap("/devices/device-0/telemetry", new MqttMessage("payload".getBytes()));
+	}
+
+	@Benchmark
+	public void dispatch() {
+		connector.dispatch(message);
+	}
+}
@@ -0,0 +1,83 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.MqttSSLCreator;
+
+/**
+ * building a new ssl socket factory from the pem files bundled with the connector, the cost every config load
+ * paid before the factories were shared, see {@link TlsHandshakeBenchmark} for the connect side
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SslContextBenchmark {
+	private byte[] ca;
+	private byte[] crt;
+	private byte[] key;
+	private String password = "brt123";
+
+	@Setup
+	public void setup() throws IOException {
+		ca = readResource("cacert.crt");
+		crt = readResource("client-cert.crt");
+		key = readResource("client-key-pkcs8.pem");
+	}
+
+	static byte[] readResource(String name) throws IOException {
+		InputStream in = SslContextBenchmark.class.getClassLoader().getResourceAsStream(name);
+		if(in == null) {
+			throw new IOException(name + " not found");
+		}
+		return readFully(in);
+	}
+
+	static byte[] readFile(File file) throws IOException {
+		return readFully(new FileInputStream(file));
+	}
+
+	/**
+	 * read to the end and close the stream
+	 */
+	static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public SSLSocketFactory getSSLSocktet() throws Exception {
+		return MqttSSLCreator.getSSLSocktet(new ByteArrayInputStream(ca), new ByteArrayInputStream(crt)
+				, new ByteArrayInputStream(key), password);
+	}
+}
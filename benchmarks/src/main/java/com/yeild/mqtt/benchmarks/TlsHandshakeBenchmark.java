@@ -0,0 +1,196 @@
+package com.yeild.mqtt.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yeild.mqtt.MqttSSLCreator;
+
+/**
+ * the tls connect of a connector against a local tls server, the way paho opens it:
+ * a tcp connect, then the handshake over the connected socket.
+ * <ul>
+ * <li>cold: a new factory per connect, what every config load did before the factories were shared</li>
+ * <li>full: the shared factory with the session dropped after every connect</li>
+ * <li>resumed: the shared factory, the session of the previous connect is resumed</li>
+ * </ul>
+ * The server certificate is generated with the keytool of the running jdk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+	private static final String PASSWORD = "benchmark";
+
+	@Param({"cold", "full", "resumed"})
+	public String mode;
+
+	private File dir;
+	private SSLServerSocket server;
+	private Thread acceptor;
+	private InetSocketAddress address;
+	private byte[] ca;
+	private byte[] crt;
+	private byte[] key;
+	private SSLSocketFactory shared;
+
+	@Setup
+	public void setup() throws Exception {
+		dir = File.createTempFile("mqtt-tls-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		File keystore = new File(dir, "server.p12");
+		File serverCrt = new File(dir, "server.crt");
+		keytool("-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost"
+				, "-validity", "2", "-storetype", "PKCS12", "-keystore", keystore.getPath()
+				, "-storepass", PASSWORD, "-keypass", PASSWORD);
+		keytool("-exportcert", "-rfc", "-alias", "server", "-keystore", keystore.getPath()
+				, "-storepass", PASSWORD, "-file", serverCrt.getPath());
+
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(keystore);
+		try {
+			store.load(in, PASSWORD.toCharArray());
+		} finally {
+			in.close();
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(store, PASSWORD.toCharArray());
+		SSLContext serverContext = SSLContext.getInstance("TLSv1.2");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+		server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0, 100);
+		address = new InetSocketAddress("localhost", server.getLocalPort());
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "tls-bench-server");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		// the client trusts the generated server certificate, its own certificate is the bundled one
+		ca = SslContextBenchmark.readFile(serverCrt);
+		crt = SslContextBenchmark.readResource("client-cert.crt");
+		key = SslContextBenchmark.readResource("client-key-pkcs8.pem");
+		File caFile = write("ca.crt", ca);
+		File crtFile = write("client.crt", crt);
+		File keyFile = write("client.pem", key);
+		shared = MqttSSLCreator.getSSLSocktet(caFile.getPath(), crtFile.getPath(), keyFile.getPath(), "brt123");
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void keytool(String... args) throws Exception {
+		String[] command = new String[args.length + 1];
+		command[0] = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+		System.arraycopy(args, 0, command, 1, args.length);
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		byte[] output = SslContextBenchmark.readFully(process.getInputStream());
+		if(process.waitFor() != 0) {
+			throw new IOException("keytool failed: " + new String(output));
+		}
+	}
+
+	private void accept() {
+		while(!server.isClosed()) {
+			try {
+				final SSLSocket socket = (SSLSocket) server.accept();
+				socket.setTcpNoDelay(true);
+				Thread handler = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							socket.startHandshake();
+							// the client closes after the handshake
+							socket.getInputStream().read();
+						} catch (IOException e) {
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				return;
+			}
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		server.close();
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public Object connect() throws Exception {
+		SSLSocketFactory factory = shared;
+		if("cold".equals(mode)) {
+			factory = MqttSSLCreator.getSSLSocktet(new ByteArrayInputStream(ca), new ByteArrayInputStream(crt)
+					, new ByteArrayInputStream(key), "brt123");
+		}
+		Socket plain = new Socket();
+		plain.setTcpNoDelay(true);
+		plain.connect(address, 5000);
+		SSLSocket socket = (SSLSocket) factory.createSocket(plain, address.getHostName(), address.getPort(), true);
+		try {
+			socket.startHandshake();
+			if("full".equals(mode)) {
+				socket.getSession().invalidate();
+			}
+			return socket.getSession();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package com.yeild.mqtt;
+
+/**
+ * the connection state of a {@link MqttConnector}
+ */
+public enum ConnectionState {
+	/**
+	 * the first connect is in progress, or the connector was not started yet
+	 */
+	CONNECTING,
+	/**
+	 * connected and subscribed, pushed messages are published
+	 */
+	ONLINE,
+	/**
+	 * the connection was lost, the client reconnects on its own
+	 */
+	RECONNECTING,
+	/**
+	 * the config is invalid or the first connect gave up, see {@link MqttConnector#getLastException()}
+	 */
+	FAILED,
+	/**
+	 * stopped by {@link MqttConnector#stop()}
+	 */
+	STOPPED;
+
+	/**
+	 * @return true if the connector will not connect again
+	 */
+	public boolean isTerminal() {
+		return this == FAILED || this == STOPPED;
+	}
+}
@@ -0,0 +1,138 @@
+package com.yeild.mqtt;
+
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+/**
+ * connector built on {@link MqttAsyncClient}, keeps up to {@link MqttConfig#getMaxInflight()} publishes on the wire
+ * and reports the push result only after the broker acked the message
+ */
+public class MqttAsyncConnector extends MqttConnector {
+	protected MqttAsyncClient mqttAsyncClient;
+	protected Semaphore inflightWindow;
+	protected long timeToWait = 10*1000;
+
+	/**
+	 *
+	 * @param confPath the path of mqtt config file
+	 */
+	public MqttAsyncConnector(String confPath) {
+		super(confPath);
+	}
+
+	public MqttAsyncConnector(MqttConfig config) {
+		super(config);
+	}
+
+	@Override
+	protected void runPublishLoop() {
+		inflightWindow = new Semaphore(mqttConfig.getMaxInflight());
+		while(runningTask) {
+			PushMqttMessage pushMsg = null;
+			try {
+				pushMsg = takeMessage();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if(!awaitConnected()) {
+				requeue(pushMsg);
+				continue;
+			}
+			try {
+				inflightWindow.acquire();
+			} catch (InterruptedException e) {
+				requeue(pushMsg);
+				continue;
+			}
+			try {
+				pushMsg.setPublishNanos(System.nanoTime());
+				mqttAsyncClient.publish(pushMsg.getTopic(), pushMsg, pushMsg, windowListener);
+			} catch (MqttException e) {
+				inflightWindow.release();
+				publishFailed(pushMsg, e);
+			}
+		}
+	}
+
+	@Override
+	protected boolean isClientConnected() {
+		return mqttAsyncClient != null && mqttAsyncClient.isConnected();
+	}
+
+	@Override
+	protected void subscribeTopic(String topicFilter, int qos) throws MqttException {
+		mqttAsyncClient.subscribe(topicFilter, qos).waitForCompletion(timeToWait);
+	}
+
+	@Override
+	protected void unsubscribeTopic(String topicFilter) throws MqttException {
+		mqttAsyncClient.unsubscribe(topicFilter).waitForCompletion(timeToWait);
+	}
+
+	@Override
+	protected void disconnectClient() throws MqttException {
+		if(mqttAsyncClient != null && mqttAsyncClient.isConnected()) {
+			mqttAsyncClient.disconnect().waitForCompletion(timeToWait);
+		}
+	}
+
+	@Override
+	protected void connnect() throws MqttException {
+		connectOptions = createConnectOptions();
+		mqttAsyncClient = new MqttAsyncClient(mqttConfig.getUri(), mqttConfig.getClientid(), createPersistence());
+		mqttAsyncClient.setCallback(this);
+		mqttAsyncClient.setManualAcks(acks != null);
+
+		mqttAsyncClient.connect(connectOptions).waitForCompletion(timeToWait);
+	}
+
+	@Override
+	protected void reconnectClient() throws MqttException {
+		connectOptions.setServerURIs(getServerURIs());
+		mqttAsyncClient.connect(connectOptions).waitForCompletion(timeToWait);
+	}
+
+	@Override
+	protected void ackMessage(int messageId, int qos) throws MqttException {
+		mqttAsyncClient.messageArrivedComplete(messageId, qos);
+	}
+
+	@Override
+	public String getServerURI() {
+		return isClientConnected() ? mqttAsyncClient.getCurrentServerURI() : null;
+	}
+
+	private final IMqttActionListener resultListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			callPushMessageResult((PushMqttMessage) asyncActionToken.getUserContext(), null);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			publishFailed((PushMqttMessage) asyncActionToken.getUserContext(), exception);
+		}
+	};
+
+	/**
+	 * frees a slot of the in-flight window before reporting the result
+	 */
+	private final IMqttActionListener windowListener = new IMqttActionListener() {
+		@Override
+		public void onSuccess(IMqttToken asyncActionToken) {
+			inflightWindow.release();
+			resultListener.onSuccess(asyncActionToken);
+		}
+
+		@Override
+		public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+			inflightWindow.release();
+			resultListener.onFailure(asyncActionToken, exception);
+		}
+	};
+}
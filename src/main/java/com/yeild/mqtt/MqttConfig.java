@@ -4,20 +4,33 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.net.ssl.SSLSocketFactory;
 
 import org.apache.log4j.Logger;
 
 import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.compress.CompressionStage;
+import com.yeild.mqtt.dispatch.OverflowPolicy;
+import com.yeild.mqtt.failover.BrokerProber;
+import com.yeild.mqtt.persist.SyncPolicy;
+import com.yeild.mqtt.queue.WaitStrategy;
 
-public class MqttConfig {
+public class MqttConfig implements Cloneable {
 	protected Logger logger = Logger.getLogger(getClass().getSimpleName());
 	private static String mMqttConfName = "mqtt.properties";
 	private static String mSSLConfName = "ssl.properties";
 	protected Properties mProperties = null;
 	protected Properties mSSLProperties = null;
+	/**
+	 * the values set by {@link #setConfValue(String, String)}, they win over the config file
+	 */
+	protected Properties mOverrides = new Properties();
 	protected String mConfPath;
 	protected String mUri;
 	protected String mUsername;
@@ -25,13 +38,68 @@ public class MqttConfig {
 	protected String mClientid;
 	protected int keepalive = 60;
 	protected SSLSocketFactory sslSocketFac = null;
+	/**
+	 * the ssl socket factory being built by {@link #load(String)}, resolved by the first use of the uri or the factory
+	 */
+	protected Future<SSLSocketFactory> sslSocketFacFuture = null;
+	protected String mTcpUri;
 	protected String mWillTopic = null;
 	protected String mWillMsg = "0";
 	protected String rpcTopicPrefix="/server/rpc/";
+	protected String rpcTopicRoot = null;
+	protected String rpcResponsePrefix = null;
+	protected String mWillTopicName = null;
+	protected String mNotifyTopicName = null;
 	protected String rpcResponseName = null;
 	protected String rpcRequestName = null;
+	protected long rpcTimeout = 30*1000;
 	protected String mNotifyTopicPre = null;
 	protected int maxMessageQueue = 0;
+	protected String pushQueueType = "linked";
+	protected WaitStrategy pushQueueWait = WaitStrategy.PARK;
+	protected boolean pushSpill = false;
+	protected int pushSpillSegmentSize = 16*1024*1024;
+	protected int pushSpillMaxSegments = 0;
+	protected int pushBatchSize = 1;
+	protected long pushLingerTime = 0;
+	protected int maxInflight = 10;
+	protected boolean jmxEnabled = true;
+	protected int pushLanes = 1;
+	protected int[] pushLaneWeights = {1};
+	protected String pushLaneRules = null;
+	protected String pushConflate = null;
+	protected boolean pushConflateRetained = false;
+	protected String pushEnvelope = null;
+	protected int pushEnvelopeMaxSize = 16*1024;
+	protected long pushEnvelopeLinger = 5;
+	protected int pushRetryMax = 10;
+	protected long pushRetryInitialDelay = 1000;
+	protected long pushRetryMaxDelay = 60*1000;
+	protected int receiveThreads = 0;
+	protected int receiveQueueSize = 1000;
+	protected OverflowPolicy receiveOverflow = OverflowPolicy.BLOCK;
+	protected boolean receiveManualAck = false;
+	protected int receiveStreamBuffer = 256;
+	protected OverflowPolicy receiveStreamOverflow = OverflowPolicy.DROP_OLDEST;
+	protected String receiveEnvelope = "";
+	protected String persistenceType = "file";
+	protected SyncPolicy persistenceSync = SyncPolicy.GROUP;
+	protected long persistenceSyncInterval = 5;
+	protected int persistenceSegmentSize = 4*1024*1024;
+	protected String compress = "none";
+	protected int compressMinSize = 512;
+	protected int compressLevel = 1;
+	protected String compressRules = "";
+	protected int compressMaxInflated = CompressionStage.DEFAULT_MAX_INFLATED;
+	protected int connectRetryMax = -1;
+	protected long connectRetryInitialDelay = 1000;
+	protected long connectRetryMaxDelay = 60*1000;
+	protected long probeInterval = 30*1000;
+	protected int probeTimeout = 2000;
+	/**
+	 * orders the brokers of the uri list by rtt, shared by the copies of this config
+	 */
+	protected BrokerProber brokerProber = null;
 	
 	public MqttConfig() {
 		init();
@@ -68,6 +136,32 @@ public class MqttConfig {
 		return rpcTopicPrefix;
 	}
 	
+	public void setRpcTimeout(long rpcTimeout) {
+		this.rpcTimeout = rpcTimeout;
+	}
+	
+	/**
+	 * @return the default time an rpc call waits for its reply, measured in milliseconds
+	 */
+	public long getRpcTimeout() {
+		return rpcTimeout;
+	}
+	
+	public String getRpcTopicRoot() {
+		return rpcTopicRoot;
+	}
+	
+	public void setRpcResponsePrefix(String rpcResponsePrefix) {
+		this.rpcResponsePrefix = rpcResponsePrefix;
+	}
+	
+	/**
+	 * @return the topic prefix this client answers the rpc requests on
+	 */
+	public String getRpcResponsePrefix() {
+		return rpcResponsePrefix;
+	}
+	
 	public void setNotifyTopicPre(String mNotifyTopicPre) {
 		this.mNotifyTopicPre = mNotifyTopicPre;
 	}
@@ -80,8 +174,33 @@ public class MqttConfig {
 		this.mUri = mUri;
 	}
 	
+	/**
+	 * @return the first of the ssl uris, or of the tcp uris if the ssl socket factory could not be built.
+	 * Waits for the factory if it is still being built.
+	 */
 	public String getUri() {
-		return mUri;
+		String[] uris = getUris();
+		return uris.length > 0 ? uris[0] : null;
+	}
+	
+	/**
+	 * @return the brokers of the comma separated ssl uris, or of the tcp uris if the ssl socket factory
+	 * could not be built, in the configured order. Waits for the factory if it is still being built.
+	 */
+	public String[] getUris() {
+		resolveSslSocketFac();
+		String uri = mUri;
+		if(uri == null) {
+			return new String[0];
+		}
+		List<String> uris = new ArrayList<String>(2);
+		for(String item : uri.split(",")) {
+			item = item.trim();
+			if(item.length() > 0) {
+				uris.add(item);
+			}
+		}
+		return uris.toArray(new String[uris.size()]);
 	}
 	
 	public void setUsername(String mUsername) {
@@ -100,14 +219,43 @@ public class MqttConfig {
 		return mPassword;
 	}
 	
-	public void setSslSocketFac(SSLSocketFactory sslSocketFac) {
+	public synchronized void setSslSocketFac(SSLSocketFactory sslSocketFac) {
 		this.sslSocketFac = sslSocketFac;
+		this.sslSocketFacFuture = null;
 	}
 	
+	/**
+	 * @return the shared ssl socket factory of the certificate material, null if tcp is used.
+	 * Waits for the factory if it is still being built.
+	 */
 	public SSLSocketFactory getSslSocketFac() {
+		resolveSslSocketFac();
 		return sslSocketFac;
 	}
 	
+	/**
+	 * wait for the factory started by {@link #load(String)}, fall back to the tcp uri if it failed
+	 */
+	protected synchronized void resolveSslSocketFac() {
+		Future<SSLSocketFactory> future = sslSocketFacFuture;
+		if(future == null) {
+			return;
+		}
+		try {
+			sslSocketFac = future.get();
+		} catch (InterruptedException e) {
+			// resolved by the next call
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			logger.error(CommonUtils.getExceptionInfo(e.getCause() instanceof Exception ? (Exception) e.getCause() : e));
+		}
+		sslSocketFacFuture = null;
+		if(sslSocketFac == null) {
+			mUri = mTcpUri;
+		}
+	}
+	
 	public void setKeepalive(int keepalive) {
 		this.keepalive = keepalive;
 	}
@@ -148,8 +296,465 @@ public class MqttConfig {
 		return maxMessageQueue;
 	}
 	
+	public void setPushQueueType(String pushQueueType) {
+		this.pushQueueType = pushQueueType;
+	}
+	
+	/**
+	 * @return "linked" for a LinkedBlockingQueue or "ring" for the lock free ring buffer
+	 */
+	public String getPushQueueType() {
+		return pushQueueType;
+	}
+	
+	public void setPushQueueWait(WaitStrategy pushQueueWait) {
+		this.pushQueueWait = pushQueueWait;
+	}
+	
+	/**
+	 * @return how the ring buffer push queue waits for messages or free space
+	 */
+	public WaitStrategy getPushQueueWait() {
+		return pushQueueWait;
+	}
+	
+	public void setPushSpill(boolean pushSpill) {
+		this.pushSpill = pushSpill;
+	}
+	
+	/**
+	 * @return true if the messages not fitting in the push queue are appended to a journal on disk
+	 */
+	public boolean isPushSpill() {
+		return pushSpill;
+	}
+	
+	public void setPushSpillSegmentSize(int pushSpillSegmentSize) {
+		this.pushSpillSegmentSize = pushSpillSegmentSize;
+	}
+	
+	public int getPushSpillSegmentSize() {
+		return pushSpillSegmentSize;
+	}
+	
+	public void setPushSpillMaxSegments(int pushSpillMaxSegments) {
+		this.pushSpillMaxSegments = pushSpillMaxSegments;
+	}
+	
+	/**
+	 * @return max journal segment files, 0 means unlimited
+	 */
+	public int getPushSpillMaxSegments() {
+		return pushSpillMaxSegments;
+	}
+	
+	public void setPersistenceType(String persistenceType) {
+		this.persistenceType = persistenceType;
+	}
+	
+	/**
+	 * @return where the in-flight messages are kept: file, mapped or memory
+	 */
+	public String getPersistenceType() {
+		return persistenceType;
+	}
+	
+	public void setPersistenceSync(SyncPolicy persistenceSync) {
+		this.persistenceSync = persistenceSync;
+	}
+	
+	/**
+	 * @return when the mapped persistence forces its writes to disk
+	 */
+	public SyncPolicy getPersistenceSync() {
+		return persistenceSync;
+	}
+	
+	public void setPersistenceSyncInterval(long persistenceSyncInterval) {
+		this.persistenceSyncInterval = persistenceSyncInterval;
+	}
+	
+	/**
+	 * @return max milliseconds a remove of the mapped persistence stays unforced when no put forces it along
+	 */
+	public long getPersistenceSyncInterval() {
+		return persistenceSyncInterval;
+	}
+	
+	public void setPersistenceSegmentSize(int persistenceSegmentSize) {
+		this.persistenceSegmentSize = persistenceSegmentSize;
+	}
+	
+	public int getPersistenceSegmentSize() {
+		return persistenceSegmentSize;
+	}
+	
+	public void setCompress(String compress) {
+		this.compress = compress;
+	}
+	
+	/**
+	 * @return the codec of the pushed payloads, none sends them as they are
+	 */
+	public String getCompress() {
+		return compress;
+	}
+	
+	public void setCompressMinSize(int compressMinSize) {
+		this.compressMinSize = compressMinSize;
+	}
+	
+	/**
+	 * @return the payload size in bytes from which payloads are compressed, unless a compress rule matches the topic
+	 */
+	public int getCompressMinSize() {
+		return compressMinSize;
+	}
+	
+	public void setCompressLevel(int compressLevel) {
+		this.compressLevel = compressLevel;
+	}
+	
+	public int getCompressLevel() {
+		return compressLevel;
+	}
+	
+	public void setCompressRules(String compressRules) {
+		this.compressRules = compressRules;
+	}
+	
+	/**
+	 * @return filter=minsize pairs, the first rule matching the topic sets its threshold
+	 */
+	public String getCompressRules() {
+		return compressRules;
+	}
+	
+	public void setCompressMaxInflated(int compressMaxInflated) {
+		this.compressMaxInflated = compressMaxInflated;
+	}
+	
+	/**
+	 * @return the max bytes a received payload is decompressed to, larger ones are handed over compressed
+	 */
+	public int getCompressMaxInflated() {
+		return compressMaxInflated;
+	}
+	
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+	
+	/**
+	 * @return true if every connector registers its metrics as an mbean
+	 */
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+	
+	public void setPushLanes(int pushLanes) {
+		this.pushLanes = pushLanes;
+	}
+	
+	/**
+	 * @return the number of push priority lanes, 1 means a single fifo queue
+	 */
+	public int getPushLanes() {
+		return pushLanes;
+	}
+	
+	public void setPushLaneWeights(int[] pushLaneWeights) {
+		this.pushLaneWeights = pushLaneWeights;
+	}
+	
+	/**
+	 * @return the messages every lane hands out per turn, one weight per lane
+	 */
+	public int[] getPushLaneWeights() {
+		int[] weights = new int[Math.max(1, pushLanes)];
+		for(int i=0; i<weights.length; i++) {
+			weights[i] = pushLaneWeights != null && i < pushLaneWeights.length ? pushLaneWeights[i] : 1;
+		}
+		return weights;
+	}
+	
+	public void setPushLaneRules(String pushLaneRules) {
+		this.pushLaneRules = pushLaneRules;
+	}
+	
+	/**
+	 * @return the lane rules, see {@link com.yeild.mqtt.queue.LaneSelector}
+	 */
+	public String getPushLaneRules() {
+		return pushLaneRules;
+	}
+	
+	public void setPushConflate(String pushConflate) {
+		this.pushConflate = pushConflate;
+	}
+	
+	/**
+	 * @return the comma separated topic filters whose queued messages are replaced by newer ones
+	 */
+	public String getPushConflate() {
+		return pushConflate;
+	}
+	
+	public void setPushConflateRetained(boolean pushConflateRetained) {
+		this.pushConflateRetained = pushConflateRetained;
+	}
+	
+	/**
+	 * @return true if a queued retained message is replaced by a newer one of the same topic
+	 */
+	public boolean isPushConflateRetained() {
+		return pushConflateRetained;
+	}
+	
+	public void setPushEnvelope(String pushEnvelope) {
+		this.pushEnvelope = pushEnvelope;
+	}
+	
+	/**
+	 * @return the comma separated topic filters whose messages are packed into envelopes
+	 */
+	public String getPushEnvelope() {
+		return pushEnvelope;
+	}
+	
+	public void setPushEnvelopeMaxSize(int pushEnvelopeMaxSize) {
+		this.pushEnvelopeMaxSize = pushEnvelopeMaxSize;
+	}
+	
+	/**
+	 * @return the max bytes of an envelope payload before compression
+	 */
+	public int getPushEnvelopeMaxSize() {
+		return pushEnvelopeMaxSize;
+	}
+	
+	public void setPushEnvelopeLinger(long pushEnvelopeLinger) {
+		this.pushEnvelopeLinger = pushEnvelopeLinger;
+	}
+	
+	/**
+	 * @return milliseconds the first message of an envelope waits for more
+	 */
+	public long getPushEnvelopeLinger() {
+		return pushEnvelopeLinger;
+	}
+	
+	public void setPushRetryMax(int pushRetryMax) {
+		this.pushRetryMax = pushRetryMax;
+	}
+	
+	/**
+	 * @return max retries of a failed publish before it is reported failed, a negative value retries forever
+	 */
+	public int getPushRetryMax() {
+		return pushRetryMax;
+	}
+	
+	public void setPushRetryInitialDelay(long pushRetryInitialDelay) {
+		this.pushRetryInitialDelay = pushRetryInitialDelay;
+	}
+	
+	/**
+	 * @return the delay of the first retry in milliseconds, doubled for every further retry
+	 */
+	public long getPushRetryInitialDelay() {
+		return pushRetryInitialDelay;
+	}
+	
+	public void setPushRetryMaxDelay(long pushRetryMaxDelay) {
+		this.pushRetryMaxDelay = pushRetryMaxDelay;
+	}
+	
+	public long getPushRetryMaxDelay() {
+		return pushRetryMaxDelay;
+	}
+	
+	public void setConnectRetryMax(int connectRetryMax) {
+		this.connectRetryMax = connectRetryMax;
+	}
+	
+	/**
+	 * @return max failed connects in a row before the connector fails, a negative value retries forever
+	 */
+	public int getConnectRetryMax() {
+		return connectRetryMax;
+	}
+	
+	public void setConnectRetryInitialDelay(long connectRetryInitialDelay) {
+		this.connectRetryInitialDelay = connectRetryInitialDelay;
+	}
+	
+	/**
+	 * @return the delay before the first reconnect in milliseconds, doubled for every further one
+	 */
+	public long getConnectRetryInitialDelay() {
+		return connectRetryInitialDelay;
+	}
+	
+	public void setConnectRetryMaxDelay(long connectRetryMaxDelay) {
+		this.connectRetryMaxDelay = connectRetryMaxDelay;
+	}
+	
+	public long getConnectRetryMaxDelay() {
+		return connectRetryMaxDelay;
+	}
+	
+	/**
+	 * @return milliseconds between two rtt probes of the brokers, 0 if they are not probed
+	 */
+	public long getProbeInterval() {
+		return probeInterval;
+	}
+	
+	public int getProbeTimeout() {
+		return probeTimeout;
+	}
+	
+	public void setBrokerProber(BrokerProber brokerProber) {
+		this.brokerProber = brokerProber;
+	}
+	
+	/**
+	 * @return the prober ordering the brokers, null if mqtt.probe.interval is 0
+	 */
+	public BrokerProber getBrokerProber() {
+		return brokerProber;
+	}
+	
+	public void setPushBatchSize(int pushBatchSize) {
+		this.pushBatchSize = pushBatchSize;
+	}
+	
+	/**
+	 * @return max messages drained from the push queue and published back to back, 1 means one by one
+	 */
+	public int getPushBatchSize() {
+		return pushBatchSize;
+	}
+	
+	public void setPushLingerTime(long pushLingerTime) {
+		this.pushLingerTime = pushLingerTime;
+	}
+	
+	/**
+	 * @return the time to wait for a batch to fill up, measured in milliseconds
+	 */
+	public long getPushLingerTime() {
+		return pushLingerTime;
+	}
+	
+	public void setMaxInflight(int maxInflight) {
+		this.maxInflight = maxInflight;
+	}
+	
+	/**
+	 * @return max QoS1/QoS2 publishes waiting for their acks at the same time
+	 */
+	public int getMaxInflight() {
+		return maxInflight;
+	}
+	
+	public void setReceiveThreads(int receiveThreads) {
+		this.receiveThreads = receiveThreads;
+	}
+	
+	/**
+	 * @return threads the received messages are dispatched on, 0 calls the listeners on the mqtt callback thread
+	 */
+	public int getReceiveThreads() {
+		return receiveThreads;
+	}
+	
+	public void setReceiveQueueSize(int receiveQueueSize) {
+		this.receiveQueueSize = receiveQueueSize;
+	}
+	
+	/**
+	 * @return max received messages queued for each dispatch thread
+	 */
+	public int getReceiveQueueSize() {
+		return receiveQueueSize;
+	}
+	
+	public void setReceiveOverflow(OverflowPolicy receiveOverflow) {
+		this.receiveOverflow = receiveOverflow;
+	}
+	
+	public OverflowPolicy getReceiveOverflow() {
+		return receiveOverflow;
+	}
+	
+	public void setReceiveManualAck(boolean receiveManualAck) {
+		this.receiveManualAck = receiveManualAck;
+	}
+	
+	/**
+	 * @return true if a received qos 1 or 2 message is acked only once its listeners and subscribers are done with it
+	 */
+	public boolean isReceiveManualAck() {
+		return receiveManualAck;
+	}
+	
+	public void setReceiveStreamBuffer(int receiveStreamBuffer) {
+		this.receiveStreamBuffer = receiveStreamBuffer;
+	}
+	
+	/**
+	 * @return max received messages buffered for each subscriber of a message publisher
+	 */
+	public int getReceiveStreamBuffer() {
+		return receiveStreamBuffer;
+	}
+	
+	public void setReceiveStreamOverflow(OverflowPolicy receiveStreamOverflow) {
+		this.receiveStreamOverflow = receiveStreamOverflow;
+	}
+	
+	/**
+	 * @return what a message publisher does with a message for a full subscriber buffer, drop_oldest or reject
+	 */
+	public OverflowPolicy getReceiveStreamOverflow() {
+		return receiveStreamOverflow;
+	}
+	
+	public void setReceiveEnvelope(String receiveEnvelope) {
+		this.receiveEnvelope = receiveEnvelope;
+	}
+	
+	/**
+	 * @return the comma separated topic filters whose received envelopes are unpacked, other messages are delivered as they are
+	 */
+	public String getReceiveEnvelope() {
+		return receiveEnvelope;
+	}
+	
+	/**
+	 * copy this config for another client id, the will, notify and rpc topics are rebuilt for the new client id
+	 * when the config was loaded from file
+	 * @param clientid
+	 * @return
+	 */
+	public MqttConfig copy(String clientid) {
+		MqttConfig config;
+		try {
+			config = (MqttConfig) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+		config.mClientid = clientid;
+		if(rpcTopicRoot != null) {
+			config.buildClientTopics();
+		}
+		return config;
+	}
+	
 	public void createSslSocketFac(String caPath, String crtPath, String keyPath, String password) throws Exception {
-		sslSocketFac = MqttSSLCreator.getSSLSocktet(caPath, crtPath, keyPath, password);
+		setSslSocketFac(MqttSSLCreator.getSSLSocktet(caPath, crtPath, keyPath, password));
 	}
 	
     /**
@@ -163,22 +768,72 @@ public class MqttConfig {
 			return;
 		}
 		maxMessageQueue = Integer.parseInt(getConfValue("mqtt.push.messagequeue", "1000"));
+		pushQueueType = getConfValue("mqtt.push.queue", "linked");
+		pushQueueWait = WaitStrategy.valueOf(getConfValue("mqtt.push.queue.wait", "park").toUpperCase());
+		pushSpill = Boolean.parseBoolean(getConfValue("mqtt.push.spill", "false"));
+		pushSpillSegmentSize = Integer.parseInt(getConfValue("mqtt.push.spill.segmentsize", String.valueOf(16*1024*1024)));
+		pushSpillMaxSegments = Math.max(0, Integer.parseInt(getConfValue("mqtt.push.spill.maxsegments", "0")));
+		pushBatchSize = Math.max(1, Integer.parseInt(getConfValue("mqtt.push.batchsize", "1")));
+		pushLingerTime = Math.max(0, Long.parseLong(getConfValue("mqtt.push.linger", "0")));
+		maxInflight = Math.max(1, Integer.parseInt(getConfValue("mqtt.push.inflight", "10")));
+		jmxEnabled = Boolean.parseBoolean(getConfValue("mqtt.jmx", "true"));
+		pushLanes = Math.max(1, Integer.parseInt(getConfValue("mqtt.push.lanes", "1")));
+		pushLaneWeights = parseInts(getConfValue("mqtt.push.lane.weights", "1"));
+		pushLaneRules = getConfValue("mqtt.push.lane.rules", "");
+		pushConflate = getConfValue("mqtt.push.conflate", "");
+		pushConflateRetained = Boolean.parseBoolean(getConfValue("mqtt.push.conflate.retained", "false"));
+		pushEnvelope = getConfValue("mqtt.push.envelope", "");
+		pushEnvelopeMaxSize = Math.max(64, Integer.parseInt(getConfValue("mqtt.push.envelope.maxsize", String.valueOf(16*1024))));
+		pushEnvelopeLinger = Math.max(0, Long.parseLong(getConfValue("mqtt.push.envelope.linger", "5")));
+		pushRetryMax = Integer.parseInt(getConfValue("mqtt.push.retry.max", "10"));
+		pushRetryInitialDelay = Math.max(1, Long.parseLong(getConfValue("mqtt.push.retry.initialdelay", "1000")));
+		pushRetryMaxDelay = Math.max(1, Long.parseLong(getConfValue("mqtt.push.retry.maxdelay", "60000")));
+		receiveThreads = Math.max(0, Integer.parseInt(getConfValue("mqtt.receive.threads", "0")));
+		receiveQueueSize = Math.max(1, Integer.parseInt(getConfValue("mqtt.receive.queue", "1000")));
+		receiveOverflow = OverflowPolicy.valueOf(getConfValue("mqtt.receive.overflow", "block").toUpperCase());
+		receiveManualAck = Boolean.parseBoolean(getConfValue("mqtt.receive.manualack", "false"));
+		receiveStreamBuffer = Math.max(1, Integer.parseInt(getConfValue("mqtt.receive.stream.buffer", "256")));
+		receiveStreamOverflow = OverflowPolicy.valueOf(getConfValue("mqtt.receive.stream.overflow", "drop_oldest").toUpperCase());
+		receiveEnvelope = getConfValue("mqtt.receive.envelope", "");
+		persistenceType = getConfValue("mqtt.persistence", "file");
+		persistenceSync = SyncPolicy.valueOf(getConfValue("mqtt.persistence.sync", "group").toUpperCase());
+		persistenceSyncInterval = Math.max(0, Long.parseLong(getConfValue("mqtt.persistence.sync.interval", "5")));
+		persistenceSegmentSize = Integer.parseInt(getConfValue("mqtt.persistence.segmentsize", String.valueOf(4*1024*1024)));
+		compress = getConfValue("mqtt.compress", "none");
+		compressMinSize = Math.max(0, Integer.parseInt(getConfValue("mqtt.compress.minsize", "512")));
+		compressLevel = Integer.parseInt(getConfValue("mqtt.compress.level", "1"));
+		compressRules = getConfValue("mqtt.compress.rules", "");
+		compressMaxInflated = Math.max(0, Integer.parseInt(getConfValue("mqtt.compress.maxinflated", String.valueOf(CompressionStage.DEFAULT_MAX_INFLATED))));
+		connectRetryMax = Integer.parseInt(getConfValue("mqtt.connect.retry.max", "-1"));
+		connectRetryInitialDelay = Math.max(1, Long.parseLong(getConfValue("mqtt.connect.retry.initialdelay", "1000")));
+		connectRetryMaxDelay = Math.max(1, Long.parseLong(getConfValue("mqtt.connect.retry.maxdelay", "60000")));
+		probeInterval = Math.max(0, Long.parseLong(getConfValue("mqtt.probe.interval", "30000")));
+		probeTimeout = Math.max(1, Integer.parseInt(getConfValue("mqtt.probe.timeout", "2000")));
+		brokerProber = probeInterval > 0 ? new BrokerProber(probeInterval, probeTimeout) : null;
 		mUri = getConfValue("mqtt.uri.ssl");
+		mTcpUri = getConfValue("mqtt.uri.tcp");
+		synchronized (this) {
+			sslSocketFac = null;
+			sslSocketFacFuture = null;
+		}
 		if(!isEmpty(mUri) && !isEmpty(mConfPath)) {
+			// the certificates are parsed in the background, the connector waits for them when it connects
 			try {
-				createSslSocketFac(mConfPath+getSSLConfValue("com.ibm.ssl.trustStore")
+				Future<SSLSocketFactory> future = MqttSSLCreator.getSSLSocketFactoryAsync(mConfPath+getSSLConfValue("com.ibm.ssl.trustStore")
 						, mConfPath+getSSLConfValue("com.ibm.ssl.keyStore")
 						,mConfPath+ getSSLConfValue("com.ibm.ssl.privateStore")
 						, getSSLConfValue("com.ibm.ssl.keyStorePassword"));
+				synchronized (this) {
+					sslSocketFacFuture = future;
+				}
 			}
-			catch (Exception e) {
+			catch (IOException e) {
 				logger.error(CommonUtils.getExceptionInfo(e));
 			}
 		}
-		if(isEmpty(mUri) || sslSocketFac == null) {
-			mUri = getConfValue("mqtt.uri.tcp");
+		if(isEmpty(mUri) || (sslSocketFacFuture == null && sslSocketFac == null)) {
+			mUri = mTcpUri;
 		}
-		String rpcpre = getConfValue("mqtt.rpctopic","/rpc");
 		mUsername = getConfValue("mqtt.username", "");
 		mPassword = getConfValue("mqtt.password", "");
 		mClientid = getConfValue("mqtt.clientid", "");
@@ -186,22 +841,44 @@ public class MqttConfig {
 			throw new IOException("the clientid not configured");
 		}
 		keepalive = Integer.parseInt(getConfValue("mqtt.keepalive", "60"));
-		mWillTopic = rpcpre +"/"+mClientid+"/"+getConfValue("mqtt.willtopic", "status");
+		mWillTopicName = getConfValue("mqtt.willtopic", "status");
 		mWillMsg = getConfValue("mqtt.willmsg","0");
 		
 		rpcRequestName = getConfValue("mqtt.rpc.request.name", "/req/");
 		rpcResponseName = getConfValue("mqtt.rpc.response.name", "/resp/");
-		mNotifyTopicPre = rpcpre +"/"+mClientid+"/"+getConfValue("mqtt.topic.notify", "notify");
-		rpcTopicPrefix = rpcpre+"/" + mClientid + rpcRequestName;
+		rpcTimeout = Math.max(1, Long.parseLong(getConfValue("mqtt.rpc.timeout", "30000")));
+		mNotifyTopicName = getConfValue("mqtt.topic.notify", "notify");
+		rpcTopicRoot = getConfValue("mqtt.rpctopic","/rpc");
+		buildClientTopics();
+	}
+	
+	private void buildClientTopics() {
+		mWillTopic = rpcTopicRoot +"/"+mClientid+"/"+mWillTopicName;
+		mNotifyTopicPre = rpcTopicRoot +"/"+mClientid+"/"+mNotifyTopicName;
+		rpcTopicPrefix = rpcTopicRoot+"/" + mClientid + rpcRequestName;
+		rpcResponsePrefix = rpcTopicRoot+"/" + mClientid + rpcResponseName;
+	}
+	
+	private static int[] parseInts(String value) {
+		String[] items = value.split(",");
+		int[] values = new int[items.length];
+		for(int i=0; i<items.length; i++) {
+			String item = items[i].trim();
+			values[i] = item.length() > 0 ? Integer.parseInt(item) : 1;
+		}
+		return values;
 	}
 	
 	public boolean checkValid() throws Exception {
-		if(isEmpty(mUri)) {
+		if(isEmpty(getUri())) {
 			throw new Exception("uri not found");
 		}
 		if(isEmpty(mUsername) && isEmpty(mClientid)) {
 			throw new Exception("No username and clientid");
 		}
+		if(receiveStreamOverflow == OverflowPolicy.BLOCK) {
+			throw new Exception("mqtt.receive.stream.overflow can not be block, a stream never holds the receiving thread");
+		}
 		return true;
 	}
 	
@@ -217,6 +894,15 @@ public class MqttConfig {
     	return mProperties.getProperty(key, defValue);
     }
     
+    /**
+     * set a value over the one of the config file, it takes effect with the next {@link #load(String)}
+     * @param key
+     * @param value
+     */
+    public void setConfValue(String key, String value) {
+    	mOverrides.setProperty(key, value);
+    }
+    
     public String getSSLConfValue(String key) {
 		return getSSLConfValue(key, null);
 	}
@@ -257,6 +943,7 @@ public class MqttConfig {
 				}
 			}
 		}
+		mProperties.putAll(mOverrides);
 		return true;
 	}
 
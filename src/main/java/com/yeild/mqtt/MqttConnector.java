@@ -1,34 +1,155 @@
 package com.yeild.mqtt;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
 
 import org.apache.log4j.Logger;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
 
 import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.codec.CodecMessageListener;
+import com.yeild.mqtt.codec.PayloadCodec;
+import com.yeild.mqtt.compress.CompressionStage;
+import com.yeild.mqtt.compress.DeflateCompressor;
+import com.yeild.mqtt.compress.PayloadCompressor;
+import com.yeild.mqtt.dispatch.StripedExecutor;
+import com.yeild.mqtt.envelope.EnvelopeBatcher;
+import com.yeild.mqtt.envelope.EnvelopeMessage;
+import com.yeild.mqtt.failover.BrokerProber;
+import com.yeild.mqtt.listener.OnCodecMessageListener;
+import com.yeild.mqtt.listener.OnConnectionStateListener;
 import com.yeild.mqtt.listener.OnMqttMessageListener;
+import com.yeild.mqtt.metrics.MqttMetrics;
+import com.yeild.mqtt.persist.MappedLogPersistence;
+import com.yeild.mqtt.queue.ConflatingPushMessageQueue;
+import com.yeild.mqtt.queue.LaneSelector;
+import com.yeild.mqtt.queue.LinkedPushMessageQueue;
+import com.yeild.mqtt.queue.PriorityLaneQueue;
+import com.yeild.mqtt.queue.PushMessageQueue;
+import com.yeild.mqtt.queue.RingBufferPushMessageQueue;
+import com.yeild.mqtt.queue.SpillJournal;
+import com.yeild.mqtt.queue.SpillingPushMessageQueue;
+import com.yeild.mqtt.retry.RetryPolicy;
+import com.yeild.mqtt.stream.AckTracker;
+import com.yeild.mqtt.stream.MessagePublisher;
+import com.yeild.mqtt.stream.Publisher;
+import com.yeild.mqtt.utils.MqttScheduler;
+import com.yeild.mqtt.utils.TopicTrie;
 
 public class MqttConnector implements Runnable,MqttCallbackExtended {
 	protected Logger logger = Logger.getLogger(getClass());
 	protected MqttClient mqttClient;
 	protected MqttConfig mqttConfig;
 	protected String mConfPath;
-	protected LinkedBlockingQueue<PushMqttMessage> pushMsgQueue = null;
-	protected boolean runningTask = true;
-	protected boolean mIsLogined = false;
-	protected Exception lastException;
+	protected PushMessageQueue pushMsgQueue = null;
+	protected SpillJournal spillJournal = null;
+	protected PriorityLaneQueue laneQueue = null;
+	protected ConflatingPushMessageQueue conflatingQueue = null;
+	/**
+	 * compresses the pushed and decompresses the received payloads, created by run()
+	 */
+	protected CompressionStage compression = null;
+	/**
+	 * packs the messages of the topics of mqtt.push.envelope, null if no topic is enveloped
+	 */
+	protected EnvelopeBatcher envelopes = null;
+	/**
+	 * the topics whose received envelopes are unpacked, null if none
+	 */
+	protected TopicTrie<Boolean> receiveEnvelopes = null;
+	protected volatile boolean runningTask = true;
+	/**
+	 * true while the state is {@link ConnectionState#ONLINE}
+	 */
+	protected volatile boolean mIsLogined = false;
+	protected volatile Exception lastException;
+	protected volatile ConnectionState state = ConnectionState.CONNECTING;
+	/**
+	 * completed by the first login, failed if the connector failed or stopped before
+	 */
+	protected final MqttFuture<MqttConnector> loginFuture = new MqttFuture<MqttConnector>();
+	protected final CopyOnWriteArrayList<OnConnectionStateListener> stateListeners = new CopyOnWriteArrayList<OnConnectionStateListener>();
+	protected Thread runThread;
+	/**
+	 * set once the publish thread left its loop, from then on the queue is only drained under {@link #exitLock}
+	 */
+	protected volatile boolean publishLoopExited = false;
+	protected final Object exitLock = new Object();
+	protected final MqttMetrics metrics = new MqttMetrics();
+	protected ObjectName jmxName;
+	/**
+	 * when the current connect attempt started, 0 once connected
+	 */
+	protected volatile long connectStartNanos = 0;
+	protected StripedExecutor receiveExecutor;
+	protected RetryPolicy retryPolicy;
+	/**
+	 * the backoff of the failed connects and reconnects
+	 */
+	protected RetryPolicy connectPolicy;
+	/**
+	 * the options of the last connect, the reconnects reuse them with the brokers ordered again
+	 */
+	protected MqttConnectOptions connectOptions;
+	/**
+	 * the brokers registered with the prober of the config, null if they are not probed
+	 */
+	protected String[] probedUris;
+	/**
+	 * true while a reconnect thread runs, guarded by connectMonitor
+	 */
+	protected boolean reconnecting = false;
+	/**
+	 * notified when the client (re)connected and on every state change, the publish loop and
+	 * {@link #waitLoginComplete(int)} wait on it instead of polling
+	 */
+	protected final Object connectMonitor = new Object();
 	
-	protected ArrayList<OnMqttMessageListener> messageListeners = new ArrayList<OnMqttMessageListener>(1);
+	protected CopyOnWriteArrayList<OnMqttMessageListener> messageListeners = new CopyOnWriteArrayList<OnMqttMessageListener>();
+	protected TopicTrie<OnMqttMessageListener> topicListeners = new TopicTrie<OnMqttMessageListener>();
+	/**
+	 * the topic filters subscribed by {@link #subscribe(String, int)}, subscribed again after every connect
+	 */
+	protected final ConcurrentHashMap<String, Integer> subscriptions = new ConcurrentHashMap<String, Integer>();
+	/**
+	 * the message publishers by topic filter, created by {@link #getMessagePublisher(String)}
+	 */
+	protected final ConcurrentHashMap<String, MessagePublisher> publishers = new ConcurrentHashMap<String, MessagePublisher>();
+	protected final TopicTrie<MessagePublisher> topicPublishers = new TopicTrie<MessagePublisher>();
+	/**
+	 * the manual acks of the received messages, null unless mqtt.receive.manualack is enabled
+	 */
+	protected AckTracker acks;
+	/**
+	 * notified when messages leave the push queue while producers wait in {@link #awaitCredits(int, long, TimeUnit)}
+	 */
+	protected final Object creditMonitor = new Object();
+	protected final AtomicInteger creditWaiters = new AtomicInteger();
+	/**
+	 * the failed messages waiting for their retry, failed at once by {@link #stop()}
+	 */
+	protected final Set<PushMqttMessage> retrying = Collections.newSetFromMap(new ConcurrentHashMap<PushMqttMessage, Boolean>());
 
 	/**
 	 * 
@@ -42,29 +163,238 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 		this.mqttConfig = config;
 	}
 	
+	/**
+	 * 
+	 * @param confPath the path of mqtt config file, the client persistence is kept next to it
+	 * @param config the loaded config
+	 */
+	public MqttConnector(String confPath, MqttConfig config) {
+		this.mConfPath = confPath;
+		this.mqttConfig = config;
+	}
+	
 	public MqttConfig getMqttConfig() {
 		return mqttConfig;
 	}
 	
 	public void addMqttMessageListener(OnMqttMessageListener pListener) {
-		if(!this.messageListeners.contains(pListener)) {
-			this.messageListeners.add(pListener);
+		this.messageListeners.addIfAbsent(pListener);
+	}
+	
+	/**
+	 * the listener only receives the messages whose topic matches the filter
+	 * @param topicFilter the mqtt topic filter, may contain '+' and '#'
+	 * @param pListener
+	 */
+	public void addMqttMessageListener(String topicFilter, OnMqttMessageListener pListener) {
+		this.topicListeners.add(topicFilter, pListener);
+	}
+	
+	/**
+	 * the listener receives the messages of the filter with the payload decoded by the codec on demand
+	 * @param topicFilter
+	 * @param codec
+	 * @param pListener
+	 * @return the registered listener, pass it to {@link #removeMqttMessageListener(OnMqttMessageListener)}
+	 */
+	public <T> OnMqttMessageListener addMqttMessageListener(String topicFilter, PayloadCodec<T> codec, OnCodecMessageListener<T> pListener) {
+		OnMqttMessageListener listener = new CodecMessageListener<T>(codec, pListener);
+		addMqttMessageListener(topicFilter, listener);
+		return listener;
+	}
+	
+	/**
+	 * the received messages of the filter as a reactive stream, the subscribers pull them by their demand.
+	 * Every subscriber buffers up to mqtt.receive.stream.buffer messages, a full buffer drops a message as
+	 * mqtt.receive.stream.overflow says, it never blocks the receiving thread. With mqtt.receive.manualack a message
+	 * is acked after its onNext returned, so a slow subscriber holds back the broker instead of losing messages. The filter still has to be subscribed by {@link #subscribe(String, int)}.
+	 * @param topicFilter
+	 * @return the same publisher for the same filter
+	 */
+	public Publisher<PushMqttMessage> getMessagePublisher(String topicFilter) {
+		synchronized (publishers) {
+			MessagePublisher publisher = publishers.get(topicFilter);
+			if(publisher == null) {
+				MqttConfig config = mqttConfig != null ? mqttConfig : new MqttConfig();
+				publisher = new MessagePublisher(topicFilter, config.getReceiveStreamBuffer(), config.getReceiveStreamOverflow());
+				topicPublishers.add(topicFilter, publisher);
+				publishers.put(topicFilter, publisher);
+			}
+			return publisher;
 		}
 	}
 	
+	/**
+	 * remove the listener from all the topic filters too
+	 * @param pListener
+	 */
 	public void removeMqttMessageListener(OnMqttMessageListener pListener) {
 		this.messageListeners.remove(pListener);
+		this.topicListeners.removeAll(pListener);
+	}
+	
+	public void removeMqttMessageListener(String topicFilter, OnMqttMessageListener pListener) {
+		this.topicListeners.remove(topicFilter, pListener);
+	}
+	
+	/**
+	 * subscribe the topic filter now if connected and again after every reconnect
+	 * @param topicFilter
+	 * @param qos
+	 * @throws MqttException
+	 */
+	public void subscribe(String topicFilter, int qos) throws MqttException {
+		subscriptions.put(topicFilter, qos);
+		if(isClientConnected()) {
+			subscribeTopic(topicFilter, qos);
+		}
+	}
+	
+	public void unsubscribe(String topicFilter) throws MqttException {
+		if(subscriptions.remove(topicFilter) != null && isClientConnected()) {
+			unsubscribeTopic(topicFilter);
+		}
 	}
 	
 	public boolean isLogined() {
 		return mIsLogined;
 	}
 	
+	public ConnectionState getConnectionState() {
+		return state;
+	}
+	
+	/**
+	 * @return completed with this connector by the first login, failed with the cause if the connector
+	 * failed or was stopped before it logged in
+	 */
+	public MqttFuture<MqttConnector> getLoginFuture() {
+		return loginFuture;
+	}
+	
+	public void addConnectionStateListener(OnConnectionStateListener listener) {
+		stateListeners.addIfAbsent(listener);
+	}
+	
+	public void removeConnectionStateListener(OnConnectionStateListener listener) {
+		stateListeners.remove(listener);
+	}
+	
+	/**
+	 * move to the state and wake up the waiting threads, a stopped connector stays stopped
+	 * @param newState
+	 */
+	protected void setState(ConnectionState newState) {
+		ConnectionState previous;
+		synchronized (connectMonitor) {
+			previous = state;
+			if(previous == newState || previous == ConnectionState.STOPPED) {
+				return;
+			}
+			state = newState;
+			mIsLogined = newState == ConnectionState.ONLINE;
+			connectMonitor.notifyAll();
+		}
+		logger.debug("connection state " + previous + " -> " + newState);
+		for(OnConnectionStateListener listener : stateListeners) {
+			try {
+				listener.onConnectionStateChanged(this, previous, newState);
+			} catch (Exception e) {
+				logger.error(CommonUtils.getExceptionInfo(e));
+			}
+		}
+		// after the listeners, a listener added once the future completed does not see the change again
+		if(newState == ConnectionState.ONLINE) {
+			loginFuture.complete(this);
+		} else if(newState.isTerminal()) {
+			Exception cause = lastException;
+			loginFuture.fail(cause != null ? cause : new IllegalStateException("connector " + newState.name().toLowerCase()));
+		}
+	}
+	
 	public Exception getLastException() {
 		return lastException;
 	}
 	
+	public int getPushQueueSize() {
+		return pushMsgQueue == null ? 0 : pushMsgQueue.size();
+	}
+	
+	public int getPushLaneCount() {
+		return laneQueue == null ? 1 : laneQueue.getLaneCount();
+	}
+	
+	/**
+	 * @param lane
+	 * @return the messages queued in the push lane, the spilled messages are not counted
+	 */
+	public int getPushLaneSize(int lane) {
+		if(laneQueue == null) {
+			return lane == 0 ? getPushQueueSize() : 0;
+		}
+		return lane < laneQueue.getLaneCount() ? laneQueue.getLaneSize(lane) : 0;
+	}
+	
+	public long getPublishedCount() {
+		return metrics.getPublished().sum();
+	}
+	
+	public long getPublishFailedCount() {
+		return metrics.getPublishFailed().sum();
+	}
+	
+	public long getReceivedCount() {
+		return metrics.getReceived().sum();
+	}
+	
+	/**
+	 * @return pushed messages that replaced a queued message of the same topic
+	 */
+	public long getPushConflatedCount() {
+		return conflatingQueue == null ? 0 : conflatingQueue.getConflatedCount();
+	}
+	
+	/**
+	 * @return failed messages waiting for their retry
+	 */
+	public long getPendingRetryCount() {
+		return metrics.getPendingRetries().sum();
+	}
+	
+	public MqttMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return received messages dropped or rejected because the dispatch queue was full
+	 */
+	public long getReceiveDroppedCount() {
+		return receiveExecutor == null ? 0 : receiveExecutor.getDroppedCount() + receiveExecutor.getRejectedCount();
+	}
+	
+	/**
+	 * @return received messages not acked yet, 0 unless mqtt.receive.manualack is enabled
+	 */
+	public int getPendingAckCount() {
+		return acks == null ? 0 : acks.getPendingCount();
+	}
+	
+	/**
+	 * queue the message for publishing. If mqtt.compress is enabled the payload of the message is replaced
+	 * by the compressed one on the calling thread, the push result carries the compressed payload. The messages of the topics of mqtt.push.envelope are
+	 * packed into envelopes first.
+	 * @param message
+	 * @return false if the queue stayed full
+	 */
 	public boolean pushMessage(PushMqttMessage message) {
+		if(pushMsgQueue == null) {
+			return false;
+		}
+		message.setEnqueueNanos(System.nanoTime());
+		if(envelopes != null && envelopes.matches(message)) {
+			return pushEnvelope(message);
+		}
+		compress(message);
 		try {
 			return this.pushMsgQueue.offer(message, 3, TimeUnit.SECONDS);
 		} catch (InterruptedException e) {
@@ -72,16 +402,157 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 		}
 	}
 	
+	/**
+	 * add the message to the envelope of its topic, waiting like {@link #pushMessage(PushMqttMessage)}
+	 * if the queue is full
+	 */
+	protected boolean pushEnvelope(PushMqttMessage message) {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+		while(!envelopes.add(message)) {
+			if(System.nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			// the envelopes are offered under the lock of the batcher, so poll instead of waiting on the queue
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		return true;
+	}
+	
+	/**
+	 * encode the value with the codec and queue it with qos 1
+	 * @param topic
+	 * @param value
+	 * @param codec
+	 * @return false if the codec failed or the queue stayed full
+	 */
+	public <T> boolean pushMessage(String topic, T value, PayloadCodec<? super T> codec) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		try {
+			message.setPayload(value, codec);
+		} catch (IOException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return false;
+		}
+		return pushMessage(message);
+	}
+	
+	/**
+	 * queue the message without blocking, see {@link #publish(PushMqttMessage)}
+	 * @param message
+	 * @return false if the message was rejected
+	 */
 	public boolean pushMessageAsync(PushMqttMessage message) {
+		MqttFuture<PushMqttMessage> future = publish(message);
+		if(future.isDone() && !future.isSuccess()) {
+			logger.debug(message.getTopic() + " rejected: " + future.getCause().getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * queue the message for publishing without blocking the calling thread. The future completes with the message
+	 * once the broker acked it, qos 0 once it was written, and fails with a {@link PublishException}: at once if the
+	 * message is rejected, e.g. {@link PublishException#REASON_QUEUE_FULL} if no credits are left, or with
+	 * {@link PublishException#REASON_PUBLISH_FAILED} after the retries. The listeners get the push result as well.
+	 * If mqtt.compress is enabled the payload of the message is replaced by the compressed one on the calling thread,
+	 * the future and the push result carry the compressed payload.
+	 * @param message
+	 * @return
+	 */
+	public MqttFuture<PushMqttMessage> publish(PushMqttMessage message) {
+		PublishException rejection = checkPublish(message);
+		if(rejection != null) {
+			return MqttFuture.failed(rejection);
+		}
+		MqttFuture<PushMqttMessage> future = new MqttFuture<PushMqttMessage>();
+		message.setFuture(future);
+		message.setEnqueueNanos(System.nanoTime());
+		boolean queued;
+		if(envelopes != null && envelopes.matches(message)) {
+			queued = envelopes.add(message);
+		} else {
+			compress(message);
+			queued = pushMsgQueue.offer(message);
+		}
+		if(!queued) {
+			message.setFuture(null);
+			future.fail(new PublishException(PublishException.REASON_QUEUE_FULL, "push queue full"));
+		} else {
+			failQueuedAfterExit();
+		}
+		return future;
+	}
+	
+	/**
+	 * @param message
+	 * @return why the message can not be queued, null if it can
+	 */
+	protected PublishException checkPublish(PushMqttMessage message) {
+		if(pushMsgQueue == null) {
+			return new PublishException(PublishException.REASON_NOT_STARTED, "connector not started");
+		}
+		if(!runningTask || state.isTerminal()) {
+			return new PublishException(PublishException.REASON_STOPPED, "connector " + state.name().toLowerCase());
+		}
+		String topic = message.getTopic();
+		if(topic == null || topic.length() < 1 || topic.indexOf('#') >= 0 || topic.indexOf('+') >= 0) {
+			return new PublishException(PublishException.REASON_INVALID_TOPIC, "invalid topic: " + topic);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the messages that can be published before the push queue is full
+	 */
+	public int getAvailableCredits() {
+		PushMessageQueue queue = pushMsgQueue;
+		if(queue == null) {
+			return 0;
+		}
+		return Math.max(0, queue.capacity() - queue.size());
+	}
+	
+	/**
+	 * wait until the push queue has room for the messages, on this side of the mqtt client
+	 * @param credits
+	 * @param timeout
+	 * @param unit
+	 * @return false if the credits were not available in time or the connector stopped
+	 * @throws InterruptedException
+	 */
+	public boolean awaitCredits(int credits, long timeout, TimeUnit unit) throws InterruptedException {
+		if(getAvailableCredits() >= credits) {
+			return true;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		creditWaiters.incrementAndGet();
 		try {
-			mqttClient.publish(message.getTopic(), (MqttMessage)message);
+			synchronized (creditMonitor) {
+				while(getAvailableCredits() < credits) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0 || !runningTask) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait(creditMonitor, remaining);
+				}
+			}
 			return true;
-		} catch (MqttPersistenceException e) {
-			logger.error(CommonUtils.getExceptionInfo(e));
-		} catch (MqttException e) {
-			logger.error(CommonUtils.getExceptionInfo(e));
+		} finally {
+			creditWaiters.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * wake the producers waiting for credits, only costs a volatile read if there are none
+	 */
+	protected void creditsReleased() {
+		if(creditWaiters.get() > 0) {
+			synchronized (creditMonitor) {
+				creditMonitor.notifyAll();
+			}
 		}
-		return false;
 	}
 	
 	/**
@@ -93,40 +564,90 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 	}
 	
 	/**
-	 * wait the mqtt server login success
+	 * wait the mqtt server login success, woken up by the state change
 	 * @param timeout the time to wait, measured in milliseconds
 	 * @return
 	 */
 	public boolean waitLoginComplete(int timeout) {
-		long waitBegin = 0;
-		while(!isLogined()) {
-			if(timeout>0) {
-				if(waitBegin < 1) {
-					waitBegin = System.currentTimeMillis();
-				} else if(System.currentTimeMillis() - waitBegin > timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (connectMonitor) {
+			while(!isLogined() && !state.isTerminal()) {
+				if(getLastException() != null) {
+					logger.error(CommonUtils.getExceptionInfo(getLastException()));
+					break;
+				}
+				long wait = 0;
+				if(timeout > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) {
+						break;
+					}
+				}
+				try {
+					connectMonitor.wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 					break;
 				}
 			}
-			if(getLastException() != null) {
-				logger.error(CommonUtils.getExceptionInfo(getLastException()));
-				break;
-			}
-			try {
-				Thread.sleep(1*1000);
-			} catch (InterruptedException e) { }
 		}
 		return isLogined();
 	}
 	
+	/**
+	 * stop publishing and disconnect from the mqtt server
+	 */
+	public void stop() {
+		runningTask = false;
+		if(runThread != null) {
+			runThread.interrupt();
+		}
+		synchronized (creditMonitor) {
+			creditMonitor.notifyAll();
+		}
+		// the publish thread fails what is left once it is out of its loop, see publishLoopExited()
+		if(probedUris != null) {
+			mqttConfig.getBrokerProber().unregister(probedUris);
+			probedUris = null;
+		}
+		for(MessagePublisher publisher : publishers.values()) {
+			publisher.complete();
+		}
+		try {
+			disconnectClient();
+		} catch (MqttException e) {
+			logger.debug(CommonUtils.getExceptionInfo(e));
+		}
+		if(receiveExecutor != null) {
+			receiveExecutor.shutdown();
+		}
+		if(spillJournal != null) {
+			spillJournal.force();
+		}
+		metrics.stop();
+		unregisterMBean();
+		setState(ConnectionState.STOPPED);
+	}
+	
 	@Override
 	public void run() {
-		mIsLogined = false;
+		runThread = Thread.currentThread();
+		try {
+			runConnector();
+		} finally {
+			publishLoopExited();
+		}
+	}
+	
+	private void runConnector() {
+		setState(ConnectionState.CONNECTING);
 		if(mqttConfig == null) {
 			mqttConfig = new MqttConfig();
 			try {
 				mqttConfig.load(mConfPath);
 			} catch (IOException e) {
 				lastException = e;
+				setState(ConnectionState.FAILED);
 				return;
 			}
 		}
@@ -135,99 +656,626 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 		} catch (Exception e2) {
 			lastException = e2;
 			logger.error(CommonUtils.getExceptionInfo(e2));
+			setState(ConnectionState.FAILED);
 			return;
 		}
-		pushMsgQueue = new LinkedBlockingQueue<PushMqttMessage>(mqttConfig.getMaxMessageQueue());
-		int retryTimesLimit = 5;
+		registerBrokers();
+		pushMsgQueue = createPushQueue();
+		retryPolicy = createRetryPolicy();
+		connectPolicy = createConnectPolicy();
+		compression = createCompressionStage();
+		envelopes = createEnvelopeBatcher();
+		receiveEnvelopes = createReceiveEnvelopes();
+		metrics.start();
+		if(mqttConfig.isJmxEnabled()) {
+			registerMBean();
+		}
+		if(mqttConfig.getReceiveThreads() > 0) {
+			receiveExecutor = new StripedExecutor("mqtt-receive-" + mqttConfig.getClientid(), mqttConfig.getReceiveThreads()
+					, mqttConfig.getReceiveQueueSize(), mqttConfig.getReceiveOverflow()) {
+				@Override
+				protected void dropped(Runnable task) {
+					// a dropped message is acked, it must not hold back the acks of the later ones
+					release(((DeliverTask) task).message);
+				}
+			};
+		}
+		if(mqttConfig.isReceiveManualAck()) {
+			acks = new AckTracker(new AckTracker.Acker() {
+				@Override
+				public void ack(int messageId, int qos) throws Exception {
+					ackMessage(messageId, qos);
+				}
+			});
+		}
+		connectStartNanos = System.nanoTime();
 		int retryTimes=0;
-		while(true) {
+		while(runningTask) {
 			try {
 				connnect();
 				logger.info("login success");
 				break;
 			} catch (MqttException e) {
 				logger.debug(CommonUtils.getExceptionInfo(e));
-				logger.debug(mqttConfig.getUsername()+"----"+mqttConfig.getPassword());
-				if(retryTimes > retryTimesLimit) {
+				retryTimes ++;
+				if(!connectPolicy.canRetry(retryTimes)) {
 					lastException = e;
+					setState(ConnectionState.FAILED);
 					return;
-				} else {
-					try {
-						Thread.sleep(1*1000);
-					} catch (InterruptedException e1) { }
-					retryTimes ++;
 				}
+				awaitConnectRetry(retryTimes);
 			}
 		}
-		while(runningTask) {
-			PushMqttMessage pushMsg = null;
-			try {
-				pushMsg = pushMsgQueue.take();
-				if(!mqttClient.isConnected()) {
-					this.pushMessage(pushMsg);
-					Thread.sleep(2*1000);
-					continue;
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
-				if(pushMsg != null) {
-					this.pushMessage(pushMsg);
-				}
-			}
-			try {
-				mqttClient.publish(pushMsg.getTopic(), pushMsg);
-				callPushMessageResult(pushMsg, null);
-			} catch (MqttException e) {
-				logger.error(CommonUtils.getExceptionInfo(e));
-				callPushMessageResult(pushMsg, new Error(e.getMessage()));
+		runPublishLoop();
+	}
+	
+	/**
+	 * wait the jittered backoff of the connect retry, woken up at once by stop()
+	 * @param retryTimes the number of the retry, starting at 1
+	 */
+	protected void awaitConnectRetry(int retryTimes) {
+		long deadline = System.currentTimeMillis() + connectPolicy.getDelay(retryTimes);
+		synchronized (connectMonitor) {
+			long wait;
+			while(runningTask && (wait = deadline - System.currentTimeMillis()) > 0) {
 				try {
-					Thread.sleep(1*1000);
-				} catch (InterruptedException e1) { }
-				if(pushMsg != null) {
-					pushMsg.setRetry_count(pushMsg.getRetry_count()+1);
-					this.pushMessage(pushMsg);
-				}
+					connectMonitor.wait(wait);
+				} catch (InterruptedException e) { }
 			}
 		}
 	}
-
-	@Override
-	public void connectionLost(Throwable cause) {
-		logger.info("mqtt lost connection, trying reconnect");
-		logger.error(CommonUtils.getExceptionInfo(cause));
-		mIsLogined = false;
-	}
-
-	@Override
-	public void messageArrived(String topic, MqttMessage message) throws Exception {
-		String msgcontent = new String(message.getPayload(), "UTF-8");
-		logger.debug(topic+" received:"+msgcontent);
-		PushMqttMessage mqttMessage = new PushMqttMessage(topic, message);
-		mqttMessage.setRpc(topic.startsWith(mqttConfig.getRpcTopicPrefix()));
-		callReceiveMessage(mqttMessage);
+	
+	/**
+	 * @return the backoff of the failed connects configured by mqtt.connect.retry
+	 */
+	protected RetryPolicy createConnectPolicy() {
+		return new RetryPolicy(mqttConfig.getConnectRetryMax(), mqttConfig.getConnectRetryInitialDelay(), mqttConfig.getConnectRetryMaxDelay());
 	}
-
-	@Override
-	public void deliveryComplete(IMqttDeliveryToken token) {
-		if(token.getMessageId() == 0) {
-			return;
+	
+	/**
+	 * let the prober of the config measure the brokers if there are several to choose from
+	 */
+	protected void registerBrokers() {
+		BrokerProber prober = mqttConfig.getBrokerProber();
+		String[] uris = mqttConfig.getUris();
+		if(prober != null && uris.length > 1) {
+			prober.register(uris);
+			probedUris = uris;
 		}
-		if(!token.isComplete()) {
+	}
+	
+	/**
+	 * @return the brokers to try, the nearest healthy one first if they are probed
+	 */
+	protected String[] getServerURIs() {
+		String[] uris = probedUris;
+		BrokerProber prober = mqttConfig.getBrokerProber();
+		if(uris == null || prober == null) {
+			return mqttConfig.getUris();
+		}
+		return prober.order(uris);
+	}
+	
+	/**
+	 * @return the broker connected to, null if not connected
+	 */
+	public String getServerURI() {
+		return isClientConnected() ? mqttClient.getCurrentServerURI() : null;
+	}
+	
+	/**
+	 * connect the existing client again after the connection was lost, the brokers ordered by their latest rtt
+	 * @throws MqttException
+	 */
+	protected void reconnectClient() throws MqttException {
+		connectOptions.setServerURIs(getServerURIs());
+		mqttClient.connect(connectOptions);
+	}
+	
+	/**
+	 * send the manual ack of a received message
+	 * @param messageId
+	 * @param qos
+	 * @throws MqttException
+	 */
+	protected void ackMessage(int messageId, int qos) throws MqttException {
+		mqttClient.messageArrivedComplete(messageId, qos);
+	}
+	
+	/**
+	 * reconnect with the jittered backoff of mqtt.connect.retry on a thread of its own, paho's reconnect
+	 * backs off all the clients of the process together
+	 */
+	protected void startReconnect() {
+		synchronized (connectMonitor) {
+			if(reconnecting || !runningTask) {
+				return;
+			}
+			reconnecting = true;
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					runReconnect();
+				} finally {
+					synchronized (connectMonitor) {
+						reconnecting = false;
+					}
+				}
+				// a connection lost after the reconnect succeeded found this thread still running and returned
+				if(runningTask && !state.isTerminal() && !isClientConnected()) {
+					logger.debug("connection lost while the reconnect finished, reconnect again");
+					startReconnect();
+				}
+			}
+		}, "mqtt-reconnect-" + mqttConfig.getClientid());
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void runReconnect() {
+		int retryTimes = 0;
+		while(runningTask && !isClientConnected()) {
+			retryTimes ++;
+			awaitConnectRetry(retryTimes);
+			if(!runningTask) {
+				return;
+			}
+			try {
+				connectStartNanos = System.nanoTime();
+				reconnectClient();
+			} catch (MqttException e) {
+				logger.debug("reconnect " + retryTimes + " failed: " + e.getMessage());
+				if(!connectPolicy.canRetry(retryTimes)) {
+					lastException = e;
+					setState(ConnectionState.FAILED);
+					return;
+				}
+			}
+		}
+		if(!runningTask) {
+			// stopped while connecting
+			try {
+				disconnectClient();
+			} catch (MqttException e) {
+				logger.debug(CommonUtils.getExceptionInfo(e));
+			}
+		}
+	}
+	
+	/**
+	 * called on the publish thread once it is out of its loop, it is the only consumer of the push queue
+	 * until then. Fails what is left in the queue.
+	 */
+	protected void publishLoopExited() {
+		publishLoopExited = true;
+		synchronized (exitLock) {
+			failQueued();
+		}
+	}
+	
+	/**
+	 * called after a message was queued, fails the queue if the publish thread exited already and will not
+	 * take the message any more. A message queued before the exit is failed or published by the publish thread.
+	 */
+	protected void failQueuedAfterExit() {
+		if(publishLoopExited) {
+			synchronized (exitLock) {
+				failQueued();
+			}
+		}
+	}
+	
+	/**
+	 * fail the messages still queued in memory, in open envelopes or waiting for a retry with
+	 * {@link PublishException#REASON_STOPPED}. The spilled messages stay in the journal for the next run,
+	 * only their futures fail. Only called by the single consumer of the queue: the publish thread after its loop
+	 * or a thread holding {@link #exitLock} after that.
+	 */
+	protected void failQueued() {
+		List<PushMqttMessage> pending = new ArrayList<PushMqttMessage>();
+		if(envelopes != null) {
+			pending.addAll(envelopes.drain());
+		}
+		PushMessageQueue queue = pushMsgQueue;
+		if(queue instanceof SpillingPushMessageQueue) {
+			SpillingPushMessageQueue spilling = (SpillingPushMessageQueue) queue;
+			spilling.drainMemoryTo(pending, Integer.MAX_VALUE);
+			spilling.getJournal().failFutures(new PublishException(PublishException.REASON_STOPPED, "connector stopped"));
+		} else if(queue != null) {
+			queue.drainTo(pending, Integer.MAX_VALUE);
+		}
+		for(PushMqttMessage message : retrying) {
+			if(retrying.remove(message)) {
+				metrics.getPendingRetries().decrement();
+				pending.add(message);
+			}
+		}
+		for(PushMqttMessage message : pending) {
+			callPushMessageResult(message, new Error("connector stopped"), PublishException.REASON_STOPPED);
+		}
+	}
+	
+	/**
+	 * put a message taken from the queue back without waiting, it fails instead if the connector stopped
+	 * or the queue filled up meanwhile
+	 * @param message
+	 */
+	protected void requeue(PushMqttMessage message) {
+		if(!runningTask) {
+			callPushMessageResult(message, new Error("connector stopped"), PublishException.REASON_STOPPED);
+		} else if(!pushMsgQueue.offer(message)) {
+			callPushMessageResult(message, new Error("push queue full"), PublishException.REASON_QUEUE_FULL);
+		}
+	}
+	
+	/**
+	 * take the messages from the push queue and publish them until the task stopped
+	 */
+	protected void runPublishLoop() {
+		if(mqttConfig.getPushBatchSize() > 1) {
+			runBatchLoop(mqttConfig.getPushBatchSize(), mqttConfig.getPushLingerTime());
+			return;
+		}
+		while(runningTask) {
+			PushMqttMessage pushMsg = null;
+			try {
+				pushMsg = takeMessage();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if(!awaitConnected()) {
+				requeue(pushMsg);
+				continue;
+			}
+			try {
+				pushMsg.setPublishNanos(System.nanoTime());
+				mqttClient.publish(pushMsg.getTopic(), pushMsg);
+				callPushMessageResult(pushMsg, null);
+			} catch (MqttException e) {
+				publishFailed(pushMsg, e);
+			}
+		}
+	}
+	
+	/**
+	 * drain up to batchSize messages per wakeup, publish them back to back and then wait for their acks as a group
+	 * @param batchSize max messages published before waiting for the acks
+	 * @param lingerTime the time to wait for the batch to fill up, measured in milliseconds
+	 */
+	protected void runBatchLoop(int batchSize, long lingerTime) {
+		ArrayList<PushMqttMessage> batch = new ArrayList<PushMqttMessage>(batchSize);
+		IMqttDeliveryToken[] tokens = new IMqttDeliveryToken[batchSize];
+		while(runningTask) {
+			batch.clear();
+			try {
+				drainBatch(batch, batchSize, lingerTime);
+			} catch (InterruptedException e) {
+				for(PushMqttMessage pushMsg : batch) {
+					requeue(pushMsg);
+				}
+				continue;
+			}
+			if(!awaitConnected()) {
+				for(PushMqttMessage pushMsg : batch) {
+					requeue(pushMsg);
+				}
+				continue;
+			}
+			for(int i=0; i<batch.size(); i++) {
+				PushMqttMessage pushMsg = batch.get(i);
+				try {
+					pushMsg.setPublishNanos(System.nanoTime());
+					tokens[i] = ((MqttPipelineClient)mqttClient).publishNoWait(pushMsg.getTopic(), pushMsg);
+				} catch (MqttException e) {
+					tokens[i] = null;
+					publishFailed(pushMsg, e);
+				}
+			}
+			for(int i=0; i<batch.size(); i++) {
+				if(tokens[i] == null) {
+					continue;
+				}
+				try {
+					tokens[i].waitForCompletion(mqttClient.getTimeToWait());
+					callPushMessageResult(batch.get(i), null);
+				} catch (MqttException e) {
+					publishFailed(batch.get(i), e);
+				}
+				tokens[i] = null;
+			}
+		}
+	}
+	
+	/**
+	 * block for the first message, then take whatever else is queued, lingering for the batch to fill up if configured
+	 */
+	private void drainBatch(ArrayList<PushMqttMessage> batch, int batchSize, long lingerTime) throws InterruptedException {
+		batch.add(takeMessage());
+		pushMsgQueue.drainTo(batch, batchSize - batch.size());
+		if(lingerTime < 1) {
+			creditsReleased();
+			return;
+		}
+		long lingerEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerTime);
+		while(batch.size() < batchSize) {
+			long remaining = lingerEnd - System.nanoTime();
+			if(remaining <= 0) {
+				break;
+			}
+			PushMqttMessage pushMsg = pushMsgQueue.poll(remaining, TimeUnit.NANOSECONDS);
+			if(pushMsg == null) {
+				break;
+			}
+			batch.add(pushMsg);
+			pushMsgQueue.drainTo(batch, batchSize - batch.size());
+		}
+		creditsReleased();
+	}
+	
+	/**
+	 * take the next message, sampling the queue depth for the high-water mark on the single consumer thread
+	 * @return
+	 * @throws InterruptedException
+	 */
+	protected PushMqttMessage takeMessage() throws InterruptedException {
+		PushMqttMessage pushMsg = pushMsgQueue.take();
+		metrics.recordQueueSize(pushMsgQueue.size() + 1);
+		creditsReleased();
+		return pushMsg;
+	}
+	
+	/**
+	 * wait until the client is connected, the message in hand is kept so the queue order does not change
+	 * @return false if the task stopped or the thread was interrupted while waiting
+	 */
+	protected boolean awaitConnected() {
+		synchronized (connectMonitor) {
+			while(runningTask && !isClientConnected()) {
+				try {
+					// auto reconnect may not call back, check the client again once in a while
+					connectMonitor.wait(1000);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+		}
+		return runningTask;
+	}
+	
+	/**
+	 * schedule the retry of a failed message with backoff, the push result is only reported
+	 * once the message has used up its retries
+	 * @param pushMsg
+	 * @param e
+	 */
+	protected void publishFailed(PushMqttMessage pushMsg, Throwable e) {
+		if(pushMsg == null) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			callPushMessageResult(pushMsg, new Error(e.getMessage()));
+			return;
+		}
+		if(!runningTask) {
+			callPushMessageResult(pushMsg, new Error(e.getMessage()), PublishException.REASON_STOPPED);
+			return;
+		}
+		int retryCount = pushMsg.getRetry_count() + 1;
+		if(retryPolicy == null || !retryPolicy.canRetry(retryCount)) {
+			logger.error(pushMsg.getTopic()+" publish failed after "+pushMsg.getRetry_count()+" retries\n"+CommonUtils.getExceptionInfo(e));
+			callPushMessageResult(pushMsg, new Error(e.getMessage()));
+			return;
+		}
+		logger.debug(pushMsg.getTopic()+" publish failed, retry "+retryCount+"\n"+CommonUtils.getExceptionInfo(e));
+		pushMsg.setRetry_count(retryCount);
+		metrics.getRetries().increment();
+		scheduleRetry(pushMsg, retryPolicy.getDelay(retryCount));
+	}
+	
+	/**
+	 * put the message back to the push queue after the delay, without blocking the shared scheduler.
+	 * A retry due after {@link #stop()} was failed by it already.
+	 */
+	protected void scheduleRetry(final PushMqttMessage pushMsg, long delay) {
+		metrics.getPendingRetries().increment();
+		retrying.add(pushMsg);
+		if(!runningTask && retrying.remove(pushMsg)) {
+			// stopped meanwhile, failQueued may have missed it
+			metrics.getPendingRetries().decrement();
+			callPushMessageResult(pushMsg, new Error("connector stopped"), PublishException.REASON_STOPPED);
+			return;
+		}
+		MqttScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if(!retrying.remove(pushMsg)) {
+					return;
+				}
+				metrics.getPendingRetries().decrement();
+				if(!runningTask) {
+					callPushMessageResult(pushMsg, new Error("connector stopped"), PublishException.REASON_STOPPED);
+				} else if(!pushMsgQueue.offer(pushMsg)) {
+					// the queue is full, wait another round without counting it as a retry
+					scheduleRetry(pushMsg, retryPolicy.getDelay(pushMsg.getRetry_count()));
+				} else {
+					failQueuedAfterExit();
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return the compression stage configured by mqtt.compress, it always decompresses the received payloads
+	 */
+	protected CompressionStage createCompressionStage() {
+		PayloadCompressor compressor = null;
+		String codec = mqttConfig.getCompress();
+		if(DeflateCompressor.NAME.equalsIgnoreCase(codec)) {
+			compressor = new DeflateCompressor(mqttConfig.getCompressLevel());
+		} else if(codec != null && codec.length() > 0 && !"none".equalsIgnoreCase(codec)) {
+			logger.error("unknown mqtt.compress " + codec + ", payloads are sent uncompressed");
+		}
+		CompressionStage stage = new CompressionStage(compressor, mqttConfig.getCompressMinSize(), mqttConfig.getCompressMaxInflated());
+		stage.addRules(mqttConfig.getCompressRules());
+		return stage;
+	}
+	
+	/**
+	 * @return the filters of mqtt.receive.envelope, null if there are none or one is malformed
+	 */
+	protected TopicTrie<Boolean> createReceiveEnvelopes() {
+		String filters = mqttConfig.getReceiveEnvelope();
+		if(filters == null) {
+			return null;
+		}
+		TopicTrie<Boolean> trie = new TopicTrie<Boolean>();
+		try {
+			for(String filter : filters.split(",")) {
+				filter = filter.trim();
+				if(filter.length() > 0) {
+					trie.add(filter, Boolean.TRUE);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return null;
+		}
+		return trie.isEmpty() ? null : trie;
+	}
+	
+	/**
+	 * @return the batcher of the topics of mqtt.push.envelope, null if none
+	 */
+	protected EnvelopeBatcher createEnvelopeBatcher() {
+		try {
+			EnvelopeBatcher batcher = new EnvelopeBatcher(new EnvelopeBatcher.Sink() {
+				@Override
+				public boolean offer(PushMqttMessage message) {
+					compress(message);
+					if(!pushMsgQueue.offer(message)) {
+						return false;
+					}
+					if(publishLoopExited) {
+						// called under the lock of the batcher, failQueued takes it too after the exit lock
+						MqttScheduler.schedule(new Runnable() {
+							@Override
+							public void run() {
+								failQueuedAfterExit();
+							}
+						}, 0, TimeUnit.MILLISECONDS);
+					}
+					return true;
+				}
+			}, mqttConfig.getPushEnvelope(), mqttConfig.getPushEnvelopeMaxSize(), mqttConfig.getPushEnvelopeLinger());
+			return batcher.isEnabled() ? batcher : null;
+		} catch (IllegalArgumentException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return null;
+		}
+	}
+	
+	protected void compress(PushMqttMessage message) {
+		if(compression != null) {
+			compression.compress(message);
+		}
+	}
+	
+	/**
+	 * @return the backoff of the failed publishes configured by mqtt.push.retry
+	 */
+	protected RetryPolicy createRetryPolicy() {
+		return new RetryPolicy(mqttConfig.getPushRetryMax(), mqttConfig.getPushRetryInitialDelay(), mqttConfig.getPushRetryMaxDelay());
+	}
+
+	@Override
+	public void connectionLost(Throwable cause) {
+		logger.info("mqtt lost connection, trying reconnect");
+		logger.error(CommonUtils.getExceptionInfo(cause));
+		metrics.getConnectionLost().increment();
+		setState(ConnectionState.RECONNECTING);
+		connectStartNanos = System.nanoTime();
+		if(acks != null) {
+			acks.reset();
+		}
+		startReconnect();
+	}
+
+	@Override
+	public void messageArrived(String topic, MqttMessage message) throws Exception {
+		if(logger.isDebugEnabled()) {
+			logger.debug(topic+" received:"+new String(message.getPayload(), "UTF-8"));
+		}
+		metrics.getReceived().increment();
+		PushMqttMessage mqttMessage = PushMqttMessage.wrap(topic, message);
+		mqttMessage.setRpc(topic.startsWith(mqttConfig.getRpcTopicPrefix()));
+		if(acks != null && message.getQos() > 0) {
+			mqttMessage.setAck(acks.track(message.getId(), message.getQos()));
+		}
+		if(receiveExecutor == null) {
+			deliver(mqttMessage);
+			return;
+		}
+		// the dispatch threads decompress, the mqtt callback thread stays free for the next message
+		boolean queued = receiveExecutor.execute(topic.hashCode(), new DeliverTask(mqttMessage));
+		if(!queued) {
+			logger.debug(topic+" receive queue full, message rejected");
+			release(mqttMessage);
+		}
+	}
+	
+	private final class DeliverTask implements Runnable {
+		final PushMqttMessage message;
+
+		DeliverTask(PushMqttMessage message) {
+			this.message = message;
+		}
+
+		@Override
+		public void run() {
+			deliver(message);
+		}
+	}
+	
+	private static void release(PushMqttMessage message) {
+		if(message.getAck() != null) {
+			message.getAck().release();
+		}
+	}
+
+	@Override
+	public void deliveryComplete(IMqttDeliveryToken token) {
+		if(token.getMessageId() == 0) {
+			return;
+		}
+		if(!token.isComplete()) {
 			logger.debug("message " + token.getMessageId()+" publish failed\n"+(token.getException()==null?"":CommonUtils.getExceptionInfo(token.getException())));
 		}
 	}
 
 	@Override
 	public void connectComplete(boolean reconnect, String serverURI) {
-		if(reconnect) {
-			logger.info("mqtt reconnect success");
+		// the reconnects are our own, paho reports them as connects
+		if(reconnect || state == ConnectionState.RECONNECTING) {
+			logger.info("mqtt reconnect success to " + serverURI);
+			metrics.getReconnects().increment();
+		}
+		long startNanos = connectStartNanos;
+		if(startNanos != 0) {
+			metrics.getConnectLatency().record(System.nanoTime() - startNanos);
+			connectStartNanos = 0;
 		}
 		initAfterConnect();
+		synchronized (connectMonitor) {
+			connectMonitor.notifyAll();
+		}
 	}
 	
 	protected void initAfterConnect() {
 		try {
-			mqttClient.subscribeWithResponse(mqttConfig.getRpcTopicPrefix()+"#", 0).waitForCompletion();
+			subscribeTopic(mqttConfig.getRpcTopicPrefix()+"#", 0);
+			for(Map.Entry<String, Integer> subscription : subscriptions.entrySet()) {
+				subscribeTopic(subscription.getKey(), subscription.getValue());
+			}
 			
 			PushMqttMessage onlineMsg = new PushMqttMessage();
 			onlineMsg.setTopic(mqttConfig.getWillTopic());
@@ -237,14 +1285,173 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 			if(!pushMessage(onlineMsg)) {
 				logger.debug("online push failed");
 			}
-			mIsLogined = true;
+			setState(ConnectionState.ONLINE);
 		} catch (MqttException e) {
 			logger.error(CommonUtils.getExceptionInfo(e));
 			lastException = e;
+			loginFuture.fail(e);
+			synchronized (connectMonitor) {
+				connectMonitor.notifyAll();
+			}
 		}
 	}
 
-	private void connnect() throws MqttException {
+	/**
+	 * create the push queue selected by mqtt.push.queue, backed by a spill journal if mqtt.push.spill is enabled
+	 * @return
+	 */
+	protected PushMessageQueue createPushQueue() {
+		PushMessageQueue memoryQueue = createConflatingQueue(createMemoryQueue());
+		if(!mqttConfig.isPushSpill()) {
+			return memoryQueue;
+		}
+		try {
+			spillJournal = new SpillJournal(new File(getDataPath("mqtt-spill"), mqttConfig.getClientid())
+					, mqttConfig.getPushSpillSegmentSize(), mqttConfig.getPushSpillMaxSegments());
+			return new SpillingPushMessageQueue(memoryQueue, spillJournal);
+		} catch (IOException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return memoryQueue;
+		}
+	}
+	
+	/**
+	 * @param queue
+	 * @return the queue wrapped to conflate the topics of mqtt.push.conflate, the queue itself if nothing is conflated
+	 */
+	protected PushMessageQueue createConflatingQueue(PushMessageQueue queue) {
+		try {
+			ConflatingPushMessageQueue conflating = new ConflatingPushMessageQueue(queue
+					, mqttConfig.getPushConflate(), mqttConfig.isPushConflateRetained());
+			if(conflating.isEnabled()) {
+				conflatingQueue = conflating;
+				return conflating;
+			}
+		} catch (IllegalArgumentException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+		}
+		return queue;
+	}
+	
+	/**
+	 * one queue, or a queue per lane if mqtt.push.lanes is more than 1
+	 * @return
+	 */
+	protected PushMessageQueue createMemoryQueue() {
+		int lanes = mqttConfig.getPushLanes();
+		if(lanes < 2) {
+			return createLaneQueue();
+		}
+		PushMessageQueue[] laneQueues = new PushMessageQueue[lanes];
+		for(int i=0; i<lanes; i++) {
+			laneQueues[i] = createLaneQueue();
+		}
+		LaneSelector selector = new LaneSelector(lanes);
+		try {
+			selector.addRules(mqttConfig.getPushLaneRules());
+		} catch (IllegalArgumentException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+		}
+		if(mqttConfig.getRpcResponsePrefix() != null) {
+			selector.addTopicRule(mqttConfig.getRpcResponsePrefix(), 0);
+		}
+		laneQueue = new PriorityLaneQueue(laneQueues, mqttConfig.getPushLaneWeights(), selector);
+		return laneQueue;
+	}
+	
+	/**
+	 * the ring buffer needs a bounded queue
+	 * @return
+	 */
+	protected PushMessageQueue createLaneQueue() {
+		int capacity = mqttConfig.getMaxMessageQueue();
+		if("ring".equalsIgnoreCase(mqttConfig.getPushQueueType())) {
+			if(capacity > 0) {
+				return new RingBufferPushMessageQueue(capacity, mqttConfig.getPushQueueWait());
+			}
+			logger.info("ring push queue needs a bounded mqtt.push.messagequeue, use linked queue");
+		}
+		return new LinkedPushMessageQueue(capacity);
+	}
+	
+	/**
+	 * register the connector as com.yeild.mqtt:type=MqttConnector,clientid=&lt;clientid&gt;
+	 */
+	protected void registerMBean() {
+		try {
+			ObjectName name = new ObjectName("com.yeild.mqtt:type=MqttConnector,clientid=" + ObjectName.quote(mqttConfig.getClientid()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MqttConnectorJmx(this), name);
+			jmxName = name;
+		} catch (Exception e) {
+			logger.info("mqtt connector mbean not registered: " + e.getMessage());
+		}
+	}
+	
+	protected void unregisterMBean() {
+		ObjectName name = jmxName;
+		if(name == null) {
+			return;
+		}
+		jmxName = null;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			logger.debug(CommonUtils.getExceptionInfo(e));
+		}
+	}
+	
+	protected boolean isClientConnected() {
+		return mqttClient != null && mqttClient.isConnected();
+	}
+	
+	protected void subscribeTopic(String topicFilter, int qos) throws MqttException {
+		mqttClient.subscribeWithResponse(topicFilter, qos).waitForCompletion();
+	}
+	
+	protected void unsubscribeTopic(String topicFilter) throws MqttException {
+		mqttClient.unsubscribe(topicFilter);
+	}
+	
+	protected void disconnectClient() throws MqttException {
+		if(mqttClient != null && mqttClient.isConnected()) {
+			mqttClient.disconnect();
+		}
+	}
+
+	protected void connnect() throws MqttException {
+		connectOptions = createConnectOptions();
+		mqttClient = new MqttPipelineClient(mqttConfig.getUri(), mqttConfig.getClientid(), createPersistence());
+		mqttClient.setCallback(this);
+		mqttClient.setManualAcks(acks != null);
+		mqttClient.setTimeToWait(10*1000);
+		
+		mqttClient.connect(connectOptions);
+	}
+	
+	/**
+	 * @return the persistence of the in-flight messages selected by mqtt.persistence
+	 */
+	protected MqttClientPersistence createPersistence() {
+		String type = mqttConfig.getPersistenceType();
+		if("memory".equalsIgnoreCase(type)) {
+			return new MemoryPersistence();
+		}
+		if("mapped".equalsIgnoreCase(type)) {
+			return new MappedLogPersistence(getDataPath("mqtt-log"), mqttConfig.getPersistenceSync()
+					, mqttConfig.getPersistenceSyncInterval(), mqttConfig.getPersistenceSegmentSize());
+		}
+		return new MqttDefaultFilePersistence(getDataPath("mqtt"));
+	}
+	
+	/**
+	 * @param name
+	 * @return the path of a data dir next to the config dir
+	 */
+	protected String getDataPath(String name) {
+		return mConfPath+"/../"+name;
+	}
+	
+	protected MqttConnectOptions createConnectOptions() {
 		MqttConnectOptions connectOptions = new MqttConnectOptions();
 		connectOptions.setCleanSession(true);
 		if(mqttConfig.getUri() != null && mqttConfig.getSslSocketFac() != null) {
@@ -253,7 +1460,7 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 		} else {
 			logger.debug("mqtt will login with tcp");
 		}
-		connectOptions.setServerURIs(new String[]{mqttConfig.getUri()});
+		connectOptions.setServerURIs(getServerURIs());
 		String username = mqttConfig.getUsername();
 		if(username.length()>1) {
 			connectOptions.setUserName(username);
@@ -261,27 +1468,108 @@ public class MqttConnector implements Runnable,MqttCallbackExtended {
 		}
 		connectOptions.setConnectionTimeout(10);
 		connectOptions.setKeepAliveInterval(mqttConfig.getKeepalive());
-		connectOptions.setAutomaticReconnect(true);
+		connectOptions.setAutomaticReconnect(false);
+		connectOptions.setMaxInflight(Math.max(mqttConfig.getMaxInflight(), mqttConfig.getPushBatchSize()));
 		connectOptions.setWill(mqttConfig.getWillTopic(), mqttConfig.getWillMsg().getBytes(), 2, true);
-		
-		mqttClient = new MqttClient(mqttConfig.getUri(), mqttConfig.getClientid(), new MqttDefaultFilePersistence(mConfPath+"/../mqtt"));
-		mqttClient.setCallback(this);
-		mqttClient.setTimeToWait(10*1000);
-		
-		mqttClient.connect(connectOptions);
+		return connectOptions;
+	}
+	
+	protected void decompress(PushMqttMessage message) {
+		if(compression != null) {
+			compression.decompress(message);
+		}
+	}
+	
+	/**
+	 * @return true if the message is an envelope of a topic in mqtt.receive.envelope
+	 */
+	protected boolean isReceiveEnvelope(PushMqttMessage message) {
+		TopicTrie<Boolean> filters = receiveEnvelopes;
+		return filters != null && EnvelopeMessage.isEnvelope(message.getPayload()) && !filters.match(message.getTopic()).isEmpty();
+	}
+	
+	/**
+	 * decompress the message and hand it to the listeners, one by one if it is an envelope of a topic
+	 * in mqtt.receive.envelope
+	 */
+	protected void deliver(PushMqttMessage message) {
+		try {
+			decompress(message);
+			// any peer may publish a payload starting like an envelope, only the configured topics are split
+			List<PushMqttMessage> unpacked = isReceiveEnvelope(message) ? EnvelopeMessage.unpack(message) : null;
+			if(unpacked == null) {
+				callReceiveMessage(message);
+				return;
+			}
+			for(PushMqttMessage item : unpacked) {
+				// the envelope is acked once all of its messages are consumed
+				item.setAck(message.getAck());
+				callReceiveMessage(item);
+			}
+		} finally {
+			release(message);
+		}
 	}
 	
 	protected void callReceiveMessage(PushMqttMessage message) {
 		for(OnMqttMessageListener tListener : messageListeners) {
-			try {
-				tListener.onMqttReceiveMessage(message);
-			} catch (Exception e) {
-				logger.error(CommonUtils.getExceptionInfo(e));
+			callReceiveMessage(tListener, message);
+		}
+		if(!topicListeners.isEmpty()) {
+			for(OnMqttMessageListener tListener : topicListeners.match(message.getTopic())) {
+				callReceiveMessage(tListener, message);
 			}
 		}
+		if(!topicPublishers.isEmpty()) {
+			for(MessagePublisher publisher : topicPublishers.match(message.getTopic())) {
+				publisher.offer(message);
+			}
+		}
+	}
+	
+	private void callReceiveMessage(OnMqttMessageListener tListener, PushMqttMessage message) {
+		long startNanos = System.nanoTime();
+		try {
+			tListener.onMqttReceiveMessage(message);
+		} catch (Exception e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+		}
+		metrics.getListenerLatency().record(System.nanoTime() - startNanos);
 	}
 	
 	protected void callPushMessageResult(PushMqttMessage message, Error error) {
+		callPushMessageResult(message, error, PublishException.REASON_PUBLISH_FAILED);
+	}
+	
+	/**
+	 * @param message
+	 * @param error null if published
+	 * @param reason the {@link PublishException} reason the future fails with if there is an error
+	 */
+	protected void callPushMessageResult(PushMqttMessage message, Error error, int reason) {
+		if(message instanceof EnvelopeMessage) {
+			for(PushMqttMessage item : ((EnvelopeMessage) message).getMessages()) {
+				item.setPublishNanos(message.getPublishNanos());
+				item.setRetry_count(message.getRetry_count());
+				callPushMessageResult(item, error, reason);
+			}
+			return;
+		}
+		if(error != null) {
+			metrics.getPublishFailed().increment();
+		} else if(message != null) {
+			metrics.recordPublished(message.getEnqueueNanos(), message.getPublishNanos());
+		} else {
+			metrics.getPublished().increment();
+		}
+		MqttFuture<PushMqttMessage> future = message == null ? null : message.getFuture();
+		if(future != null) {
+			if(error == null) {
+				future.complete(message);
+			} else {
+				future.fail(new PublishException(reason, error.getMessage()));
+			}
+		}
 		for(OnMqttMessageListener tListener : messageListeners) {
 			try {
 				tListener.pushMessageResult(message, error);
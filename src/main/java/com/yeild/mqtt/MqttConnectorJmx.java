@@ -0,0 +1,128 @@
+package com.yeild.mqtt;
+
+import com.yeild.mqtt.metrics.LatencySnapshot;
+import com.yeild.mqtt.metrics.MqttConnectorMXBean;
+import com.yeild.mqtt.metrics.MqttMetrics;
+
+/**
+ * the mbean of a connector, reads the connector state and its {@link MqttMetrics} when jmx asks
+ */
+class MqttConnectorJmx implements MqttConnectorMXBean {
+	private final MqttConnector connector;
+	private final MqttMetrics metrics;
+
+	MqttConnectorJmx(MqttConnector connector) {
+		this.connector = connector;
+		this.metrics = connector.getMetrics();
+	}
+
+	@Override
+	public String getClientId() {
+		return connector.getMqttConfig().getClientid();
+	}
+
+	@Override
+	public boolean isLogined() {
+		return connector.isLogined();
+	}
+
+	@Override
+	public String getConnectionState() {
+		return connector.getConnectionState().name();
+	}
+
+	@Override
+	public int getPushQueueSize() {
+		return connector.getPushQueueSize();
+	}
+
+	@Override
+	public long getPushQueueHighWaterMark() {
+		return metrics.getQueueHighWaterMark();
+	}
+
+	@Override
+	public long getPublishedCount() {
+		return metrics.getPublished().sum();
+	}
+
+	@Override
+	public long getPublishFailedCount() {
+		return metrics.getPublishFailed().sum();
+	}
+
+	@Override
+	public long getReceivedCount() {
+		return metrics.getReceived().sum();
+	}
+
+	@Override
+	public long getReceiveDroppedCount() {
+		return connector.getReceiveDroppedCount();
+	}
+
+	@Override
+	public long getRetryCount() {
+		return metrics.getRetries().sum();
+	}
+
+	@Override
+	public long getPendingRetryCount() {
+		return metrics.getPendingRetries().sum();
+	}
+
+	@Override
+	public long getPushConflatedCount() {
+		return connector.getPushConflatedCount();
+	}
+
+	@Override
+	public long getReconnectCount() {
+		return metrics.getReconnects().sum();
+	}
+
+	@Override
+	public long getConnectionLostCount() {
+		return metrics.getConnectionLost().sum();
+	}
+
+	@Override
+	public double getPublishRate() {
+		return metrics.getPublishRate();
+	}
+
+	@Override
+	public double getReceiveRate() {
+		return metrics.getReceiveRate();
+	}
+
+	@Override
+	public LatencySnapshot getQueueLatency() {
+		return metrics.getQueueLatency().snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getPublishLatency() {
+		return metrics.getPublishLatency().snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getEndToEndLatency() {
+		return metrics.getEndToEndLatency().snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getListenerLatency() {
+		return metrics.getListenerLatency().snapshot();
+	}
+
+	@Override
+	public LatencySnapshot getConnectLatency() {
+		return metrics.getConnectLatency().snapshot();
+	}
+
+	@Override
+	public void resetStatistics() {
+		metrics.reset();
+	}
+}
@@ -0,0 +1,298 @@
+package com.yeild.mqtt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.mqtt.listener.OnConnectionStateListener;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+
+/**
+ * owns several {@link MqttConnector}s, each one with its own connection and client id ($clientid-0..N-1).
+ * Messages are routed to a connector by a consistent hash of their topic, so the messages of one topic
+ * keep their order while the throughput scales with the connections.
+ */
+public class MqttConnectorPool {
+	private static final int VIRTUAL_NODES = 160;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	protected final MqttConnector[] connectors;
+	private int[] ringHashes;
+	private int[] ringNodes;
+
+	/**
+	 *
+	 * @param confPath the path of mqtt config file
+	 * @param size the number of connections
+	 * @throws IOException the config file could not be loaded
+	 */
+	public MqttConnectorPool(String confPath, int size) throws IOException {
+		this(confPath, loadConfig(confPath), size);
+	}
+
+	public MqttConnectorPool(MqttConfig config, int size) {
+		this(null, config, size);
+	}
+
+	public MqttConnectorPool(String confPath, MqttConfig config, int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("the pool size must be at least 1");
+		}
+		connectors = new MqttConnector[size];
+		for(int i=0; i<size; i++) {
+			connectors[i] = createConnector(confPath, config.copy(config.getClientid()+"-"+i));
+		}
+		buildHashRing();
+	}
+
+	private static MqttConfig loadConfig(String confPath) throws IOException {
+		MqttConfig config = new MqttConfig();
+		config.load(confPath);
+		return config;
+	}
+
+	/**
+	 * create the connector of one pool slot, override to use another connector like {@link MqttAsyncConnector}
+	 * @param confPath
+	 * @param config the config with the derived client id
+	 * @return
+	 */
+	protected MqttConnector createConnector(String confPath, MqttConfig config) {
+		return new MqttConnector(confPath, config);
+	}
+
+	private void buildHashRing() {
+		long[] ring = new long[connectors.length * VIRTUAL_NODES];
+		int index = 0;
+		for(int i=0; i<connectors.length; i++) {
+			String clientid = connectors[i].getMqttConfig().getClientid();
+			for(int v=0; v<VIRTUAL_NODES; v++) {
+				// high half is the hash to sort by, low half the connector index
+				ring[index++] = ((long) hash(clientid + "#" + v) << 32) | i;
+			}
+		}
+		Arrays.sort(ring);
+		ringHashes = new int[ring.length];
+		ringNodes = new int[ring.length];
+		for(int i=0; i<ring.length; i++) {
+			ringHashes[i] = (int) (ring[i] >> 32);
+			ringNodes[i] = (int) ring[i];
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * start every connector on its own thread
+	 */
+	public void start() {
+		for(MqttConnector connector : connectors) {
+			Thread thread = new Thread(connector, "mqtt-connector-" + connector.getMqttConfig().getClientid());
+			thread.start();
+		}
+	}
+
+	public void stop() {
+		for(MqttConnector connector : connectors) {
+			connector.stop();
+		}
+	}
+
+	public int size() {
+		return connectors.length;
+	}
+
+	public MqttConnector getConnector(int index) {
+		return connectors[index];
+	}
+
+	/**
+	 * @param topic
+	 * @return the connector the messages of the topic are published with
+	 */
+	public MqttConnector getConnector(String topic) {
+		if(connectors.length == 1) {
+			return connectors[0];
+		}
+		int index = Arrays.binarySearch(ringHashes, hash(topic));
+		if(index < 0) {
+			index = -index - 1;
+			if(index == ringHashes.length) {
+				index = 0;
+			}
+		}
+		return connectors[ringNodes[index]];
+	}
+
+	public boolean pushMessage(PushMqttMessage message) {
+		return getConnector(message.getTopic()).pushMessage(message);
+	}
+
+	public boolean pushMessageAsync(PushMqttMessage message) {
+		return getConnector(message.getTopic()).pushMessageAsync(message);
+	}
+
+	/**
+	 * publish the message on the connector of its topic, see {@link MqttConnector#publish(PushMqttMessage)}
+	 * @param message
+	 * @return
+	 */
+	public MqttFuture<PushMqttMessage> publish(PushMqttMessage message) {
+		return getConnector(message.getTopic()).publish(message);
+	}
+
+	public void addMqttMessageListener(OnMqttMessageListener pListener) {
+		for(MqttConnector connector : connectors) {
+			connector.addMqttMessageListener(pListener);
+		}
+	}
+
+	public void addMqttMessageListener(String topicFilter, OnMqttMessageListener pListener) {
+		for(MqttConnector connector : connectors) {
+			connector.addMqttMessageListener(topicFilter, pListener);
+		}
+	}
+
+	public void removeMqttMessageListener(String topicFilter, OnMqttMessageListener pListener) {
+		for(MqttConnector connector : connectors) {
+			connector.removeMqttMessageListener(topicFilter, pListener);
+		}
+	}
+
+	public void removeMqttMessageListener(OnMqttMessageListener pListener) {
+		for(MqttConnector connector : connectors) {
+			connector.removeMqttMessageListener(pListener);
+		}
+	}
+
+	public void addConnectionStateListener(OnConnectionStateListener listener) {
+		for(MqttConnector connector : connectors) {
+			connector.addConnectionStateListener(listener);
+		}
+	}
+
+	public void removeConnectionStateListener(OnConnectionStateListener listener) {
+		for(MqttConnector connector : connectors) {
+			connector.removeConnectionStateListener(listener);
+		}
+	}
+
+	/**
+	 * wait all the connectors login success, no wait time limited
+	 * @return
+	 */
+	public boolean waitLoginComplete() {
+		return waitLoginComplete(0);
+	}
+
+	/**
+	 * wait all the connectors login success
+	 * @param timeout the time to wait for the whole pool, measured in milliseconds
+	 * @return true if all the connectors logined
+	 */
+	public boolean waitLoginComplete(int timeout) {
+		long waitEnd = System.currentTimeMillis() + timeout;
+		for(MqttConnector connector : connectors) {
+			int remaining = 0;
+			if(timeout > 0) {
+				remaining = (int) (waitEnd - System.currentTimeMillis());
+				if(remaining < 1) {
+					return isLogined();
+				}
+			}
+			if(!connector.waitLoginComplete(remaining)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if all the connectors logined
+	 */
+	public boolean isLogined() {
+		return getLoginedCount() == connectors.length;
+	}
+
+	public int getLoginedCount() {
+		int count = 0;
+		for(MqttConnector connector : connectors) {
+			if(connector.isLogined()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public int getPushQueueSize() {
+		int size = 0;
+		for(MqttConnector connector : connectors) {
+			size += connector.getPushQueueSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @param lane
+	 * @return the messages queued in the push lane of all the connectors
+	 */
+	public int getPushLaneSize(int lane) {
+		int size = 0;
+		for(MqttConnector connector : connectors) {
+			size += connector.getPushLaneSize(lane);
+		}
+		return size;
+	}
+
+	public long getPublishedCount() {
+		long count = 0;
+		for(MqttConnector connector : connectors) {
+			count += connector.getPublishedCount();
+		}
+		return count;
+	}
+
+	public long getPublishFailedCount() {
+		long count = 0;
+		for(MqttConnector connector : connectors) {
+			count += connector.getPublishFailedCount();
+		}
+		return count;
+	}
+
+	public long getReceivedCount() {
+		long count = 0;
+		for(MqttConnector connector : connectors) {
+			count += connector.getReceivedCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the publishes retried by all the connectors since they started
+	 */
+	public long getRetryCount() {
+		long count = 0;
+		for(MqttConnector connector : connectors) {
+			count += connector.getMetrics().getRetries().sum();
+		}
+		return count;
+	}
+
+	public long getPendingRetryCount() {
+		long count = 0;
+		for(MqttConnector connector : connectors) {
+			count += connector.getPendingRetryCount();
+		}
+		return count;
+	}
+}
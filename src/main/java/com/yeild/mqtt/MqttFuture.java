@@ -0,0 +1,167 @@
+package com.yeild.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.listener.MqttFutureListener;
+
+/**
+ * the result of an asynchronous operation, completed once by whoever produces it.
+ * Waiting is optional, the listeners are called when it completes, so pending operations hold no threads.
+ * @param <T>
+ */
+public class MqttFuture<T> implements Future<T> {
+	private static final Logger logger = Logger.getLogger(MqttFuture.class);
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private int state = PENDING;
+	private T result;
+	private Throwable cause;
+	private List<MqttFutureListener<T>> listeners;
+
+	public static <T> MqttFuture<T> succeeded(T result) {
+		MqttFuture<T> future = new MqttFuture<T>();
+		future.complete(result);
+		return future;
+	}
+
+	public static <T> MqttFuture<T> failed(Throwable cause) {
+		MqttFuture<T> future = new MqttFuture<T>();
+		future.fail(cause);
+		return future;
+	}
+
+	/**
+	 * @param result
+	 * @return false if the future was already completed
+	 */
+	public boolean complete(T result) {
+		return finish(SUCCEEDED, result, null);
+	}
+
+	/**
+	 * @param cause
+	 * @return false if the future was already completed
+	 */
+	public boolean fail(Throwable cause) {
+		return finish(FAILED, null, cause);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(CANCELLED, null, new CancellationException());
+	}
+
+	private boolean finish(int state, T result, Throwable cause) {
+		List<MqttFutureListener<T>> toNotify;
+		synchronized (this) {
+			if(this.state != PENDING) {
+				return false;
+			}
+			this.state = state;
+			this.result = result;
+			this.cause = cause;
+			toNotify = listeners;
+			listeners = null;
+			notifyAll();
+		}
+		if(toNotify != null) {
+			for(MqttFutureListener<T> listener : toNotify) {
+				notifyListener(listener);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * the listener is called right away if the future is already completed
+	 * @param listener
+	 */
+	public void addListener(MqttFutureListener<T> listener) {
+		synchronized (this) {
+			if(state == PENDING) {
+				if(listeners == null) {
+					listeners = new ArrayList<MqttFutureListener<T>>(2);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		notifyListener(listener);
+	}
+
+	private void notifyListener(MqttFutureListener<T> listener) {
+		try {
+			if(state == SUCCEEDED) {
+				listener.onSuccess(result);
+			} else {
+				listener.onFailure(cause);
+			}
+		} catch (RuntimeException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+		}
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return state == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return state != PENDING;
+	}
+
+	public synchronized boolean isSuccess() {
+		return state == SUCCEEDED;
+	}
+
+	/**
+	 * @return the failure, null if the future is pending or succeeded
+	 */
+	public synchronized Throwable getCause() {
+		return cause;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException, ExecutionException {
+		while(state == PENDING) {
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(state == PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		if(state == SUCCEEDED) {
+			return result;
+		}
+		if(state == CANCELLED) {
+			throw new CancellationException();
+		}
+		throw new ExecutionException(cause);
+	}
+}
@@ -0,0 +1,29 @@
+package com.yeild.mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * {@link MqttClient} that can also hand a publish to the network without waiting for its completion,
+ * so several messages can be on the wire before the first ack comes back.
+ */
+class MqttPipelineClient extends MqttClient {
+
+	public MqttPipelineClient(String serverURI, String clientId, MqttClientPersistence persistence) throws MqttException {
+		super(serverURI, clientId, persistence);
+	}
+
+	/**
+	 * publish the message without waiting, the returned token completes when the broker acked it
+	 * @param topic
+	 * @param message
+	 * @return
+	 * @throws MqttException
+	 */
+	public IMqttDeliveryToken publishNoWait(String topic, MqttMessage message) throws MqttException {
+		return aClient.publish(topic, message, null, null);
+	}
+}
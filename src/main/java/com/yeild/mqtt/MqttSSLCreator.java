@@ -1,6 +1,8 @@
 package com.yeild.mqtt;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,6 +11,7 @@ import java.security.KeyFactory;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
@@ -19,6 +22,11 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -26,16 +34,146 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 
+/**
+ * builds the ssl socket factories of the connectors. The factories built from files are shared by all the
+ * configs with the same certificate material, so the connectors of a pool and the reconnects of a connector
+ * use one {@link SSLContext} and resume the tls sessions it caches instead of doing full handshakes.
+ */
 public class MqttSSLCreator {
+	/**
+	 * seeding a SecureRandom is expensive, one is shared by all the contexts
+	 */
+	private static final SecureRandom random = new SecureRandom();
+	/**
+	 * the factories by the digest of the certificate material and the password
+	 */
+	private static final ConcurrentHashMap<String, FutureTask<SSLSocketFactory>> factories = new ConcurrentHashMap<String, FutureTask<SSLSocketFactory>>();
+
+	/**
+	 * @return the shared factory of the files, built on the calling thread if no other thread builds it
+	 */
 	public static SSLSocketFactory getSSLSocktet(String caPath, String crtPath, String keyPath, String password)
 			throws Exception {
 //		return new AppSocketFactory(new AppSocketFactory.SocketFactoryOptions()
 //				.withCaBksInputStream(new FileInputStream(caPath), "yeildserver")
 //				.withClientBksInputStream(new FileInputStream(crtPath), "yeildclient"));
-		return getSSLSocktet(new FileInputStream(caPath), new FileInputStream(crtPath), new FileInputStream(keyPath), password);
+		FactoryTask task = getTask(caPath, crtPath, keyPath, password);
+		if(task.claim()) {
+			task.run();
+		}
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * the files are read on the calling thread, the factory is built on a background thread
+	 * unless a factory of the same material is cached or being built already
+	 * @return the shared factory of the files, it fails if the material is invalid
+	 * @throws IOException a file could not be read
+	 */
+	public static Future<SSLSocketFactory> getSSLSocketFactoryAsync(String caPath, String crtPath, String keyPath, String password)
+			throws IOException {
+		FactoryTask task = getTask(caPath, crtPath, keyPath, password);
+		if(task.claim()) {
+			Thread thread = new Thread(task, "mqtt-ssl-init");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return task;
+	}
+
+	private static FactoryTask getTask(String caPath, String crtPath, String keyPath, final String password) throws IOException {
+		final byte[] ca = readFile(caPath);
+		final byte[] crt = readFile(crtPath);
+		final byte[] key = readFile(keyPath);
+		String digest = digest(ca, crt, key, password);
+		FutureTask<SSLSocketFactory> cached = factories.get(digest);
+		if(cached != null) {
+			return (FactoryTask) cached;
+		}
+		FactoryTask task = new FactoryTask(digest, new Callable<SSLSocketFactory>() {
+			@Override
+			public SSLSocketFactory call() throws Exception {
+				return getSSLSocktet(new ByteArrayInputStream(ca), new ByteArrayInputStream(crt), new ByteArrayInputStream(key), password);
+			}
+		});
+		cached = factories.putIfAbsent(digest, task);
+		return cached == null ? task : (FactoryTask) cached;
+	}
+
+	/**
+	 * a cached build, dropped from the cache if it fails so the next load tries again
+	 */
+	private static class FactoryTask extends FutureTask<SSLSocketFactory> {
+		private final String digest;
+		private boolean claimed = false;
+
+		FactoryTask(String digest, Callable<SSLSocketFactory> callable) {
+			super(callable);
+			this.digest = digest;
+		}
+
+		/**
+		 * @return true for the one caller that has to run the build
+		 */
+		synchronized boolean claim() {
+			if(claimed) {
+				return false;
+			}
+			claimed = true;
+			return true;
+		}
+
+		@Override
+		protected void done() {
+			try {
+				get();
+			} catch (Exception e) {
+				factories.remove(digest, this);
+			}
+		}
+	}
+
+	private static byte[] readFile(String path) throws IOException {
+		InputStream in = new FileInputStream(path);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String digest(byte[] ca, byte[] crt, byte[] key, String password) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for(byte[] material : new byte[][]{ca, crt, key, password == null ? new byte[0] : password.getBytes("UTF-8")}) {
+				// the lengths keep the boundaries of the parts apart
+				digest.update((byte) (material.length >>> 24));
+				digest.update((byte) (material.length >>> 16));
+				digest.update((byte) (material.length >>> 8));
+				digest.update((byte) material.length);
+				digest.update(material);
+			}
+			return Hex.encodeHexString(digest.digest());
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
 	}
 	
+	/**
+	 * build a new factory, not cached
+	 */
 	public static SSLSocketFactory getSSLSocktet(InputStream caIn, InputStream crtIn, InputStream keyPath, String password)
 			throws CertificateException, KeyStoreException, NoSuchAlgorithmException, IOException, UnrecoverableKeyException, KeyManagementException, InvalidKeySpecException {
 		// CA certificate is used to authenticate server
@@ -61,7 +199,7 @@ public class MqttSSLCreator {
 
 		SSLContext context = SSLContext.getInstance("TLSv1.2");
 
-		context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());
+		context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), random);
 
 		return context.getSocketFactory();
 	}
@@ -0,0 +1,40 @@
+package com.yeild.mqtt;
+
+/**
+ * why a message of {@link MqttConnector#publish(PushMqttMessage)} was not published, see {@link #getReasonCode()}.
+ * The rejections fail the future right away, only {@link #REASON_PUBLISH_FAILED} comes after the message was queued.
+ */
+public class PublishException extends Exception {
+	private static final long serialVersionUID = 1L;
+	/**
+	 * the connector has not been started yet
+	 */
+	public static final int REASON_NOT_STARTED = 1;
+	/**
+	 * the connector was stopped or failed to connect
+	 */
+	public static final int REASON_STOPPED = 2;
+	/**
+	 * no credits left, the push queue is full
+	 */
+	public static final int REASON_QUEUE_FULL = 3;
+	/**
+	 * the topic is empty or contains a wildcard
+	 */
+	public static final int REASON_INVALID_TOPIC = 4;
+	/**
+	 * the broker did not ack the message within its retries
+	 */
+	public static final int REASON_PUBLISH_FAILED = 5;
+
+	private final int reasonCode;
+
+	public PublishException(int reasonCode, String message) {
+		super(message);
+		this.reasonCode = reasonCode;
+	}
+
+	public int getReasonCode() {
+		return reasonCode;
+	}
+}
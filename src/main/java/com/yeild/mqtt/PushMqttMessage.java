@@ -1,22 +1,47 @@
 package com.yeild.mqtt;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import com.yeild.mqtt.codec.PayloadBuffer;
+import com.yeild.mqtt.codec.PayloadCodec;
+import com.yeild.mqtt.listener.MqttFutureListener;
+import com.yeild.mqtt.stream.AckTracker;
+import com.yeild.mqtt.utils.TopicInterner;
+
 public class PushMqttMessage extends MqttMessage {
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	private static final TopicInterner topicInterner = new TopicInterner(4096);
 	private String topic;
 	private int retry_count = 0;
 	private boolean isRpc;
-	
+	private int priority = -1;
+	private long enqueueNanos;
+	private long publishNanos;
+	/**
+	 * the received message this one reads through until it is modified
+	 */
+	private MqttMessage wrapped;
+	/**
+	 * the manual ack of a received message, null if paho acked it
+	 */
+	private AckTracker.Ack ack;
+	/**
+	 * completed by the push result of a message of {@link MqttConnector#publish(PushMqttMessage)}
+	 */
+	private MqttFuture<PushMqttMessage> future;
+
 	public PushMqttMessage() {
+		super(EMPTY_PAYLOAD);
 	}
-	
+
 	public PushMqttMessage(MqttMessage message) {
 		this(null, message);
 	}
-	
+
 	public PushMqttMessage(String topic, MqttMessage message) {
+		super(EMPTY_PAYLOAD);
 		this.topic = topic;
 		if(message != null) {
 			this.setId(message.getId());
@@ -25,31 +50,225 @@ public class PushMqttMessage extends MqttMessage {
 			this.setPayload(message.getPayload());
 		}
 	}
-	
-	public void setPayload(String msg) {
-		try {
-			setPayload(msg.getBytes("UTF-8"));
-		} catch (UnsupportedEncodingException e) {
-			setPayload(msg.getBytes());
+
+	/**
+	 * wrap a received message without copying it, the fields are read from the wrapped message
+	 * until one of them is modified
+	 * @param topic
+	 * @param message
+	 * @return
+	 */
+	public static PushMqttMessage wrap(String topic, MqttMessage message) {
+		PushMqttMessage pushMessage = new PushMqttMessage();
+		pushMessage.topic = topic;
+		pushMessage.wrapped = message;
+		return pushMessage;
+	}
+
+	/**
+	 * copy the wrapped message into this one before it is modified
+	 */
+	private void unwrap() {
+		MqttMessage message = wrapped;
+		if(message == null) {
+			return;
 		}
+		wrapped = null;
+		super.setId(message.getId());
+		super.setQos(message.getQos());
+		super.setRetained(message.isRetained());
+		super.setDuplicate(message.isDuplicate());
+		super.setPayload(message.getPayload());
+	}
+
+	/**
+	 * set the utf-8 encoding of the text, encoded through the buffer of the thread so only the payload is allocated
+	 * @param msg
+	 */
+	public void setPayload(String msg) {
+		PayloadBuffer buffer = PayloadBuffer.get();
+		buffer.writeUtf8(msg);
+		setPayload(buffer.toByteArray());
+	}
+
+	/**
+	 * @param value
+	 * @param codec encodes the value into the buffer of the thread
+	 * @throws IOException the codec failed
+	 */
+	public <T> void setPayload(T value, PayloadCodec<? super T> codec) throws IOException {
+		PayloadBuffer buffer = PayloadBuffer.get();
+		codec.encode(value, buffer);
+		setPayload(buffer.toByteArray());
+	}
+
+	@Override
+	public void setPayload(byte[] payload) {
+		unwrap();
+		super.setPayload(payload);
+	}
+
+	@Override
+	public byte[] getPayload() {
+		MqttMessage message = wrapped;
+		return message == null ? super.getPayload() : message.getPayload();
+	}
+
+	@Override
+	public void clearPayload() {
+		unwrap();
+		super.clearPayload();
+	}
+
+	@Override
+	public void setQos(int qos) {
+		unwrap();
+		super.setQos(qos);
+	}
+
+	@Override
+	public int getQos() {
+		MqttMessage message = wrapped;
+		return message == null ? super.getQos() : message.getQos();
+	}
+
+	@Override
+	public void setRetained(boolean retained) {
+		unwrap();
+		super.setRetained(retained);
+	}
+
+	@Override
+	public boolean isRetained() {
+		MqttMessage message = wrapped;
+		return message == null ? super.isRetained() : message.isRetained();
+	}
+
+	@Override
+	public boolean isDuplicate() {
+		MqttMessage message = wrapped;
+		return message == null ? super.isDuplicate() : message.isDuplicate();
+	}
+
+	@Override
+	public void setId(int messageId) {
+		unwrap();
+		super.setId(messageId);
+	}
+
+	@Override
+	public int getId() {
+		MqttMessage message = wrapped;
+		return message == null ? super.getId() : message.getId();
+	}
+
+	@Override
+	public String toString() {
+		MqttMessage message = wrapped;
+		return message == null ? super.toString() : message.toString();
 	}
 
 	public String getTopic() {
 		return topic;
 	}
 
+	/**
+	 * set the topic, the characters other than [0-9a-zA-Z/_\-+#] are removed
+	 * @param topic
+	 */
 	public void setTopic(String topic) {
-		this.topic = topic.replaceAll("[^0-9a-zA-Z/_\\-+#]*", "");
+		this.topic = topicInterner.intern(topic);
 	}
-	
+
 	public void setRetry_count(int retry_count) {
 		this.retry_count = retry_count;
 	}
-	
+
 	public int getRetry_count() {
 		return retry_count;
 	}
-	
+
+	/**
+	 * @return the push lane of the message, 0 is the most urgent, -1 lets the lane rules decide
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} the message was pushed at, 0 if not pushed through the queue
+	 */
+	public long getEnqueueNanos() {
+		return enqueueNanos;
+	}
+
+	public void setEnqueueNanos(long enqueueNanos) {
+		this.enqueueNanos = enqueueNanos;
+	}
+
+	/**
+	 * @return the {@link System#nanoTime()} of the last publish attempt
+	 */
+	public long getPublishNanos() {
+		return publishNanos;
+	}
+
+	public void setFuture(MqttFuture<PushMqttMessage> future) {
+		this.future = future;
+	}
+
+	/**
+	 * @return the future of a published message, null if it was pushed without one
+	 */
+	public MqttFuture<PushMqttMessage> getFuture() {
+		return future;
+	}
+
+	/**
+	 * complete the future of the other message with the push result of this one, e.g. when this message
+	 * carries the payload of the other
+	 * @param other
+	 */
+	public void completeWith(final PushMqttMessage other) {
+		final MqttFuture<PushMqttMessage> otherFuture = other.getFuture();
+		if(otherFuture == null) {
+			return;
+		}
+		if(future == null) {
+			future = new MqttFuture<PushMqttMessage>();
+		}
+		future.addListener(new MqttFutureListener<PushMqttMessage>() {
+			@Override
+			public void onSuccess(PushMqttMessage result) {
+				otherFuture.complete(other);
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				otherFuture.fail(cause);
+			}
+		});
+	}
+
+	public void setAck(AckTracker.Ack ack) {
+		this.ack = ack;
+	}
+
+	/**
+	 * @return the pending manual ack of a received qos 1 or 2 message, null if mqtt.receive.manualack is off
+	 */
+	public AckTracker.Ack getAck() {
+		return ack;
+	}
+
+	public void setPublishNanos(long publishNanos) {
+		this.publishNanos = publishNanos;
+	}
+
 	public boolean isRpc() {
 		return isRpc;
 	}
@@ -57,5 +276,5 @@ public class PushMqttMessage extends MqttMessage {
 	public void setRpc(boolean isRpc) {
 		this.isRpc = isRpc;
 	}
-	
+
 }
@@ -0,0 +1,45 @@
+package com.yeild.mqtt.codec;
+
+import java.io.IOException;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * a received message whose payload is decoded by the first call of {@link #getValue()},
+ * listeners that only look at the topic never pay for the decoding
+ * @param <T>
+ */
+public class CodecMessage<T> {
+	private final PushMqttMessage message;
+	private final PayloadCodec<T> codec;
+	private boolean decoded = false;
+	private T value;
+
+	public CodecMessage(PushMqttMessage message, PayloadCodec<T> codec) {
+		this.message = message;
+		this.codec = codec;
+	}
+
+	public String getTopic() {
+		return message.getTopic();
+	}
+
+	/**
+	 * @return the raw message
+	 */
+	public PushMqttMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the decoded payload, decoded once and cached
+	 * @throws IOException the payload could not be decoded
+	 */
+	public T getValue() throws IOException {
+		if(!decoded) {
+			value = codec.decode(message.getPayload());
+			decoded = true;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,33 @@
+package com.yeild.mqtt.codec;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.listener.OnCodecMessageListener;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+
+/**
+ * adapts an {@link OnCodecMessageListener} to the connector, register it with
+ * {@link com.yeild.mqtt.MqttConnector#addMqttMessageListener(String, OnMqttMessageListener)}
+ * @param <T>
+ */
+public class CodecMessageListener<T> implements OnMqttMessageListener {
+	private final PayloadCodec<T> codec;
+	private final OnCodecMessageListener<T> listener;
+
+	public CodecMessageListener(PayloadCodec<T> codec, OnCodecMessageListener<T> listener) {
+		this.codec = codec;
+		this.listener = listener;
+	}
+
+	public OnCodecMessageListener<T> getListener() {
+		return listener;
+	}
+
+	@Override
+	public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+		listener.onMqttReceiveMessage(new CodecMessage<T>(pmessage, codec));
+	}
+
+	@Override
+	public void pushMessageResult(PushMqttMessage message, Error error) {
+	}
+}
@@ -0,0 +1,126 @@
+package com.yeild.mqtt.codec;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * a growable byte buffer the codecs encode into. Every thread reuses its own buffer through {@link #get()},
+ * so encoding only allocates the final payload in {@link #toByteArray()}.
+ */
+public class PayloadBuffer extends OutputStream {
+	/**
+	 * a thread buffer grown beyond this is dropped instead of being kept for the next message
+	 */
+	private static final int MAX_RETAINED = 64*1024;
+	private static final ThreadLocal<PayloadBuffer> buffers = new ThreadLocal<PayloadBuffer>();
+
+	private byte[] bytes;
+	private int size = 0;
+
+	public PayloadBuffer() {
+		this(256);
+	}
+
+	public PayloadBuffer(int capacity) {
+		bytes = new byte[capacity];
+	}
+
+	/**
+	 * @return the empty buffer of the calling thread, valid until the next call on the same thread
+	 */
+	public static PayloadBuffer get() {
+		PayloadBuffer buffer = buffers.get();
+		if(buffer == null || buffer.bytes.length > MAX_RETAINED) {
+			buffer = new PayloadBuffer();
+			buffers.set(buffer);
+		}
+		buffer.reset();
+		return buffer;
+	}
+
+	public void reset() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the internal array, valid up to {@link #size()}
+	 */
+	public byte[] array() {
+		return bytes;
+	}
+
+	/**
+	 * @return a copy of exactly the written bytes
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	private void ensureCapacity(int capacity) {
+		if(capacity > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+		}
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(size + 1);
+		bytes[size++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(size + len);
+		System.arraycopy(b, off, bytes, size, len);
+		size += len;
+	}
+
+	/**
+	 * encode the characters as utf-8 straight into the buffer, an unpaired surrogate is written as '?'
+	 * like {@link String#getBytes(java.nio.charset.Charset)} does
+	 * @param text
+	 */
+	public void writeUtf8(CharSequence text) {
+		int length = text.length();
+		ensureCapacity(size + length);
+		int i = 0;
+		// ascii fast path, the buffer holds one byte per char already
+		while(i < length) {
+			char c = text.charAt(i);
+			if(c >= 0x80) {
+				break;
+			}
+			bytes[size++] = (byte) c;
+			i++;
+		}
+		if(i < length) {
+			ensureCapacity(size + (length - i) * 3);
+		}
+		for(; i < length; i++) {
+			char c = text.charAt(i);
+			if(c < 0x80) {
+				bytes[size++] = (byte) c;
+			} else if(c < 0x800) {
+				bytes[size++] = (byte) (0xc0 | (c >> 6));
+				bytes[size++] = (byte) (0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				// a surrogate pair is two chars and at most 6 bytes were reserved for them
+				bytes[size++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[size++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				bytes[size++] = '?';
+			} else {
+				bytes[size++] = (byte) (0xe0 | (c >> 12));
+				bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				bytes[size++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+}
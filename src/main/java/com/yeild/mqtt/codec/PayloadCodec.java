@@ -0,0 +1,23 @@
+package com.yeild.mqtt.codec;
+
+import java.io.IOException;
+
+/**
+ * converts the objects of an application to mqtt payloads and back, called from many threads at once
+ * @param <T>
+ */
+public interface PayloadCodec<T> {
+	/**
+	 * @param value
+	 * @param buffer reset and owned by the calling thread, write the payload here instead of returning a new array
+	 * @throws IOException
+	 */
+	void encode(T value, PayloadBuffer buffer) throws IOException;
+
+	/**
+	 * @param payload
+	 * @return
+	 * @throws IOException the payload is not a valid encoding
+	 */
+	T decode(byte[] payload) throws IOException;
+}
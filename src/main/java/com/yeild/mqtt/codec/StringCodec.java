@@ -0,0 +1,21 @@
+package com.yeild.mqtt.codec;
+
+import java.nio.charset.Charset;
+
+/**
+ * utf-8 text payloads
+ */
+public class StringCodec implements PayloadCodec<String> {
+	public static final StringCodec UTF8 = new StringCodec();
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	@Override
+	public void encode(String value, PayloadBuffer buffer) {
+		buffer.writeUtf8(value);
+	}
+
+	@Override
+	public String decode(byte[] payload) {
+		return new String(payload, CHARSET);
+	}
+}
@@ -0,0 +1,232 @@
+package com.yeild.mqtt.compress;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.utils.TopicTrie;
+
+/**
+ * compresses the pushed payloads above a size threshold and decompresses the received ones before the listeners
+ * see them. The threshold is chosen per topic filter, a compressed payload starts with a header naming its codec,
+ * so receivers decompress whatever codec the sender picked.
+ * <pre>
+ * header: 0x00 'M' 'Z' | byte compressor id | int original length
+ * </pre>
+ * A payload is only replaced if the compressed one with its header is smaller. The original length of a received
+ * payload is checked before anything is allocated: it may not exceed the max inflated size, nor the length deflate
+ * can reach from the compressed data, so a small message can not make the receiver allocate a large buffer.
+ */
+public class CompressionStage {
+	static final int HEADER = 8;
+	private static final byte MAGIC0 = 0x00;
+	private static final byte MAGIC1 = 'M';
+	private static final byte MAGIC2 = 'Z';
+	/**
+	 * the threshold of the topics disabled by a rule
+	 */
+	private static final int DISABLED = Integer.MAX_VALUE;
+	/**
+	 * the max inflated size of a received payload unless configured otherwise
+	 */
+	public static final int DEFAULT_MAX_INFLATED = 4*1024*1024;
+	/**
+	 * deflate inflates a byte to at most 1032 bytes, no registered codec may exceed this ratio
+	 */
+	static final int MAX_RATIO = 1032;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final PayloadCompressor[] compressors = new PayloadCompressor[128];
+	private final PayloadCompressor compressor;
+	private final int minSize;
+	private final int maxInflatedSize;
+	private final TopicTrie<Rule> rules = new TopicTrie<Rule>();
+	private int ruleCount = 0;
+	private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+	private static final class Rule {
+		final int order;
+		final int minSize;
+
+		Rule(int order, int minSize) {
+			this.order = order;
+			this.minSize = minSize;
+		}
+	}
+
+	/**
+	 * @param compressor the codec of the pushed payloads, null to only decompress
+	 * @param minSize payloads smaller than this are not compressed unless a rule says otherwise
+	 */
+	public CompressionStage(PayloadCompressor compressor, int minSize) {
+		this(compressor, minSize, DEFAULT_MAX_INFLATED);
+	}
+
+	/**
+	 * @param compressor the codec of the pushed payloads, null to only decompress
+	 * @param minSize payloads smaller than this are not compressed unless a rule says otherwise
+	 * @param maxInflatedSize received payloads claiming a larger original length are left compressed
+	 */
+	public CompressionStage(PayloadCompressor compressor, int minSize, int maxInflatedSize) {
+		this.compressor = compressor;
+		this.minSize = minSize;
+		this.maxInflatedSize = maxInflatedSize;
+		register(new DeflateCompressor(Deflater.DEFAULT_COMPRESSION));
+		if(compressor != null) {
+			register(compressor);
+		}
+	}
+
+	/**
+	 * make a codec known for decompression, it may not inflate more than {@value #MAX_RATIO} times
+	 * @param codec
+	 */
+	public void register(PayloadCompressor codec) {
+		int id = codec.getId();
+		if(id < 1 || id >= compressors.length) {
+			throw new IllegalArgumentException("compressor id out of range: " + id);
+		}
+		compressors[id] = codec;
+	}
+
+	/**
+	 * @param rules filter=minsize pairs separated by ',', the first matching rule wins, minsize off disables
+	 * compression for the filter, e.g. <code>/rpc/#=256,/log/#=off</code>
+	 */
+	public void addRules(String rules) {
+		if(rules == null) {
+			return;
+		}
+		for(String item : rules.split(",")) {
+			item = item.trim();
+			if(item.length() < 1) {
+				continue;
+			}
+			int separator = item.lastIndexOf('=');
+			if(separator < 1) {
+				throw new IllegalArgumentException("invalid compress rule: " + item);
+			}
+			String value = item.substring(separator + 1).trim();
+			addRule(item.substring(0, separator).trim(), "off".equalsIgnoreCase(value) ? DISABLED : Integer.parseInt(value));
+		}
+	}
+
+	/**
+	 * @param topicFilter
+	 * @param minSize the threshold of the matching topics, {@link Integer#MAX_VALUE} never compresses them
+	 */
+	public synchronized void addRule(String topicFilter, int minSize) {
+		rules.add(topicFilter, new Rule(ruleCount++, minSize));
+	}
+
+	/**
+	 * @param topic
+	 * @return the payload size from which messages of the topic are compressed
+	 */
+	public int getMinSize(String topic) {
+		if(rules.isEmpty()) {
+			return minSize;
+		}
+		List<Rule> matched = new ArrayList<Rule>(2);
+		rules.match(topic, matched);
+		Rule first = null;
+		for(Rule rule : matched) {
+			if(first == null || rule.order < first.order) {
+				first = rule;
+			}
+		}
+		return first == null ? minSize : first.minSize;
+	}
+
+	public boolean isCompressing() {
+		return compressor != null;
+	}
+
+	static boolean hasHeader(byte[] payload) {
+		return payload.length > HEADER && payload[0] == MAGIC0 && payload[1] == MAGIC1 && payload[2] == MAGIC2;
+	}
+
+	/**
+	 * compress the payload of the message in place, a payload compressed already is left as it is.
+	 * The message keeps the compressed payload, its push result and future report it that way.
+	 * @param message
+	 * @return true if the payload was replaced
+	 */
+	public boolean compress(PushMqttMessage message) {
+		if(compressor == null) {
+			return false;
+		}
+		byte[] payload = message.getPayload();
+		if(payload.length < getMinSize(message.getTopic()) || hasHeader(payload)) {
+			return false;
+		}
+		// the compressed payload is only worth it if smaller than the original
+		byte[] buffer = buffers.get();
+		if(buffer == null || buffer.length < payload.length) {
+			buffer = new byte[Math.max(payload.length, 1024)];
+			buffers.set(buffer);
+		}
+		int length = compressor.compress(payload, payload.length, buffer, HEADER);
+		if(length < 0 || HEADER + length >= payload.length) {
+			return false;
+		}
+		byte[] compressed = new byte[HEADER + length];
+		compressed[0] = MAGIC0;
+		compressed[1] = MAGIC1;
+		compressed[2] = MAGIC2;
+		compressed[3] = (byte) compressor.getId();
+		writeInt(compressed, 4, payload.length);
+		System.arraycopy(buffer, HEADER, compressed, HEADER, length);
+		message.setPayload(compressed);
+		return true;
+	}
+
+	/**
+	 * decompress the payload of a received message in place, a payload without a known header is left as it is
+	 * @param message
+	 * @return true if the payload was replaced
+	 */
+	public boolean decompress(PushMqttMessage message) {
+		byte[] payload = message.getPayload();
+		if(!hasHeader(payload)) {
+			return false;
+		}
+		int id = payload[3];
+		PayloadCompressor codec = id > 0 ? compressors[id] : null;
+		int length = readInt(payload, 4);
+		if(codec == null || length < 0) {
+			return false;
+		}
+		if(length > maxInflatedSize || (long) length > (long) (payload.length - HEADER) * MAX_RATIO) {
+			logger.info(message.getTopic() + " not decompressed, original length " + length + " of "
+					+ payload.length + " compressed bytes exceeds the limit");
+			return false;
+		}
+		byte[] original = new byte[length];
+		try {
+			codec.decompress(payload, HEADER, payload.length - HEADER, original);
+		} catch (IOException e) {
+			// not compressed after all, a payload that happens to start like the header
+			logger.debug(message.getTopic() + " not decompressed: " + e.getMessage());
+			return false;
+		}
+		message.setPayload(original);
+		return true;
+	}
+
+	private static void writeInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+				| ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+}
@@ -0,0 +1,71 @@
+package com.yeild.mqtt.compress;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib deflate from the jdk. Each thread keeps its own {@link Deflater} and {@link Inflater},
+ * they hold native memory and are expensive to create, so they are reset and reused for every message.
+ */
+public class DeflateCompressor implements PayloadCompressor {
+	public static final int ID = 1;
+	public static final String NAME = "deflate";
+
+	private final int level;
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(level);
+		}
+	};
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * @param level 1 fastest to 9 smallest, see {@link Deflater#setLevel(int)}
+	 */
+	public DeflateCompressor(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public int getId() {
+		return ID;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public int compress(byte[] src, int srcLength, byte[] dest, int destOffset) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(src, 0, srcLength);
+		deflater.finish();
+		int length = deflater.deflate(dest, destOffset, dest.length - destOffset);
+		return deflater.finished() ? length : -1;
+	}
+
+	@Override
+	public void decompress(byte[] src, int offset, int length, byte[] dest) throws IOException {
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(src, offset, length);
+		try {
+			int inflated = inflater.inflate(dest);
+			if(inflated != dest.length || !inflater.finished()) {
+				throw new IOException("deflate data does not match its length " + dest.length);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+}
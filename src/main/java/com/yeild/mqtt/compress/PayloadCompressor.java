@@ -0,0 +1,36 @@
+package com.yeild.mqtt.compress;
+
+import java.io.IOException;
+
+/**
+ * a compression codec of the {@link CompressionStage}, called from many threads at once
+ */
+public interface PayloadCompressor {
+	/**
+	 * @return the id written in the payload header, 1 to 127, unique among the registered compressors
+	 */
+	int getId();
+
+	/**
+	 * @return the name selecting the compressor in mqtt.compress
+	 */
+	String getName();
+
+	/**
+	 * @param src
+	 * @param srcLength
+	 * @param dest the compressed data is written here
+	 * @param destOffset
+	 * @return the length of the compressed data, -1 if it does not fit in dest
+	 */
+	int compress(byte[] src, int srcLength, byte[] dest, int destOffset);
+
+	/**
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @param dest sized to the original length, it has to be filled exactly
+	 * @throws IOException the data is corrupt
+	 */
+	void decompress(byte[] src, int offset, int length, byte[] dest) throws IOException;
+}
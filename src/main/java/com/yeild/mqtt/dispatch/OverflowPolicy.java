@@ -0,0 +1,19 @@
+package com.yeild.mqtt.dispatch;
+
+/**
+ * what {@link StripedExecutor} does with a task whose stripe queue is full
+ */
+public enum OverflowPolicy {
+	/**
+	 * wait for space in the queue, slows down the caller
+	 */
+	BLOCK,
+	/**
+	 * drop the oldest queued task of the stripe to make room
+	 */
+	DROP_OLDEST,
+	/**
+	 * refuse the new task
+	 */
+	REJECT
+}
@@ -0,0 +1,153 @@
+package com.yeild.mqtt.dispatch;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+
+/**
+ * runs tasks on a fixed set of worker threads, every worker owns a bounded queue (stripe).
+ * Tasks with the same key always go to the same stripe, so they run in submission order,
+ * while tasks of different keys run in parallel.
+ */
+public class StripedExecutor {
+	/**
+	 * how often a caller blocked by a full stripe checks for shutdown, measured in milliseconds
+	 */
+	private static final long BLOCK_CHECK_MILLIS = 100;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final BlockingQueue<Runnable>[] stripes;
+	private final Thread[] workers;
+	private final OverflowPolicy overflowPolicy;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private volatile boolean running = true;
+
+	/**
+	 *
+	 * @param name the prefix of the worker thread names
+	 * @param threads the number of stripes, each one with its own worker thread
+	 * @param queueCapacity the max queued tasks of each stripe
+	 * @param overflowPolicy what to do when the stripe queue is full
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedExecutor(String name, int threads, int queueCapacity, OverflowPolicy overflowPolicy) {
+		if(threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("threads and queue capacity must be at least 1");
+		}
+		this.overflowPolicy = overflowPolicy;
+		stripes = new BlockingQueue[threads];
+		workers = new Thread[threads];
+		for(int i=0; i<threads; i++) {
+			final BlockingQueue<Runnable> stripe = new ArrayBlockingQueue<Runnable>(queueCapacity);
+			stripes[i] = stripe;
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runStripe(stripe);
+				}
+			}, name + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	private void runStripe(BlockingQueue<Runnable> stripe) {
+		while(running) {
+			Runnable task;
+			try {
+				task = stripe.take();
+			} catch (InterruptedException e) {
+				continue;
+			}
+			try {
+				task.run();
+			} catch (Throwable e) {
+				logger.error(CommonUtils.getExceptionInfo(e));
+			}
+		}
+	}
+
+	/**
+	 * queue the task on the stripe of the key
+	 * @param key tasks with the same key run one after another in submission order
+	 * @param task
+	 * @return false if the task was rejected
+	 */
+	public boolean execute(int key, Runnable task) {
+		if(!running) {
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+		key ^= key >>> 16;
+		BlockingQueue<Runnable> stripe = stripes[(key & 0x7fffffff) % stripes.length];
+		if(stripe.offer(task)) {
+			return true;
+		}
+		switch (overflowPolicy) {
+		case BLOCK:
+			// waits in slices, a shutdown while waiting rejects the task instead of blocking the caller for good
+			try {
+				while(running) {
+					if(stripe.offer(task, BLOCK_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			rejectedCount.incrementAndGet();
+			return false;
+		case DROP_OLDEST:
+			while(!stripe.offer(task)) {
+				Runnable oldest = stripe.poll();
+				if(oldest != null) {
+					droppedCount.incrementAndGet();
+					dropped(oldest);
+				}
+			}
+			return true;
+		default:
+			rejectedCount.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * called for a task dropped by {@link OverflowPolicy#DROP_OLDEST}
+	 * @param task
+	 */
+	protected void dropped(Runnable task) {
+	}
+
+	/**
+	 * stop the workers, the queued tasks are discarded and callers waiting for room are rejected
+	 */
+	public void shutdown() {
+		running = false;
+		for(Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	public int getQueueSize() {
+		int size = 0;
+		for(BlockingQueue<Runnable> stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+}
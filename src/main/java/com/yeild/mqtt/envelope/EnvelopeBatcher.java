@@ -0,0 +1,185 @@
+package com.yeild.mqtt.envelope;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.utils.MqttScheduler;
+import com.yeild.mqtt.utils.TopicTrie;
+
+/**
+ * packs the messages pushed to the matching topics into {@link EnvelopeMessage}s. An envelope is handed to the
+ * {@link Sink} when the next message would exceed the size budget, when its qos changes, when a retained message
+ * of the topic is pushed or when the linger time since its first message passed.
+ * <p>
+ * Envelopes are handed over under the lock of the batcher, so the envelopes of a topic reach the queue in push order.
+ * A message pushed while the queue is full is rejected, the open envelope stays as it is and is handed over again.
+ */
+public class EnvelopeBatcher {
+	/**
+	 * where the envelopes go, without waiting
+	 */
+	public interface Sink {
+		/**
+		 * @param message an envelope, or a message of an enveloped topic that is not batched
+		 * @return false if the queue is full
+		 */
+		boolean offer(PushMqttMessage message);
+	}
+
+	private final Sink sink;
+	private final TopicTrie<Boolean> filters = new TopicTrie<Boolean>();
+	private final int maxSize;
+	private final long lingerMillis;
+	private final Map<String, EnvelopeMessage> opens = new HashMap<String, EnvelopeMessage>();
+	private final Object lock = new Object();
+	private final ThreadLocal<List<Boolean>> matched = new ThreadLocal<List<Boolean>>() {
+		@Override
+		protected List<Boolean> initialValue() {
+			return new ArrayList<Boolean>(2);
+		}
+	};
+
+	/**
+	 * @param sink
+	 * @param topicFilters comma separated mqtt topic filters
+	 * @param maxSize the max bytes of an envelope payload
+	 * @param lingerMillis the max time the first message of an envelope waits for more
+	 * @throws IllegalArgumentException if a filter is malformed
+	 */
+	public EnvelopeBatcher(Sink sink, String topicFilters, int maxSize, long lingerMillis) {
+		this.sink = sink;
+		this.maxSize = maxSize;
+		this.lingerMillis = lingerMillis;
+		if(topicFilters != null) {
+			for(String filter : topicFilters.split(",")) {
+				filter = filter.trim();
+				if(filter.length() > 0) {
+					filters.add(filter, Boolean.TRUE);
+				}
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return !filters.isEmpty();
+	}
+
+	/**
+	 * @param message
+	 * @return true if the topic of the message is enveloped, its messages have to go through {@link #add(PushMqttMessage)}
+	 */
+	public boolean matches(PushMqttMessage message) {
+		if(filters.isEmpty() || message.getTopic() == null || message instanceof EnvelopeMessage) {
+			return false;
+		}
+		List<Boolean> list = matched.get();
+		list.clear();
+		filters.match(message.getTopic(), list);
+		return !list.isEmpty();
+	}
+
+	/**
+	 * add the message to the open envelope of its topic. Retained messages and messages larger than the budget
+	 * are offered as they are, after the open envelope.
+	 * @param message
+	 * @return false if the queue is full
+	 */
+	public boolean add(PushMqttMessage message) {
+		String topic = message.getTopic();
+		int entrySize = EnvelopeMessage.entrySize(message.getPayload().length);
+		synchronized (lock) {
+			EnvelopeMessage open = opens.get(topic);
+			boolean single = message.isRetained() || EnvelopeMessage.HEADER + entrySize > maxSize;
+			if(open != null && (single || open.getQos() != message.getQos() || open.getPackedSize() + entrySize > maxSize)) {
+				if(!handOver(open)) {
+					return false;
+				}
+				open = null;
+			}
+			if(single) {
+				return sink.offer(message);
+			}
+			if(open == null) {
+				open = new EnvelopeMessage(topic, message.getQos());
+				opens.put(topic, open);
+				scheduleLinger(open);
+			}
+			open.add(message);
+			return true;
+		}
+	}
+
+	/**
+	 * hand over all the open envelopes now
+	 * @return false if the queue was too full for some of them
+	 */
+	public boolean flush() {
+		synchronized (lock) {
+			boolean flushed = true;
+			for(EnvelopeMessage open : new ArrayList<EnvelopeMessage>(opens.values())) {
+				flushed &= handOver(open);
+			}
+			return flushed;
+		}
+	}
+
+	/**
+	 * remove the open envelopes without handing them over
+	 * @return their messages, in push order per topic
+	 */
+	public List<PushMqttMessage> drain() {
+		synchronized (lock) {
+			List<PushMqttMessage> messages = new ArrayList<PushMqttMessage>();
+			for(EnvelopeMessage open : opens.values()) {
+				messages.addAll(open.getMessages());
+			}
+			opens.clear();
+			return messages;
+		}
+	}
+
+	/**
+	 * @return the messages waiting in open envelopes
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			int count = 0;
+			for(EnvelopeMessage open : opens.values()) {
+				count += open.getMessageCount();
+			}
+			return count;
+		}
+	}
+
+	private boolean handOver(EnvelopeMessage open) {
+		open.pack();
+		// the earliest push of the envelope counts for the queue latency
+		open.setEnqueueNanos(open.getMessages().get(0).getEnqueueNanos());
+		if(!sink.offer(open)) {
+			return false;
+		}
+		opens.remove(open.getTopic());
+		return true;
+	}
+
+	private void scheduleLinger(final EnvelopeMessage open) {
+		MqttScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					if(opens.get(open.getTopic()) != open) {
+						return;
+					}
+					if(!handOver(open)) {
+						// the queue is full, try again after another linger time
+						scheduleLinger(open);
+					}
+				}
+			}
+		}, lingerMillis, TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,151 @@
+package com.yeild.mqtt.envelope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.codec.PayloadBuffer;
+
+/**
+ * one publish carrying the payloads of many messages of the same topic and qos, in push order.
+ * <pre>
+ * payload: 0x00 'M' 'B' | byte version | (varint length | payload)*
+ * </pre>
+ * The result of the publish is reported for every message of the envelope.
+ */
+public class EnvelopeMessage extends PushMqttMessage {
+	static final int HEADER = 4;
+	private static final byte MAGIC0 = 0x00;
+	private static final byte MAGIC1 = 'M';
+	private static final byte MAGIC2 = 'B';
+	private static final byte VERSION = 1;
+
+	private final List<PushMqttMessage> messages = new ArrayList<PushMqttMessage>();
+	/**
+	 * the packed size of the messages added so far
+	 */
+	private int packedSize = HEADER;
+
+	public EnvelopeMessage(String topic, int qos) {
+		setTopic(topic);
+		setQos(qos);
+	}
+
+	/**
+	 * @param payloadLength
+	 * @return the bytes a payload of the length adds to the envelope
+	 */
+	static int entrySize(int payloadLength) {
+		int size = 1;
+		for(int length = payloadLength; length >= 0x80; length >>>= 7) {
+			size++;
+		}
+		return size + payloadLength;
+	}
+
+	void add(PushMqttMessage message) {
+		messages.add(message);
+		packedSize += entrySize(message.getPayload().length);
+	}
+
+	/**
+	 * rebuild an envelope read back from where it was stored, e.g. a spill journal
+	 * @param topic
+	 * @param qos
+	 * @param messages the messages in push order
+	 * @param payload the payload as it was published, packed and maybe compressed
+	 * @return
+	 */
+	public static EnvelopeMessage restore(String topic, int qos, List<PushMqttMessage> messages, byte[] payload) {
+		EnvelopeMessage envelope = new EnvelopeMessage(topic, qos);
+		for(PushMqttMessage message : messages) {
+			envelope.add(message);
+		}
+		envelope.setPayload(payload);
+		return envelope;
+	}
+
+	/**
+	 * @return the messages in push order
+	 */
+	public List<PushMqttMessage> getMessages() {
+		return Collections.unmodifiableList(messages);
+	}
+
+	public int getMessageCount() {
+		return messages.size();
+	}
+
+	public int getPackedSize() {
+		return packedSize;
+	}
+
+	/**
+	 * set the payload to the envelope of the messages added
+	 */
+	void pack() {
+		PayloadBuffer buffer = PayloadBuffer.get();
+		buffer.write(MAGIC0);
+		buffer.write(MAGIC1);
+		buffer.write(MAGIC2);
+		buffer.write(VERSION);
+		for(PushMqttMessage message : messages) {
+			byte[] payload = message.getPayload();
+			int length = payload.length;
+			while(length >= 0x80) {
+				buffer.write((length & 0x7f) | 0x80);
+				length >>>= 7;
+			}
+			buffer.write(length);
+			buffer.write(payload, 0, payload.length);
+		}
+		setPayload(buffer.toByteArray());
+	}
+
+	public static boolean isEnvelope(byte[] payload) {
+		return payload.length > HEADER && payload[0] == MAGIC0 && payload[1] == MAGIC1 && payload[2] == MAGIC2
+				&& payload[3] == VERSION;
+	}
+
+	/**
+	 * @param message a received message
+	 * @return the messages of the envelope with the topic, qos and flags of the received one,
+	 * null if the payload is not a valid envelope
+	 */
+	public static List<PushMqttMessage> unpack(PushMqttMessage message) {
+		byte[] payload = message.getPayload();
+		if(!isEnvelope(payload)) {
+			return null;
+		}
+		List<PushMqttMessage> messages = new ArrayList<PushMqttMessage>();
+		int offset = HEADER;
+		while(offset < payload.length) {
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if(offset >= payload.length || shift > 21) {
+					return null;
+				}
+				b = payload[offset++];
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			if(length > payload.length - offset) {
+				return null;
+			}
+			byte[] entry = new byte[length];
+			System.arraycopy(payload, offset, entry, 0, length);
+			offset += length;
+			// the received topic as it is, setTopic would sanitize it like an outgoing one
+			PushMqttMessage unpacked = new PushMqttMessage(message.getTopic(), null);
+			unpacked.setQos(message.getQos());
+			unpacked.setRetained(message.isRetained());
+			unpacked.setRpc(message.isRpc());
+			unpacked.setPayload(entry);
+			messages.add(unpacked);
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,371 @@
+package com.yeild.mqtt.failover;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+
+/**
+ * measures the round trip time to the brokers of the registered uri lists, so a connector tries the nearest
+ * healthy broker first. The rtt of a broker is the time of a tcp connect, the syn and its syn-ack, smoothed over
+ * the probes like the srtt of tcp. A broker not accepting the connect within the timeout is unhealthy until it
+ * accepts one again.
+ * <p>
+ * All the brokers are probed at once with non blocking connects on one daemon thread, which runs while any uri
+ * is registered. The connectors of a pool share the prober of their config.
+ */
+public class BrokerProber {
+	protected Logger logger = Logger.getLogger(getClass());
+	private final long interval;
+	private final int timeout;
+	/**
+	 * the probed brokers by uri, in the order of registration, guarded by this
+	 */
+	private final Map<String, Broker> brokers = new LinkedHashMap<String, Broker>();
+	private Thread thread;
+	private volatile String preferred;
+
+	static final class Broker {
+		final String uri;
+		final InetSocketAddress address;
+		int references = 0;
+		/**
+		 * the smoothed rtt in nanoseconds, -1 until a connect succeeded
+		 */
+		volatile long rtt = -1;
+		volatile boolean probed = false;
+		volatile boolean healthy = false;
+		volatile int failures = 0;
+
+		Broker(String uri, InetSocketAddress address) {
+			this.uri = uri;
+			this.address = address;
+		}
+
+		void success(long sample) {
+			// the weight of a new sample is 1/8, as in the srtt of tcp
+			rtt = rtt < 0 ? sample : rtt + (sample - rtt) / 8;
+			failures = 0;
+			healthy = true;
+			probed = true;
+		}
+
+		void failure() {
+			failures++;
+			healthy = false;
+			probed = true;
+		}
+	}
+
+	/**
+	 * @param interval the time between two probes of a broker, measured in milliseconds
+	 * @param timeout the time a broker has to accept the connect, measured in milliseconds
+	 */
+	public BrokerProber(long interval, int timeout) {
+		this.interval = Math.max(1, interval);
+		this.timeout = Math.max(1, timeout);
+	}
+
+	/**
+	 * start probing the brokers, the ones not known yet are probed before this returns
+	 * @param uris
+	 */
+	public void register(String[] uris) {
+		List<Broker> added = new ArrayList<Broker>(uris.length);
+		synchronized (this) {
+			for(String uri : uris) {
+				Broker broker = brokers.get(uri);
+				if(broker == null) {
+					InetSocketAddress address = toAddress(uri);
+					if(address == null) {
+						continue;
+					}
+					broker = new Broker(uri, address);
+					brokers.put(uri, broker);
+					added.add(broker);
+				}
+				broker.references++;
+			}
+			if(thread == null && !brokers.isEmpty()) {
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						runProbes();
+					}
+				}, "mqtt-broker-prober");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		if(!added.isEmpty()) {
+			probe(added);
+		}
+	}
+
+	/**
+	 * stop probing the brokers no registered list contains any more
+	 * @param uris the uris given to {@link #register(String[])}
+	 */
+	public synchronized void unregister(String[] uris) {
+		for(String uri : uris) {
+			Broker broker = brokers.get(uri);
+			if(broker != null && --broker.references < 1) {
+				brokers.remove(uri);
+			}
+		}
+		if(brokers.isEmpty()) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @param uris
+	 * @return the uris in the order to try them: the healthy brokers by rtt, then the ones not probed yet,
+	 * then the unhealthy ones, each group in the given order
+	 */
+	public String[] order(String[] uris) {
+		final Map<String, Broker> known = new LinkedHashMap<String, Broker>();
+		synchronized (this) {
+			for(String uri : uris) {
+				Broker broker = brokers.get(uri);
+				if(broker != null) {
+					known.put(uri, broker);
+				}
+			}
+		}
+		String[] ordered = uris.clone();
+		// a stable sort, the brokers of the same rank keep the configured order
+		Arrays.sort(ordered, new Comparator<String>() {
+			@Override
+			public int compare(String left, String right) {
+				Broker a = known.get(left);
+				Broker b = known.get(right);
+				int rankA = rank(a);
+				int rankB = rank(b);
+				if(rankA != rankB) {
+					return rankA < rankB ? -1 : 1;
+				}
+				if(rankA == 0 && a.rtt != b.rtt) {
+					return a.rtt < b.rtt ? -1 : 1;
+				}
+				return 0;
+			}
+		});
+		return ordered;
+	}
+
+	private static int rank(Broker broker) {
+		if(broker == null || !broker.probed) {
+			return 1;
+		}
+		return broker.healthy ? 0 : 2;
+	}
+
+	/**
+	 * @param uri
+	 * @return the smoothed rtt to the broker in nanoseconds, -1 if it never accepted a connect
+	 */
+	public long getRtt(String uri) {
+		Broker broker = getBroker(uri);
+		return broker == null ? -1 : broker.rtt;
+	}
+
+	/**
+	 * @param uri
+	 * @return true if the broker accepted the last connect of the prober
+	 */
+	public boolean isHealthy(String uri) {
+		Broker broker = getBroker(uri);
+		return broker != null && broker.healthy;
+	}
+
+	private synchronized Broker getBroker(String uri) {
+		return brokers.get(uri);
+	}
+
+	public long getInterval() {
+		return interval;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * probe all the registered brokers once
+	 */
+	public void probe() {
+		List<Broker> all;
+		synchronized (this) {
+			all = new ArrayList<Broker>(brokers.values());
+		}
+		probe(all);
+	}
+
+	private void runProbes() {
+		while(true) {
+			synchronized (this) {
+				try {
+					if(!brokers.isEmpty()) {
+						wait(interval);
+					}
+				} catch (InterruptedException e) {
+				}
+				if(brokers.isEmpty()) {
+					thread = null;
+					return;
+				}
+			}
+			probe();
+		}
+	}
+
+	/**
+	 * connect to all the brokers at once and wait for the connects up to the timeout
+	 */
+	private void probe(List<Broker> targets) {
+		Selector selector;
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return;
+		}
+		try {
+			long begin = System.nanoTime();
+			long[] starts = new long[targets.size()];
+			int pending = 0;
+			for(int i=0; i<targets.size(); i++) {
+				Broker broker = targets.get(i);
+				SocketChannel channel = null;
+				try {
+					// resolved by every probe, a dns name may move to another node
+					InetSocketAddress address = new InetSocketAddress(broker.address.getHostName(), broker.address.getPort());
+					if(address.isUnresolved()) {
+						broker.failure();
+						continue;
+					}
+					channel = SocketChannel.open();
+					channel.configureBlocking(false);
+					starts[i] = System.nanoTime();
+					if(channel.connect(address)) {
+						broker.success(System.nanoTime() - starts[i]);
+						channel.close();
+						continue;
+					}
+					channel.register(selector, SelectionKey.OP_CONNECT, Integer.valueOf(i));
+					pending++;
+				} catch (IOException e) {
+					broker.failure();
+					close(channel);
+				}
+			}
+			long deadline = begin + TimeUnit.MILLISECONDS.toNanos(timeout);
+			while(pending > 0) {
+				long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(wait <= 0 || selector.select(wait) < 0) {
+					break;
+				}
+				long now = System.nanoTime();
+				for(SelectionKey key : selector.selectedKeys()) {
+					int index = ((Integer) key.attachment()).intValue();
+					SocketChannel channel = (SocketChannel) key.channel();
+					try {
+						channel.finishConnect();
+						targets.get(index).success(now - starts[index]);
+					} catch (IOException e) {
+						targets.get(index).failure();
+					}
+					key.cancel();
+					close(channel);
+					pending--;
+				}
+				selector.selectedKeys().clear();
+			}
+			// the brokers not answering within the timeout
+			for(SelectionKey key : selector.keys()) {
+				if(key.isValid()) {
+					targets.get(((Integer) key.attachment()).intValue()).failure();
+					close((SocketChannel) key.channel());
+				}
+			}
+		} catch (IOException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+		logPreferred();
+	}
+
+	private void logPreferred() {
+		String[] uris;
+		synchronized (this) {
+			uris = brokers.keySet().toArray(new String[brokers.size()]);
+		}
+		if(uris.length < 1) {
+			return;
+		}
+		String best = order(uris)[0];
+		if(!best.equals(preferred)) {
+			preferred = best;
+			long rtt = getRtt(best);
+			logger.info("preferred broker " + best + (rtt < 0 ? " unreachable" : ", rtt " + TimeUnit.NANOSECONDS.toMicros(rtt) + "us"));
+		}
+	}
+
+	private static void close(SocketChannel channel) {
+		if(channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @param uri tcp, ssl, ws or wss uri
+	 * @return the address of the broker, unresolved, or null for a malformed uri
+	 */
+	static InetSocketAddress toAddress(String uri) {
+		try {
+			URI parsed = new URI(uri);
+			String host = parsed.getHost();
+			if(host == null) {
+				return null;
+			}
+			int port = parsed.getPort();
+			if(port < 0) {
+				String scheme = parsed.getScheme();
+				if("ssl".equals(scheme)) {
+					port = 8883;
+				} else if("ws".equals(scheme)) {
+					port = 80;
+				} else if("wss".equals(scheme)) {
+					port = 443;
+				} else {
+					port = 1883;
+				}
+			}
+			return InetSocketAddress.createUnresolved(host, port);
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.yeild.mqtt.listener;
+
+/**
+ * called once a {@link com.yeild.mqtt.MqttFuture} completes, on the completing thread.
+ * The callbacks must not block, they may run on the mqtt callback or timer thread.
+ * @param <T>
+ */
+public interface MqttFutureListener<T> {
+	void onSuccess(T result);
+	/**
+	 * @param cause the failure, a {@link java.util.concurrent.CancellationException} if the future was cancelled
+	 */
+	void onFailure(Throwable cause);
+}
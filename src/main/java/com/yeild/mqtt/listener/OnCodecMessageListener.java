@@ -0,0 +1,7 @@
+package com.yeild.mqtt.listener;
+
+import com.yeild.mqtt.codec.CodecMessage;
+
+public interface OnCodecMessageListener<T> {
+	void onMqttReceiveMessage(CodecMessage<T> message);
+}
@@ -0,0 +1,12 @@
+package com.yeild.mqtt.listener;
+
+import com.yeild.mqtt.ConnectionState;
+import com.yeild.mqtt.MqttConnector;
+
+/**
+ * called on the thread changing the state, the mqtt callback thread for the reconnects.
+ * The callbacks must not block.
+ */
+public interface OnConnectionStateListener {
+	void onConnectionStateChanged(MqttConnector connector, ConnectionState previous, ConnectionState state);
+}
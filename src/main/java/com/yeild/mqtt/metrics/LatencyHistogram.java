@@ -0,0 +1,159 @@
+package com.yeild.mqtt.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * fixed size log-linear histogram of durations in nanoseconds, in the manner of HdrHistogram.
+ * Every power of two is split into {@value #SUB_BUCKETS} linear buckets, so a recorded value is
+ * off by at most about 3% at any magnitude. The buckets are striped by thread like {@link StripedCounter},
+ * recording is an index computation and adds to cells other threads rarely touch, nothing is allocated.
+ * Reading merges the stripes.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+	/**
+	 * values are capped at 2^40 ns, about 18 minutes
+	 */
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+	private static final int BUCKETS = index(MAX_VALUE) + 1;
+	/**
+	 * a stripe holds about 9kb of buckets, so there are fewer than the cells of a {@link StripedCounter}
+	 */
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		int target = Math.min(8, Runtime.getRuntime().availableProcessors());
+		while(stripes < target) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	/**
+	 * the buckets of every stripe, followed by the max value the stripe recorded
+	 */
+	private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+	private final StripedCounter totalCount = new StripedCounter();
+	private final StripedCounter totalNanos = new StripedCounter();
+
+	public LatencyHistogram() {
+		for(int i=0; i<STRIPES; i++) {
+			stripes[i] = new AtomicLongArray(BUCKETS + 1);
+		}
+	}
+
+	static int index(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift << SUB_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return the highest value counted in the bucket
+	 */
+	static long highestValue(int index) {
+		if(index < SUB_BUCKETS * 2) {
+			return index;
+		}
+		int shift = (index >>> SUB_BITS) - 1;
+		long top = index - ((long) shift << SUB_BITS);
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * @param nanos negative values count as 0
+	 */
+	public void record(long nanos) {
+		long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+		long id = Thread.currentThread().getId();
+		AtomicLongArray stripe = stripes[(int) (id ^ (id >>> 16)) & (STRIPES - 1)];
+		stripe.incrementAndGet(index(value));
+		totalCount.increment();
+		totalNanos.add(value);
+		long max = stripe.get(BUCKETS);
+		while(value > max && !stripe.compareAndSet(BUCKETS, max, value)) {
+			max = stripe.get(BUCKETS);
+		}
+	}
+
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	public long getMaxNanos() {
+		long max = 0;
+		for(AtomicLongArray stripe : stripes) {
+			max = Math.max(max, stripe.get(BUCKETS));
+		}
+		return max;
+	}
+
+	public double getMeanNanos() {
+		long count = totalCount.sum();
+		return count == 0 ? 0 : (double) totalNanos.sum() / count;
+	}
+
+	/**
+	 * @return the buckets summed over the stripes
+	 */
+	private long[] merge() {
+		long[] merged = new long[BUCKETS];
+		for(AtomicLongArray stripe : stripes) {
+			for(int i=0; i<BUCKETS; i++) {
+				merged[i] += stripe.get(i);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * @param percentile 0 to 100
+	 * @return the value below or at which the percentile of the recorded values fall, 0 if nothing was recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		return percentile(merge(), getMaxNanos(), percentile);
+	}
+
+	private static long percentile(long[] merged, long max, double percentile) {
+		long total = 0;
+		for(long count : merged) {
+			total += count;
+		}
+		if(total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+		long seen = 0;
+		for(int i=0; i<merged.length; i++) {
+			seen += merged[i];
+			if(seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * merges the stripes once for all the percentiles
+	 */
+	public LatencySnapshot snapshot() {
+		long[] merged = merge();
+		long max = getMaxNanos();
+		return new LatencySnapshot(getCount(), getMeanNanos() / 1000, percentile(merged, max, 50) / 1000.0
+				, percentile(merged, max, 99) / 1000.0, percentile(merged, max, 99.9) / 1000.0, max / 1000.0);
+	}
+
+	public void reset() {
+		for(AtomicLongArray stripe : stripes) {
+			for(int i=0; i<=BUCKETS; i++) {
+				stripe.set(i, 0);
+			}
+		}
+		totalCount.reset();
+		totalNanos.reset();
+	}
+}
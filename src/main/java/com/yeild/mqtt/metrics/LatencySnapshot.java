@@ -0,0 +1,54 @@
+package com.yeild.mqtt.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * the state of a {@link LatencyHistogram} in microseconds, shown as composite data over jmx
+ */
+public class LatencySnapshot {
+	private final long count;
+	private final double mean;
+	private final double p50;
+	private final double p99;
+	private final double p999;
+	private final double max;
+
+	@ConstructorProperties({"count", "mean", "p50", "p99", "p999", "max"})
+	public LatencySnapshot(long count, double mean, double p50, double p99, double p999, double max) {
+		this.count = count;
+		this.mean = mean;
+		this.p50 = p50;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	public double getP50() {
+		return p50;
+	}
+
+	public double getP99() {
+		return p99;
+	}
+
+	public double getP999() {
+		return p999;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + mean + "us p50=" + p50 + "us p99=" + p99 + "us p999=" + p999 + "us max=" + max + "us";
+	}
+}
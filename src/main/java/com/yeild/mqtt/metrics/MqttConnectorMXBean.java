@@ -0,0 +1,36 @@
+package com.yeild.mqtt.metrics;
+
+/**
+ * the jmx view of a connector, registered as com.yeild.mqtt:type=MqttConnector,clientid=&lt;clientid&gt;.
+ * The latencies are in microseconds.
+ */
+public interface MqttConnectorMXBean {
+	String getClientId();
+	boolean isLogined();
+	/**
+	 * @return the name of the {@link com.yeild.mqtt.ConnectionState}
+	 */
+	String getConnectionState();
+	int getPushQueueSize();
+	long getPushQueueHighWaterMark();
+	long getPublishedCount();
+	long getPublishFailedCount();
+	long getReceivedCount();
+	long getReceiveDroppedCount();
+	long getRetryCount();
+	long getPendingRetryCount();
+	long getPushConflatedCount();
+	long getReconnectCount();
+	long getConnectionLostCount();
+	double getPublishRate();
+	double getReceiveRate();
+	LatencySnapshot getQueueLatency();
+	LatencySnapshot getPublishLatency();
+	LatencySnapshot getEndToEndLatency();
+	LatencySnapshot getListenerLatency();
+	LatencySnapshot getConnectLatency();
+	/**
+	 * clear the latency histograms and the queue high-water mark
+	 */
+	void resetStatistics();
+}
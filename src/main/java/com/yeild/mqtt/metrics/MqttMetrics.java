@@ -0,0 +1,194 @@
+package com.yeild.mqtt.metrics;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yeild.mqtt.utils.MqttScheduler;
+
+/**
+ * the counters and latency histograms of one connector.
+ * The recording methods are called on the hot paths, they only add to striped counters and histogram buckets.
+ * The rates are one minute moving averages updated every {@value #TICK_SECONDS} seconds on the shared scheduler.
+ */
+public class MqttMetrics {
+	private static final int TICK_SECONDS = 5;
+	private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60.0);
+
+	private final StripedCounter published = new StripedCounter();
+	private final StripedCounter publishFailed = new StripedCounter();
+	private final StripedCounter received = new StripedCounter();
+	private final StripedCounter retries = new StripedCounter();
+	private final StripedCounter pendingRetries = new StripedCounter();
+	private final StripedCounter reconnects = new StripedCounter();
+	private final StripedCounter connectionLost = new StripedCounter();
+
+	/**
+	 * enqueue to the publish call
+	 */
+	private final LatencyHistogram queueLatency = new LatencyHistogram();
+	/**
+	 * the publish call to the broker ack
+	 */
+	private final LatencyHistogram publishLatency = new LatencyHistogram();
+	/**
+	 * enqueue to the broker ack, retries included
+	 */
+	private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+	private final LatencyHistogram listenerLatency = new LatencyHistogram();
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+	private final AtomicLong queueHighWaterMark = new AtomicLong();
+	private volatile double publishRate;
+	private volatile double receiveRate;
+	private long lastPublished;
+	private long lastReceived;
+	private boolean rateInitialized = false;
+	private ScheduledFuture<?> tickTask;
+
+	/**
+	 * @param queueSize the push queue size after an enqueue
+	 */
+	public void recordQueueSize(long queueSize) {
+		long mark = queueHighWaterMark.get();
+		while(queueSize > mark && !queueHighWaterMark.compareAndSet(mark, queueSize)) {
+			mark = queueHighWaterMark.get();
+		}
+	}
+
+	/**
+	 * record the latencies of an acked message
+	 * @param enqueueNanos
+	 * @param publishNanos
+	 */
+	public void recordPublished(long enqueueNanos, long publishNanos) {
+		published.increment();
+		long now = System.nanoTime();
+		if(publishNanos != 0) {
+			publishLatency.record(now - publishNanos);
+			if(enqueueNanos != 0) {
+				queueLatency.record(publishNanos - enqueueNanos);
+			}
+		}
+		if(enqueueNanos != 0) {
+			endToEndLatency.record(now - enqueueNanos);
+		}
+	}
+
+	public StripedCounter getPublished() {
+		return published;
+	}
+
+	public StripedCounter getPublishFailed() {
+		return publishFailed;
+	}
+
+	public StripedCounter getReceived() {
+		return received;
+	}
+
+	public StripedCounter getRetries() {
+		return retries;
+	}
+
+	public StripedCounter getPendingRetries() {
+		return pendingRetries;
+	}
+
+	public StripedCounter getReconnects() {
+		return reconnects;
+	}
+
+	public StripedCounter getConnectionLost() {
+		return connectionLost;
+	}
+
+	public LatencyHistogram getQueueLatency() {
+		return queueLatency;
+	}
+
+	public LatencyHistogram getPublishLatency() {
+		return publishLatency;
+	}
+
+	public LatencyHistogram getEndToEndLatency() {
+		return endToEndLatency;
+	}
+
+	public LatencyHistogram getListenerLatency() {
+		return listenerLatency;
+	}
+
+	public LatencyHistogram getConnectLatency() {
+		return connectLatency;
+	}
+
+	public long getQueueHighWaterMark() {
+		return queueHighWaterMark.get();
+	}
+
+	/**
+	 * @return acked messages per second, averaged over the last minute
+	 */
+	public double getPublishRate() {
+		return publishRate;
+	}
+
+	/**
+	 * @return received messages per second, averaged over the last minute
+	 */
+	public double getReceiveRate() {
+		return receiveRate;
+	}
+
+	/**
+	 * start updating the rates
+	 */
+	public synchronized void start() {
+		if(tickTask != null) {
+			return;
+		}
+		tickTask = MqttScheduler.getScheduler().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stop() {
+		if(tickTask != null) {
+			tickTask.cancel(false);
+			tickTask = null;
+		}
+	}
+
+	synchronized void tick() {
+		long publishedNow = published.sum();
+		long receivedNow = received.sum();
+		double publishInstant = (publishedNow - lastPublished) / (double) TICK_SECONDS;
+		double receiveInstant = (receivedNow - lastReceived) / (double) TICK_SECONDS;
+		if(rateInitialized) {
+			publishRate += ALPHA * (publishInstant - publishRate);
+			receiveRate += ALPHA * (receiveInstant - receiveRate);
+		} else {
+			publishRate = publishInstant;
+			receiveRate = receiveInstant;
+			rateInitialized = true;
+		}
+		lastPublished = publishedNow;
+		lastReceived = receivedNow;
+	}
+
+	/**
+	 * clear the histograms and the high-water mark, the counters keep counting
+	 */
+	public void reset() {
+		queueLatency.reset();
+		publishLatency.reset();
+		endToEndLatency.reset();
+		listenerLatency.reset();
+		connectLatency.reset();
+		queueHighWaterMark.set(0);
+	}
+}
@@ -0,0 +1,56 @@
+package com.yeild.mqtt.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * counter spread over padded cells chosen by thread, so threads counting at the same time
+ * do not fight over one cache line. Adding is one uncontended atomic add, reading sums the cells.
+ */
+public class StripedCounter {
+	/**
+	 * longs between two used cells, keeps every cell on its own 64 byte cache line
+	 */
+	private static final int PADDING = 8;
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+		while(stripes < target) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void decrement() {
+		add(-1);
+	}
+
+	public void add(long delta) {
+		long id = Thread.currentThread().getId();
+		int stripe = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+		cells.getAndAdd(stripe * PADDING, delta);
+	}
+
+	/**
+	 * @return the sum of the cells, not an atomic snapshot while other threads add
+	 */
+	public long sum() {
+		long sum = 0;
+		for(int i=0; i<STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	public void reset() {
+		for(int i=0; i<STRIPES; i++) {
+			cells.set(i * PADDING, 0);
+		}
+	}
+}
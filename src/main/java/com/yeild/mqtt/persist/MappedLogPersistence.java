@@ -0,0 +1,680 @@
+package com.yeild.mqtt.persist;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import com.yeild.common.Utils.CommonUtils;
+
+/**
+ * {@link MqttClientPersistence} on an append-only log of memory mapped segment files.
+ * A put or remove is one sequential write into the mapped segment, an in-memory index points every key to its latest record.
+ * Segments whose records are all removed are deleted, a background thread copies the few live records
+ * of the oldest segment forward so a long lived in-flight message does not keep old segments around.
+ * When the puts reach the disk is decided by the {@link SyncPolicy}, a remove never waits for the disk:
+ * a remove lost by a crash only makes paho deliver the message again.
+ * <pre>
+ * record: int length | int crc32 of the body | body
+ * body: byte type | short key length | key | int header length | header | payload
+ * length 0 marks the end of the written data, a remove record has no header and payload
+ * </pre>
+ * A record whose checksum does not match was torn by a crash, the recovery stops at it.
+ */
+public class MappedLogPersistence implements MqttClientPersistence {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "log-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String LOCK_FILE = ".lck";
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_REMOVE = 2;
+	private static final int RECORD_HEADER = 4 + 4;
+	private static final int BODY_HEADER = 1 + 2;
+	/**
+	 * sealed segments kept before the oldest is compacted, the newest ones usually empty on their own
+	 */
+	private static final int COMPACT_SEGMENTS = 2;
+	public static final int DEFAULT_SEGMENT_SIZE = 4*1024*1024;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final File baseDir;
+	private final SyncPolicy syncPolicy;
+	private final long syncIntervalMillis;
+	private final int segmentSize;
+
+	private File dir;
+	private RandomAccessFile lockFile;
+	private FileLock lock;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private final Map<String, Location> index = new HashMap<String, Location>();
+	private long nextSegmentId = 0;
+	private Thread backgroundThread;
+	private volatile boolean compactRequested = false;
+
+	private final Object flushLock = new Object();
+	private long writtenSeq = 0;
+	private long flushedSeq = 0;
+	/**
+	 * removes written since the last force, guarded by flushLock
+	 */
+	private boolean unforcedRemoves = false;
+	private final CRC32 crc = new CRC32();
+	private volatile boolean opened = false;
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		int writePosition = 0;
+		/**
+		 * the records of this segment the index points to
+		 */
+		int live = 0;
+		boolean dirty = false;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private static final class Location {
+		final Segment segment;
+		final int position;
+		final int length;
+
+		Location(Segment segment, int position, int length) {
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+		}
+	}
+
+	public MappedLogPersistence(String directory) {
+		this(directory, SyncPolicy.GROUP, 5, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * @param directory the base directory, every client gets its own sub directory
+	 * @param syncPolicy
+	 * @param syncIntervalMillis max time a remove stays unforced when no put forces it along
+	 * @param segmentSize the size of one segment file in bytes
+	 */
+	public MappedLogPersistence(String directory, SyncPolicy syncPolicy, long syncIntervalMillis, int segmentSize) {
+		this.baseDir = new File(directory);
+		this.syncPolicy = syncPolicy;
+		this.syncIntervalMillis = Math.max(0, syncIntervalMillis);
+		this.segmentSize = segmentSize;
+	}
+
+	@Override
+	public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+		if(opened) {
+			return;
+		}
+		dir = new File(baseDir, toDirName(clientId + "-" + serverURI));
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new MqttPersistenceException(new IOException("can not create persistence dir " + dir));
+		}
+		try {
+			lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+			try {
+				lock = lockFile.getChannel().tryLock();
+			} catch (OverlappingFileLockException e) {
+				// held by another persistence of this process
+				lock = null;
+			}
+			if(lock == null) {
+				lockFile.close();
+				lockFile = null;
+				throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+			}
+			recover();
+		} catch (IOException e) {
+			releaseLock();
+			throw new MqttPersistenceException(e);
+		}
+		opened = true;
+		if(syncPolicy == SyncPolicy.GROUP) {
+			startBackgroundThread();
+		}
+		if(segments.size() > COMPACT_SEGMENTS + 1) {
+			requestCompaction();
+		}
+	}
+
+	private static String toDirName(String name) {
+		StringBuilder builder = new StringBuilder(name.length());
+		for(int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			if(Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+
+	private void recover() throws IOException {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long id1 = segmentId(o1);
+				long id2 = segmentId(o2);
+				return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+			}
+		});
+		for(File file : files) {
+			long id = segmentId(file);
+			if(id < 0) {
+				continue;
+			}
+			nextSegmentId = Math.max(nextSegmentId, id + 1);
+			Segment segment = new Segment(file, map(file, (int) file.length()));
+			segments.add(segment);
+			scan(segment);
+		}
+		releaseSegments();
+		if(!index.isEmpty()) {
+			logger.info(index.size() + " persisted mqtt packets recovered from " + dir);
+		}
+	}
+
+	private static long segmentId(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * replay the records of a segment into the index
+	 */
+	private void scan(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int position = 0;
+		while(position + RECORD_HEADER + BODY_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if(length < BODY_HEADER || position + RECORD_HEADER + length > buffer.capacity()) {
+				break;
+			}
+			if(buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+				logger.info("torn persistence record at " + position + " of " + segment.file + ", the rest is dropped");
+				break;
+			}
+			byte type = buffer.get(position + RECORD_HEADER);
+			int keyLength = buffer.getShort(position + RECORD_HEADER + 1) & 0xffff;
+			if(BODY_HEADER + keyLength > length) {
+				break;
+			}
+			String key = readKey(buffer, position + RECORD_HEADER + BODY_HEADER, keyLength);
+			if(type == TYPE_PUT) {
+				index(key, new Location(segment, position, length));
+			} else {
+				index(key, null);
+			}
+			position += RECORD_HEADER + length;
+		}
+		segment.writePosition = position;
+	}
+
+	/**
+	 * @return the crc32 of the body of the record, as an int like it is written
+	 */
+	private int checksum(MappedByteBuffer buffer, int position, int length) {
+		ByteBuffer body = buffer.duplicate();
+		body.position(position + RECORD_HEADER);
+		body.limit(position + RECORD_HEADER + length);
+		crc.reset();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	private static String readKey(MappedByteBuffer buffer, int position, int keyLength) {
+		byte[] key = new byte[keyLength];
+		ByteBuffer body = buffer.duplicate();
+		body.position(position);
+		body.get(key);
+		return new String(key, UTF8);
+	}
+
+	private void index(String key, Location location) {
+		Location old = location == null ? index.remove(key) : index.put(key, location);
+		if(old != null) {
+			old.segment.live--;
+		}
+		if(location != null) {
+			location.segment.live++;
+		}
+	}
+
+	private MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void checkIsOpen() throws MqttPersistenceException {
+		if(!opened) {
+			throw new MqttPersistenceException();
+		}
+	}
+
+	@Override
+	public void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+		long seq;
+		synchronized (this) {
+			checkIsOpen();
+			byte[] keyBytes = key.getBytes(UTF8);
+			int headerLength = persistable.getHeaderLength();
+			int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+			int length = BODY_HEADER + keyBytes.length + 4 + headerLength + payloadLength;
+			Segment segment = reserve(length);
+			int position = segment.writePosition;
+			ByteBuffer body = segment.buffer.duplicate();
+			body.position(position + RECORD_HEADER);
+			body.put(TYPE_PUT);
+			body.putShort((short) keyBytes.length);
+			body.put(keyBytes);
+			body.putInt(headerLength);
+			body.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+			if(payloadLength > 0) {
+				body.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+			}
+			seq = commit(segment, position, length, true);
+			index(key, new Location(segment, position, length));
+		}
+		awaitSync(seq);
+	}
+
+	/**
+	 * write the remove record without waiting for the disk, paho calls it on its receiver thread for every ack
+	 */
+	@Override
+	public synchronized void remove(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		if(!index.containsKey(key)) {
+			return;
+		}
+		byte[] keyBytes = key.getBytes(UTF8);
+		int length = BODY_HEADER + keyBytes.length;
+		Segment segment = reserve(length);
+		int position = segment.writePosition;
+		ByteBuffer body = segment.buffer.duplicate();
+		body.position(position + RECORD_HEADER);
+		body.put(TYPE_REMOVE);
+		body.putShort((short) keyBytes.length);
+		body.put(keyBytes);
+		commit(segment, position, length, false);
+		index(key, null);
+		releaseSegments();
+	}
+
+	/**
+	 * @return the segment with room for a record of the body length, a new one if the active segment is full
+	 */
+	private Segment reserve(int length) throws MqttPersistenceException {
+		// keep room for the end marker behind the record
+		int required = RECORD_HEADER + length + RECORD_HEADER;
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		if(segment != null && segment.buffer.capacity() - segment.writePosition >= required) {
+			return segment;
+		}
+		long id = nextSegmentId++;
+		File file = new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+		try {
+			segment = new Segment(file, map(file, Math.max(segmentSize, required)));
+		} catch (IOException e) {
+			throw new MqttPersistenceException(e);
+		}
+		segments.add(segment);
+		releaseSegments();
+		if(segments.size() > COMPACT_SEGMENTS + 1) {
+			requestCompaction();
+		}
+		return segment;
+	}
+
+	/**
+	 * make the record visible and sync it according to the policy
+	 * @param sync false if the record may reach the disk later, with the next put or after the sync interval
+	 * @return the write sequence the group commit has to reach, 0 if there is nothing to wait for
+	 */
+	private long commit(Segment segment, int position, int length, boolean sync) {
+		MappedByteBuffer buffer = segment.buffer;
+		int end = position + RECORD_HEADER + length;
+		// the end marker may be left over from a torn record the recovery stopped at
+		buffer.putInt(end, 0);
+		buffer.putInt(position + 4, checksum(buffer, position, length));
+		// the length is written last, a record is only visible once complete
+		buffer.putInt(position, length);
+		segment.writePosition = end;
+		segment.dirty = true;
+		switch (syncPolicy) {
+		case ALWAYS:
+			if(sync) {
+				forceDirty();
+			}
+			return 0;
+		case GROUP:
+			synchronized (flushLock) {
+				if(!sync) {
+					if(!unforcedRemoves) {
+						unforcedRemoves = true;
+						flushLock.notifyAll();
+					}
+					return 0;
+				}
+				writtenSeq++;
+				flushLock.notifyAll();
+				return writtenSeq;
+			}
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * wait until the group commit forced the write, must not be called holding the persistence lock
+	 */
+	private void awaitSync(long seq) throws MqttPersistenceException {
+		if(seq == 0) {
+			return;
+		}
+		synchronized (flushLock) {
+			while(flushedSeq < seq && opened) {
+				try {
+					flushLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MqttPersistenceException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * delete the oldest segments once none of their records is live,
+	 * only the oldest may go as its remove records may still hide puts of an older segment
+	 */
+	private void releaseSegments() {
+		while(segments.size() > 1 && segments.getFirst().live == 0) {
+			deleteSegment(segments.removeFirst());
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		// the mapping is released when the buffer is collected, deleting the file is fine before that
+		if(!segment.file.delete()) {
+			logger.debug("can not delete persistence segment " + segment.file);
+		}
+	}
+
+	private void requestCompaction() {
+		compactRequested = true;
+		if(backgroundThread == null) {
+			startBackgroundThread();
+		}
+		if(syncPolicy == SyncPolicy.GROUP) {
+			synchronized (flushLock) {
+				flushLock.notifyAll();
+			}
+		} else {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * copy the live records of the oldest segment to the active one and delete it
+	 */
+	private synchronized void compact() throws MqttPersistenceException {
+		while(opened && segments.size() > COMPACT_SEGMENTS + 1) {
+			Segment oldest = segments.getFirst();
+			List<String> keys = new ArrayList<String>();
+			for(Map.Entry<String, Location> entry : index.entrySet()) {
+				if(entry.getValue().segment == oldest) {
+					keys.add(entry.getKey());
+				}
+			}
+			for(String key : keys) {
+				Location location = index.get(key);
+				Segment segment = reserve(location.length);
+				int position = segment.writePosition;
+				ByteBuffer source = oldest.buffer.duplicate();
+				source.position(location.position + RECORD_HEADER);
+				source.limit(location.position + RECORD_HEADER + location.length);
+				ByteBuffer target = segment.buffer.duplicate();
+				target.position(position + RECORD_HEADER);
+				target.put(source);
+				commit(segment, position, location.length, false);
+				index(key, new Location(segment, position, location.length));
+			}
+			// the copies have to be on disk before the segment holding the originals goes
+			forceDirty();
+			if(oldest.live > 0) {
+				return;
+			}
+			releaseSegments();
+		}
+	}
+
+	private void startBackgroundThread() {
+		backgroundThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runBackground();
+			}
+		}, "mqtt-persistence-" + dir.getName());
+		backgroundThread.setDaemon(true);
+		backgroundThread.start();
+	}
+
+	/**
+	 * group commit and compaction. The next force starts as soon as the previous one returned,
+	 * the puts written while a force ran are forced together by the next one.
+	 */
+	private void runBackground() {
+		while(opened) {
+			try {
+				if(syncPolicy == SyncPolicy.GROUP) {
+					long target;
+					synchronized (flushLock) {
+						while(opened && flushedSeq == writtenSeq && !compactRequested) {
+							if(!unforcedRemoves) {
+								flushLock.wait();
+							} else if(syncIntervalMillis > 0) {
+								// the removes go along with the next put, forced on their own only if none comes
+								flushLock.wait(syncIntervalMillis);
+								break;
+							} else {
+								break;
+							}
+						}
+						target = writtenSeq;
+						unforcedRemoves = false;
+					}
+					List<MappedByteBuffer> dirty;
+					synchronized (this) {
+						dirty = takeDirty();
+					}
+					// forced without the persistence lock, the puts of the next group are written meanwhile
+					for(MappedByteBuffer buffer : dirty) {
+						buffer.force();
+					}
+					synchronized (flushLock) {
+						flushedSeq = Math.max(flushedSeq, target);
+						flushLock.notifyAll();
+					}
+				} else {
+					synchronized (this) {
+						while(opened && !compactRequested) {
+							wait();
+						}
+					}
+				}
+				if(takeCompactRequest()) {
+					compact();
+				}
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				logger.error(CommonUtils.getExceptionInfo(e));
+			}
+		}
+	}
+
+	private synchronized boolean takeCompactRequest() {
+		boolean requested = compactRequested;
+		compactRequested = false;
+		return requested;
+	}
+
+	private void forceDirty() {
+		for(MappedByteBuffer buffer : takeDirty()) {
+			buffer.force();
+		}
+	}
+
+	/**
+	 * @return the buffers of the segments written since the last force, marked clean
+	 */
+	private List<MappedByteBuffer> takeDirty() {
+		List<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>(2);
+		for(Segment segment : segments) {
+			if(segment.dirty) {
+				segment.dirty = false;
+				dirty.add(segment.buffer);
+			}
+		}
+		return dirty;
+	}
+
+	@Override
+	public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		Location location = index.get(key);
+		if(location == null) {
+			return null;
+		}
+		ByteBuffer body = location.segment.buffer.duplicate();
+		body.position(location.position + RECORD_HEADER + 1);
+		int keyLength = body.getShort() & 0xffff;
+		body.position(body.position() + keyLength);
+		byte[] header = new byte[body.getInt()];
+		body.get(header);
+		byte[] payload = new byte[location.length - BODY_HEADER - keyLength - 4 - header.length];
+		body.get(payload);
+		return new PersistedData(header, payload);
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+		checkIsOpen();
+		return index.containsKey(key);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public synchronized Enumeration keys() throws MqttPersistenceException {
+		checkIsOpen();
+		return Collections.enumeration(new ArrayList<String>(index.keySet()));
+	}
+
+	@Override
+	public synchronized void clear() throws MqttPersistenceException {
+		checkIsOpen();
+		index.clear();
+		Iterator<Segment> iterator = segments.iterator();
+		while(iterator.hasNext()) {
+			deleteSegment(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	@Override
+	public void close() throws MqttPersistenceException {
+		Thread thread;
+		synchronized (this) {
+			if(!opened) {
+				return;
+			}
+			forceDirty();
+			if(syncPolicy == SyncPolicy.OS) {
+				for(Segment segment : segments) {
+					segment.buffer.force();
+				}
+			}
+			opened = false;
+			segments.clear();
+			index.clear();
+			releaseLock();
+			thread = backgroundThread;
+			backgroundThread = null;
+			notifyAll();
+		}
+		synchronized (flushLock) {
+			flushedSeq = writtenSeq;
+			flushLock.notifyAll();
+		}
+		if(thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void releaseLock() {
+		try {
+			if(lock != null) {
+				lock.release();
+			}
+			if(lockFile != null) {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			logger.debug(CommonUtils.getExceptionInfo(e));
+		}
+		lock = null;
+		lockFile = null;
+	}
+
+	/**
+	 * @return the number of segment files in use
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+}
@@ -0,0 +1,46 @@
+package com.yeild.mqtt.persist;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+
+/**
+ * a persisted mqtt packet read back from the log
+ */
+class PersistedData implements MqttPersistable {
+	private final byte[] header;
+	private final byte[] payload;
+
+	PersistedData(byte[] header, byte[] payload) {
+		this.header = header;
+		this.payload = payload;
+	}
+
+	@Override
+	public byte[] getHeaderBytes() {
+		return header;
+	}
+
+	@Override
+	public int getHeaderLength() {
+		return header.length;
+	}
+
+	@Override
+	public int getHeaderOffset() {
+		return 0;
+	}
+
+	@Override
+	public byte[] getPayloadBytes() {
+		return payload;
+	}
+
+	@Override
+	public int getPayloadLength() {
+		return payload == null ? 0 : payload.length;
+	}
+
+	@Override
+	public int getPayloadOffset() {
+		return 0;
+	}
+}
@@ -0,0 +1,20 @@
+package com.yeild.mqtt.persist;
+
+/**
+ * when {@link MappedLogPersistence} forces its puts to disk, the removes are forced along with the next put
+ */
+public enum SyncPolicy {
+	/**
+	 * force after every put, a put returns once it is on disk
+	 */
+	ALWAYS,
+	/**
+	 * a background thread forces again as soon as its last force returned, the puts written meanwhile are
+	 * forced together. A put returns once it is on disk
+	 */
+	GROUP,
+	/**
+	 * never force, the operating system writes the mapped pages back when it likes
+	 */
+	OS
+}
@@ -0,0 +1,185 @@
+package com.yeild.mqtt.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.envelope.EnvelopeMessage;
+import com.yeild.mqtt.utils.TopicTrie;
+
+/**
+ * {@link PushMessageQueue} keeping only the last value of the conflated topics: a message pushed while an older
+ * one of the same topic is still queued is copied into the queued one, which keeps its position.
+ * A topic is conflated if it matches one of the filters, or if the message is retained and retained messages
+ * are conflated. The replaced message gets no pushMessageResult, the queued one reports for both and
+ * completes the future of the replaced one.
+ * <p>
+ * Wrap the memory queue with it, below a {@link SpillingPushMessageQueue}: spilled messages are not conflated.
+ * Envelopes are never conflated.
+ */
+public class ConflatingPushMessageQueue implements PushMessageQueue {
+	private final PushMessageQueue queue;
+	private final TopicTrie<Boolean> filters = new TopicTrie<Boolean>();
+	private final boolean conflateRetained;
+	/**
+	 * the queued message of every conflated topic, modified under the lock, read without it by the taking thread
+	 */
+	private final ConcurrentHashMap<String, PushMqttMessage> pending = new ConcurrentHashMap<String, PushMqttMessage>();
+	private final Object lock = new Object();
+	private final AtomicLong conflated = new AtomicLong();
+	/**
+	 * only the taking thread drains
+	 */
+	private final List<PushMqttMessage> drained = new ArrayList<PushMqttMessage>();
+	private final ThreadLocal<List<Boolean>> matched = new ThreadLocal<List<Boolean>>() {
+		@Override
+		protected List<Boolean> initialValue() {
+			return new ArrayList<Boolean>(2);
+		}
+	};
+
+	/**
+	 * @param queue
+	 * @param topicFilters comma separated mqtt topic filters, e.g. <code>/status/#,+/online</code>
+	 * @param conflateRetained conflate every retained message too
+	 * @throws IllegalArgumentException if a filter is malformed
+	 */
+	public ConflatingPushMessageQueue(PushMessageQueue queue, String topicFilters, boolean conflateRetained) {
+		this.queue = queue;
+		this.conflateRetained = conflateRetained;
+		if(topicFilters != null) {
+			for(String filter : topicFilters.split(",")) {
+				filter = filter.trim();
+				if(filter.length() > 0) {
+					filters.add(filter, Boolean.TRUE);
+				}
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return conflateRetained || !filters.isEmpty();
+	}
+
+	/**
+	 * @return the messages merged into a queued one instead of being queued
+	 */
+	public long getConflatedCount() {
+		return conflated.get();
+	}
+
+	protected boolean conflates(PushMqttMessage message) {
+		if(message.getTopic() == null || message instanceof EnvelopeMessage) {
+			return false;
+		}
+		if(conflateRetained && message.isRetained()) {
+			return true;
+		}
+		if(filters.isEmpty()) {
+			return false;
+		}
+		List<Boolean> list = matched.get();
+		list.clear();
+		filters.match(message.getTopic(), list);
+		return !list.isEmpty();
+	}
+
+	/**
+	 * @return true if the message was merged into the queued one of its topic
+	 */
+	private boolean merge(PushMqttMessage message) {
+		PushMqttMessage queued = pending.get(message.getTopic());
+		if(queued == null) {
+			return false;
+		}
+		conflated.incrementAndGet();
+		queued.completeWith(message);
+		if(message.getRetry_count() > 0) {
+			// a failed message put back, the queued one was pushed after it and is newer
+			return true;
+		}
+		// the queued message keeps its enqueue time, the queue latency stays that of the position
+		queued.setPayload(message.getPayload());
+		queued.setQos(message.getQos());
+		queued.setRetained(message.isRetained());
+		return true;
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message) {
+		if(!conflates(message)) {
+			return queue.offer(message);
+		}
+		synchronized (lock) {
+			if(merge(message)) {
+				return true;
+			}
+			pending.put(message.getTopic(), message);
+			if(queue.offer(message)) {
+				return true;
+			}
+			pending.remove(message.getTopic(), message);
+			return false;
+		}
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		if(offer(message)) {
+			return true;
+		}
+		// the queue is full, wait outside the lock, a conflated message is queued without conflating it
+		return queue.offer(message, timeout, unit);
+	}
+
+	/**
+	 * the message leaves the queue, later messages of its topic are queued again
+	 */
+	private PushMqttMessage taken(PushMqttMessage message) {
+		if(message != null && message.getTopic() != null && pending.get(message.getTopic()) == message) {
+			synchronized (lock) {
+				pending.remove(message.getTopic(), message);
+			}
+		}
+		return message;
+	}
+
+	@Override
+	public PushMqttMessage take() throws InterruptedException {
+		return taken(queue.take());
+	}
+
+	@Override
+	public PushMqttMessage poll() {
+		return taken(queue.poll());
+	}
+
+	@Override
+	public PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return taken(queue.poll(timeout, unit));
+	}
+
+	@Override
+	public int drainTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		int count = queue.drainTo(drained, maxElements);
+		for(PushMqttMessage message : drained) {
+			c.add(taken(message));
+		}
+		drained.clear();
+		return count;
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public int capacity() {
+		return queue.capacity();
+	}
+}
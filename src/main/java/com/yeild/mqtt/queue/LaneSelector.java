@@ -0,0 +1,113 @@
+package com.yeild.mqtt.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * chooses the lane of a push message: the explicit priority of the message if set,
+ * else the first matching rule, else the lowest lane.
+ * <pre>
+ * rules: topic:&lt;topic prefix&gt;=&lt;lane&gt;,qos:&lt;qos&gt;=&lt;lane&gt;, e.g. topic:/rpc/=0,qos:2=1
+ * </pre>
+ * The rules are set up before the selector is used, they are not changed while messages are pushed.
+ */
+public class LaneSelector {
+	private final int lanes;
+	private final List<String> topicPrefixes = new ArrayList<String>();
+	private final List<Integer> topicLanes = new ArrayList<Integer>();
+	private final int[] qosLanes = {-1, -1, -1};
+
+	/**
+	 * @param lanes the number of lanes, lane 0 has the highest priority
+	 */
+	public LaneSelector(int lanes) {
+		this.lanes = lanes;
+	}
+
+	/**
+	 * parse the comma separated rules
+	 * @param rules
+	 * @throws IllegalArgumentException if a rule is malformed
+	 */
+	public LaneSelector addRules(String rules) {
+		if(rules == null) {
+			return this;
+		}
+		for(String rule : rules.split(",")) {
+			rule = rule.trim();
+			if(rule.length() < 1) {
+				continue;
+			}
+			int typeEnd = rule.indexOf(':');
+			int valueEnd = rule.lastIndexOf('=');
+			if(typeEnd < 1 || valueEnd <= typeEnd) {
+				throw new IllegalArgumentException("invalid lane rule: " + rule);
+			}
+			String type = rule.substring(0, typeEnd);
+			String value = rule.substring(typeEnd + 1, valueEnd);
+			int lane = Integer.parseInt(rule.substring(valueEnd + 1).trim());
+			if("topic".equalsIgnoreCase(type)) {
+				addTopicRule(value, lane);
+			} else if("qos".equalsIgnoreCase(type)) {
+				addQosRule(Integer.parseInt(value.trim()), lane);
+			} else {
+				throw new IllegalArgumentException("invalid lane rule: " + rule);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * the messages whose topic starts with the prefix go to the lane, rules added first win
+	 */
+	public LaneSelector addTopicRule(String topicPrefix, int lane) {
+		topicPrefixes.add(topicPrefix);
+		topicLanes.add(checkLane(lane));
+		return this;
+	}
+
+	public LaneSelector addQosRule(int qos, int lane) {
+		if(qos < 0 || qos > 2) {
+			throw new IllegalArgumentException("invalid qos: " + qos);
+		}
+		qosLanes[qos] = checkLane(lane);
+		return this;
+	}
+
+	private int checkLane(int lane) {
+		if(lane < 0 || lane >= lanes) {
+			throw new IllegalArgumentException("lane out of range: " + lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * @param message
+	 * @return the lane of the message
+	 */
+	public int select(PushMqttMessage message) {
+		int priority = message.getPriority();
+		if(priority >= 0) {
+			return Math.min(priority, lanes - 1);
+		}
+		String topic = message.getTopic();
+		if(topic != null) {
+			for(int i=0; i<topicPrefixes.size(); i++) {
+				if(topic.startsWith(topicPrefixes.get(i))) {
+					return topicLanes.get(i);
+				}
+			}
+		}
+		int qos = message.getQos();
+		if(qos >= 0 && qos < qosLanes.length && qosLanes[qos] >= 0) {
+			return qosLanes[qos];
+		}
+		return lanes - 1;
+	}
+
+	public int getLaneCount() {
+		return lanes;
+	}
+}
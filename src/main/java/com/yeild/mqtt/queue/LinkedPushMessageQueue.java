@@ -0,0 +1,61 @@
+package com.yeild.mqtt.queue;
+
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * {@link PushMessageQueue} backed by a {@link LinkedBlockingQueue}
+ */
+public class LinkedPushMessageQueue implements PushMessageQueue {
+	private final LinkedBlockingQueue<PushMqttMessage> queue;
+
+	/**
+	 * @param capacity max queued messages, less than 1 means unbounded
+	 */
+	public LinkedPushMessageQueue(int capacity) {
+		queue = capacity > 0 ? new LinkedBlockingQueue<PushMqttMessage>(capacity) : new LinkedBlockingQueue<PushMqttMessage>();
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message) {
+		return queue.offer(message);
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.offer(message, timeout, unit);
+	}
+
+	@Override
+	public PushMqttMessage take() throws InterruptedException {
+		return queue.take();
+	}
+
+	@Override
+	public PushMqttMessage poll() {
+		return queue.poll();
+	}
+
+	@Override
+	public PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return queue.poll(timeout, unit);
+	}
+
+	@Override
+	public int drainTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		return queue.drainTo(c, maxElements);
+	}
+
+	@Override
+	public int size() {
+		return queue.size();
+	}
+
+	@Override
+	public int capacity() {
+		return queue.size() + queue.remainingCapacity();
+	}
+}
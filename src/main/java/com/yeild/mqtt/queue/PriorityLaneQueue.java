@@ -0,0 +1,147 @@
+package com.yeild.mqtt.queue;
+
+import java.util.Collection;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * {@link PushMessageQueue} made of one queue per priority lane, lane 0 first.
+ * The lanes are drained weighted round robin: a lane hands out up to its weight of messages
+ * before the next non-empty lane gets its turn, so an urgent message waits for at most a few
+ * messages of the other lanes and the low lanes never starve.
+ * Like the lane queues, only one thread may call the take, poll and drainTo methods.
+ */
+public class PriorityLaneQueue implements PushMessageQueue {
+	private final PushMessageQueue[] lanes;
+	private final int[] weights;
+	private final LaneSelector selector;
+	/**
+	 * one permit per queued message, lets the consumer wait on all the lanes at once
+	 */
+	private final Semaphore available = new Semaphore(0);
+	private int currentLane = 0;
+	private int credit;
+
+	/**
+	 * @param lanes the queue of every lane, lane 0 has the highest priority
+	 * @param weights the messages a lane hands out per turn
+	 * @param selector
+	 */
+	public PriorityLaneQueue(PushMessageQueue[] lanes, int[] weights, LaneSelector selector) {
+		if(lanes.length < 1 || lanes.length != weights.length || lanes.length != selector.getLaneCount()) {
+			throw new IllegalArgumentException("lanes, weights and selector do not match");
+		}
+		this.lanes = lanes;
+		this.weights = new int[weights.length];
+		for(int i=0; i<weights.length; i++) {
+			this.weights[i] = Math.max(1, weights[i]);
+		}
+		this.selector = selector;
+		this.credit = this.weights[0];
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message) {
+		if(!lanes[selector.select(message)].offer(message)) {
+			return false;
+		}
+		available.release();
+		return true;
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		if(!lanes[selector.select(message)].offer(message, timeout, unit)) {
+			return false;
+		}
+		available.release();
+		return true;
+	}
+
+	@Override
+	public PushMqttMessage take() throws InterruptedException {
+		available.acquire();
+		return next();
+	}
+
+	@Override
+	public PushMqttMessage poll() {
+		return available.tryAcquire() ? next() : null;
+	}
+
+	@Override
+	public PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return available.tryAcquire(timeout, unit) ? next() : null;
+	}
+
+	/**
+	 * take the message of the lane whose turn it is.
+	 * A permit is only released once its message is in the lane, so one round over the lanes finds it
+	 */
+	private PushMqttMessage next() {
+		while(true) {
+			for(int i=0; i<=lanes.length; i++) {
+				if(credit <= 0) {
+					currentLane = (currentLane + 1) % lanes.length;
+					credit = weights[currentLane];
+				}
+				PushMqttMessage message = lanes[currentLane].poll();
+				if(message != null) {
+					credit--;
+					return message;
+				}
+				credit = 0;
+			}
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		int count = 0;
+		while(count < maxElements) {
+			PushMqttMessage message = poll();
+			if(message == null) {
+				break;
+			}
+			c.add(message);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for(PushMessageQueue lane : lanes) {
+			size += lane.size();
+		}
+		return size;
+	}
+
+	@Override
+	public int capacity() {
+		long capacity = 0;
+		for(PushMessageQueue lane : lanes) {
+			capacity += lane.capacity();
+		}
+		return (int) Math.min(capacity, Integer.MAX_VALUE);
+	}
+
+	public int getLaneCount() {
+		return lanes.length;
+	}
+
+	/**
+	 * @param lane
+	 * @return the messages queued in the lane
+	 */
+	public int getLaneSize(int lane) {
+		return lanes[lane].size();
+	}
+
+	public LaneSelector getSelector() {
+		return selector;
+	}
+}
@@ -0,0 +1,63 @@
+package com.yeild.mqtt.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * the queue between the threads pushing messages and the connector thread publishing them.
+ * Any number of threads may offer, only the connector thread takes.
+ */
+public interface PushMessageQueue {
+	/**
+	 * @param message
+	 * @return false if the queue is full
+	 */
+	boolean offer(PushMqttMessage message);
+
+	/**
+	 * wait for space if the queue is full
+	 * @param message
+	 * @param timeout
+	 * @param unit
+	 * @return false if the queue was still full after the timeout
+	 * @throws InterruptedException
+	 */
+	boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * wait until a message is available
+	 * @return
+	 * @throws InterruptedException
+	 */
+	PushMqttMessage take() throws InterruptedException;
+
+	/**
+	 * @return the head message, null if the queue is empty
+	 */
+	PushMqttMessage poll();
+
+	/**
+	 * @param timeout
+	 * @param unit
+	 * @return the head message, null if no message arrived before the timeout
+	 * @throws InterruptedException
+	 */
+	PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+	/**
+	 * move up to maxElements queued messages to the collection without waiting
+	 * @param c
+	 * @param maxElements
+	 * @return the number of messages moved
+	 */
+	int drainTo(Collection<? super PushMqttMessage> c, int maxElements);
+
+	int size();
+
+	/**
+	 * @return the max queued messages, {@link Integer#MAX_VALUE} if unbounded
+	 */
+	int capacity();
+}
@@ -0,0 +1,208 @@
+package com.yeild.mqtt.queue;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * bounded multi-producer/single-consumer {@link PushMessageQueue} on a preallocated ring.
+ * Producers claim a slot with one CAS on the tail, every slot carries a sequence telling whether it is free
+ * or filled for the current lap, so offer and poll take no lock and allocate nothing.
+ * Only one thread may call the take, poll and drainTo methods.
+ */
+public class RingBufferPushMessageQueue implements PushMessageQueue {
+	private static final int SPIN_TRIES = 100;
+	private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	private static final long CONSUMER_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final PushMqttMessage[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+	/**
+	 * the next position the producers claim
+	 */
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * the next position the consumer reads
+	 */
+	private volatile long head = 0;
+	private volatile Thread waitingConsumer;
+
+	/**
+	 * @param capacity max queued messages, rounded up to a power of two
+	 * @param waitStrategy
+	 */
+	public RingBufferPushMessageQueue(int capacity, WaitStrategy waitStrategy) {
+		if(capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		}
+		int size = 1;
+		while(size < capacity) {
+			size <<= 1;
+		}
+		buffer = new PushMqttMessage[size];
+		sequences = new AtomicLongArray(size);
+		for(int i=0; i<size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message) {
+		if(message == null) {
+			throw new NullPointerException();
+		}
+		while(true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long available = sequences.get(index) - position;
+			if(available == 0) {
+				if(tail.compareAndSet(position, position + 1)) {
+					buffer[index] = message;
+					sequences.set(index, position + 1);
+					Thread consumer = waitingConsumer;
+					if(consumer != null) {
+						LockSupport.unpark(consumer);
+					}
+					return true;
+				}
+			} else if(available < 0) {
+				// the slot still holds the message of the previous lap
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		if(offer(message)) {
+			return true;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if(offer(message)) {
+				return true;
+			}
+			if(deadline - System.nanoTime() <= 0) {
+				return false;
+			}
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+				break;
+			}
+		}
+	}
+
+	@Override
+	public PushMqttMessage poll() {
+		long position = head;
+		int index = (int) position & mask;
+		if(sequences.get(index) != position + 1) {
+			return null;
+		}
+		PushMqttMessage message = buffer[index];
+		buffer[index] = null;
+		// free the slot for the next lap
+		sequences.lazySet(index, position + mask + 1);
+		head = position + 1;
+		return message;
+	}
+
+	@Override
+	public PushMqttMessage take() throws InterruptedException {
+		PushMqttMessage message = poll();
+		return message != null ? message : awaitMessage(false, 0);
+	}
+
+	@Override
+	public PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		PushMqttMessage message = poll();
+		return message != null ? message : awaitMessage(true, System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	private PushMqttMessage awaitMessage(boolean timed, long deadline) throws InterruptedException {
+		int idle = 0;
+		while(true) {
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			PushMqttMessage message = poll();
+			if(message != null) {
+				return message;
+			}
+			long remaining = CONSUMER_MAX_PARK_NANOS;
+			if(timed) {
+				remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					return null;
+				}
+			}
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			default:
+				if(idle++ < SPIN_TRIES) {
+					break;
+				}
+				waitingConsumer = Thread.currentThread();
+				// check again after publishing the waiting thread, a producer may have missed it
+				message = poll();
+				if(message == null) {
+					LockSupport.parkNanos(this, Math.min(remaining, CONSUMER_MAX_PARK_NANOS));
+				}
+				waitingConsumer = null;
+				if(message != null) {
+					return message;
+				}
+				break;
+			}
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		int count = 0;
+		while(count < maxElements) {
+			PushMqttMessage message = poll();
+			if(message == null) {
+				break;
+			}
+			c.add(message);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		long size = tail.get() - head;
+		if(size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, buffer.length);
+	}
+
+	@Override
+	public int capacity() {
+		return buffer.length;
+	}
+}
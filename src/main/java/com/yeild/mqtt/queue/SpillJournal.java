@@ -0,0 +1,418 @@
+package com.yeild.mqtt.queue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.mqtt.MqttFuture;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.envelope.EnvelopeMessage;
+
+/**
+ * append-only FIFO of push messages on memory mapped segment files.
+ * Appending is a sequential write into the mapped segment, reading marks the record consumed in place,
+ * so the messages still queued after a restart are replayed on the next open.
+ * A segment file is deleted once all its messages are read.
+ * <pre>
+ * record: int length | byte qos+retained+envelope | int retry count | int priority | long sequence
+ *   | long enqueue time millis | short topic length | topic | [int entry count | entry*] | payload
+ * entry: long enqueue time millis | int priority | int payload length | payload
+ * length &gt; 0 queued, &lt; 0 consumed, 0 end of the written data, {@link Integer#MIN_VALUE} end of the segment
+ * </pre>
+ * An {@link EnvelopeMessage} keeps its messages, so their push results are still reported one by one.
+ * The futures of the messages can not be written, they wait in memory by the sequence of their record
+ * until it is read. The futures of the messages recovered from a previous run are gone with it.
+ */
+public class SpillJournal {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SEGMENT_PREFIX = "spill-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int SEALED = Integer.MIN_VALUE;
+	private static final int RECORD_HEADER = 4;
+	private static final int BODY_HEADER = 1 + 4 + 4 + 8 + 8 + 2;
+	private static final int ENTRY_HEADER = 8 + 4 + 4;
+	private static final int FLAG_RETAINED = 4;
+	private static final int FLAG_ENVELOPE = 8;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	private long nextSegmentId = 0;
+	private int pending = 0;
+	private long nextSequence = 0;
+	/**
+	 * the futures of the queued records by their sequence, only for the records having some
+	 */
+	private final Map<Long, Futures> futures = new HashMap<Long, Futures>();
+
+	private static final class Segment {
+		final File file;
+		final MappedByteBuffer buffer;
+		int readPosition = 0;
+		int writePosition = 0;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * the future of a message and, for an envelope, of its messages in order
+	 */
+	private static final class Futures {
+		final MqttFuture<PushMqttMessage> future;
+		final List<MqttFuture<PushMqttMessage>> entries;
+
+		Futures(MqttFuture<PushMqttMessage> future, List<MqttFuture<PushMqttMessage>> entries) {
+			this.future = future;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * open the journal, the messages left by a previous run are queued again
+	 * @param dir the directory of the segment files
+	 * @param segmentSize the size of one segment file in bytes
+	 * @param maxSegments max segment files, 0 means unlimited
+	 * @throws IOException
+	 */
+	public SpillJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		if(!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create spill dir " + dir);
+		}
+		recover();
+	}
+
+	private void recover() throws IOException {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if(files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File o1, File o2) {
+				long id1 = segmentId(o1);
+				long id2 = segmentId(o2);
+				return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+			}
+		});
+		for(File file : files) {
+			nextSegmentId = Math.max(nextSegmentId, segmentId(file) + 1);
+			Segment segment = new Segment(file, map(file, (int) file.length()));
+			int queued = scan(segment);
+			if(queued > 0) {
+				pending += queued;
+				segments.add(segment);
+			} else if(!file.delete()) {
+				logger.debug("can not delete spill segment " + file);
+			}
+		}
+		if(pending > 0) {
+			logger.info(pending + " spilled messages recovered from " + dir);
+		}
+	}
+
+	private static long segmentId(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * find the first queued record and the end of the written data
+	 * @return the number of queued records
+	 */
+	private int scan(Segment segment) {
+		MappedByteBuffer buffer = segment.buffer;
+		int queued = 0;
+		int position = 0;
+		segment.readPosition = -1;
+		while(position + RECORD_HEADER <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if(length == 0 || length == SEALED || position + RECORD_HEADER + Math.abs(length) > buffer.capacity()) {
+				break;
+			}
+			if(length > 0) {
+				queued++;
+				nextSequence = Math.max(nextSequence, buffer.getLong(position + RECORD_HEADER + 9) + 1);
+				if(segment.readPosition < 0) {
+					segment.readPosition = position;
+				}
+			}
+			position += RECORD_HEADER + Math.abs(length);
+		}
+		if(segment.readPosition < 0) {
+			segment.readPosition = position;
+		}
+		// recovered segments are only read, new messages go to a new segment
+		segment.writePosition = buffer.capacity();
+		return queued;
+	}
+
+	private MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param message
+	 * @return false if the journal reached its max segments
+	 * @throws IOException
+	 */
+	public synchronized boolean append(PushMqttMessage message) throws IOException {
+		byte[] topic = message.getTopic().getBytes(UTF8);
+		byte[] payload = message.getPayload();
+		List<PushMqttMessage> entries = message instanceof EnvelopeMessage ? ((EnvelopeMessage) message).getMessages() : null;
+		int bodyLength = BODY_HEADER + topic.length + payload.length;
+		if(entries != null) {
+			bodyLength += 4;
+			for(PushMqttMessage entry : entries) {
+				bodyLength += ENTRY_HEADER + entry.getPayload().length;
+			}
+		}
+		// keep room for the seal marker behind the record
+		int required = RECORD_HEADER + bodyLength + RECORD_HEADER;
+		Segment segment = segments.isEmpty() ? null : segments.getLast();
+		if(segment == null || segment.buffer.capacity() - segment.writePosition < required) {
+			if(maxSegments > 0 && segments.size() >= maxSegments) {
+				return false;
+			}
+			if(segment != null && segment.writePosition + RECORD_HEADER <= segment.buffer.capacity()) {
+				segment.buffer.putInt(segment.writePosition, SEALED);
+			}
+			File file = new File(dir, SEGMENT_PREFIX + (nextSegmentId++) + SEGMENT_SUFFIX);
+			segment = new Segment(file, map(file, Math.max(segmentSize, required)));
+			segments.add(segment);
+		}
+		long sequence = nextSequence++;
+		ByteBuffer body = segment.buffer.duplicate();
+		body.position(segment.writePosition + RECORD_HEADER);
+		body.put((byte) (message.getQos() | (message.isRetained() ? FLAG_RETAINED : 0) | (entries != null ? FLAG_ENVELOPE : 0)));
+		body.putInt(message.getRetry_count());
+		body.putInt(message.getPriority());
+		body.putLong(sequence);
+		body.putLong(toMillis(message.getEnqueueNanos()));
+		body.putShort((short) topic.length);
+		body.put(topic);
+		List<MqttFuture<PushMqttMessage>> entryFutures = null;
+		if(entries != null) {
+			body.putInt(entries.size());
+			for(int i=0; i<entries.size(); i++) {
+				PushMqttMessage entry = entries.get(i);
+				byte[] entryPayload = entry.getPayload();
+				body.putLong(toMillis(entry.getEnqueueNanos()));
+				body.putInt(entry.getPriority());
+				body.putInt(entryPayload.length);
+				body.put(entryPayload);
+				if(entry.getFuture() != null) {
+					if(entryFutures == null) {
+						entryFutures = new ArrayList<MqttFuture<PushMqttMessage>>(entries.size());
+					}
+					while(entryFutures.size() < i) {
+						entryFutures.add(null);
+					}
+					entryFutures.add(entry.getFuture());
+				}
+			}
+		}
+		body.put(payload);
+		MappedByteBuffer buffer = segment.buffer;
+		// the length is written last, a record is only visible once complete
+		buffer.putInt(segment.writePosition, bodyLength);
+		segment.writePosition = body.position();
+		pending++;
+		if(message.getFuture() != null || entryFutures != null) {
+			futures.put(sequence, new Futures(message.getFuture(), entryFutures));
+		}
+		return true;
+	}
+
+	/**
+	 * @param nanos a {@link System#nanoTime()} of this process
+	 * @return the wall clock time of it, 0 for 0, so the queue latency survives a restart
+	 */
+	private static long toMillis(long nanos) {
+		if(nanos == 0) {
+			return 0;
+		}
+		return System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanos);
+	}
+
+	private static long toNanos(long millis) {
+		if(millis == 0) {
+			return 0;
+		}
+		return System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - millis);
+	}
+
+	/**
+	 * @return the oldest queued message, null if the journal is empty
+	 */
+	public synchronized PushMqttMessage poll() {
+		while(pending > 0 && !segments.isEmpty()) {
+			Segment segment = segments.getFirst();
+			MappedByteBuffer buffer = segment.buffer;
+			int length = segment.readPosition + RECORD_HEADER <= buffer.capacity() ? buffer.getInt(segment.readPosition) : SEALED;
+			if(length == SEALED || (length == 0 && segment != segments.getLast())) {
+				deleteSegment(segments.removeFirst());
+				continue;
+			}
+			if(length == 0) {
+				break;
+			}
+			if(length < 0) {
+				segment.readPosition += RECORD_HEADER - length;
+				continue;
+			}
+			PushMqttMessage message = read(buffer, segment.readPosition + RECORD_HEADER, length);
+			buffer.putInt(segment.readPosition, -length);
+			segment.readPosition += RECORD_HEADER + length;
+			pending--;
+			if(pending == 0) {
+				// everything replayed, start over with a fresh segment next time
+				while(!segments.isEmpty()) {
+					deleteSegment(segments.removeFirst());
+				}
+				futures.clear();
+			}
+			return message;
+		}
+		return null;
+	}
+
+	private PushMqttMessage read(MappedByteBuffer buffer, int position, int length) {
+		ByteBuffer body = buffer.duplicate();
+		body.position(position);
+		body.limit(position + length);
+		int flags = body.get();
+		int retryCount = body.getInt();
+		int priority = body.getInt();
+		long sequence = body.getLong();
+		long enqueueMillis = body.getLong();
+		byte[] topicBytes = new byte[body.getShort() & 0xffff];
+		body.get(topicBytes);
+		String topic = new String(topicBytes, UTF8);
+		int qos = flags & 3;
+		Futures queuedFutures = futures.remove(sequence);
+		List<PushMqttMessage> entries = null;
+		if((flags & FLAG_ENVELOPE) != 0) {
+			int count = body.getInt();
+			entries = new ArrayList<PushMqttMessage>(count);
+			for(int i=0; i<count; i++) {
+				PushMqttMessage entry = new PushMqttMessage();
+				entry.setTopic(topic);
+				entry.setQos(qos);
+				entry.setEnqueueNanos(toNanos(body.getLong()));
+				entry.setPriority(body.getInt());
+				byte[] entryPayload = new byte[body.getInt()];
+				body.get(entryPayload);
+				entry.setPayload(entryPayload);
+				if(queuedFutures != null && queuedFutures.entries != null && i < queuedFutures.entries.size()) {
+					entry.setFuture(queuedFutures.entries.get(i));
+				}
+				entries.add(entry);
+			}
+		}
+		byte[] payload = new byte[body.remaining()];
+		body.get(payload);
+		PushMqttMessage message;
+		if(entries != null) {
+			message = EnvelopeMessage.restore(topic, qos, entries, payload);
+		} else {
+			message = new PushMqttMessage();
+			message.setTopic(topic);
+			message.setPayload(payload);
+			message.setQos(qos);
+		}
+		message.setRetained((flags & FLAG_RETAINED) != 0);
+		message.setRetry_count(retryCount);
+		message.setPriority(priority);
+		message.setEnqueueNanos(toNanos(enqueueMillis));
+		if(queuedFutures != null) {
+			message.setFuture(queuedFutures.future);
+		}
+		return message;
+	}
+
+	private void deleteSegment(Segment segment) {
+		// the mapping is released when the buffer is collected, deleting the file is fine before that
+		if(!segment.file.delete()) {
+			logger.debug("can not delete spill segment " + segment.file);
+		}
+	}
+
+	/**
+	 * fail the futures of the queued messages, e.g. when the connector stops. The messages stay queued
+	 * and are replayed without futures.
+	 * @param cause
+	 */
+	public synchronized void failFutures(Throwable cause) {
+		for(Futures queued : futures.values()) {
+			if(queued.future != null) {
+				queued.future.fail(cause);
+			}
+			if(queued.entries != null) {
+				for(MqttFuture<PushMqttMessage> entry : queued.entries) {
+					if(entry != null) {
+						entry.fail(cause);
+					}
+				}
+			}
+		}
+		futures.clear();
+	}
+
+	/**
+	 * @return the number of queued messages
+	 */
+	public synchronized int size() {
+		return pending;
+	}
+
+	public synchronized boolean isEmpty() {
+		return pending == 0;
+	}
+
+	/**
+	 * write the mapped segments to disk
+	 */
+	public synchronized void force() {
+		for(Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+}
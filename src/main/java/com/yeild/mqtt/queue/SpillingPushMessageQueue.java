@@ -0,0 +1,153 @@
+package com.yeild.mqtt.queue;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.PushMqttMessage;
+
+/**
+ * {@link PushMessageQueue} that appends the messages not fitting in the memory queue to a {@link SpillJournal}.
+ * Once spilling started, new messages go to the journal too until it is replayed, so the order is kept.
+ * Offering never waits for space, the only cost of a full memory queue is a sequential append.
+ */
+public class SpillingPushMessageQueue implements PushMessageQueue {
+	private static final long JOURNAL_CHECK_MILLIS = 100;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final PushMessageQueue memoryQueue;
+	private final SpillJournal journal;
+	private volatile boolean spilling;
+
+	public SpillingPushMessageQueue(PushMessageQueue memoryQueue, SpillJournal journal) {
+		this.memoryQueue = memoryQueue;
+		this.journal = journal;
+		this.spilling = !journal.isEmpty();
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message) {
+		if(spilling) {
+			synchronized (journal) {
+				if(spilling) {
+					return spill(message);
+				}
+			}
+		}
+		if(memoryQueue.offer(message)) {
+			return true;
+		}
+		synchronized (journal) {
+			spilling = true;
+			return spill(message);
+		}
+	}
+
+	private boolean spill(PushMqttMessage message) {
+		try {
+			return journal.append(message);
+		} catch (IOException e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			return false;
+		}
+	}
+
+	@Override
+	public boolean offer(PushMqttMessage message, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(message);
+	}
+
+	@Override
+	public PushMqttMessage poll() {
+		PushMqttMessage message = memoryQueue.poll();
+		if(message != null || !spilling) {
+			return message;
+		}
+		synchronized (journal) {
+			message = journal.poll();
+			if(message == null) {
+				spilling = false;
+			}
+			return message;
+		}
+	}
+
+	@Override
+	public PushMqttMessage take() throws InterruptedException {
+		while(true) {
+			PushMqttMessage message = poll();
+			if(message != null) {
+				return message;
+			}
+			// a producer may start spilling while this thread waits on the empty memory queue
+			message = memoryQueue.poll(JOURNAL_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			if(message != null) {
+				return message;
+			}
+		}
+	}
+
+	@Override
+	public PushMqttMessage poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(true) {
+			PushMqttMessage message = poll();
+			if(message != null) {
+				return message;
+			}
+			long remaining = deadline - System.nanoTime();
+			if(remaining <= 0) {
+				return null;
+			}
+			message = memoryQueue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(JOURNAL_CHECK_MILLIS)), TimeUnit.NANOSECONDS);
+			if(message != null) {
+				return message;
+			}
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		int count = memoryQueue.drainTo(c, maxElements);
+		while(count < maxElements) {
+			PushMqttMessage message = poll();
+			if(message == null) {
+				break;
+			}
+			c.add(message);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int size() {
+		return memoryQueue.size() + journal.size();
+	}
+
+	@Override
+	public int capacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * move up to maxElements messages of the memory queue to the collection, the spilled ones stay in the journal
+	 * @param c
+	 * @param maxElements
+	 * @return the number of messages moved
+	 */
+	public int drainMemoryTo(Collection<? super PushMqttMessage> c, int maxElements) {
+		return memoryQueue.drainTo(c, maxElements);
+	}
+
+	public int getSpilledSize() {
+		return journal.size();
+	}
+
+	public SpillJournal getJournal() {
+		return journal;
+	}
+}
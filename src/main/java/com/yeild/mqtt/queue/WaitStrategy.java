@@ -0,0 +1,19 @@
+package com.yeild.mqtt.queue;
+
+/**
+ * how {@link RingBufferPushMessageQueue} waits for a message or for free space
+ */
+public enum WaitStrategy {
+	/**
+	 * keep the thread spinning, lowest latency but burns a core while idle
+	 */
+	BUSY_SPIN,
+	/**
+	 * yield the cpu between checks
+	 */
+	YIELD,
+	/**
+	 * spin shortly, then park until a producer wakes the consumer up
+	 */
+	PARK
+}
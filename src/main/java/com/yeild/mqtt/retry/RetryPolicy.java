@@ -0,0 +1,57 @@
+package com.yeild.mqtt.retry;
+
+import java.util.Random;
+
+/**
+ * exponential backoff with jitter for the failed publishes.
+ * The n-th retry waits between half and all of initialDelay * 2^(n-1), capped at maxDelay,
+ * so messages failing together do not come back together.
+ */
+public class RetryPolicy {
+	private static final Random random = new Random();
+	private final int maxRetries;
+	private final long initialDelay;
+	private final long maxDelay;
+
+	/**
+	 * @param maxRetries max retries of one message, a negative value retries forever
+	 * @param initialDelay the delay of the first retry, measured in milliseconds
+	 * @param maxDelay the max delay of a retry, measured in milliseconds
+	 */
+	public RetryPolicy(int maxRetries, long initialDelay, long maxDelay) {
+		this.maxRetries = maxRetries;
+		this.initialDelay = Math.max(1, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+	}
+
+	/**
+	 * @param retryCount the number of the retry, starting at 1
+	 * @return false if the message has failed too often
+	 */
+	public boolean canRetry(int retryCount) {
+		return maxRetries < 0 || retryCount <= maxRetries;
+	}
+
+	/**
+	 * @param retryCount the number of the retry, starting at 1
+	 * @return the delay before the retry, measured in milliseconds
+	 */
+	public long getDelay(int retryCount) {
+		int shift = Math.min(Math.max(retryCount - 1, 0), 30);
+		long delay = initialDelay > (maxDelay >> shift) ? maxDelay : initialDelay << shift;
+		long half = delay / 2;
+		return half + (long) (random.nextDouble() * (delay - half + 1));
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getInitialDelay() {
+		return initialDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+}
@@ -0,0 +1,304 @@
+package com.yeild.mqtt.rpc;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.MqttConnector;
+import com.yeild.mqtt.MqttFuture;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.listener.MqttFutureListener;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+import com.yeild.mqtt.utils.MqttScheduler;
+
+/**
+ * request/response on the rpc topics of a connector.
+ * A call is published to the request topic of the target and completes its {@link MqttFuture} when the reply
+ * with the same correlation id arrives or fails it on timeout, waiting calls hold no thread.
+ * Requests to this client are served by the {@link RpcHandler} registered for the method.
+ * <pre>
+ * request:  $rpctopic/$target/$request.name/$method/$caller/$correlation
+ * response: $rpctopic/$target/$response.name/$method/$caller/$correlation
+ * response payload: byte status (0 ok, 1 error) | result or error message
+ * </pre>
+ * The connector config has to be loaded before {@link #start()}.
+ */
+public class MqttRpc {
+	static final byte STATUS_OK = 0;
+	static final byte STATUS_ERROR = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * a call waiting for its reply and the timer task failing it
+	 */
+	private static class PendingCall {
+		final MqttFuture<byte[]> future = new MqttFuture<byte[]>();
+		volatile ScheduledFuture<?> timeout;
+
+		void cancelTimeout() {
+			ScheduledFuture<?> task = timeout;
+			if(task != null) {
+				MqttScheduler.cancel(task);
+			}
+		}
+	}
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final MqttConnector connector;
+	private final ConcurrentHashMap<String, PendingCall> pendingCalls = new ConcurrentHashMap<String, PendingCall>();
+	private final ConcurrentHashMap<String, RpcHandler> handlers = new ConcurrentHashMap<String, RpcHandler>();
+	/**
+	 * starts at the clock, so late replies to the calls of a previous run do not match the new calls
+	 */
+	private final AtomicLong correlationSeq = new AtomicLong(System.currentTimeMillis() << 16);
+	private int qos = 1;
+	private long defaultTimeout;
+	private String clientId;
+	private String topicRoot;
+	private String requestName;
+	private String responseName;
+	private String responseFilter;
+	private String requestFilter;
+
+	public MqttRpc(MqttConnector connector) {
+		this.connector = connector;
+	}
+
+	/**
+	 * subscribe the replies to this client and start serving the requests
+	 * @throws MqttException
+	 */
+	public void start() throws MqttException {
+		MqttConfig config = connector.getMqttConfig();
+		if(config == null || config.getRpcTopicRoot() == null) {
+			throw new IllegalStateException("mqtt config not loaded");
+		}
+		clientId = config.getClientid();
+		topicRoot = config.getRpcTopicRoot();
+		requestName = config.getRpcRequestName();
+		responseName = config.getRpcResponseName();
+		defaultTimeout = config.getRpcTimeout();
+		responseFilter = topicRoot + "/+" + responseName + "+/" + clientId + "/+";
+		requestFilter = config.getRpcTopicPrefix() + "#";
+		connector.addMqttMessageListener(requestFilter, requestListener);
+		connector.addMqttMessageListener(responseFilter, responseListener);
+		connector.subscribe(responseFilter, qos);
+	}
+
+	/**
+	 * stop serving and fail the calls still waiting for their reply
+	 */
+	public void stop() {
+		connector.removeMqttMessageListener(requestListener);
+		connector.removeMqttMessageListener(responseListener);
+		if(responseFilter != null) {
+			try {
+				connector.unsubscribe(responseFilter);
+			} catch (MqttException e) {
+				logger.debug(CommonUtils.getExceptionInfo(e));
+			}
+		}
+		for(String correlationId : pendingCalls.keySet()) {
+			PendingCall call = pendingCalls.remove(correlationId);
+			if(call != null) {
+				call.cancelTimeout();
+				call.future.fail(new IllegalStateException("rpc stopped"));
+			}
+		}
+	}
+
+	public void registerHandler(String method, RpcHandler handler) {
+		checkLevel(method);
+		handlers.put(method, handler);
+	}
+
+	public void unregisterHandler(String method) {
+		handlers.remove(method);
+	}
+
+	/**
+	 * call with the timeout of mqtt.rpc.timeout
+	 * @see #call(String, String, byte[], long)
+	 */
+	public MqttFuture<byte[]> call(String target, String method, byte[] payload) {
+		return call(target, method, payload, defaultTimeout);
+	}
+
+	/**
+	 * @param target the client id serving the request
+	 * @param method
+	 * @param payload
+	 * @param timeout measured in milliseconds
+	 * @return completed with the reply, failed with {@link RpcException} if the handler failed,
+	 * {@link TimeoutException} if no reply arrived in time and with the {@link com.yeild.mqtt.PublishException}
+	 * of the request if it could not be published
+	 */
+	public MqttFuture<byte[]> call(String target, String method, byte[] payload, long timeout) {
+		checkLevel(target);
+		checkLevel(method);
+		final String correlationId = Long.toString(correlationSeq.incrementAndGet(), 36);
+		final PendingCall call = new PendingCall();
+		pendingCalls.put(correlationId, call);
+		// the timer task is cancelled by the reply, the scheduler purges the cancelled tasks now and then
+		call.timeout = MqttScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				PendingCall expired = pendingCalls.remove(correlationId);
+				if(expired != null) {
+					expired.future.fail(new TimeoutException("rpc " + correlationId + " timed out"));
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		String topic = topicRoot + "/" + target + requestName + method + "/" + clientId + "/" + correlationId;
+		connector.publish(createMessage(topic, payload == null ? EMPTY : payload)).addListener(new MqttFutureListener<PushMqttMessage>() {
+			@Override
+			public void onSuccess(PushMqttMessage result) {
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				if(pendingCalls.remove(correlationId, call)) {
+					call.cancelTimeout();
+					call.future.fail(cause);
+				}
+			}
+		});
+		return call.future;
+	}
+
+	/**
+	 * @return the calls waiting for their reply
+	 */
+	public int getPendingCount() {
+		return pendingCalls.size();
+	}
+
+	public void setQos(int qos) {
+		this.qos = qos;
+	}
+
+	public int getQos() {
+		return qos;
+	}
+
+	private PushMqttMessage createMessage(String topic, byte[] payload) {
+		MqttMessage message = new MqttMessage(payload);
+		message.setQos(qos);
+		// the topics are unique per call, they do not go through the topic interner
+		return new PushMqttMessage(topic, message);
+	}
+
+	boolean respond(RpcRequest request, byte status, byte[] body) {
+		byte[] payload = new byte[body.length + 1];
+		payload[0] = status;
+		System.arraycopy(body, 0, payload, 1, body.length);
+		String topic = topicRoot + "/" + clientId + responseName + request.getMethod() + "/" + request.getCallerId()
+				+ "/" + request.getCorrelationId();
+		// called on the receiving thread by the handlers, must not wait for room in the push queue
+		return connector.pushMessageAsync(createMessage(topic, payload));
+	}
+
+	static byte[] toBytes(String value) {
+		return value.getBytes(UTF8);
+	}
+
+	private static void checkLevel(String level) {
+		if(level == null || level.length() < 1 || level.indexOf('/') >= 0 || level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+			throw new IllegalArgumentException("invalid rpc topic level: " + level);
+		}
+	}
+
+	/**
+	 * @return the levels after the prefix split at '/', null if there are not exactly the expected count
+	 */
+	private static String[] splitLevels(String topic, int offset, int count) {
+		String[] levels = new String[count];
+		int start = offset;
+		for(int i=0; i<count; i++) {
+			int end = i == count - 1 ? topic.length() : topic.indexOf('/', start);
+			if(end < 0 || (i == count - 1 && topic.indexOf('/', start) >= 0)) {
+				return null;
+			}
+			levels[i] = topic.substring(start, end);
+			start = end + 1;
+		}
+		return levels;
+	}
+
+	private void onResponse(PushMqttMessage message) {
+		String topic = message.getTopic();
+		int correlationStart = topic.lastIndexOf('/') + 1;
+		PendingCall call = pendingCalls.remove(topic.substring(correlationStart));
+		if(call == null) {
+			// timed out already or a reply to a previous run
+			return;
+		}
+		call.cancelTimeout();
+		MqttFuture<byte[]> future = call.future;
+		byte[] payload = message.getPayload();
+		if(payload.length < 1) {
+			future.fail(new RpcException("empty rpc response"));
+			return;
+		}
+		byte[] body = new byte[payload.length - 1];
+		System.arraycopy(payload, 1, body, 0, body.length);
+		if(payload[0] == STATUS_OK) {
+			future.complete(body);
+		} else {
+			future.fail(new RpcException(new String(body, UTF8)));
+		}
+	}
+
+	private void onRequest(PushMqttMessage message) {
+		String prefix = requestFilter.substring(0, requestFilter.length() - 1);
+		String[] levels = splitLevels(message.getTopic(), prefix.length(), 3);
+		if(levels == null) {
+			logger.debug("not an rpc request: " + message.getTopic());
+			return;
+		}
+		RpcRequest request = new RpcRequest(this, levels[0], levels[1], levels[2], message.getPayload());
+		RpcHandler handler = handlers.get(request.getMethod());
+		if(handler == null) {
+			request.fail("no handler for " + request.getMethod());
+			return;
+		}
+		try {
+			handler.onRequest(request);
+		} catch (Exception e) {
+			logger.error(CommonUtils.getExceptionInfo(e));
+			request.fail(e.getMessage());
+		}
+	}
+
+	private final OnMqttMessageListener requestListener = new OnMqttMessageListener() {
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+			onRequest(pmessage);
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+		}
+	};
+
+	private final OnMqttMessageListener responseListener = new OnMqttMessageListener() {
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+			onResponse(pmessage);
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+		}
+	};
+}
@@ -0,0 +1,12 @@
+package com.yeild.mqtt.rpc;
+
+/**
+ * the failure an rpc handler replied with
+ */
+public class RpcException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public RpcException(String message) {
+		super(message);
+	}
+}
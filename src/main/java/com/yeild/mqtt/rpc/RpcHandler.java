@@ -0,0 +1,14 @@
+package com.yeild.mqtt.rpc;
+
+/**
+ * serves the rpc requests of one method, registered with {@link MqttRpc#registerHandler(String, RpcHandler)}.
+ * Called on the receive dispatch thread of the request topic, long work should be handed to another thread
+ * and answered with {@link RpcRequest#reply(byte[])}.
+ */
+public interface RpcHandler {
+	/**
+	 * @param request
+	 * @throws Exception replied to the caller as a failure
+	 */
+	void onRequest(RpcRequest request) throws Exception;
+}
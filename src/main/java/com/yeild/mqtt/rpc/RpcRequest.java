@@ -0,0 +1,70 @@
+package com.yeild.mqtt.rpc;
+
+/**
+ * a received rpc request, answered once with {@link #reply(byte[])} or {@link #fail(String)}
+ */
+public class RpcRequest {
+	private final MqttRpc rpc;
+	private final String method;
+	private final String callerId;
+	private final String correlationId;
+	private final byte[] payload;
+	private boolean replied = false;
+
+	RpcRequest(MqttRpc rpc, String method, String callerId, String correlationId, byte[] payload) {
+		this.rpc = rpc;
+		this.method = method;
+		this.callerId = callerId;
+		this.correlationId = correlationId;
+		this.payload = payload;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the client id of the caller
+	 */
+	public String getCallerId() {
+		return callerId;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @param result
+	 * @return false if the request was already answered or the response could not be queued
+	 */
+	public boolean reply(byte[] result) {
+		return respond(MqttRpc.STATUS_OK, result);
+	}
+
+	/**
+	 * @param error
+	 * @return false if the request was already answered or the response could not be queued
+	 */
+	public boolean fail(String error) {
+		return respond(MqttRpc.STATUS_ERROR, MqttRpc.toBytes(error == null ? "rpc failed" : error));
+	}
+
+	private boolean respond(byte status, byte[] body) {
+		synchronized (this) {
+			if(replied) {
+				return false;
+			}
+			replied = true;
+		}
+		return rpc.respond(this, status, body);
+	}
+
+	public synchronized boolean isReplied() {
+		return replied;
+	}
+
+	String getCorrelationId() {
+		return correlationId;
+	}
+}
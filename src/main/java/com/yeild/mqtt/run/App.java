@@ -1,16 +1,42 @@
 package com.yeild.mqtt.run;
 
-import com.yeild.mqtt.MqttConnector;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 /**
- * Hello world!
+ * load and soak tool: publishes generated messages through a pool of connectors,
+ * see {@link LoadOptions#usage()} for the options
  *
  */
 public class App 
 {
-    public static void main( String[] args )
+    public static void main( String[] args ) throws IOException, InterruptedException
     {
-        System.out.println( "Hello World!" );
-        new Thread(new MqttConnector("")).start();
+        if(args.length == 0 || "--help".equals(args[0])) {
+            System.out.println(LoadOptions.usage());
+            return;
+        }
+        LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadOptions.usage());
+            System.exit(2);
+            return;
+        }
+        String summary = LoadGenerator.create(options, System.out).run();
+        if(options.getOutput() == null) {
+            System.out.println(summary);
+            return;
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(options.getOutput()), "UTF-8");
+        try {
+            writer.write(summary);
+        } finally {
+            writer.close();
+        }
     }
 }
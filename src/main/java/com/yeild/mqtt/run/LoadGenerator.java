@@ -0,0 +1,265 @@
+package com.yeild.mqtt.run;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.MqttConnectorPool;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+import com.yeild.mqtt.metrics.LatencyHistogram;
+import com.yeild.mqtt.metrics.LatencySnapshot;
+
+/**
+ * publishes generated messages through a {@link MqttConnectorPool} at the rate of the {@link LoadOptions}.
+ * Prints one line per report interval and returns a json summary: throughput, push-to-ack latency percentiles,
+ * push queue saturation and retries.
+ */
+public class LoadGenerator {
+	/**
+	 * a sample counts as saturated from this fill level of the push queues
+	 */
+	private static final double SATURATED = 0.9;
+	private static final long DRAIN_MILLIS = 10*1000;
+	private static final long REJECTED_BACKOFF_NANOS = 100*1000;
+
+	private final LoadOptions options;
+	private final MqttConnectorPool pool;
+	private final int queueCapacity;
+	private final PrintStream out;
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram intervalLatency = new LatencyHistogram();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private volatile boolean running;
+	private int maxQueueSize = 0;
+	private int queueSamples = 0;
+	private int saturatedSamples = 0;
+	private long elapsedNanos = 0;
+	/**
+	 * the time waited for the acks of the messages still queued when publishing stopped
+	 */
+	private long drainNanos = 0;
+
+	/**
+	 * @param options
+	 * @param pool not started yet
+	 * @param queueCapacity the capacity of the push queues of all the connectors
+	 * @param out the live report goes here
+	 */
+	public LoadGenerator(LoadOptions options, MqttConnectorPool pool, int queueCapacity, PrintStream out) {
+		this.options = options;
+		this.pool = pool;
+		this.queueCapacity = queueCapacity;
+		this.out = out;
+	}
+
+	/**
+	 * load the config of the options and build the pool of {@link LoadOptions#getConnectors()} connectors
+	 * @param options
+	 * @param out
+	 * @return
+	 * @throws IOException
+	 */
+	public static LoadGenerator create(LoadOptions options, PrintStream out) throws IOException {
+		MqttConfig config = new MqttConfig();
+		if(options.getUri() != null) {
+			config.setConfValue("mqtt.uri.ssl", "");
+			config.setConfValue("mqtt.uri.tcp", options.getUri());
+		}
+		if(options.getClientid() != null) {
+			config.setConfValue("mqtt.clientid", options.getClientid());
+		}
+		String confPath = options.getConfPath();
+		if(confPath.length() > 0 && !confPath.endsWith("/") && !confPath.endsWith(File.separator)) {
+			confPath += File.separator;
+		}
+		config.load(confPath);
+		MqttConnectorPool pool = new MqttConnectorPool(confPath, config, options.getConnectors());
+		return new LoadGenerator(options, pool, config.getMaxMessageQueue() * options.getConnectors(), out);
+	}
+
+	/**
+	 * connect, publish for the duration, wait for the outstanding acks and disconnect
+	 * @return the json summary
+	 * @throws InterruptedException
+	 */
+	public String run() throws InterruptedException {
+		pool.addMqttMessageListener(resultListener);
+		pool.start();
+		try {
+			if(!pool.waitLoginComplete(30*1000)) {
+				throw new IllegalStateException("only " + pool.getLoginedCount() + " of " + pool.size() + " connectors logged in");
+			}
+			running = true;
+			Thread[] publishers = new Thread[options.getThreads()];
+			for(int i=0; i<publishers.length; i++) {
+				final int threadRate = options.getRate() / publishers.length + (i < options.getRate() % publishers.length ? 1 : 0);
+				publishers[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						publish(threadRate);
+					}
+				}, "load-publisher-" + i);
+				publishers[i].start();
+			}
+			long begin = System.nanoTime();
+			long end = begin + TimeUnit.SECONDS.toNanos(options.getDuration());
+			long intervalNanos = TimeUnit.SECONDS.toNanos(options.getInterval());
+			long lastReport = begin;
+			long lastSent = 0;
+			long lastAcked = 0;
+			while(System.nanoTime() < end) {
+				long wait = Math.min(lastReport + intervalNanos, end) - System.nanoTime();
+				if(wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				long now = System.nanoTime();
+				sampleQueue();
+				report(now - begin, now - lastReport, sent.get() - lastSent, acked.get() - lastAcked);
+				lastReport = now;
+				lastSent = sent.get();
+				lastAcked = acked.get();
+			}
+			running = false;
+			for(Thread publisher : publishers) {
+				publisher.join();
+			}
+			elapsedNanos = System.nanoTime() - begin;
+			long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+			while(acked.get() + failed.get() < sent.get() && System.currentTimeMillis() < drainEnd) {
+				Thread.sleep(50);
+			}
+			drainNanos = System.nanoTime() - begin - elapsedNanos;
+			return toJson();
+		} finally {
+			running = false;
+			pool.stop();
+			pool.removeMqttMessageListener(resultListener);
+		}
+	}
+
+	/**
+	 * @param rate messages per second of this thread, 0 unthrottled
+	 */
+	private void publish(int rate) {
+		Random random = new Random();
+		byte[] source = new byte[options.getPayloadMax()];
+		random.nextBytes(source);
+		long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+		long next = System.nanoTime();
+		while(running) {
+			if(interval > 0) {
+				long now = System.nanoTime();
+				if(next > now) {
+					LockSupport.parkNanos(next - now);
+					continue;
+				}
+				// a thread that fell behind by more than a second does not burst to catch up
+				next = Math.max(next, now - TimeUnit.SECONDS.toNanos(1)) + interval;
+			}
+			byte[] payload = new byte[options.nextPayloadSize(random)];
+			System.arraycopy(source, 0, payload, 0, payload.length);
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic(options.getTopicPrefix() + "/" + random.nextInt(options.getTopics()));
+			message.setPayload(payload);
+			message.setQos(options.nextQos(random));
+			if(pool.pushMessage(message)) {
+				sent.incrementAndGet();
+			} else {
+				rejected.incrementAndGet();
+				// the push queues are full, back off instead of spinning on them
+				LockSupport.parkNanos(REJECTED_BACKOFF_NANOS);
+			}
+		}
+	}
+
+	private void sampleQueue() {
+		int size = pool.getPushQueueSize();
+		maxQueueSize = Math.max(maxQueueSize, size);
+		queueSamples++;
+		if(queueCapacity > 0 && size >= queueCapacity * SATURATED) {
+			saturatedSamples++;
+		}
+	}
+
+	private void report(long elapsed, long interval, long intervalSent, long intervalAcked) {
+		double seconds = interval / 1e9;
+		LatencySnapshot snapshot = intervalLatency.snapshot();
+		intervalLatency.reset();
+		out.println(String.format(Locale.ROOT
+				, "%5ds sent %9.1f/s acked %9.1f/s failed %d rejected %d p50 %.2fms p99 %.2fms queue %d/%d retries %d pending %d"
+				, TimeUnit.NANOSECONDS.toSeconds(elapsed), intervalSent / seconds, intervalAcked / seconds, failed.get(), rejected.get()
+				, snapshot.getP50() / 1000, snapshot.getP99() / 1000, pool.getPushQueueSize(), queueCapacity
+				, pool.getRetryCount(), pool.getPendingRetryCount()));
+	}
+
+	String toJson() {
+		double seconds = elapsedNanos / 1e9;
+		double drainSeconds = drainNanos / 1e9;
+		LatencySnapshot snapshot = latency.snapshot();
+		StringBuilder json = new StringBuilder(512);
+		json.append("{\n");
+		json.append("  \"connectors\": ").append(options.getConnectors()).append(",\n");
+		json.append("  \"threads\": ").append(options.getThreads()).append(",\n");
+		json.append("  \"targetRate\": ").append(options.getRate()).append(",\n");
+		json.append("  \"payloadMin\": ").append(options.getPayloadMin()).append(",\n");
+		json.append("  \"payloadMax\": ").append(options.getPayloadMax()).append(",\n");
+		json.append("  \"topics\": ").append(options.getTopics()).append(",\n");
+		json.append("  \"durationSeconds\": ").append(format(seconds)).append(",\n");
+		json.append("  \"drainSeconds\": ").append(format(drainSeconds)).append(",\n");
+		json.append("  \"sent\": ").append(sent.get()).append(",\n");
+		json.append("  \"acked\": ").append(acked.get()).append(",\n");
+		json.append("  \"failed\": ").append(failed.get()).append(",\n");
+		json.append("  \"rejected\": ").append(rejected.get()).append(",\n");
+		json.append("  \"throughput\": ").append(format(seconds > 0 ? acked.get() / (seconds + drainSeconds) : 0)).append(",\n");
+		json.append("  \"latencyMillis\": {");
+		json.append("\"count\": ").append(snapshot.getCount());
+		json.append(", \"mean\": ").append(format(snapshot.getMean() / 1000));
+		json.append(", \"p50\": ").append(format(snapshot.getP50() / 1000));
+		json.append(", \"p99\": ").append(format(snapshot.getP99() / 1000));
+		json.append(", \"p999\": ").append(format(snapshot.getP999() / 1000));
+		json.append(", \"max\": ").append(format(snapshot.getMax() / 1000)).append("},\n");
+		json.append("  \"queue\": {");
+		json.append("\"capacity\": ").append(queueCapacity);
+		json.append(", \"maxSize\": ").append(maxQueueSize);
+		json.append(", \"saturatedRatio\": ").append(format(queueSamples > 0 ? (double) saturatedSamples / queueSamples : 0)).append("},\n");
+		json.append("  \"retries\": ").append(pool.getRetryCount()).append("\n");
+		json.append("}");
+		return json.toString();
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	private final OnMqttMessageListener resultListener = new OnMqttMessageListener() {
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+			if(!message.getTopic().startsWith(options.getTopicPrefix())) {
+				// the online message of the connectors
+				return;
+			}
+			if(error != null) {
+				failed.incrementAndGet();
+				return;
+			}
+			acked.incrementAndGet();
+			long nanos = System.nanoTime() - message.getEnqueueNanos();
+			latency.record(nanos);
+			intervalLatency.record(nanos);
+		}
+	};
+}
@@ -0,0 +1,203 @@
+package com.yeild.mqtt.run;
+
+import java.util.Random;
+
+/**
+ * the command line of the load generator.
+ * Every option is given as <code>--name value</code>, see {@link #usage()}.
+ */
+public class LoadOptions {
+	private String confPath = "";
+	private String uri;
+	private String clientid;
+	private int connectors = 1;
+	private int threads = 1;
+	private int rate = 0;
+	private int payloadMin = 256;
+	private int payloadMax = 256;
+	private int[] qosWeights = new int[]{0, 1, 0};
+	private String topicPrefix = "/load";
+	private int topics = 1;
+	private int duration = 60;
+	private int interval = 1;
+	private String output;
+
+	public static String usage() {
+		return "usage: App [options]\n"
+				+ "  --conf <dir>          the dir of mqtt.properties, the packaged defaults if not given\n"
+				+ "  --uri <uri>           the broker, overrides mqtt.uri.tcp\n"
+				+ "  --clientid <id>       the client id prefix, overrides mqtt.clientid\n"
+				+ "  --connectors <n>      connections to the broker, default 1\n"
+				+ "  --threads <n>         publisher threads, default 1\n"
+				+ "  --rate <n>            messages per second of all threads, 0 unthrottled, default 0\n"
+				+ "  --payload <n|min-max> payload bytes, uniformly distributed in the range, default 256\n"
+				+ "  --qos <mix>           qos or weighted mix like 0:20,1:70,2:10, default 1\n"
+				+ "  --topic <prefix>      the topic prefix, default /load\n"
+				+ "  --topics <n>          distinct topics below the prefix, default 1\n"
+				+ "  --duration <seconds>  default 60\n"
+				+ "  --interval <seconds>  live report interval, default 1\n"
+				+ "  --output <file>       write the json summary to the file instead of stdout";
+	}
+
+	/**
+	 * @param args
+	 * @return
+	 * @throws IllegalArgumentException on an unknown option or a bad value
+	 */
+	public static LoadOptions parse(String[] args) {
+		LoadOptions options = new LoadOptions();
+		for(int i=0; i<args.length; i++) {
+			String name = args[i];
+			if(!name.startsWith("--") || i + 1 >= args.length) {
+				throw new IllegalArgumentException("option without value: " + name);
+			}
+			String value = args[++i];
+			try {
+				options.set(name.substring(2), value);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad value of " + name + ": " + value);
+			}
+		}
+		return options;
+	}
+
+	private void set(String name, String value) {
+		if("conf".equals(name)) {
+			confPath = value;
+		} else if("uri".equals(name)) {
+			uri = value;
+		} else if("clientid".equals(name)) {
+			clientid = value;
+		} else if("connectors".equals(name)) {
+			connectors = positive(name, value);
+		} else if("threads".equals(name)) {
+			threads = positive(name, value);
+		} else if("rate".equals(name)) {
+			rate = Math.max(0, Integer.parseInt(value));
+		} else if("payload".equals(name)) {
+			int separator = value.indexOf('-');
+			payloadMin = Integer.parseInt(separator < 0 ? value : value.substring(0, separator));
+			payloadMax = separator < 0 ? payloadMin : Integer.parseInt(value.substring(separator + 1));
+			if(payloadMin < 0 || payloadMax < payloadMin) {
+				throw new IllegalArgumentException("bad payload range: " + value);
+			}
+		} else if("qos".equals(name)) {
+			qosWeights = parseQos(value);
+		} else if("topic".equals(name)) {
+			topicPrefix = value;
+		} else if("topics".equals(name)) {
+			topics = positive(name, value);
+		} else if("duration".equals(name)) {
+			duration = positive(name, value);
+		} else if("interval".equals(name)) {
+			interval = positive(name, value);
+		} else if("output".equals(name)) {
+			output = value;
+		} else {
+			throw new IllegalArgumentException("unknown option --" + name);
+		}
+	}
+
+	private static int positive(String name, String value) {
+		int parsed = Integer.parseInt(value);
+		if(parsed < 1) {
+			throw new IllegalArgumentException("--" + name + " must be at least 1");
+		}
+		return parsed;
+	}
+
+	/**
+	 * @param value a single qos or qos:weight pairs separated by ','
+	 * @return the weight of qos 0, 1 and 2
+	 */
+	static int[] parseQos(String value) {
+		int[] weights = new int[3];
+		int total = 0;
+		for(String item : value.split(",")) {
+			item = item.trim();
+			int separator = item.indexOf(':');
+			int qos = Integer.parseInt(separator < 0 ? item : item.substring(0, separator));
+			int weight = separator < 0 ? 1 : Integer.parseInt(item.substring(separator + 1));
+			if(qos < 0 || qos > 2 || weight < 0) {
+				throw new IllegalArgumentException("bad qos mix: " + value);
+			}
+			weights[qos] += weight;
+			total += weight;
+		}
+		if(total < 1) {
+			throw new IllegalArgumentException("bad qos mix: " + value);
+		}
+		return weights;
+	}
+
+	/**
+	 * @return a qos picked by the weights of the mix
+	 */
+	int nextQos(Random random) {
+		int pick = random.nextInt(qosWeights[0] + qosWeights[1] + qosWeights[2]);
+		if(pick < qosWeights[0]) {
+			return 0;
+		}
+		return pick < qosWeights[0] + qosWeights[1] ? 1 : 2;
+	}
+
+	int nextPayloadSize(Random random) {
+		return payloadMin == payloadMax ? payloadMin : payloadMin + random.nextInt(payloadMax - payloadMin + 1);
+	}
+
+	public String getConfPath() {
+		return confPath;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public String getClientid() {
+		return clientid;
+	}
+
+	public int getConnectors() {
+		return connectors;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getRate() {
+		return rate;
+	}
+
+	public int getPayloadMin() {
+		return payloadMin;
+	}
+
+	public int getPayloadMax() {
+		return payloadMax;
+	}
+
+	public int[] getQosWeights() {
+		return qosWeights;
+	}
+
+	public String getTopicPrefix() {
+		return topicPrefix;
+	}
+
+	public int getTopics() {
+		return topics;
+	}
+
+	public int getDuration() {
+		return duration;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public String getOutput() {
+		return output;
+	}
+}
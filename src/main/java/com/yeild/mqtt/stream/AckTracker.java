@@ -0,0 +1,117 @@
+package com.yeild.mqtt.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+
+/**
+ * the manual acks of the received qos 1 and 2 messages. A message is acked once every consumer released it,
+ * the acks go out in the order the messages arrived as mqtt requires, so one slow message holds back the acks
+ * of the later ones. The broker sends no more than its inflight window of unacked messages, a slow consumer
+ * slows down the broker instead of the network thread of the client.
+ */
+public class AckTracker {
+	protected Logger logger = Logger.getLogger(getClass());
+	private final Acker acker;
+	/**
+	 * the tracked messages in arrival order, guarded by this
+	 */
+	private final ArrayDeque<Ack> pending = new ArrayDeque<Ack>();
+	private int generation = 0;
+
+	/**
+	 * sends the ack of a message, e.g. by messageArrivedComplete of the paho client
+	 */
+	public interface Acker {
+		void ack(int messageId, int qos) throws Exception;
+	}
+
+	/**
+	 * the pending ack of one received message, held by every consumer of the message
+	 */
+	public static final class Ack {
+		private final AckTracker tracker;
+		private final int messageId;
+		private final int qos;
+		private final int generation;
+		private final AtomicInteger references = new AtomicInteger(1);
+		private boolean released = false;
+
+		Ack(AckTracker tracker, int messageId, int qos, int generation) {
+			this.tracker = tracker;
+			this.messageId = messageId;
+			this.qos = qos;
+			this.generation = generation;
+		}
+
+		/**
+		 * one more consumer holds the message
+		 */
+		public void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * a consumer is done with the message, the last one acks it
+		 */
+		public void release() {
+			if(references.decrementAndGet() == 0) {
+				tracker.released(this);
+			}
+		}
+
+		public int getMessageId() {
+			return messageId;
+		}
+	}
+
+	public AckTracker(Acker acker) {
+		this.acker = acker;
+	}
+
+	/**
+	 * @param messageId
+	 * @param qos
+	 * @return the ack of the message, held once by the caller
+	 */
+	public synchronized Ack track(int messageId, int qos) {
+		Ack ack = new Ack(this, messageId, qos, generation);
+		pending.add(ack);
+		return ack;
+	}
+
+	private synchronized void released(Ack ack) {
+		if(ack.generation != generation) {
+			// received on a connection that is gone
+			return;
+		}
+		ack.released = true;
+		// sent under the lock, acks of concurrent releases must not overtake each other
+		while(!pending.isEmpty() && pending.peek().released) {
+			Ack head = pending.poll();
+			try {
+				acker.ack(head.messageId, head.qos);
+			} catch (Exception e) {
+				logger.debug("ack of message " + head.messageId + " failed: " + CommonUtils.getExceptionInfo(e));
+			}
+		}
+	}
+
+	/**
+	 * forget the acks of the lost connection, the broker does not expect them on the next one
+	 */
+	public synchronized void reset() {
+		generation++;
+		pending.clear();
+	}
+
+	/**
+	 * @return the received messages not acked yet
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+}
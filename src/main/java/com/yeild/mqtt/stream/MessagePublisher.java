@@ -0,0 +1,227 @@
+package com.yeild.mqtt.stream;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.common.Utils.CommonUtils;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.dispatch.OverflowPolicy;
+
+/**
+ * the received messages of one topic filter as a {@link Publisher}. Every subscription buffers up to bufferSize
+ * messages beyond its demand, a full buffer is handled by the overflow policy: DROP_OLDEST and REJECT drop a message.
+ * Offering never waits, the receiving thread delivers to every listener and must not be held by a slow subscriber.
+ * <p>
+ * The manual ack of a message is held until its onNext returned, with mqtt.receive.manualack the broker stops
+ * sending once its inflight window is unacked, so a buffer holding at least that window never drops a qos 1/2 message.
+ */
+public class MessagePublisher implements Publisher<PushMqttMessage> {
+	protected Logger logger = Logger.getLogger(getClass());
+	private final String topicFilter;
+	private final int bufferSize;
+	private final OverflowPolicy overflowPolicy;
+	private final CopyOnWriteArrayList<BufferedSubscription> subscriptions = new CopyOnWriteArrayList<BufferedSubscription>();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile boolean completed = false;
+
+	/**
+	 * @param topicFilter
+	 * @param bufferSize max messages buffered per subscription
+	 * @param overflowPolicy DROP_OLDEST or REJECT
+	 * @throws IllegalArgumentException if the policy is BLOCK
+	 */
+	public MessagePublisher(String topicFilter, int bufferSize, OverflowPolicy overflowPolicy) {
+		if(overflowPolicy == OverflowPolicy.BLOCK) {
+			throw new IllegalArgumentException("a stream never blocks the receiving thread, use drop_oldest or reject");
+		}
+		this.topicFilter = topicFilter;
+		this.bufferSize = Math.max(1, bufferSize);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super PushMqttMessage> subscriber) {
+		if(subscriber == null) {
+			throw new NullPointerException("subscriber");
+		}
+		BufferedSubscription subscription = new BufferedSubscription(subscriber);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+		if(completed) {
+			subscription.complete();
+		}
+	}
+
+	/**
+	 * hand a received message to every subscription
+	 * @param message
+	 */
+	public void offer(PushMqttMessage message) {
+		for(BufferedSubscription subscription : subscriptions) {
+			subscription.offer(message);
+		}
+	}
+
+	/**
+	 * the connector stopped, the subscribers complete after their buffered messages
+	 */
+	public void complete() {
+		completed = true;
+		for(BufferedSubscription subscription : subscriptions) {
+			subscription.complete();
+		}
+	}
+
+	public String getTopicFilter() {
+		return topicFilter;
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * @return the messages buffered by all the subscriptions
+	 */
+	public int getBufferedCount() {
+		int count = 0;
+		for(BufferedSubscription subscription : subscriptions) {
+			count += subscription.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the messages dropped by full buffers
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	private static void release(PushMqttMessage message) {
+		if(message.getAck() != null) {
+			message.getAck().release();
+		}
+	}
+
+	private final class BufferedSubscription implements Subscription {
+		private final Subscriber<? super PushMqttMessage> subscriber;
+		/**
+		 * guarded by this
+		 */
+		private final ArrayDeque<PushMqttMessage> buffer = new ArrayDeque<PushMqttMessage>();
+		private final AtomicLong requested = new AtomicLong();
+		/**
+		 * the drain loop runs on the thread that raised it from 0, the others only count their wish to drain
+		 */
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile boolean done = false;
+		private boolean terminated = false;
+
+		BufferedSubscription(Subscriber<? super PushMqttMessage> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		void offer(PushMqttMessage message) {
+			synchronized (this) {
+				if(cancelled || done) {
+					return;
+				}
+				if(buffer.size() >= bufferSize) {
+					droppedCount.incrementAndGet();
+					if(overflowPolicy != OverflowPolicy.DROP_OLDEST) {
+						return;
+					}
+					release(buffer.poll());
+				}
+				if(message.getAck() != null) {
+					message.getAck().retain();
+				}
+				buffer.add(message);
+			}
+			drain();
+		}
+
+		void complete() {
+			done = true;
+			drain();
+		}
+
+		synchronized int size() {
+			return buffer.size();
+		}
+
+		private synchronized PushMqttMessage poll() {
+			return buffer.poll();
+		}
+
+		@Override
+		public void request(long n) {
+			if(n <= 0) {
+				cancel();
+				subscriber.onError(new IllegalArgumentException("request of " + n + " items, it must be positive"));
+				return;
+			}
+			long current;
+			do {
+				current = requested.get();
+				if(current == Long.MAX_VALUE) {
+					break;
+				}
+			} while(!requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			if(cancelled) {
+				return;
+			}
+			cancelled = true;
+			subscriptions.remove(this);
+			synchronized (this) {
+				PushMqttMessage message;
+				while((message = buffer.poll()) != null) {
+					release(message);
+				}
+			}
+		}
+
+		private void drain() {
+			if(wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				while(!cancelled && requested.get() > 0) {
+					PushMqttMessage message = poll();
+					if(message == null) {
+						break;
+					}
+					try {
+						subscriber.onNext(message);
+					} catch (Throwable e) {
+						logger.error(CommonUtils.getExceptionInfo(e instanceof Exception ? (Exception) e : new Exception(e)));
+						cancel();
+					} finally {
+						release(message);
+					}
+					if(requested.get() != Long.MAX_VALUE) {
+						requested.decrementAndGet();
+					}
+				}
+				if(done && !cancelled && !terminated && size() == 0) {
+					terminated = true;
+					subscriptions.remove(this);
+					subscriber.onComplete();
+				}
+				missed = wip.addAndGet(-missed);
+			} while(missed != 0);
+		}
+	}
+}
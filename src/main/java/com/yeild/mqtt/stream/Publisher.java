@@ -0,0 +1,14 @@
+package com.yeild.mqtt.stream;
+
+/**
+ * the Publisher of reactive streams, declared here as the library runs on java 6 without
+ * java.util.concurrent.Flow. A subscriber of org.reactivestreams or Flow is bridged with a one line adapter.
+ * @param <T>
+ */
+public interface Publisher<T> {
+	/**
+	 * start a subscription, the items are only sent as far as the subscriber requests them
+	 * @param subscriber
+	 */
+	void subscribe(Subscriber<? super T> subscriber);
+}
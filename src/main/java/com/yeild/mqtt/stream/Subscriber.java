@@ -0,0 +1,15 @@
+package com.yeild.mqtt.stream;
+
+/**
+ * the Subscriber of reactive streams, the signals of one subscription never overlap
+ * @param <T>
+ */
+public interface Subscriber<T> {
+	void onSubscribe(Subscription subscription);
+
+	void onNext(T item);
+
+	void onError(Throwable throwable);
+
+	void onComplete();
+}
@@ -0,0 +1,17 @@
+package com.yeild.mqtt.stream;
+
+/**
+ * the Subscription of reactive streams
+ */
+public interface Subscription {
+	/**
+	 * add n items to the demand, {@link Long#MAX_VALUE} is unbounded
+	 * @param n
+	 */
+	void request(long n);
+
+	/**
+	 * stop the items, the buffered ones are dropped
+	 */
+	void cancel();
+}
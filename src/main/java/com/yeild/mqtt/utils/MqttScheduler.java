@@ -0,0 +1,50 @@
+package com.yeild.mqtt.utils;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * one daemon timer thread shared by all the connectors for delayed work like retries and timeouts.
+ * The tasks must be short and must not block, they all run on the same thread.
+ */
+public final class MqttScheduler {
+	private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "mqtt-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	/**
+	 * cancels between two purges of the queue
+	 */
+	private static final int PURGE_EVERY = 256;
+	private static final AtomicInteger cancelled = new AtomicInteger();
+
+	private MqttScheduler() {
+	}
+
+	public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return scheduler.schedule(task, delay, unit);
+	}
+
+	/**
+	 * cancel the task if it did not run yet. A cancelled task stays in the queue of the scheduler until it is due,
+	 * every {@value #PURGE_EVERY} cancels the queue is purged so timeouts cancelled long before that do not pile up.
+	 * @param task
+	 */
+	public static void cancel(ScheduledFuture<?> task) {
+		if(task.cancel(false) && cancelled.incrementAndGet() % PURGE_EVERY == 0) {
+			scheduler.purge();
+		}
+	}
+
+	public static ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+}
@@ -1,7 +1,54 @@
 package com.yeild.mqtt.utils;
 
 public class MqttUtils {
+	private static final boolean[] TOPIC_CHARS = new boolean[128];
+	
+	static {
+		for(char c='0'; c<='9'; c++) {
+			TOPIC_CHARS[c] = true;
+		}
+		for(char c='a'; c<='z'; c++) {
+			TOPIC_CHARS[c] = true;
+			TOPIC_CHARS[Character.toUpperCase(c)] = true;
+		}
+		TOPIC_CHARS['/'] = true;
+		TOPIC_CHARS['_'] = true;
+		TOPIC_CHARS['-'] = true;
+		TOPIC_CHARS['+'] = true;
+		TOPIC_CHARS['#'] = true;
+	}
+	
 	public static String randomID() {
 		return null;
 	}
+	
+	public static boolean isTopicChar(char c) {
+		return c < 128 && TOPIC_CHARS[c];
+	}
+	
+	/**
+	 * remove the characters other than [0-9a-zA-Z/_\-+#] from the topic in a single pass
+	 * @param topic
+	 * @return the topic itself when it is valid already, so the common case allocates nothing
+	 */
+	public static String sanitizeTopic(String topic) {
+		int length = topic.length();
+		int valid = 0;
+		while(valid < length && isTopicChar(topic.charAt(valid))) {
+			valid++;
+		}
+		if(valid == length) {
+			return topic;
+		}
+		char[] chars = new char[length];
+		topic.getChars(0, valid, chars, 0);
+		int count = valid;
+		for(int i=valid+1; i<length; i++) {
+			char c = topic.charAt(i);
+			if(isTopicChar(c)) {
+				chars[count++] = c;
+			}
+		}
+		return new String(chars, 0, count);
+	}
 }
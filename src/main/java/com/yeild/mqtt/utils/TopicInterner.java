@@ -0,0 +1,47 @@
+package com.yeild.mqtt.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * caches sanitized topics, so a topic published again skips the validation and all the messages
+ * of one topic share a single topic string. Once full, new topics are sanitized without being cached.
+ */
+public class TopicInterner {
+	private final ConcurrentHashMap<String, String> topics;
+	private final int capacity;
+
+	/**
+	 * @param capacity max cached topics
+	 */
+	public TopicInterner(int capacity) {
+		this.capacity = capacity;
+		this.topics = new ConcurrentHashMap<String, String>(Math.min(capacity, 256));
+	}
+
+	/**
+	 * @param topic
+	 * @return the sanitized topic, the cached instance if the topic was seen before
+	 */
+	public String intern(String topic) {
+		String sanitized = topics.get(topic);
+		if(sanitized != null) {
+			return sanitized;
+		}
+		sanitized = MqttUtils.sanitizeTopic(topic);
+		if(topics.size() < capacity) {
+			String cached = topics.putIfAbsent(topic, sanitized);
+			if(cached != null) {
+				return cached;
+			}
+		}
+		return sanitized;
+	}
+
+	public int size() {
+		return topics.size();
+	}
+
+	public void clear() {
+		topics.clear();
+	}
+}
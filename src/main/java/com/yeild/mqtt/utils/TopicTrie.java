@@ -0,0 +1,239 @@
+package com.yeild.mqtt.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * values registered by mqtt topic filter, looked up by topic.
+ * Every topic level is one trie level and the '+' and '#' wildcards are kept apart from the named levels,
+ * so a lookup costs the depth of the topic instead of the number of registered filters.
+ * Lookups are lock free, registrations are serialized.
+ * @param <T>
+ */
+public class TopicTrie<T> {
+	private final Node<T> root = new Node<T>();
+	private volatile int size = 0;
+
+	private static final class Node<T> {
+		final ConcurrentHashMap<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>(4);
+		final CopyOnWriteArrayList<T> values = new CopyOnWriteArrayList<T>();
+		volatile Node<T> plus;
+		volatile Node<T> hash;
+
+		boolean isEmpty() {
+			return values.isEmpty() && children.isEmpty() && plus == null && hash == null;
+		}
+	}
+
+	/**
+	 * check the topic filter follows the mqtt rules: '#' only as the last level, wildcards fill the whole level
+	 * @param topicFilter
+	 * @throws IllegalArgumentException
+	 */
+	public static void validateFilter(String topicFilter) {
+		if(topicFilter == null || topicFilter.length() < 1) {
+			throw new IllegalArgumentException("empty topic filter");
+		}
+		int length = topicFilter.length();
+		for(int i=0; i<length; i++) {
+			char c = topicFilter.charAt(i);
+			if(c != '+' && c != '#') {
+				continue;
+			}
+			boolean levelStart = i == 0 || topicFilter.charAt(i-1) == '/';
+			boolean levelEnd = i == length-1 || topicFilter.charAt(i+1) == '/';
+			if(!levelStart || !levelEnd || (c == '#' && i != length-1)) {
+				throw new IllegalArgumentException("invalid topic filter: " + topicFilter);
+			}
+		}
+	}
+
+	/**
+	 * @param topicFilter the mqtt topic filter, may contain '+' and '#'
+	 * @param value
+	 * @return false if the value was registered with the filter already
+	 */
+	public synchronized boolean add(String topicFilter, T value) {
+		validateFilter(topicFilter);
+		Node<T> node = root;
+		int start = 0;
+		while(start >= 0) {
+			int end = topicFilter.indexOf('/', start);
+			String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+			Node<T> child;
+			if("+".equals(level)) {
+				child = node.plus;
+				if(child == null) {
+					child = new Node<T>();
+					node.plus = child;
+				}
+			} else if("#".equals(level)) {
+				child = node.hash;
+				if(child == null) {
+					child = new Node<T>();
+					node.hash = child;
+				}
+			} else {
+				child = node.children.get(level);
+				if(child == null) {
+					child = new Node<T>();
+					node.children.put(level, child);
+				}
+			}
+			node = child;
+			start = end < 0 ? -1 : end + 1;
+		}
+		if(!node.values.addIfAbsent(value)) {
+			return false;
+		}
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param topicFilter
+	 * @param value
+	 * @return false if the value was not registered with the filter
+	 */
+	public synchronized boolean remove(String topicFilter, T value) {
+		if(!remove(root, topicFilter, 0, value)) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	private boolean remove(Node<T> node, String topicFilter, int start, T value) {
+		if(start < 0) {
+			return node.values.remove(value);
+		}
+		int end = topicFilter.indexOf('/', start);
+		int next = end < 0 ? -1 : end + 1;
+		String level = end < 0 ? topicFilter.substring(start) : topicFilter.substring(start, end);
+		Node<T> child;
+		if("+".equals(level)) {
+			child = node.plus;
+		} else if("#".equals(level)) {
+			child = node.hash;
+		} else {
+			child = node.children.get(level);
+		}
+		if(child == null || !remove(child, topicFilter, next, value)) {
+			return false;
+		}
+		if(child.isEmpty()) {
+			if(child == node.plus) {
+				node.plus = null;
+			} else if(child == node.hash) {
+				node.hash = null;
+			} else {
+				node.children.remove(level);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * remove the value from all the filters it was registered with
+	 * @param value
+	 */
+	public synchronized void removeAll(T value) {
+		size -= removeAll(root, value);
+	}
+
+	private int removeAll(Node<T> node, T value) {
+		int removed = node.values.remove(value) ? 1 : 0;
+		for(String level : node.children.keySet()) {
+			Node<T> child = node.children.get(level);
+			removed += removeAll(child, value);
+			if(child.isEmpty()) {
+				node.children.remove(level);
+			}
+		}
+		Node<T> plus = node.plus;
+		if(plus != null) {
+			removed += removeAll(plus, value);
+			if(plus.isEmpty()) {
+				node.plus = null;
+			}
+		}
+		Node<T> hash = node.hash;
+		if(hash != null) {
+			removed += removeAll(hash, value);
+			if(hash.isEmpty()) {
+				node.hash = null;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return true if no value is registered
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param topic the topic of a message, without wildcards
+	 * @return the values of all the filters matching the topic, each value once
+	 */
+	public List<T> match(String topic) {
+		List<T> matched = new ArrayList<T>(4);
+		match(topic, matched);
+		return matched;
+	}
+
+	/**
+	 * @param topic the topic of a message, without wildcards
+	 * @param matched the values of all the filters matching the topic are added, each value once
+	 */
+	public void match(String topic, List<T> matched) {
+		if(topic == null || topic.length() < 1 || size == 0) {
+			return;
+		}
+		if(topic.charAt(0) == '$') {
+			// topics starting with '$' are not matched by the wildcards of the first level
+			int end = topic.indexOf('/');
+			Node<T> child = root.children.get(end < 0 ? topic : topic.substring(0, end));
+			if(child != null) {
+				match(child, topic, end < 0 ? -1 : end + 1, matched);
+			}
+			return;
+		}
+		match(root, topic, 0, matched);
+	}
+
+	private void match(Node<T> node, String topic, int start, List<T> matched) {
+		Node<T> hash = node.hash;
+		if(hash != null) {
+			addValues(hash, matched);
+		}
+		if(start < 0) {
+			addValues(node, matched);
+			return;
+		}
+		int end = topic.indexOf('/', start);
+		int next = end < 0 ? -1 : end + 1;
+		Node<T> plus = node.plus;
+		if(plus != null) {
+			match(plus, topic, next, matched);
+		}
+		if(!node.children.isEmpty()) {
+			Node<T> child = node.children.get(end < 0 ? topic.substring(start) : topic.substring(start, end));
+			if(child != null) {
+				match(child, topic, next, matched);
+			}
+		}
+	}
+
+	private void addValues(Node<T> node, List<T> matched) {
+		for(T value : node.values) {
+			if(!matched.contains(value)) {
+				matched.add(value);
+			}
+		}
+	}
+}
@@ -0,0 +1,665 @@
+package com.yeild.mqtt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yeild.mqtt.broker.EmbeddedBroker;
+import com.yeild.mqtt.listener.OnConnectionStateListener;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+import com.yeild.mqtt.rpc.MqttRpc;
+import com.yeild.mqtt.rpc.RpcHandler;
+import com.yeild.mqtt.rpc.RpcRequest;
+import com.yeild.mqtt.stream.Subscriber;
+import com.yeild.mqtt.stream.Subscription;
+
+import junit.framework.TestCase;
+
+/**
+ * {@link MqttConnector} against the {@link EmbeddedBroker}.
+ */
+public class MqttConnectorIntegrationTest extends TestCase {
+	private EmbeddedBroker broker;
+	private File confDir;
+
+	@Override
+	protected void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+		confDir = File.createTempFile("mqtt-it", "");
+		confDir.delete();
+		confDir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		broker.stop();
+		File[] files = confDir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		confDir.delete();
+	}
+
+	private MqttConnector start(String clientId) throws IOException {
+		return start(clientId, new Properties());
+	}
+
+	private MqttConnector start(String clientId, Properties properties) throws IOException {
+		return start(clientId, properties, false);
+	}
+
+	private MqttConnector start(String clientId, Properties properties, boolean async) throws IOException {
+		MqttConnector connector = run(clientId, properties, async);
+		assertTrue(connector.waitLoginComplete(10*1000));
+		return connector;
+	}
+
+	private MqttConnector run(String clientId, Properties properties) throws IOException {
+		return run(clientId, properties, false);
+	}
+
+	/**
+	 * @param async true to run a {@link MqttAsyncConnector}
+	 */
+	private MqttConnector run(String clientId, Properties properties, boolean async) throws IOException {
+		properties.setProperty("mqtt.uri.ssl", "");
+		if(!properties.containsKey("mqtt.uri.tcp")) {
+			properties.setProperty("mqtt.uri.tcp", broker.getUri());
+		}
+		properties.setProperty("mqtt.clientid", clientId);
+		properties.setProperty("mqtt.persistence", "memory");
+		properties.setProperty("mqtt.jmx", "false");
+		OutputStream out = new FileOutputStream(new File(confDir, "mqtt.properties"));
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		MqttConfig config = new MqttConfig();
+		config.load(confDir.getPath() + File.separator);
+		MqttConnector connector = async ? new MqttAsyncConnector(config) : new MqttConnector(config);
+		Thread thread = new Thread(connector, "connector-" + clientId);
+		thread.setDaemon(true);
+		thread.start();
+		return connector;
+	}
+
+	private static class Received implements OnMqttMessageListener {
+		final LinkedBlockingQueue<PushMqttMessage> messages = new LinkedBlockingQueue<PushMqttMessage>();
+
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+			messages.add(pmessage);
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+		}
+	}
+
+	public void testPublishSubscribe() throws Exception {
+		MqttConnector subscriber = start("it-sub");
+		MqttConnector publisher = start("it-pub");
+		Received received = new Received();
+		subscriber.addMqttMessageListener("/it/+", received);
+		subscriber.subscribe("/it/+", 2);
+		for(int qos=0; qos<3; qos++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/q" + qos);
+			message.setPayload("payload" + qos);
+			message.setQos(qos);
+			assertTrue(publisher.pushMessage(message));
+		}
+		for(int qos=0; qos<3; qos++) {
+			PushMqttMessage message = received.messages.poll(5, TimeUnit.SECONDS);
+			assertNotNull(message);
+			assertEquals("/it/q" + qos, message.getTopic());
+			assertEquals("payload" + qos, new String(message.getPayload()));
+		}
+		publisher.stop();
+		subscriber.stop();
+	}
+
+	public void testCompressedPublish() throws Exception {
+		Properties compress = new Properties();
+		compress.setProperty("mqtt.compress", "deflate");
+		compress.setProperty("mqtt.compress.minsize", "64");
+		MqttConnector publisher = start("it-deflate", compress);
+		MqttConnector subscriber = start("it-plain");
+		Received received = new Received();
+		subscriber.addMqttMessageListener("/it/zip", received);
+		subscriber.subscribe("/it/zip", 1);
+		StringBuilder payload = new StringBuilder();
+		while(payload.length() < 4096) {
+			payload.append("{\"temperature\":21.5,\"humidity\":40}");
+		}
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/it/zip");
+		message.setPayload(payload.toString());
+		message.setQos(1);
+		assertTrue(publisher.pushMessage(message));
+		assertTrue(message.getPayload().length < payload.length());
+		PushMqttMessage arrived = received.messages.poll(5, TimeUnit.SECONDS);
+		assertNotNull(arrived);
+		assertEquals(payload.toString(), new String(arrived.getPayload()));
+		publisher.stop();
+		subscriber.stop();
+	}
+
+	public void testEnvelopePublish() throws Exception {
+		Properties envelope = new Properties();
+		envelope.setProperty("mqtt.push.envelope", "/it/sensor/+");
+		envelope.setProperty("mqtt.push.envelope.linger", "50");
+		MqttConnector publisher = start("it-envelope", envelope);
+		Properties unpack = new Properties();
+		unpack.setProperty("mqtt.receive.envelope", "/it/sensor/#");
+		MqttConnector subscriber = start("it-unpack", unpack);
+		Received received = new Received();
+		subscriber.addMqttMessageListener("/it/sensor/+", received);
+		subscriber.subscribe("/it/sensor/+", 1);
+		final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+		publisher.addMqttMessageListener(new OnMqttMessageListener() {
+			@Override
+			public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+			}
+
+			@Override
+			public void pushMessageResult(PushMqttMessage message, Error error) {
+				if(message.getTopic().startsWith("/it/sensor/")) {
+					results.add(new String(message.getPayload()) + (error == null ? "" : " failed"));
+				}
+			}
+		});
+		long publishes = broker.getPublishCount();
+		for(int i=0; i<100; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/sensor/1");
+			message.setPayload("r" + i);
+			assertTrue(publisher.pushMessage(message));
+		}
+		for(int i=0; i<100; i++) {
+			PushMqttMessage message = received.messages.poll(5, TimeUnit.SECONDS);
+			assertNotNull(message);
+			assertEquals("r" + i, new String(message.getPayload()));
+			assertEquals("r" + i, results.poll(5, TimeUnit.SECONDS));
+		}
+		assertTrue(broker.getPublishCount() - publishes < 10);
+		publisher.stop();
+		subscriber.stop();
+	}
+
+	/**
+	 * @return true if the value retained for the topic became the expected one in time
+	 */
+	private boolean awaitRetained(String topic, String expected, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while(System.currentTimeMillis() < deadline) {
+			byte[] payload = broker.getRetained(topic);
+			if(payload != null && expected.equals(new String(payload))) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return false;
+	}
+
+	public void testReconnectAfterForcedDisconnect() throws Exception {
+		MqttConnector connector = start("it-reconnect");
+		assertSame(connector, connector.getLoginFuture().get(1, TimeUnit.SECONDS));
+		assertEquals(ConnectionState.ONLINE, connector.getConnectionState());
+		final LinkedBlockingQueue<ConnectionState> states = new LinkedBlockingQueue<ConnectionState>();
+		connector.addConnectionStateListener(new OnConnectionStateListener() {
+			@Override
+			public void onConnectionStateChanged(MqttConnector connector, ConnectionState previous, ConnectionState state) {
+				states.add(state);
+			}
+		});
+		String willTopic = connector.getMqttConfig().getWillTopic();
+		assertTrue(awaitRetained(willTopic, "1", 5*1000));
+		long connects = broker.getConnectCount();
+		broker.disconnect("it-reconnect");
+		// the broker publishes the will, the connector its online message again after the reconnect
+		assertTrue(awaitRetained(willTopic, "0", 5*1000));
+		assertTrue(awaitRetained(willTopic, "1", 10*1000));
+		assertEquals(connects + 1, broker.getConnectCount());
+		assertEquals(1, connector.getMetrics().getReconnects().sum());
+		assertEquals(ConnectionState.RECONNECTING, states.poll(1, TimeUnit.SECONDS));
+		assertEquals(ConnectionState.ONLINE, states.poll(1, TimeUnit.SECONDS));
+		connector.stop();
+		assertEquals(ConnectionState.STOPPED, states.poll(1, TimeUnit.SECONDS));
+		assertFalse(connector.waitLoginComplete(0));
+	}
+
+	public void testFailoverToNextBroker() throws Exception {
+		EmbeddedBroker backup = new EmbeddedBroker();
+		backup.start();
+		try {
+			Properties failover = new Properties();
+			failover.setProperty("mqtt.uri.tcp", broker.getUri() + ", " + backup.getUri());
+			failover.setProperty("mqtt.connect.retry.initialdelay", "100");
+			MqttConnector connector = start("it-failover", failover);
+			assertNotNull(connector.getMqttConfig().getBrokerProber());
+			assertEquals(2, connector.getMqttConfig().getUris().length);
+			String first = connector.getServerURI();
+			EmbeddedBroker lost = first.equals(broker.getUri()) ? broker : backup;
+			EmbeddedBroker other = lost == broker ? backup : broker;
+			lost.stop();
+			long deadline = System.currentTimeMillis() + 10*1000;
+			while(!other.isConnected("it-failover") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertTrue(other.isConnected("it-failover"));
+			assertTrue(connector.waitLoginComplete(5*1000));
+			assertEquals(other.getUri(), connector.getServerURI());
+			connector.stop();
+		} finally {
+			backup.stop();
+		}
+	}
+
+	public void testStreamWithManualAck() throws Exception {
+		Properties manualAck = new Properties();
+		manualAck.setProperty("mqtt.receive.manualack", "true");
+		MqttConnector subscriber = start("it-stream", manualAck);
+		MqttConnector publisher = start("it-stream-pub");
+		final LinkedBlockingQueue<PushMqttMessage> received = new LinkedBlockingQueue<PushMqttMessage>();
+		final Subscription[] subscription = new Subscription[1];
+		subscriber.getMessagePublisher("/it/stream").subscribe(new Subscriber<PushMqttMessage>() {
+			@Override
+			public void onSubscribe(Subscription s) {
+				subscription[0] = s;
+			}
+
+			@Override
+			public void onNext(PushMqttMessage item) {
+				received.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+			}
+
+			@Override
+			public void onComplete() {
+			}
+		});
+		subscriber.subscribe("/it/stream", 1);
+		subscription[0].request(1);
+		for(int i=0; i<3; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/stream");
+			message.setPayload("m" + i);
+			message.setQos(1);
+			assertTrue(publisher.pushMessage(message));
+		}
+		assertEquals("m0", new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+		// the two buffered messages are not acked before the subscriber asks for them
+		long deadline = System.currentTimeMillis() + 5*1000;
+		while(subscriber.getPendingAckCount() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(2, subscriber.getPendingAckCount());
+		assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		subscription[0].request(2);
+		assertEquals("m1", new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+		assertEquals("m2", new String(received.poll(5, TimeUnit.SECONDS).getPayload()));
+		assertEquals(0, subscriber.getPendingAckCount());
+		publisher.stop();
+		subscriber.stop();
+	}
+
+	public void testPublishFuture() throws Exception {
+		MqttConnector connector = start("it-future");
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/it/future");
+		message.setPayload("acked");
+		message.setQos(1);
+		assertSame(message, connector.publish(message).get(5, TimeUnit.SECONDS));
+
+		PushMqttMessage wildcard = new PushMqttMessage();
+		wildcard.setTopic("/it/#");
+		MqttFuture<PushMqttMessage> rejected = connector.publish(wildcard);
+		assertTrue(rejected.isDone());
+		assertEquals(PublishException.REASON_INVALID_TOPIC, ((PublishException) rejected.getCause()).getReasonCode());
+		connector.stop();
+		rejected = connector.publish(message);
+		assertEquals(PublishException.REASON_STOPPED, ((PublishException) rejected.getCause()).getReasonCode());
+		assertEquals(PublishException.REASON_NOT_STARTED
+				, ((PublishException) new MqttConnector(connector.getMqttConfig()).publish(message).getCause()).getReasonCode());
+	}
+
+	public void testPublishCredits() throws Exception {
+		broker.setRejectConnect(true);
+		Properties small = new Properties();
+		small.setProperty("mqtt.push.messagequeue", "2");
+		small.setProperty("mqtt.connect.retry.initialdelay", "100");
+		MqttConnector connector = run("it-credits", small);
+		long deadline = System.currentTimeMillis() + 5*1000;
+		while(connector.getAvailableCredits() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(2, connector.getAvailableCredits());
+		MqttFuture<?>[] futures = new MqttFuture<?>[2];
+		for(int i=0; i<futures.length; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/credits");
+			message.setPayload("m" + i);
+			message.setQos(1);
+			futures[i] = connector.publish(message);
+			assertFalse(futures[i].isDone());
+		}
+		// no credits left while the broker refuses the connect, the producer is turned away at once
+		PushMqttMessage overflow = new PushMqttMessage();
+		overflow.setTopic("/it/credits");
+		MqttFuture<PushMqttMessage> rejected = connector.publish(overflow);
+		assertTrue(rejected.isDone());
+		assertEquals(PublishException.REASON_QUEUE_FULL, ((PublishException) rejected.getCause()).getReasonCode());
+		assertFalse(connector.pushMessageAsync(overflow));
+		assertFalse(connector.awaitCredits(1, 100, TimeUnit.MILLISECONDS));
+
+		broker.setRejectConnect(false);
+		assertTrue(connector.awaitCredits(2, 10, TimeUnit.SECONDS));
+		for(MqttFuture<?> future : futures) {
+			assertNotNull(future.get(5, TimeUnit.SECONDS));
+		}
+		connector.stop();
+	}
+
+	public void testRpcRoundTrip() throws Exception {
+		MqttConnector server = start("it-server");
+		MqttConnector client = start("it-client");
+		MqttRpc serverRpc = new MqttRpc(server);
+		serverRpc.registerHandler("echo", new RpcHandler() {
+			@Override
+			public void onRequest(RpcRequest request) {
+				request.reply(request.getPayload());
+			}
+		});
+		serverRpc.start();
+		MqttRpc clientRpc = new MqttRpc(client);
+		clientRpc.start();
+		MqttFuture<byte[]> reply = clientRpc.call("it-server", "echo", "ping".getBytes());
+		assertEquals("ping", new String(reply.get(10, TimeUnit.SECONDS)));
+		assertEquals(0, clientRpc.getPendingCount());
+		clientRpc.stop();
+		serverRpc.stop();
+		client.stop();
+		server.stop();
+	}
+
+	/**
+	 * records the push results of the messages under a topic prefix, by payload and in order
+	 */
+	private static class Results implements OnMqttMessageListener {
+		final String prefix;
+		final LinkedBlockingQueue<String> acked = new LinkedBlockingQueue<String>();
+		final ConcurrentHashMap<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+
+		Results(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+			if(message.getTopic() == null || !message.getTopic().startsWith(prefix)) {
+				return;
+			}
+			String payload = new String(message.getPayload());
+			counts.putIfAbsent(payload, new AtomicInteger());
+			counts.get(payload).incrementAndGet();
+			if(error == null) {
+				acked.add(payload);
+			}
+		}
+
+		/**
+		 * @return true if every one of the payloads got exactly one result in time
+		 */
+		boolean awaitOnce(int messages, String payloadPrefix, long timeout) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeout;
+			while(counts.size() < messages && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			// a second result would come right after the first one
+			Thread.sleep(100);
+			for(int i=0; i<messages; i++) {
+				AtomicInteger count = counts.get(payloadPrefix + i);
+				if(count == null || count.get() != 1) {
+					return false;
+				}
+			}
+			return counts.size() == messages;
+		}
+	}
+
+	private static Properties batch() {
+		Properties batch = new Properties();
+		batch.setProperty("mqtt.push.batchsize", "8");
+		batch.setProperty("mqtt.push.linger", "20");
+		batch.setProperty("mqtt.push.inflight", "8");
+		batch.setProperty("mqtt.push.retry.initialdelay", "100");
+		batch.setProperty("mqtt.connect.retry.initialdelay", "100");
+		return batch;
+	}
+
+	public void testBatchPublish() throws Exception {
+		MqttConnector publisher = start("it-batch", batch());
+		MqttConnector subscriber = start("it-batch-sub");
+		Received received = new Received();
+		subscriber.addMqttMessageListener("/it/batch", received);
+		subscriber.subscribe("/it/batch", 1);
+		Results results = new Results("/it/batch");
+		publisher.addMqttMessageListener(results);
+		broker.setLatency(20);
+		int messages = 200;
+		long publishes = broker.getPublishCount();
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/batch");
+			message.setPayload("b" + i);
+			message.setQos(1);
+			assertTrue(publisher.pushMessageAsync(message));
+			if(i % 50 == 0) {
+				// let the linger time run out now and then, so batches of every size go out
+				Thread.sleep(30);
+			}
+		}
+		// acked once each, in push order
+		for(int i=0; i<messages; i++) {
+			assertEquals("b" + i, results.acked.poll(10, TimeUnit.SECONDS));
+		}
+		assertTrue(results.awaitOnce(messages, "b", 1000));
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = received.messages.poll(10, TimeUnit.SECONDS);
+			assertNotNull(message);
+			assertEquals("b" + i, new String(message.getPayload()));
+		}
+		assertNull(received.messages.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(messages, broker.getPublishCount() - publishes);
+		assertEquals(0, publisher.getPushQueueSize());
+		broker.setLatency(0);
+		publisher.stop();
+		subscriber.stop();
+	}
+
+	public void testBatchRequeueOnDisconnectAndStop() throws Exception {
+		MqttConnector publisher = start("it-batch-drop", batch());
+		Results results = new Results("/it/batch/drop");
+		publisher.addMqttMessageListener(results);
+		broker.setLatency(100);
+		int messages = 64;
+		MqttFuture<?>[] futures = new MqttFuture<?>[messages];
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/batch/drop");
+			message.setPayload("d" + i);
+			message.setQos(1);
+			futures[i] = publisher.publish(message);
+		}
+		// the connection drops while a batch waits for its acks and the next ones are queued
+		Thread.sleep(150);
+		assertTrue(broker.disconnect("it-batch-drop"));
+		broker.setLatency(0);
+		for(MqttFuture<?> future : futures) {
+			assertNotNull(future.get(20, TimeUnit.SECONDS));
+		}
+		assertTrue(results.awaitOnce(messages, "d", 1000));
+
+		// stopped while the publish thread lingers for a batch or waits for the acks
+		Results stopped = new Results("/it/batch/stop");
+		publisher.addMqttMessageListener(stopped);
+		broker.setLatency(100);
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/batch/stop");
+			message.setPayload("s" + i);
+			message.setQos(1);
+			futures[i] = publisher.publish(message);
+		}
+		Thread.sleep(50);
+		publisher.stop();
+		// published before the stop or failed by it, nothing is left pending
+		for(MqttFuture<?> future : futures) {
+			try {
+				future.get(10, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertEquals(PublishException.REASON_STOPPED, ((PublishException) e.getCause()).getReasonCode());
+			}
+		}
+		assertTrue(stopped.awaitOnce(messages, "s", 5000));
+		broker.setLatency(0);
+	}
+
+	/**
+	 * counts the push results of the messages under a topic prefix and checks them against what the broker received
+	 */
+	private class AckChecker implements OnMqttMessageListener {
+		final String prefix;
+		final long publishesBefore;
+		final long latencyNanos;
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		volatile int maxOutstanding = 0;
+		volatile String violation;
+
+		AckChecker(String prefix, long latency) {
+			this.prefix = prefix;
+			this.publishesBefore = broker.getPublishCount();
+			this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latency);
+		}
+
+		@Override
+		public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+		}
+
+		@Override
+		public void pushMessageResult(PushMqttMessage message, Error error) {
+			if(message.getTopic() == null || !message.getTopic().startsWith(prefix)) {
+				return;
+			}
+			if(error != null) {
+				failed.incrementAndGet();
+				return;
+			}
+			int done = completed.incrementAndGet();
+			long received = broker.getPublishCount() - publishesBefore;
+			if(received < done) {
+				violation = "completed " + done + " while the broker received " + received;
+			}
+			// the broker delays its ack by the latency
+			if(System.nanoTime() - message.getPublishNanos() < latencyNanos) {
+				violation = message.getTopic() + " completed before its ack";
+			}
+			// the slot of this message is free again, the ones received but not completed are still in flight
+			maxOutstanding = Math.max(maxOutstanding, (int) (received - done));
+		}
+	}
+
+	public void testAsyncInflightWindow() throws Exception {
+		Properties window = new Properties();
+		window.setProperty("mqtt.push.inflight", "4");
+		MqttAsyncConnector connector = (MqttAsyncConnector) start("it-async", window, true);
+		assertTrue(awaitRetained(connector.getMqttConfig().getWillTopic(), "1", 5*1000));
+		broker.setLatency(100);
+		AckChecker checker = new AckChecker("/it/async/", 100);
+		connector.addMqttMessageListener(checker);
+		int messages = 40;
+		MqttFuture<?>[] futures = new MqttFuture<?>[messages];
+		long start = System.nanoTime();
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/async/" + i);
+			message.setPayload("m" + i);
+			message.setQos(1);
+			futures[i] = connector.publish(message);
+		}
+		// nothing completes before the broker acked it
+		Thread.sleep(50);
+		for(MqttFuture<?> future : futures) {
+			assertFalse(future.isDone());
+		}
+		for(MqttFuture<?> future : futures) {
+			assertNotNull(future.get(10, TimeUnit.SECONDS));
+		}
+		// the listeners are called right after the future completed
+		long deadline = System.currentTimeMillis() + 1000;
+		while(checker.completed.get() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertNull(checker.violation, checker.violation);
+		assertEquals(messages, checker.completed.get());
+		assertEquals(0, checker.failed.get());
+		// the window was used but never exceeded
+		assertTrue("outstanding " + checker.maxOutstanding, checker.maxOutstanding > 1 && checker.maxOutstanding <= 4);
+		// at most 4 round trips of 100ms at a time
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(messages / 4 * 100));
+		assertEquals(4, connector.inflightWindow.availablePermits());
+		broker.setLatency(0);
+		connector.stop();
+	}
+
+	public void testAsyncFailuresRetried() throws Exception {
+		Properties retry = new Properties();
+		retry.setProperty("mqtt.push.inflight", "4");
+		retry.setProperty("mqtt.push.retry.initialdelay", "100");
+		retry.setProperty("mqtt.connect.retry.initialdelay", "100");
+		MqttAsyncConnector connector = (MqttAsyncConnector) start("it-async-retry", retry, true);
+		assertTrue(awaitRetained(connector.getMqttConfig().getWillTopic(), "1", 5*1000));
+		broker.setLatency(300);
+		int messages = 8;
+		MqttFuture<?>[] futures = new MqttFuture<?>[messages];
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/it/async/retry");
+			message.setPayload("m" + i);
+			message.setQos(1);
+			futures[i] = connector.publish(message);
+		}
+		// the connection drops while the publishes wait for their acks
+		Thread.sleep(100);
+		assertTrue(broker.disconnect("it-async-retry"));
+		broker.setLatency(0);
+		for(MqttFuture<?> future : futures) {
+			assertNotNull(future.get(20, TimeUnit.SECONDS));
+		}
+		// the in-flight publishes failed and went through publishFailed, the window slots came back
+		assertTrue(connector.getMetrics().getRetries().sum() > 0);
+		assertEquals(0, connector.getPublishFailedCount());
+		assertEquals(4, connector.inflightWindow.availablePermits());
+		connector.stop();
+	}
+}
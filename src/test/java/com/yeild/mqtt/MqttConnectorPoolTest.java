@@ -0,0 +1,172 @@
+package com.yeild.mqtt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import com.yeild.mqtt.broker.EmbeddedBroker;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MqttConnectorPool}, the connections go to the {@link EmbeddedBroker}.
+ */
+public class MqttConnectorPoolTest extends TestCase {
+	private EmbeddedBroker broker;
+	private File confDir;
+	private MqttConnectorPool pool;
+
+	@Override
+	protected void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+		confDir = File.createTempFile("mqtt-pool", "");
+		confDir.delete();
+		confDir.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(pool != null) {
+			pool.stop();
+		}
+		broker.stop();
+		File[] files = confDir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		confDir.delete();
+	}
+
+	private static MqttConnectorPool pool(int size) {
+		MqttConfig config = new MqttConfig();
+		config.setClientid("pool");
+		return new MqttConnectorPool(config, size);
+	}
+
+	private MqttConfig loadConfig(String clientId) throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("mqtt.uri.ssl", "");
+		properties.setProperty("mqtt.uri.tcp", broker.getUri());
+		properties.setProperty("mqtt.clientid", clientId);
+		properties.setProperty("mqtt.persistence", "memory");
+		properties.setProperty("mqtt.jmx", "false");
+		OutputStream out = new FileOutputStream(new File(confDir, "mqtt.properties"));
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		MqttConfig config = new MqttConfig();
+		config.load(confDir.getPath() + File.separator);
+		return config;
+	}
+
+	private static int indexOf(MqttConnectorPool pool, MqttConnector connector) {
+		for(int i=0; i<pool.size(); i++) {
+			if(pool.getConnector(i) == connector) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void testDerivedClientIds() {
+		MqttConnectorPool pool = pool(3);
+		assertEquals(3, pool.size());
+		for(int i=0; i<3; i++) {
+			assertEquals("pool-" + i, pool.getConnector(i).getMqttConfig().getClientid());
+		}
+	}
+
+	public void testTopicAlwaysOnSameConnector() {
+		MqttConnectorPool pool = pool(4);
+		MqttConnectorPool same = pool(4);
+		for(int i=0; i<1000; i++) {
+			String topic = "/device/" + i + "/status";
+			MqttConnector connector = pool.getConnector(topic);
+			assertSame(connector, pool.getConnector(topic));
+			// the ring only depends on the client ids
+			assertEquals(indexOf(pool, connector), indexOf(same, same.getConnector(topic)));
+		}
+		MqttConnectorPool single = pool(1);
+		assertSame(single.getConnector(0), single.getConnector("/any"));
+	}
+
+	public void testSpread() {
+		MqttConnectorPool pool = pool(4);
+		int topics = 10000;
+		int[] counts = new int[pool.size()];
+		for(int i=0; i<topics; i++) {
+			counts[indexOf(pool, pool.getConnector("/device/" + i + "/status"))]++;
+		}
+		for(int count : counts) {
+			// a quarter each, give or take
+			assertTrue("unbalanced: " + count, count > topics / 4 * 0.7 && count < topics / 4 * 1.3);
+		}
+	}
+
+	public void testGrowingMovesFewTopics() {
+		MqttConnectorPool four = pool(4);
+		MqttConnectorPool five = pool(5);
+		int topics = 10000;
+		int moved = 0;
+		for(int i=0; i<topics; i++) {
+			String topic = "/device/" + i + "/status";
+			int before = indexOf(four, four.getConnector(topic));
+			int after = indexOf(five, five.getConnector(topic));
+			if(before != after) {
+				// a topic only moves to the new connector
+				assertEquals(4, after);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, moved > topics / 5 * 0.7 && moved < topics / 5 * 1.3);
+	}
+
+	public void testStatsAndLogin() throws Exception {
+		pool = new MqttConnectorPool(loadConfig("pool"), 3);
+		pool.start();
+		assertTrue(pool.waitLoginComplete(10*1000));
+		assertTrue(pool.isLogined());
+		assertEquals(3, pool.getLoginedCount());
+		for(int i=0; i<3; i++) {
+			assertTrue(broker.isConnected("pool-" + i));
+		}
+		int messages = 60;
+		for(int i=0; i<messages; i++) {
+			PushMqttMessage message = new PushMqttMessage();
+			message.setTopic("/pool/" + i);
+			message.setPayload("payload" + i);
+			message.setQos(1);
+			assertTrue(pool.pushMessage(message));
+		}
+		long deadline = System.currentTimeMillis() + 10*1000;
+		while(pool.getPublishedCount() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		long sum = 0;
+		for(int i=0; i<pool.size(); i++) {
+			sum += pool.getConnector(i).getPublishedCount();
+		}
+		assertTrue(pool.getPublishedCount() >= messages);
+		assertEquals(sum, pool.getPublishedCount());
+		assertEquals(0, pool.getPublishFailedCount());
+		assertEquals(0, pool.getPushQueueSize());
+		assertEquals(0, pool.getPendingRetryCount());
+	}
+
+	public void testWaitLoginTimesOutForWholePool() throws Exception {
+		broker.setRejectConnect(true);
+		pool = new MqttConnectorPool(loadConfig("pool-rejected"), 3);
+		pool.start();
+		long start = System.currentTimeMillis();
+		assertFalse(pool.waitLoginComplete(500));
+		// the timeout is for the pool, not for each connector
+		assertTrue(System.currentTimeMillis() - start < 1500);
+		assertEquals(0, pool.getLoginedCount());
+	}
+}
@@ -0,0 +1,190 @@
+package com.yeild.mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.yeild.mqtt.envelope.EnvelopeBatcher;
+import com.yeild.mqtt.listener.OnMqttMessageListener;
+import com.yeild.mqtt.queue.LinkedPushMessageQueue;
+import com.yeild.mqtt.retry.RetryPolicy;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the reconnects and the futures of {@link MqttConnector}, without a broker.
+ */
+public class MqttConnectorTest extends TestCase {
+
+	/**
+	 * connected by every reconnect, the first connection is lost again right after the reconnect loop saw it connected
+	 */
+	private static class FlappingConnector extends MqttConnector {
+		final AtomicInteger reconnects = new AtomicInteger();
+		volatile boolean connected = false;
+		volatile boolean dropOnce = true;
+
+		FlappingConnector() {
+			super(new MqttConfig());
+			connectPolicy = new RetryPolicy(-1, 1, 1);
+		}
+
+		@Override
+		protected void reconnectClient() throws MqttException {
+			reconnects.incrementAndGet();
+			connected = true;
+		}
+
+		@Override
+		protected boolean isClientConnected() {
+			if(connected && dropOnce) {
+				dropOnce = false;
+				connected = false;
+				// paho reports the loss on its own thread, here before the reconnect thread finished
+				connectionLost(new Exception("dropped after connack"));
+				return true;
+			}
+			return connected;
+		}
+	}
+
+	public void testConnectionLostWhileReconnectFinishes() throws Exception {
+		FlappingConnector connector = new FlappingConnector();
+		connector.connectionLost(new Exception("lost"));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connector.reconnects.get() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, connector.reconnects.get());
+		assertTrue(connector.isClientConnected());
+		connector.stop();
+	}
+
+	private static PushMqttMessage message(String topic) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setPayload("x");
+		return message;
+	}
+
+	private static void assertStopped(MqttFuture<PushMqttMessage> future) throws Exception {
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("published after stop");
+		} catch (ExecutionException e) {
+			assertEquals(PublishException.REASON_STOPPED, ((PublishException) e.getCause()).getReasonCode());
+		}
+	}
+
+	public void testStopFailsPendingFutures() throws Exception {
+		final MqttConnector connector = new MqttConnector(new MqttConfig());
+		connector.pushMsgQueue = new LinkedPushMessageQueue(10);
+		connector.retryPolicy = new RetryPolicy(-1, 60000, 60000);
+		connector.envelopes = new EnvelopeBatcher(new EnvelopeBatcher.Sink() {
+			@Override
+			public boolean offer(PushMqttMessage message) {
+				return connector.pushMsgQueue.offer(message);
+			}
+		}, "/env/#", 1024, 60000);
+		PushMqttMessage failed = message("/retry");
+		MqttFuture<PushMqttMessage> retried = connector.publish(failed);
+		assertSame(failed, connector.pushMsgQueue.poll());
+		connector.publishFailed(failed, new Exception("no ack"));
+		MqttFuture<PushMqttMessage> queued = connector.publish(message("/queued"));
+		MqttFuture<PushMqttMessage> behind = connector.publish(message("/behind"));
+		MqttFuture<PushMqttMessage> enveloped = connector.publish(message("/env/1"));
+		assertEquals(1, connector.getPendingRetryCount());
+		PushMqttMessage taken = message("/taken");
+		MqttFuture<PushMqttMessage> inHand = new MqttFuture<PushMqttMessage>();
+		taken.setFuture(inHand);
+		// the publish thread takes /queued and waits for a connection that never comes
+		Thread publishThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					connector.runPublishLoop();
+				} finally {
+					connector.publishLoopExited();
+				}
+			}
+		};
+		publishThread.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while(connector.getPushQueueSize() > 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, connector.getPushQueueSize());
+		assertFalse(queued.isDone() || behind.isDone() || enveloped.isDone() || retried.isDone());
+
+		connector.stop();
+		publishThread.join(5000);
+		assertFalse(publishThread.isAlive());
+		assertStopped(queued);
+		assertStopped(behind);
+		assertStopped(enveloped);
+		assertStopped(retried);
+		assertEquals(0, connector.getPendingRetryCount());
+		// a publish loop putting its message back after the stop
+		connector.requeue(taken);
+		assertStopped(inHand);
+		assertEquals(0, connector.getPushQueueSize());
+		assertStopped(connector.publish(message("/late")));
+	}
+
+	public void testEnvelopesUnpackedForConfiguredTopics() {
+		MqttConfig config = new MqttConfig();
+		config.setReceiveEnvelope("/env/#");
+		MqttConnector connector = new MqttConnector(config);
+		connector.receiveEnvelopes = connector.createReceiveEnvelopes();
+		final List<String> received = new ArrayList<String>();
+		connector.addMqttMessageListener(new OnMqttMessageListener() {
+			@Override
+			public void onMqttReceiveMessage(PushMqttMessage pmessage) {
+				received.add(pmessage.getTopic() + ":" + new String(pmessage.getPayload()));
+			}
+
+			@Override
+			public void pushMessageResult(PushMqttMessage message, Error error) {
+			}
+		});
+		byte[] envelope = new byte[] {0, 'M', 'B', 1, 1, 'a', 1, 'b'};
+		// the received topic keeps the characters setTopic would remove
+		PushMqttMessage packed = PushMqttMessage.wrap("/env/room.1", new MqttMessage(envelope.clone()));
+		connector.deliver(packed);
+		assertEquals(2, received.size());
+		assertEquals("/env/room.1:a", received.get(0));
+		assertEquals("/env/room.1:b", received.get(1));
+
+		// the same bytes on another topic are a plain payload
+		received.clear();
+		PushMqttMessage plain = new PushMqttMessage();
+		plain.setTopic("/other");
+		plain.setPayload(envelope.clone());
+		connector.deliver(plain);
+		assertEquals(1, received.size());
+		assertEquals("/other:" + new String(envelope), received.get(0));
+
+		// nothing is unpacked without mqtt.receive.envelope
+		received.clear();
+		connector.receiveEnvelopes = new MqttConnector(new MqttConfig()).createReceiveEnvelopes();
+		assertNull(connector.receiveEnvelopes);
+		packed.setPayload(envelope.clone());
+		connector.deliver(packed);
+		assertEquals(1, received.size());
+	}
+
+	public void testPublishAfterPublishThreadExited() throws Exception {
+		MqttConnector connector = new MqttConnector(new MqttConfig());
+		connector.pushMsgQueue = new LinkedPushMessageQueue(10);
+		// the publish thread left its loop while a producer was still queueing
+		connector.publishLoopExited();
+		MqttFuture<PushMqttMessage> late = connector.publish(message("/late"));
+		assertStopped(late);
+		assertEquals(0, connector.getPushQueueSize());
+	}
+}
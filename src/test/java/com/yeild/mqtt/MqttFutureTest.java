@@ -0,0 +1,63 @@
+package com.yeild.mqtt;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.yeild.mqtt.listener.MqttFutureListener;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MqttFuture}.
+ */
+public class MqttFutureTest extends TestCase {
+
+	public void testCompleteOnce() throws Exception {
+		MqttFuture<String> future = new MqttFuture<String>();
+		final StringBuilder notified = new StringBuilder();
+		future.addListener(new MqttFutureListener<String>() {
+			@Override
+			public void onSuccess(String result) {
+				notified.append(result);
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				notified.append("failed");
+			}
+		});
+		assertFalse(future.isDone());
+		assertTrue(future.complete("ok"));
+		assertFalse(future.fail(new Exception()));
+		assertEquals("ok", future.get());
+		assertEquals("ok", notified.toString());
+	}
+
+	public void testFailure() throws Exception {
+		MqttFuture<String> future = MqttFuture.failed(new IllegalStateException("broken"));
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("no exception");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		assertFalse(future.isSuccess());
+	}
+
+	public void testTimeout() throws Exception {
+		final MqttFuture<String> future = new MqttFuture<String>();
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail("no timeout");
+		} catch (TimeoutException e) {
+		}
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				future.complete("late");
+			}
+		}).start();
+		assertEquals("late", future.get(5, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,85 @@
+package com.yeild.mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the wrapped messages of {@link PushMqttMessage}.
+ */
+public class PushMqttMessageTest extends TestCase {
+
+	/**
+	 * a received message, paho sets the duplicate flag
+	 */
+	private static class ReceivedMessage extends MqttMessage {
+		ReceivedMessage(byte[] payload, boolean duplicate) {
+			super(payload);
+			setDuplicate(duplicate);
+		}
+	}
+
+	private static MqttMessage received() {
+		MqttMessage message = new ReceivedMessage("payload".getBytes(), true);
+		message.setId(7);
+		message.setQos(2);
+		message.setRetained(true);
+		return message;
+	}
+
+	public void testWrapReadsThrough() {
+		MqttMessage message = received();
+		PushMqttMessage wrapped = PushMqttMessage.wrap("/a/b", message);
+		assertEquals("/a/b", wrapped.getTopic());
+		assertEquals(7, wrapped.getId());
+		assertEquals(2, wrapped.getQos());
+		assertTrue(wrapped.isRetained());
+		assertTrue(wrapped.isDuplicate());
+		// not copied
+		assertSame(message.getPayload(), wrapped.getPayload());
+		message.setQos(1);
+		assertEquals(1, wrapped.getQos());
+	}
+
+	public void testModifyCopiesFirst() {
+		MqttMessage message = received();
+		byte[] payload = message.getPayload();
+		PushMqttMessage wrapped = PushMqttMessage.wrap("/a/b", message);
+		wrapped.setQos(0);
+		assertEquals(0, wrapped.getQos());
+		// the other fields were copied before the change
+		assertEquals(7, wrapped.getId());
+		assertTrue(wrapped.isRetained());
+		assertTrue(wrapped.isDuplicate());
+		assertSame(payload, wrapped.getPayload());
+		// the wrapped message is left alone and no longer read
+		assertEquals(2, message.getQos());
+		message.setRetained(false);
+		message.setPayload("changed".getBytes());
+		assertTrue(wrapped.isRetained());
+		assertEquals("payload", new String(wrapped.getPayload()));
+	}
+
+	public void testEachSetterCopies() {
+		MqttMessage message = received();
+		PushMqttMessage wrapped = PushMqttMessage.wrap("/a/b", message);
+		wrapped.setPayload("new".getBytes());
+		assertEquals("payload", new String(message.getPayload()));
+		assertEquals(2, wrapped.getQos());
+
+		wrapped = PushMqttMessage.wrap("/a/b", message);
+		wrapped.setRetained(false);
+		assertTrue(message.isRetained());
+		assertEquals(7, wrapped.getId());
+
+		wrapped = PushMqttMessage.wrap("/a/b", message);
+		wrapped.setId(9);
+		assertEquals(7, message.getId());
+		assertEquals("payload", new String(wrapped.getPayload()));
+
+		wrapped = PushMqttMessage.wrap("/a/b", message);
+		wrapped.clearPayload();
+		assertEquals(0, wrapped.getPayload().length);
+		assertEquals("payload", new String(message.getPayload()));
+	}
+}
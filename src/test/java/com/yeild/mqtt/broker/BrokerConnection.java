@@ -0,0 +1,371 @@
+package com.yeild.mqtt.broker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.mqtt.broker.EmbeddedBroker.Subscription;
+import com.yeild.mqtt.utils.TopicTrie;
+
+/**
+ * one client connection of the {@link EmbeddedBroker}, read by its own thread
+ */
+class BrokerConnection {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CONNECT = 1;
+	private static final int PUBLISH = 3;
+	private static final int PUBACK = 4;
+	private static final int PUBREC = 5;
+	private static final int PUBREL = 6;
+	private static final int PUBCOMP = 7;
+	private static final int SUBSCRIBE = 8;
+	private static final int UNSUBSCRIBE = 10;
+	private static final int PINGREQ = 12;
+	private static final int DISCONNECT = 14;
+
+	protected Logger logger = Logger.getLogger(getClass());
+	private final EmbeddedBroker broker;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+	private final ConcurrentHashMap<String, Subscription> subscriptions = new ConcurrentHashMap<String, Subscription>();
+	/**
+	 * the qos 2 messages received and not released yet, a duplicate of them is not routed again
+	 */
+	private final Set<Integer> receivedQos2 = new HashSet<Integer>();
+	private volatile String clientId;
+	private String willTopic;
+	private byte[] willPayload;
+	private int willQos;
+	private boolean willRetain;
+	private int nextPacketId = 0;
+
+	BrokerConnection(EmbeddedBroker broker, Socket socket) throws IOException {
+		this.broker = broker;
+		this.socket = socket;
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	void start() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readLoop();
+			}
+		}, "embedded-broker-connection-" + socket.getPort());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	String getClientId() {
+		return clientId;
+	}
+
+	Collection<Subscription> getSubscriptions() {
+		return subscriptions.values();
+	}
+
+	String getWillTopic() {
+		return willTopic;
+	}
+
+	byte[] getWillPayload() {
+		return willPayload;
+	}
+
+	int getWillQos() {
+		return willQos;
+	}
+
+	boolean isWillRetain() {
+		return willRetain;
+	}
+
+	private void readLoop() {
+		boolean graceful = false;
+		try {
+			int header = in.read();
+			if(header < 0 || header >> 4 != CONNECT || !onConnect(readBody())) {
+				return;
+			}
+			while(!closed.get()) {
+				header = in.read();
+				if(header < 0) {
+					break;
+				}
+				byte[] body = readBody();
+				if(header >> 4 == DISCONNECT) {
+					graceful = true;
+					break;
+				}
+				onPacket(header, body);
+			}
+		} catch (SocketTimeoutException e) {
+			logger.debug(clientId + " keep alive expired");
+		} catch (IOException e) {
+			if(!closed.get()) {
+				logger.debug(clientId + " connection lost: " + e.getMessage());
+			}
+		} finally {
+			close(!graceful);
+		}
+	}
+
+	private byte[] readBody() throws IOException {
+		int length = 0;
+		int multiplier = 1;
+		int digit;
+		do {
+			digit = in.read();
+			if(digit < 0) {
+				throw new EOFException();
+			}
+			length += (digit & 0x7f) * multiplier;
+			multiplier *= 128;
+		} while((digit & 0x80) != 0);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+
+	/**
+	 * @return false if the connection was refused
+	 */
+	private boolean onConnect(byte[] body) throws IOException {
+		int position = 2 + readShort(body, 0);
+		int level = body[position++];
+		int flags = body[position++] & 0xff;
+		int keepAlive = readShort(body, position);
+		position += 2;
+		clientId = readString(body, position);
+		position += 2 + readShort(body, position);
+		if((flags & 0x04) != 0) {
+			willTopic = readString(body, position);
+			position += 2 + readShort(body, position);
+			int willLength = readShort(body, position);
+			willPayload = new byte[willLength];
+			System.arraycopy(body, position + 2, willPayload, 0, willLength);
+			willQos = (flags >> 3) & 3;
+			willRetain = (flags & 0x20) != 0;
+		}
+		int returnCode = level != 3 && level != 4 ? 1 : broker.connected(this);
+		send(new byte[]{0x20, 2, 0, (byte) returnCode});
+		if(returnCode != 0) {
+			return false;
+		}
+		if(keepAlive > 0) {
+			// the client is dropped after one and a half keep alive intervals of silence
+			socket.setSoTimeout(keepAlive * 1500);
+		}
+		return true;
+	}
+
+	private void onPacket(int header, byte[] body) throws IOException {
+		switch (header >> 4) {
+		case PUBLISH:
+			onPublish(header, body);
+			break;
+		case PUBREC:
+			send(new byte[]{0x62, 2, body[0], body[1]});
+			break;
+		case PUBREL:
+			synchronized (receivedQos2) {
+				receivedQos2.remove(readShort(body, 0));
+			}
+			send(new byte[]{0x70, 2, body[0], body[1]});
+			break;
+		case PUBACK:
+		case PUBCOMP:
+			break;
+		case SUBSCRIBE:
+			onSubscribe(body);
+			break;
+		case UNSUBSCRIBE:
+			onUnsubscribe(body);
+			break;
+		case PINGREQ:
+			send(new byte[]{(byte) 0xd0, 0});
+			break;
+		default:
+			throw new IOException("unexpected packet type " + (header >> 4));
+		}
+	}
+
+	private void onPublish(int header, byte[] body) {
+		int qos = (header >> 1) & 3;
+		boolean retain = (header & 1) != 0;
+		String topic = readString(body, 0);
+		int position = 2 + readShort(body, 0);
+		int packetId = 0;
+		if(qos > 0) {
+			packetId = readShort(body, position);
+			position += 2;
+		}
+		byte[] payload = new byte[body.length - position];
+		System.arraycopy(body, position, payload, 0, payload.length);
+		boolean duplicate = false;
+		if(qos == 2) {
+			synchronized (receivedQos2) {
+				duplicate = !receivedQos2.add(packetId);
+			}
+		}
+		if(!duplicate) {
+			broker.publish(topic, payload, qos, retain);
+		}
+		if(qos == 1) {
+			send(new byte[]{0x40, 2, (byte) (packetId >> 8), (byte) packetId});
+		} else if(qos == 2) {
+			send(new byte[]{0x50, 2, (byte) (packetId >> 8), (byte) packetId});
+		}
+	}
+
+	private void onSubscribe(byte[] body) {
+		int position = 2;
+		ByteArrayOutputStream granted = new ByteArrayOutputStream();
+		Collection<Subscription> added = new ArrayList<Subscription>();
+		while(position < body.length) {
+			String topicFilter = readString(body, position);
+			position += 2 + readShort(body, position);
+			int qos = Math.min(body[position++] & 3, 2);
+			try {
+				TopicTrie.validateFilter(topicFilter);
+			} catch (IllegalArgumentException e) {
+				granted.write(0x80);
+				continue;
+			}
+			Subscription subscription = new Subscription(this, topicFilter, qos);
+			broker.subscribed(subscription, subscriptions.put(topicFilter, subscription));
+			added.add(subscription);
+			granted.write(qos);
+		}
+		byte[] codes = granted.toByteArray();
+		ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		packet.write(0x90);
+		writeLength(packet, 2 + codes.length);
+		packet.write(body, 0, 2);
+		packet.write(codes, 0, codes.length);
+		send(packet.toByteArray());
+		for(Subscription subscription : added) {
+			broker.sendRetained(subscription);
+		}
+	}
+
+	private void onUnsubscribe(byte[] body) {
+		int position = 2;
+		while(position < body.length) {
+			String topicFilter = readString(body, position);
+			position += 2 + readShort(body, position);
+			Subscription subscription = subscriptions.remove(topicFilter);
+			if(subscription != null) {
+				broker.unsubscribed(subscription);
+			}
+		}
+		send(new byte[]{(byte) 0xb0, 2, body[0], body[1]});
+	}
+
+	/**
+	 * send a message routed to this client
+	 */
+	void deliver(String topic, byte[] payload, int qos, boolean retain) {
+		byte[] topicBytes = topic.getBytes(UTF8);
+		ByteArrayOutputStream packet = new ByteArrayOutputStream(payload.length + topicBytes.length + 8);
+		packet.write(0x30 | (qos << 1) | (retain ? 1 : 0));
+		writeLength(packet, 2 + topicBytes.length + (qos > 0 ? 2 : 0) + payload.length);
+		packet.write(topicBytes.length >> 8);
+		packet.write(topicBytes.length);
+		packet.write(topicBytes, 0, topicBytes.length);
+		if(qos > 0) {
+			int packetId;
+			synchronized (this) {
+				nextPacketId = nextPacketId % 0xffff + 1;
+				packetId = nextPacketId;
+			}
+			packet.write(packetId >> 8);
+			packet.write(packetId);
+		}
+		packet.write(payload, 0, payload.length);
+		send(packet.toByteArray());
+	}
+
+	private void send(final byte[] packet) {
+		long latency = broker.getLatency();
+		if(latency > 0) {
+			try {
+				broker.getDelayExecutor().schedule(new Runnable() {
+					@Override
+					public void run() {
+						write(packet);
+					}
+				}, latency, TimeUnit.MILLISECONDS);
+				return;
+			} catch (RejectedExecutionException e) {
+				// the broker is stopping
+				return;
+			}
+		}
+		write(packet);
+	}
+
+	private void write(byte[] packet) {
+		if(closed.get()) {
+			return;
+		}
+		try {
+			synchronized (out) {
+				out.write(packet);
+				out.flush();
+			}
+		} catch (IOException e) {
+			close(true);
+		}
+	}
+
+	/**
+	 * @param publishWill true if the client went away without DISCONNECT
+	 */
+	void close(boolean publishWill) {
+		if(!closed.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+		broker.closed(this, publishWill);
+	}
+
+	private static int readShort(byte[] body, int position) {
+		return ((body[position] & 0xff) << 8) | (body[position + 1] & 0xff);
+	}
+
+	private static String readString(byte[] body, int position) {
+		return new String(body, position + 2, readShort(body, position), UTF8);
+	}
+
+	private static void writeLength(ByteArrayOutputStream packet, int length) {
+		do {
+			int digit = length % 128;
+			length /= 128;
+			packet.write(length > 0 ? digit | 0x80 : digit);
+		} while(length > 0);
+	}
+}
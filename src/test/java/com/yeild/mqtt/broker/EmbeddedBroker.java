@@ -0,0 +1,339 @@
+package com.yeild.mqtt.broker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.yeild.mqtt.utils.TopicTrie;
+
+/**
+ * mqtt 3.1.1 broker listening on the loopback interface, for tests and benchmarks that need no network.
+ * It routes qos 0/1/2 publishes to the wildcard subscriptions, keeps retained messages and publishes the will
+ * of a client that went away without DISCONNECT. Every session is clean, nothing is kept for a client between
+ * its connections and nothing is redelivered.
+ * <p>
+ * Hooks for the tests: {@link #setLatency(long)} delays every packet the broker sends,
+ * {@link #disconnectAll()} and {@link #disconnect(String)} drop connections without notice,
+ * {@link #setRejectConnect(boolean)} answers CONNECT with server unavailable.
+ */
+public class EmbeddedBroker {
+	protected Logger logger = Logger.getLogger(getClass());
+	private final TopicTrie<Subscription> subscriptions = new TopicTrie<Subscription>();
+	private final ConcurrentHashMap<String, RetainedMessage> retained = new ConcurrentHashMap<String, RetainedMessage>();
+	private final ConcurrentHashMap<String, BrokerConnection> clients = new ConcurrentHashMap<String, BrokerConnection>();
+	private final CopyOnWriteArrayList<BrokerConnection> connections = new CopyOnWriteArrayList<BrokerConnection>();
+	private final AtomicLong connectCount = new AtomicLong();
+	private final AtomicLong publishCount = new AtomicLong();
+	private final AtomicLong deliverCount = new AtomicLong();
+	private ServerSocket serverSocket;
+	private ScheduledExecutorService delayExecutor;
+	private volatile boolean running = false;
+	private volatile long latency = 0;
+	private volatile boolean rejectConnect = false;
+
+	static final class Subscription {
+		final BrokerConnection connection;
+		final String topicFilter;
+		final int qos;
+
+		Subscription(BrokerConnection connection, String topicFilter, int qos) {
+			this.connection = connection;
+			this.topicFilter = topicFilter;
+			this.qos = qos;
+		}
+	}
+
+	static final class RetainedMessage {
+		final byte[] payload;
+		final int qos;
+
+		RetainedMessage(byte[] payload, int qos) {
+			this.payload = payload;
+			this.qos = qos;
+		}
+	}
+
+	/**
+	 * listen on an ephemeral port
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		start(0);
+	}
+
+	/**
+	 * @param port 0 for an ephemeral port
+	 * @throws IOException
+	 */
+	public synchronized void start(int port) throws IOException {
+		if(running) {
+			return;
+		}
+		serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		delayExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "embedded-broker-latency");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		running = true;
+		Thread acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop(serverSocket);
+			}
+		}, "embedded-broker-" + serverSocket.getLocalPort());
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * close the listener and all connections, the retained messages are dropped
+	 */
+	public synchronized void stop() {
+		if(!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+		for(BrokerConnection connection : connections) {
+			connection.close(false);
+		}
+		delayExecutor.shutdownNow();
+		retained.clear();
+	}
+
+	public String getUri() {
+		return "tcp://127.0.0.1:" + getPort();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void acceptLoop(ServerSocket server) {
+		while(running) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				BrokerConnection connection = new BrokerConnection(this, socket);
+				connections.add(connection);
+				connection.start();
+			} catch (IOException e) {
+				logger.debug("accept failed: " + e.getMessage());
+				try {
+					socket.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param latency every packet the broker sends is delayed by this time, measured in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency = Math.max(0, latency);
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @param rejectConnect true to answer every CONNECT with return code 3, server unavailable
+	 */
+	public void setRejectConnect(boolean rejectConnect) {
+		this.rejectConnect = rejectConnect;
+	}
+
+	public boolean isRejectConnect() {
+		return rejectConnect;
+	}
+
+	/**
+	 * drop every connection without notice, the clients see a lost connection and the wills are published
+	 */
+	public void disconnectAll() {
+		for(BrokerConnection connection : connections) {
+			connection.close(true);
+		}
+	}
+
+	/**
+	 * drop the connection of the client without notice
+	 * @param clientId
+	 * @return false if the client is not connected
+	 */
+	public boolean disconnect(String clientId) {
+		BrokerConnection connection = clients.get(clientId);
+		if(connection == null) {
+			return false;
+		}
+		connection.close(true);
+		return true;
+	}
+
+	public boolean isConnected(String clientId) {
+		return clients.containsKey(clientId);
+	}
+
+	/**
+	 * @return the clients connected right now
+	 */
+	public int getClientCount() {
+		return clients.size();
+	}
+
+	/**
+	 * @return the CONNECT packets accepted since start
+	 */
+	public long getConnectCount() {
+		return connectCount.get();
+	}
+
+	/**
+	 * @return the PUBLISH packets received from the clients, duplicates of qos 2 messages not counted
+	 */
+	public long getPublishCount() {
+		return publishCount.get();
+	}
+
+	/**
+	 * @return the messages sent to the subscribers
+	 */
+	public long getDeliverCount() {
+		return deliverCount.get();
+	}
+
+	/**
+	 * @param topic
+	 * @return the payload retained for the topic, null if there is none
+	 */
+	public byte[] getRetained(String topic) {
+		RetainedMessage message = retained.get(topic);
+		return message == null ? null : message.payload;
+	}
+
+	ScheduledExecutorService getDelayExecutor() {
+		return delayExecutor;
+	}
+
+	/**
+	 * @return 0 accepted, 2 identifier rejected, 3 server unavailable
+	 */
+	int connected(BrokerConnection connection) {
+		if(rejectConnect) {
+			return 3;
+		}
+		String clientId = connection.getClientId();
+		if(clientId.length() < 1) {
+			return 2;
+		}
+		BrokerConnection previous = clients.put(clientId, connection);
+		if(previous != null) {
+			// a client id is connected once, the old connection is taken over
+			previous.close(true);
+		}
+		connectCount.incrementAndGet();
+		return 0;
+	}
+
+	void closed(BrokerConnection connection, boolean publishWill) {
+		connections.remove(connection);
+		String clientId = connection.getClientId();
+		if(clientId != null) {
+			clients.remove(clientId, connection);
+		}
+		for(Subscription subscription : connection.getSubscriptions()) {
+			subscriptions.remove(subscription.topicFilter, subscription);
+		}
+		if(publishWill && connection.getWillTopic() != null && running) {
+			publish(connection.getWillTopic(), connection.getWillPayload(), connection.getWillQos(), connection.isWillRetain());
+		}
+	}
+
+	/**
+	 * register the subscription in place of the previous one for the same filter
+	 */
+	void subscribed(Subscription subscription, Subscription previous) {
+		if(previous != null) {
+			subscriptions.remove(previous.topicFilter, previous);
+		}
+		subscriptions.add(subscription.topicFilter, subscription);
+	}
+
+	/**
+	 * send the retained messages matching the filter of a new subscription
+	 */
+	void sendRetained(Subscription subscription) {
+		if(retained.isEmpty()) {
+			return;
+		}
+		TopicTrie<String> filter = new TopicTrie<String>();
+		filter.add(subscription.topicFilter, subscription.topicFilter);
+		for(Map.Entry<String, RetainedMessage> entry : retained.entrySet()) {
+			if(!filter.match(entry.getKey()).isEmpty()) {
+				RetainedMessage message = entry.getValue();
+				subscription.connection.deliver(entry.getKey(), message.payload, Math.min(message.qos, subscription.qos), true);
+			}
+		}
+	}
+
+	void unsubscribed(Subscription subscription) {
+		subscriptions.remove(subscription.topicFilter, subscription);
+	}
+
+	/**
+	 * route a message to the subscribers, a client matching several filters gets it once with the highest qos
+	 */
+	void publish(String topic, byte[] payload, int qos, boolean retain) {
+		publishCount.incrementAndGet();
+		if(retain) {
+			if(payload.length == 0) {
+				retained.remove(topic);
+			} else {
+				retained.put(topic, new RetainedMessage(payload, qos));
+			}
+		}
+		List<Subscription> matched = new ArrayList<Subscription>(4);
+		subscriptions.match(topic, matched);
+		if(matched.isEmpty()) {
+			return;
+		}
+		Map<BrokerConnection, Integer> receivers = new HashMap<BrokerConnection, Integer>();
+		for(Subscription subscription : matched) {
+			Integer granted = receivers.get(subscription.connection);
+			if(granted == null || granted < subscription.qos) {
+				receivers.put(subscription.connection, subscription.qos);
+			}
+		}
+		for(Map.Entry<BrokerConnection, Integer> receiver : receivers.entrySet()) {
+			receiver.getKey().deliver(topic, payload, Math.min(qos, receiver.getValue()), false);
+			deliverCount.incrementAndGet();
+		}
+	}
+}
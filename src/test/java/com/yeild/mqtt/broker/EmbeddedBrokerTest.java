@@ -0,0 +1,133 @@
+package com.yeild.mqtt.broker;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link EmbeddedBroker}, driven by plain paho clients.
+ */
+public class EmbeddedBrokerTest extends TestCase {
+	private EmbeddedBroker broker;
+
+	@Override
+	protected void setUp() throws Exception {
+		broker = new EmbeddedBroker();
+		broker.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		broker.stop();
+	}
+
+	private static class Received implements MqttCallback {
+		final LinkedBlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+		@Override
+		public void connectionLost(Throwable cause) {
+		}
+
+		@Override
+		public void messageArrived(String topic, MqttMessage message) throws Exception {
+			messages.add(topic + "=" + new String(message.getPayload()) + (message.isRetained() ? " retained" : ""));
+		}
+
+		@Override
+		public void deliveryComplete(IMqttDeliveryToken token) {
+		}
+
+		String poll() throws InterruptedException {
+			return messages.poll(5, TimeUnit.SECONDS);
+		}
+	}
+
+	private MqttClient connect(String clientId, MqttConnectOptions options, Received received) throws MqttException {
+		MqttClient client = new MqttClient(broker.getUri(), clientId, new MemoryPersistence());
+		if(received != null) {
+			client.setCallback(received);
+		}
+		client.connect(options == null ? new MqttConnectOptions() : options);
+		return client;
+	}
+
+	public void testWildcardRoutingAllQos() throws Exception {
+		Received received = new Received();
+		MqttClient subscriber = connect("subscriber", null, received);
+		subscriber.subscribe(new String[]{"/devices/+/status", "/devices/#"}, new int[]{2, 1});
+		MqttClient publisher = connect("publisher", null, null);
+		for(int qos=0; qos<3; qos++) {
+			publisher.publish("/devices/d" + qos + "/status", ("q" + qos).getBytes(), qos, false);
+		}
+		publisher.publish("/other/status", "x".getBytes(), 1, false);
+		// one copy per client even though both filters match
+		assertEquals("/devices/d0/status=q0", received.poll());
+		assertEquals("/devices/d1/status=q1", received.poll());
+		assertEquals("/devices/d2/status=q2", received.poll());
+		assertNull(received.messages.poll(200, TimeUnit.MILLISECONDS));
+		assertEquals(4, broker.getPublishCount());
+		publisher.disconnect();
+		subscriber.disconnect();
+	}
+
+	public void testRetainedMessage() throws Exception {
+		MqttClient publisher = connect("publisher", null, null);
+		publisher.publish("/devices/d1/online", "1".getBytes(), 1, true);
+		assertEquals("1", new String(broker.getRetained("/devices/d1/online")));
+		Received received = new Received();
+		MqttClient subscriber = connect("subscriber", null, received);
+		subscriber.subscribe("/devices/+/online", 1);
+		assertEquals("/devices/d1/online=1 retained", received.poll());
+		publisher.publish("/devices/d1/online", new byte[0], 1, true);
+		assertEquals("/devices/d1/online=", received.poll());
+		assertNull(broker.getRetained("/devices/d1/online"));
+		publisher.disconnect();
+		subscriber.disconnect();
+	}
+
+	public void testWillOnForcedDisconnect() throws Exception {
+		Received received = new Received();
+		MqttClient watcher = connect("watcher", null, received);
+		watcher.subscribe("/devices/+/online", 1);
+		MqttConnectOptions options = new MqttConnectOptions();
+		options.setWill("/devices/d2/online", "0".getBytes(), 1, false);
+		MqttClient device = connect("d2", options, null);
+		assertTrue(broker.isConnected("d2"));
+		assertEquals(2, broker.getClientCount());
+		assertTrue(broker.disconnect("d2"));
+		assertEquals("/devices/d2/online=0", received.poll());
+		assertFalse(broker.isConnected("d2"));
+		// a graceful disconnect drops the will
+		device = connect("d2", options, null);
+		device.disconnect();
+		assertNull(received.messages.poll(200, TimeUnit.MILLISECONDS));
+		watcher.disconnect();
+	}
+
+	public void testLatencyAndRejectConnect() throws Exception {
+		broker.setLatency(100);
+		long begin = System.nanoTime();
+		MqttClient client = connect("slow", null, null);
+		client.publish("/slow", "x".getBytes(), 1, false);
+		// CONNACK and PUBACK are delayed
+		assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(200));
+		client.disconnect();
+		broker.setLatency(0);
+		broker.setRejectConnect(true);
+		try {
+			connect("rejected", null, null);
+			fail("connect accepted");
+		} catch (MqttException e) {
+			assertEquals(MqttException.REASON_CODE_BROKER_UNAVAILABLE, e.getReasonCode());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.yeild.mqtt.codec;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PayloadBuffer} and the codec messages.
+ */
+public class PayloadBufferTest extends TestCase {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public void testUtf8MatchesJdk() {
+		String[] texts = new String[]{"", "ascii only", "café 温度 😀 end", "😀", "lone \ud83d x \ude00"};
+		for(String text : texts) {
+			PayloadBuffer buffer = PayloadBuffer.get();
+			buffer.writeUtf8(text);
+			assertTrue(text, Arrays.equals(text.getBytes(UTF8), buffer.toByteArray()));
+		}
+	}
+
+	public void testThreadBufferReused() {
+		PayloadBuffer buffer = PayloadBuffer.get();
+		buffer.writeUtf8("first");
+		assertSame(buffer, PayloadBuffer.get());
+		assertEquals(0, buffer.size());
+		buffer.write(new byte[128*1024], 0, 128*1024);
+		// an oversized buffer is not kept for the next message
+		assertNotSame(buffer, PayloadBuffer.get());
+	}
+
+	public void testLazyDecode() throws IOException {
+		final int[] decodes = new int[1];
+		PayloadCodec<Integer> codec = new PayloadCodec<Integer>() {
+			@Override
+			public void encode(Integer value, PayloadBuffer buffer) {
+				buffer.writeUtf8(value.toString());
+			}
+
+			@Override
+			public Integer decode(byte[] payload) {
+				decodes[0]++;
+				return Integer.valueOf(new String(payload, UTF8));
+			}
+		};
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/number");
+		message.setPayload(Integer.valueOf(42), codec);
+		assertEquals("42", new String(message.getPayload(), UTF8));
+		CodecMessage<Integer> received = new CodecMessage<Integer>(message, codec);
+		assertEquals("/number", received.getTopic());
+		assertEquals(0, decodes[0]);
+		assertEquals(Integer.valueOf(42), received.getValue());
+		assertEquals(Integer.valueOf(42), received.getValue());
+		assertEquals(1, decodes[0]);
+	}
+}
@@ -0,0 +1,97 @@
+package com.yeild.mqtt.compress;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link CompressionStage}.
+ */
+public class CompressionStageTest extends TestCase {
+
+	private static PushMqttMessage message(String topic, byte[] payload) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setPayload(payload);
+		return message;
+	}
+
+	private static byte[] text(int length) {
+		byte[] payload = new byte[length];
+		for(int i=0; i<length; i++) {
+			payload[i] = (byte) ('a' + i % 7);
+		}
+		return payload;
+	}
+
+	public void testRoundTrip() {
+		CompressionStage stage = new CompressionStage(new DeflateCompressor(1), 512);
+		byte[] original = text(4096);
+		PushMqttMessage message = message("/data", original.clone());
+		assertTrue(stage.compress(message));
+		assertTrue(message.getPayload().length < original.length);
+		assertTrue(CompressionStage.hasHeader(message.getPayload()));
+		// compressed already, a retry does not compress again
+		assertFalse(stage.compress(message));
+		// a receiver that does not compress itself still decompresses
+		CompressionStage receiver = new CompressionStage(null, 512);
+		assertTrue(receiver.decompress(message));
+		assertTrue(Arrays.equals(original, message.getPayload()));
+	}
+
+	public void testThresholdAndRules() {
+		CompressionStage stage = new CompressionStage(new DeflateCompressor(1), 512);
+		stage.addRules("/rpc/#=64, /log/#=off");
+		assertEquals(512, stage.getMinSize("/data"));
+		assertEquals(64, stage.getMinSize("/rpc/a"));
+		assertEquals(Integer.MAX_VALUE, stage.getMinSize("/log/a"));
+		assertFalse(stage.compress(message("/data", text(256))));
+		assertTrue(stage.compress(message("/rpc/a", text(256))));
+		assertFalse(stage.compress(message("/log/a", text(4096))));
+	}
+
+	public void testIncompressiblePayloadUnchanged() {
+		CompressionStage stage = new CompressionStage(new DeflateCompressor(1), 16);
+		byte[] random = new byte[1024];
+		new Random(1).nextBytes(random);
+		PushMqttMessage message = message("/data", random);
+		assertFalse(stage.compress(message));
+		assertSame(random, message.getPayload());
+	}
+
+	public void testPayloadLikeHeaderLeftAlone() {
+		CompressionStage stage = new CompressionStage(null, 512);
+		byte[] payload = new byte[]{0x00, 'M', 'Z', 1, 0, 0, 0, 4, 1, 2, 3};
+		PushMqttMessage message = message("/data", payload);
+		assertFalse(stage.decompress(message));
+		assertSame(payload, message.getPayload());
+		payload = new byte[]{0x00, 'M', 'Z', 99, 0, 0, 0, 4, 1, 2, 3};
+		message = message("/data", payload);
+		assertFalse(stage.decompress(message));
+		assertSame(payload, message.getPayload());
+	}
+
+	public void testOriginalLengthLimits() {
+		// 9 bytes claiming the largest payload mqtt can carry
+		byte[] payload = new byte[]{0x00, 'M', 'Z', 1, 0x0f, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0};
+		PushMqttMessage message = message("/data", payload);
+		assertFalse(new CompressionStage(null, 512, Integer.MAX_VALUE).decompress(message));
+		assertSame(payload, message.getPayload());
+		assertFalse(new CompressionStage(null, 512).decompress(message));
+		assertSame(payload, message.getPayload());
+
+		CompressionStage sender = new CompressionStage(new DeflateCompressor(9), 16);
+		byte[] original = text(64 * 1024);
+		message = message("/data", original.clone());
+		assertTrue(sender.compress(message));
+		byte[] compressed = message.getPayload();
+		// above the max inflated size the payload is handed over compressed
+		assertFalse(new CompressionStage(null, 512, 32 * 1024).decompress(message));
+		assertSame(compressed, message.getPayload());
+		assertTrue(new CompressionStage(null, 512, 64 * 1024).decompress(message));
+		assertTrue(Arrays.equals(original, message.getPayload()));
+	}
+}
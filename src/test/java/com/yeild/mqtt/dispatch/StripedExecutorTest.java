@@ -0,0 +1,214 @@
+package com.yeild.mqtt.dispatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link StripedExecutor}.
+ */
+public class StripedExecutorTest extends TestCase {
+	private StripedExecutor executor;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * holds the worker of its stripe until released
+	 */
+	private static class Blocker implements Runnable {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	private static class Record implements Runnable {
+		final List<String> ran;
+		final String name;
+		final CountDownLatch done;
+
+		Record(List<String> ran, String name, CountDownLatch done) {
+			this.ran = ran;
+			this.name = name;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			synchronized (ran) {
+				ran.add(name);
+			}
+			done.countDown();
+		}
+	}
+
+	private Blocker block(int key) throws InterruptedException {
+		Blocker blocker = new Blocker();
+		assertTrue(executor.execute(key, blocker));
+		assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+		return blocker;
+	}
+
+	public void testPerKeyOrder() throws Exception {
+		executor = new StripedExecutor("test", 4, 10000, OverflowPolicy.BLOCK);
+		final int keys = 16;
+		final int perKey = 1000;
+		final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+		for(int k=0; k<keys; k++) {
+			runs.add(new ArrayList<Integer>());
+		}
+		final CountDownLatch done = new CountDownLatch(keys * perKey);
+		for(int i=0; i<perKey; i++) {
+			for(int k=0; k<keys; k++) {
+				final List<Integer> run = runs.get(k);
+				final int sequence = i;
+				assertTrue(executor.execute(k * 7919, new Runnable() {
+					@Override
+					public void run() {
+						// the tasks of a key never run at the same time
+						run.add(sequence);
+						done.countDown();
+					}
+				}));
+			}
+		}
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for(List<Integer> run : runs) {
+			assertEquals(perKey, run.size());
+			for(int i=0; i<perKey; i++) {
+				assertEquals(i, run.get(i).intValue());
+			}
+		}
+		assertEquals(0, executor.getQueueSize());
+	}
+
+	public void testBlockWaitsForRoom() throws Exception {
+		executor = new StripedExecutor("test", 1, 1, OverflowPolicy.BLOCK);
+		Blocker blocker = block(0);
+		final List<String> ran = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(2);
+		assertTrue(executor.execute(0, new Record(ran, "first", done)));
+		final AtomicBoolean queued = new AtomicBoolean();
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				queued.set(executor.execute(0, new Record(ran, "second", done)));
+			}
+		};
+		submitter.start();
+		submitter.join(200);
+		// the stripe is full, the caller waits
+		assertTrue(submitter.isAlive());
+		blocker.release.countDown();
+		submitter.join(5000);
+		assertTrue(queued.get());
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals("first", ran.get(0));
+		assertEquals("second", ran.get(1));
+		assertEquals(0, executor.getDroppedCount());
+		assertEquals(0, executor.getRejectedCount());
+	}
+
+	public void testDropOldest() throws Exception {
+		final List<Runnable> dropped = new ArrayList<Runnable>();
+		executor = new StripedExecutor("test", 1, 2, OverflowPolicy.DROP_OLDEST) {
+			@Override
+			protected void dropped(Runnable task) {
+				dropped.add(task);
+			}
+		};
+		Blocker blocker = block(0);
+		List<String> ran = new ArrayList<String>();
+		CountDownLatch done = new CountDownLatch(2);
+		Record oldest = new Record(ran, "1", done);
+		assertTrue(executor.execute(0, oldest));
+		assertTrue(executor.execute(0, new Record(ran, "2", done)));
+		assertTrue(executor.execute(0, new Record(ran, "3", done)));
+		assertEquals(1, executor.getDroppedCount());
+		assertEquals(1, dropped.size());
+		assertSame(oldest, dropped.get(0));
+		assertEquals(2, executor.getQueueSize());
+		blocker.release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		synchronized (ran) {
+			assertEquals(2, ran.size());
+			assertEquals("2", ran.get(0));
+			assertEquals("3", ran.get(1));
+		}
+		assertEquals(0, executor.getRejectedCount());
+	}
+
+	public void testReject() throws Exception {
+		executor = new StripedExecutor("test", 1, 1, OverflowPolicy.REJECT);
+		Blocker blocker = block(0);
+		List<String> ran = new ArrayList<String>();
+		CountDownLatch done = new CountDownLatch(1);
+		assertTrue(executor.execute(0, new Record(ran, "queued", done)));
+		assertFalse(executor.execute(0, new Record(ran, "rejected", done)));
+		assertEquals(1, executor.getRejectedCount());
+		assertEquals(0, executor.getDroppedCount());
+		blocker.release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		synchronized (ran) {
+			assertEquals(1, ran.size());
+			assertEquals("queued", ran.get(0));
+		}
+	}
+
+	public void testShutdown() throws Exception {
+		executor = new StripedExecutor("test", 1, 10, OverflowPolicy.BLOCK);
+		Blocker blocker = block(0);
+		List<String> ran = new ArrayList<String>();
+		CountDownLatch done = new CountDownLatch(1);
+		assertTrue(executor.execute(0, new Record(ran, "queued", done)));
+		executor.shutdown();
+		// the running task is interrupted, the queued ones are discarded
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		assertTrue(ran.isEmpty());
+		assertFalse(executor.execute(0, new Record(ran, "late", done)));
+		assertEquals(1, executor.getRejectedCount());
+		blocker.release.countDown();
+	}
+
+	public void testShutdownReleasesBlockedCaller() throws Exception {
+		executor = new StripedExecutor("test", 1, 1, OverflowPolicy.BLOCK);
+		Blocker blocker = block(0);
+		final List<String> ran = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(1);
+		assertTrue(executor.execute(0, new Record(ran, "queued", done)));
+		final AtomicBoolean queued = new AtomicBoolean(true);
+		Thread submitter = new Thread() {
+			@Override
+			public void run() {
+				queued.set(executor.execute(0, new Record(ran, "blocked", done)));
+			}
+		};
+		submitter.start();
+		submitter.join(200);
+		assertTrue(submitter.isAlive());
+		executor.shutdown();
+		// like the mqtt callback thread parked in execute while the connector stops
+		submitter.join(2000);
+		assertFalse(submitter.isAlive());
+		assertFalse(queued.get());
+		assertEquals(1, executor.getRejectedCount());
+		blocker.release.countDown();
+	}
+}
@@ -0,0 +1,117 @@
+package com.yeild.mqtt.envelope;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link EnvelopeBatcher} and {@link EnvelopeMessage}.
+ */
+public class EnvelopeBatcherTest extends TestCase {
+
+	private static class QueueSink implements EnvelopeBatcher.Sink {
+		final LinkedBlockingQueue<PushMqttMessage> queued = new LinkedBlockingQueue<PushMqttMessage>();
+		volatile boolean full = false;
+
+		@Override
+		public boolean offer(PushMqttMessage message) {
+			return !full && queued.add(message);
+		}
+	}
+
+	private static PushMqttMessage message(String topic, String payload, int qos) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setPayload(payload);
+		message.setQos(qos);
+		return message;
+	}
+
+	private static List<String> payloads(PushMqttMessage received) {
+		List<String> payloads = new ArrayList<String>();
+		for(PushMqttMessage message : EnvelopeMessage.unpack(received)) {
+			payloads.add(new String(message.getPayload()));
+		}
+		return payloads;
+	}
+
+	public void testPackUnpack() {
+		EnvelopeMessage envelope = new EnvelopeMessage("/sensor/1", 1);
+		StringBuilder large = new StringBuilder();
+		while(large.length() < 300) {
+			large.append("0123456789");
+		}
+		envelope.add(message("/sensor/1", "a", 1));
+		envelope.add(message("/sensor/1", "", 1));
+		envelope.add(message("/sensor/1", large.toString(), 1));
+		envelope.pack();
+		assertEquals(envelope.getPackedSize(), envelope.getPayload().length);
+		List<String> payloads = payloads(envelope);
+		assertEquals(3, payloads.size());
+		assertEquals("a", payloads.get(0));
+		assertEquals("", payloads.get(1));
+		assertEquals(large.toString(), payloads.get(2));
+		// truncated or foreign payloads are not envelopes
+		PushMqttMessage broken = message("/sensor/1", "", 1);
+		broken.setPayload(new byte[]{0x00, 'M', 'B', 1, 5, 'a'});
+		assertNull(EnvelopeMessage.unpack(broken));
+		assertNull(EnvelopeMessage.unpack(message("/sensor/1", "plain", 1)));
+	}
+
+	public void testUnpackKeepsReceivedTopic() {
+		EnvelopeMessage envelope = new EnvelopeMessage("/sensor/1", 1);
+		envelope.add(message("/sensor/1", "a", 1));
+		envelope.pack();
+		// received topics are not sanitized like the outgoing ones
+		PushMqttMessage received = PushMqttMessage.wrap("sensors/room.1: east", new MqttMessage(envelope.getPayload()));
+		List<PushMqttMessage> unpacked = EnvelopeMessage.unpack(received);
+		assertEquals(1, unpacked.size());
+		assertEquals("sensors/room.1: east", unpacked.get(0).getTopic());
+		assertEquals("a", new String(unpacked.get(0).getPayload()));
+	}
+
+	public void testSizeBudgetQosAndRetained() {
+		QueueSink sink = new QueueSink();
+		EnvelopeBatcher batcher = new EnvelopeBatcher(sink, "/sensor/#", 16, 60*1000);
+		assertFalse(batcher.matches(message("/other", "x", 1)));
+		assertTrue(batcher.matches(message("/sensor/1", "x", 1)));
+		// header 4 + 3 entries of 4 bytes fit, the fourth starts a new envelope
+		for(int i=0; i<4; i++) {
+			assertTrue(batcher.add(message("/sensor/1", "v" + i + "x", 1)));
+		}
+		assertEquals(1, sink.queued.size());
+		assertEquals("[v0x, v1x, v2x]", payloads(sink.queued.poll()).toString());
+		// a qos change seals the open envelope
+		assertTrue(batcher.add(message("/sensor/1", "q0", 0)));
+		assertEquals("[v3x]", payloads(sink.queued.poll()).toString());
+		// a retained message goes on its own after the open envelope
+		PushMqttMessage retained = message("/sensor/1", "r", 1);
+		retained.setRetained(true);
+		assertTrue(batcher.add(retained));
+		assertEquals("[q0]", payloads(sink.queued.poll()).toString());
+		assertSame(retained, sink.queued.poll());
+		assertEquals(0, batcher.getPendingCount());
+	}
+
+	public void testLingerAndFullQueue() throws Exception {
+		QueueSink sink = new QueueSink();
+		EnvelopeBatcher batcher = new EnvelopeBatcher(sink, "/sensor/+", 16, 20);
+		sink.full = true;
+		assertTrue(batcher.add(message("/sensor/1", "a", 1)));
+		assertTrue(batcher.add(message("/sensor/1", "b", 1)));
+		assertNull(sink.queued.poll(100, TimeUnit.MILLISECONDS));
+		assertEquals(2, batcher.getPendingCount());
+		sink.full = false;
+		PushMqttMessage envelope = sink.queued.poll(5, TimeUnit.SECONDS);
+		assertNotNull(envelope);
+		assertEquals("[a, b]", payloads(envelope).toString());
+		assertEquals(2, ((EnvelopeMessage) envelope).getMessages().size());
+	}
+}
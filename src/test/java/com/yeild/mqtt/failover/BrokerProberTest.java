@@ -0,0 +1,70 @@
+package com.yeild.mqtt.failover;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link BrokerProber}.
+ */
+public class BrokerProberTest extends TestCase {
+
+	private static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	public void testUnreachableBrokersLast() throws Exception {
+		ServerSocket server = new ServerSocket(0, 50);
+		try {
+			String dead = "tcp://127.0.0.1:" + freePort();
+			String live = "tcp://127.0.0.1:" + server.getLocalPort();
+			String unknown = "tcp://127.0.0.1:" + freePort();
+			BrokerProber prober = new BrokerProber(60*1000, 1000);
+			String[] uris = new String[]{dead, live};
+			prober.register(uris);
+			assertTrue(prober.isHealthy(live));
+			assertTrue(prober.getRtt(live) > 0);
+			assertFalse(prober.isHealthy(dead));
+			assertEquals(-1, prober.getRtt(dead));
+			// a broker not probed yet goes between the healthy and the unhealthy ones
+			String[] ordered = prober.order(new String[]{dead, unknown, live});
+			assertEquals(live, ordered[0]);
+			assertEquals(unknown, ordered[1]);
+			assertEquals(dead, ordered[2]);
+
+			prober.unregister(uris);
+			assertEquals(-1, prober.getRtt(live));
+			assertEquals(dead, prober.order(uris)[0]);
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testBrokerHealthyAgain() throws Exception {
+		int port = freePort();
+		String uri = "tcp://127.0.0.1:" + port;
+		BrokerProber prober = new BrokerProber(60*1000, 1000);
+		prober.register(new String[]{uri, "tcp://127.0.0.1:" + freePort()});
+		assertFalse(prober.isHealthy(uri));
+		ServerSocket server = new ServerSocket();
+		try {
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+			prober.probe();
+			assertTrue(prober.isHealthy(uri));
+		} finally {
+			server.close();
+		}
+	}
+
+	public void testAddress() {
+		assertEquals(1883, BrokerProber.toAddress("tcp://node1").getPort());
+		assertEquals(8883, BrokerProber.toAddress("ssl://node1").getPort());
+		assertEquals(9001, BrokerProber.toAddress("ws://node1:9001/mqtt").getPort());
+		assertEquals("node1", BrokerProber.toAddress("ssl://node1:8884").getHostName());
+		assertNull(BrokerProber.toAddress("not a uri"));
+	}
+}
@@ -0,0 +1,75 @@
+package com.yeild.mqtt.metrics;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+	public void testBucketsAreContinuous() {
+		long previous = -1;
+		for(int i=0; i<LatencyHistogram.index(1L << 39) ; i++) {
+			long highest = LatencyHistogram.highestValue(i);
+			assertTrue(highest > previous);
+			assertEquals(i, LatencyHistogram.index(highest));
+			assertEquals(i, LatencyHistogram.index(previous + 1));
+			previous = highest;
+		}
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(int i=1; i<=1000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertEquals(500500, histogram.getMeanNanos(), 1);
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(Math.abs(p50 - 500000) <= 500000 / 32);
+		long p99 = histogram.getPercentileNanos(99);
+		assertTrue(Math.abs(p99 - 990000) <= 990000 / 32);
+		assertEquals(1000000, histogram.getPercentileNanos(100));
+		histogram.reset();
+		assertEquals(0, histogram.getPercentileNanos(50));
+	}
+
+	public void testConcurrentRecordMerges() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final int threads = 8;
+		final int perThread = 10000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] recorders = new Thread[threads];
+		for(int t=0; t<threads; t++) {
+			final long value = (t + 1) * 1000L;
+			recorders[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for(int i=0; i<perThread; i++) {
+						histogram.record(value);
+					}
+				}
+			};
+			recorders[t].start();
+		}
+		start.countDown();
+		for(Thread recorder : recorders) {
+			recorder.join();
+		}
+		assertEquals(threads * perThread, histogram.getCount());
+		assertEquals(threads * 1000L, histogram.getMaxNanos());
+		assertEquals(4500, histogram.getMeanNanos(), 1);
+		LatencySnapshot snapshot = histogram.snapshot();
+		assertEquals(threads * perThread, snapshot.getCount());
+		assertEquals(8.0, snapshot.getMax(), 0.001);
+		assertTrue(Math.abs(snapshot.getP50() - 4) <= 4.0 / 32);
+	}
+}
@@ -0,0 +1,166 @@
+package com.yeild.mqtt.persist;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MappedLogPersistence}.
+ */
+public class MappedLogPersistenceTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("mqtt-log", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		delete(dir);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if(files != null) {
+			for(File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static MqttPersistable data(String header, String payload) {
+		return new PersistedData(header.getBytes(), payload.getBytes());
+	}
+
+	private static void assertData(String header, String payload, MqttPersistable persistable) throws MqttPersistenceException {
+		assertEquals(header, new String(persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength()));
+		assertEquals(payload, new String(persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> keys(MappedLogPersistence persistence) throws MqttPersistenceException {
+		List<String> keys = Collections.list(persistence.keys());
+		Collections.sort(keys);
+		return keys;
+	}
+
+	public void testPutGetRemove() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.GROUP, 1, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		persistence.put("s-1", data("h1", "p1"));
+		persistence.put("s-2", data("h2", ""));
+		persistence.put("s-1", data("h1b", "p1b"));
+		assertData("h1b", "p1b", persistence.get("s-1"));
+		assertData("h2", "", persistence.get("s-2"));
+		persistence.remove("s-2");
+		assertFalse(persistence.containsKey("s-2"));
+		assertNull(persistence.get("s-2"));
+		assertEquals(Arrays.asList("s-1"), keys(persistence));
+		persistence.close();
+	}
+
+	public void testRecover() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.OS, 0, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		for(int i=0; i<200; i++) {
+			persistence.put("s-" + i, data("header" + i, "payload" + i));
+			if(i % 10 != 0) {
+				persistence.remove("s-" + i);
+			}
+		}
+		persistence.close();
+		persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.ALWAYS, 0, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		assertEquals(20, keys(persistence).size());
+		assertData("header190", "payload190", persistence.get("s-190"));
+		assertFalse(persistence.containsKey("s-191"));
+		persistence.close();
+	}
+
+	public void testTornTail() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.ALWAYS, 0, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		persistence.put("s-1", data("h1", "p1"));
+		persistence.put("s-2", data("h2", "p2"));
+		persistence.close();
+		File[] clientDirs = dir.listFiles();
+		assertEquals(1, clientDirs.length);
+		File segment = new File(clientDirs[0], "log-0.dat");
+		// flip the last byte of the payload of s-2, as if the crash hit before its body was complete
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			byte[] content = new byte[(int) raf.length()];
+			raf.readFully(content);
+			int last = new String(content, "ISO-8859-1").lastIndexOf("p2") + 1;
+			raf.seek(last);
+			raf.write('x');
+		} finally {
+			raf.close();
+		}
+		persistence.open("client", "tcp://localhost:1883");
+		assertEquals(Arrays.asList("s-1"), keys(persistence));
+		// the torn record is overwritten by the next put
+		persistence.put("s-3", data("h3", "p3"));
+		persistence.close();
+		persistence.open("client", "tcp://localhost:1883");
+		assertEquals(Arrays.asList("s-1", "s-3"), keys(persistence));
+		assertData("h3", "p3", persistence.get("s-3"));
+		persistence.close();
+	}
+
+	public void testGroupCommitDoesNotWaitInterval() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.GROUP, 60000, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		long start = System.nanoTime();
+		for(int i=0; i<20; i++) {
+			persistence.put("s-" + i, data("header", "payload"));
+			persistence.remove("s-" + i);
+		}
+		assertTrue(System.nanoTime() - start < 10000000000L);
+		assertTrue(keys(persistence).isEmpty());
+		persistence.close();
+	}
+
+	public void testCompaction() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath(), SyncPolicy.ALWAYS, 0, 4096);
+		persistence.open("client", "tcp://localhost:1883");
+		persistence.put("s-0", data("pinned", "message"));
+		for(int i=1; i<2000; i++) {
+			persistence.put("s-" + i, data("header", "payload"));
+			persistence.remove("s-" + i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while(persistence.getSegmentCount() > 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(persistence.getSegmentCount() <= 3);
+		assertData("pinned", "message", persistence.get("s-0"));
+		persistence.close();
+		persistence.open("client", "tcp://localhost:1883");
+		assertEquals(Arrays.asList("s-0"), keys(persistence));
+		persistence.close();
+	}
+
+	public void testInUse() throws Exception {
+		MappedLogPersistence persistence = new MappedLogPersistence(dir.getPath());
+		persistence.open("client", "tcp://localhost:1883");
+		MappedLogPersistence other = new MappedLogPersistence(dir.getPath());
+		try {
+			other.open("client", "tcp://localhost:1883");
+			fail("opened twice");
+		} catch (MqttPersistenceException e) {
+			assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e.getReasonCode());
+		}
+		persistence.close();
+	}
+}
@@ -0,0 +1,95 @@
+package com.yeild.mqtt.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yeild.mqtt.MqttFuture;
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link ConflatingPushMessageQueue}.
+ */
+public class ConflatingPushMessageQueueTest extends TestCase {
+
+	private static PushMqttMessage message(String topic, String payload, boolean retained) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setPayload(payload);
+		message.setRetained(retained);
+		return message;
+	}
+
+	private static String next(PushMessageQueue queue) {
+		PushMqttMessage message = queue.poll();
+		return message == null ? null : message.getTopic() + "=" + new String(message.getPayload());
+	}
+
+	public void testLastValueKeepsPosition() {
+		ConflatingPushMessageQueue queue = new ConflatingPushMessageQueue(new LinkedPushMessageQueue(100), "/status/#", false);
+		assertTrue(queue.offer(message("/status/a", "1", false)));
+		assertTrue(queue.offer(message("/data", "x", false)));
+		assertTrue(queue.offer(message("/status/a", "2", false)));
+		assertTrue(queue.offer(message("/data", "y", false)));
+		assertTrue(queue.offer(message("/status/a", "3", false)));
+		assertEquals(3, queue.size());
+		assertEquals(2, queue.getConflatedCount());
+		assertEquals("/status/a=3", next(queue));
+		// taken, the next value is queued again
+		assertTrue(queue.offer(message("/status/a", "4", false)));
+		assertEquals("/data=x", next(queue));
+		assertEquals("/data=y", next(queue));
+		assertEquals("/status/a=4", next(queue));
+		assertNull(next(queue));
+	}
+
+	public void testRetained() {
+		ConflatingPushMessageQueue queue = new ConflatingPushMessageQueue(new LinkedPushMessageQueue(100), "", true);
+		assertTrue(queue.isEnabled());
+		queue.offer(message("/online", "1", true));
+		queue.offer(message("/online", "0", false));
+		queue.offer(message("/online", "1", true));
+		List<PushMqttMessage> drained = new ArrayList<PushMqttMessage>();
+		assertEquals(2, queue.drainTo(drained, 10));
+		assertEquals("1", new String(drained.get(0).getPayload()));
+		assertEquals("0", new String(drained.get(1).getPayload()));
+		assertFalse(new ConflatingPushMessageQueue(new LinkedPushMessageQueue(100), " ", false).isEnabled());
+	}
+
+	public void testRetryDoesNotOverwriteNewer() {
+		ConflatingPushMessageQueue queue = new ConflatingPushMessageQueue(new LinkedPushMessageQueue(100), "/status/+", false);
+		queue.offer(message("/status/a", "1", false));
+		PushMqttMessage failed = queue.poll();
+		queue.offer(message("/status/a", "2", false));
+		failed.setRetry_count(1);
+		assertTrue(queue.offer(failed));
+		assertEquals("/status/a=2", next(queue));
+		assertNull(next(queue));
+	}
+
+	public void testFullQueue() {
+		ConflatingPushMessageQueue queue = new ConflatingPushMessageQueue(new LinkedPushMessageQueue(1), "/status/+", false);
+		assertTrue(queue.offer(message("/data", "x", false)));
+		assertFalse(queue.offer(message("/status/a", "1", false)));
+		assertEquals("/data=x", next(queue));
+		assertTrue(queue.offer(message("/status/a", "2", false)));
+		assertTrue(queue.offer(message("/status/a", "3", false)));
+		assertEquals("/status/a=3", next(queue));
+	}
+
+	public void testReplacedFutureCompleted() {
+		ConflatingPushMessageQueue queue = new ConflatingPushMessageQueue(new LinkedPushMessageQueue(100), "/status/+", false);
+		PushMqttMessage first = message("/status/a", "1", false);
+		PushMqttMessage second = message("/status/a", "2", false);
+		second.setFuture(new MqttFuture<PushMqttMessage>());
+		assertTrue(queue.offer(first));
+		assertTrue(queue.offer(second));
+		PushMqttMessage queued = queue.poll();
+		assertSame(first, queued);
+		assertFalse(second.getFuture().isDone());
+		// the push result of the queued message
+		queued.getFuture().complete(queued);
+		assertTrue(second.getFuture().isSuccess());
+	}
+}
@@ -0,0 +1,62 @@
+package com.yeild.mqtt.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PriorityLaneQueue}.
+ */
+public class PriorityLaneQueueTest extends TestCase {
+
+	private static PushMqttMessage message(String topic, int qos) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic(topic);
+		message.setQos(qos);
+		return message;
+	}
+
+	private static PriorityLaneQueue queue(LaneSelector selector, int... weights) {
+		PushMessageQueue[] lanes = new PushMessageQueue[weights.length];
+		for(int i=0; i<lanes.length; i++) {
+			lanes[i] = new LinkedPushMessageQueue(100);
+		}
+		return new PriorityLaneQueue(lanes, weights, selector);
+	}
+
+	public void testSelector() {
+		LaneSelector selector = new LaneSelector(3).addRules("topic:/rpc/c1/resp/=0, qos:2=1");
+		assertEquals(0, selector.select(message("/rpc/c1/resp/1", 0)));
+		assertEquals(1, selector.select(message("/data/1", 2)));
+		assertEquals(2, selector.select(message("/data/1", 0)));
+		PushMqttMessage explicit = message("/data/1", 0);
+		explicit.setPriority(0);
+		assertEquals(0, selector.select(explicit));
+		try {
+			new LaneSelector(2).addRules("topic:/a=2");
+			fail("accepted lane out of range");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testWeightedDraining() throws Exception {
+		PriorityLaneQueue queue = queue(new LaneSelector(2).addTopicRule("/urgent", 0), 3, 1);
+		for(int i=0; i<4; i++) {
+			queue.offer(message("/bulk", 0));
+		}
+		for(int i=0; i<6; i++) {
+			queue.offer(message("/urgent", 0));
+		}
+		assertEquals(6, queue.getLaneSize(0));
+		assertEquals(4, queue.getLaneSize(1));
+		StringBuilder order = new StringBuilder();
+		for(int i=0; i<10; i++) {
+			order.append(queue.take().getTopic().startsWith("/urgent") ? 'u' : 'b');
+		}
+		assertEquals("uuubuuubbb", order.toString());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertEquals(0, queue.size());
+	}
+}
@@ -0,0 +1,99 @@
+package com.yeild.mqtt.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.PushMqttMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link RingBufferPushMessageQueue}.
+ */
+public class RingBufferPushMessageQueueTest extends TestCase {
+
+	private static PushMqttMessage message(int producer, int sequence) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("p" + producer);
+		message.setRetry_count(sequence);
+		return message;
+	}
+
+	public void testCapacityRoundedToPowerOfTwo() {
+		assertEquals(8, new RingBufferPushMessageQueue(5, WaitStrategy.PARK).capacity());
+		assertEquals(1, new RingBufferPushMessageQueue(1, WaitStrategy.PARK).capacity());
+	}
+
+	public void testFullAndEmpty() throws InterruptedException {
+		RingBufferPushMessageQueue queue = new RingBufferPushMessageQueue(4, WaitStrategy.PARK);
+		for(int i=0; i<4; i++) {
+			assertTrue(queue.offer(message(0, i)));
+		}
+		assertFalse(queue.offer(message(0, 4)));
+		assertFalse(queue.offer(message(0, 4), 10, TimeUnit.MILLISECONDS));
+		assertEquals(4, queue.size());
+		List<PushMqttMessage> drained = new ArrayList<PushMqttMessage>();
+		assertEquals(3, queue.drainTo(drained, 3));
+		assertEquals(2, drained.get(2).getRetry_count());
+		assertEquals(3, queue.poll().getRetry_count());
+		assertNull(queue.poll());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertEquals(0, queue.size());
+	}
+
+	public void testProducersKeepTheirOrder() throws Exception {
+		WaitStrategy[] strategies = WaitStrategy.values();
+		for(WaitStrategy strategy : strategies) {
+			runProducers(new RingBufferPushMessageQueue(64, strategy), 4, 20000);
+		}
+	}
+
+	private void runProducers(final RingBufferPushMessageQueue queue, int producers, final int perProducer) throws Exception {
+		Thread[] threads = new Thread[producers];
+		for(int p=0; p<producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for(int i=0; i<perProducer; i++) {
+						try {
+							if(!queue.offer(message(producer, i), 10, TimeUnit.SECONDS)) {
+								return;
+							}
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+			});
+			threads[p].start();
+		}
+		int[] next = new int[producers];
+		for(int i=0; i<producers * perProducer; i++) {
+			PushMqttMessage message = queue.poll(10, TimeUnit.SECONDS);
+			assertNotNull("message lost", message);
+			int producer = Integer.parseInt(message.getTopic().substring(1));
+			assertEquals(next[producer]++, message.getRetry_count());
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(queue.poll());
+	}
+
+	public void testTakeWakesUp() throws Exception {
+		final RingBufferPushMessageQueue queue = new RingBufferPushMessageQueue(4, WaitStrategy.PARK);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+				}
+				queue.offer(message(0, 7));
+			}
+		}).start();
+		assertEquals(7, queue.take().getRetry_count());
+	}
+}
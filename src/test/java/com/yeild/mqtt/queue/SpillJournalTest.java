@@ -0,0 +1,187 @@
+package com.yeild.mqtt.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.yeild.mqtt.MqttFuture;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.envelope.EnvelopeMessage;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link SpillJournal}.
+ */
+public class SpillJournalTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("mqtt-spill", "");
+		dir.delete();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static PushMqttMessage message(int i) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/spill/" + (i % 3));
+		message.setPayload("payload" + i);
+		message.setQos(i % 3);
+		message.setRetained(i % 2 == 0);
+		message.setRetry_count(i % 5);
+		message.setPriority(i % 4 - 1);
+		return message;
+	}
+
+	private static void assertMessage(int i, PushMqttMessage message) {
+		assertNotNull("message " + i, message);
+		assertEquals("/spill/" + (i % 3), message.getTopic());
+		assertEquals("payload" + i, new String(message.getPayload()));
+		assertEquals(i % 3, message.getQos());
+		assertEquals(i % 2 == 0, message.isRetained());
+		assertEquals(i % 5, message.getRetry_count());
+		assertEquals(i % 4 - 1, message.getPriority());
+	}
+
+	private int segmentFiles() {
+		String[] names = dir.list();
+		return names == null ? 0 : names.length;
+	}
+
+	public void testAppendPollOrder() throws Exception {
+		SpillJournal journal = new SpillJournal(dir, 64 * 1024, 0);
+		assertTrue(journal.isEmpty());
+		assertNull(journal.poll());
+		for(int i=0; i<100; i++) {
+			assertTrue(journal.append(message(i)));
+		}
+		assertEquals(100, journal.size());
+		for(int i=0; i<50; i++) {
+			assertMessage(i, journal.poll());
+		}
+		// appending while reading keeps the order
+		for(int i=100; i<120; i++) {
+			assertTrue(journal.append(message(i)));
+		}
+		for(int i=50; i<120; i++) {
+			assertMessage(i, journal.poll());
+		}
+		assertNull(journal.poll());
+		assertTrue(journal.isEmpty());
+	}
+
+	public void testRecoverAfterReopen() throws Exception {
+		SpillJournal journal = new SpillJournal(dir, 64 * 1024, 0);
+		for(int i=0; i<10; i++) {
+			PushMqttMessage message = message(i);
+			message.setFuture(new MqttFuture<PushMqttMessage>());
+			journal.append(message);
+		}
+		for(int i=0; i<3; i++) {
+			assertMessage(i, journal.poll());
+		}
+		journal.force();
+		journal = new SpillJournal(dir, 64 * 1024, 0);
+		assertEquals(7, journal.size());
+		journal.append(message(10));
+		for(int i=3; i<=10; i++) {
+			PushMqttMessage message = journal.poll();
+			assertMessage(i, message);
+			// the futures were of the previous run
+			assertNull(message.getFuture());
+		}
+		assertNull(journal.poll());
+	}
+
+	public void testSegmentRolloverAndDeletion() throws Exception {
+		SpillJournal journal = new SpillJournal(dir, 256, 4);
+		int appended = 0;
+		while(journal.append(message(appended))) {
+			appended++;
+		}
+		// the journal stops at its max segments
+		assertEquals(4, segmentFiles());
+		assertTrue(appended > 4);
+		assertEquals(appended, journal.size());
+		for(int i=0; i<appended; i++) {
+			assertMessage(i, journal.poll());
+			assertTrue(segmentFiles() <= 4);
+		}
+		assertEquals(0, segmentFiles());
+		assertTrue(journal.append(message(0)));
+		assertEquals(1, segmentFiles());
+	}
+
+	public void testReadSegmentsDeleted() throws Exception {
+		SpillJournal journal = new SpillJournal(dir, 256, 0);
+		for(int i=0; i<30; i++) {
+			journal.append(message(i));
+		}
+		int segments = segmentFiles();
+		assertTrue(segments > 3);
+		for(int i=0; i<15; i++) {
+			journal.poll();
+		}
+		assertTrue(segmentFiles() < segments);
+		// a reopen drops the fully read segments as well
+		journal.force();
+		journal = new SpillJournal(dir, 256, 0);
+		assertEquals(15, journal.size());
+		assertMessage(15, journal.poll());
+	}
+
+	public void testFuturesAndEnvelopes() throws Exception {
+		SpillJournal journal = new SpillJournal(dir, 64 * 1024, 0);
+		PushMqttMessage single = message(1);
+		MqttFuture<PushMqttMessage> singleFuture = new MqttFuture<PushMqttMessage>();
+		single.setFuture(singleFuture);
+		long enqueueNanos = System.nanoTime() - TimeUnit.SECONDS.toNanos(2);
+		single.setEnqueueNanos(enqueueNanos);
+		journal.append(single);
+
+		List<PushMqttMessage> entries = new ArrayList<PushMqttMessage>();
+		List<MqttFuture<PushMqttMessage>> entryFutures = new ArrayList<MqttFuture<PushMqttMessage>>();
+		for(int i=0; i<3; i++) {
+			PushMqttMessage entry = new PushMqttMessage();
+			entry.setTopic("/sensor/1");
+			entry.setQos(1);
+			entry.setPayload("entry" + i);
+			// the second one was pushed without a future
+			MqttFuture<PushMqttMessage> future = i == 1 ? null : new MqttFuture<PushMqttMessage>();
+			entry.setFuture(future);
+			entryFutures.add(future);
+			entries.add(entry);
+		}
+		journal.append(EnvelopeMessage.restore("/sensor/1", 1, entries, "packed".getBytes()));
+
+		PushMqttMessage polled = journal.poll();
+		assertSame(singleFuture, polled.getFuture());
+		assertTrue(Math.abs(polled.getEnqueueNanos() - enqueueNanos) < TimeUnit.MILLISECONDS.toNanos(50));
+
+		polled = journal.poll();
+		assertTrue(polled instanceof EnvelopeMessage);
+		assertEquals("packed", new String(polled.getPayload()));
+		assertEquals(1, polled.getQos());
+		assertNull(polled.getFuture());
+		List<PushMqttMessage> restored = ((EnvelopeMessage) polled).getMessages();
+		assertEquals(3, restored.size());
+		for(int i=0; i<3; i++) {
+			assertEquals("entry" + i, new String(restored.get(i).getPayload()));
+			assertEquals("/sensor/1", restored.get(i).getTopic());
+			assertSame(entryFutures.get(i), restored.get(i).getFuture());
+		}
+		assertNull(journal.poll());
+	}
+}
@@ -0,0 +1,30 @@
+package com.yeild.mqtt.retry;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link RetryPolicy}.
+ */
+public class RetryPolicyTest extends TestCase {
+
+	public void testBackoffDoublesWithJitter() {
+		RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+		for(int i=0; i<100; i++) {
+			long first = policy.getDelay(1);
+			assertTrue(first >= 50 && first <= 100);
+			long third = policy.getDelay(3);
+			assertTrue(third >= 200 && third <= 400);
+			long capped = policy.getDelay(30);
+			assertTrue(capped >= 500 && capped <= 1000);
+		}
+	}
+
+	public void testMaxRetries() {
+		RetryPolicy policy = new RetryPolicy(2, 100, 1000);
+		assertTrue(policy.canRetry(1));
+		assertTrue(policy.canRetry(2));
+		assertFalse(policy.canRetry(3));
+		assertTrue(new RetryPolicy(-1, 100, 1000).canRetry(Integer.MAX_VALUE));
+		assertFalse(new RetryPolicy(0, 100, 1000).canRetry(1));
+	}
+}
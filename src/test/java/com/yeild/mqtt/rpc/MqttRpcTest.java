@@ -0,0 +1,94 @@
+package com.yeild.mqtt.rpc;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.yeild.mqtt.MqttConfig;
+import com.yeild.mqtt.MqttConnector;
+import com.yeild.mqtt.MqttFuture;
+import com.yeild.mqtt.PublishException;
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.utils.MqttScheduler;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the calls of {@link MqttRpc}, without a broker.
+ */
+public class MqttRpcTest extends TestCase {
+
+	/**
+	 * keeps the published requests pending
+	 */
+	private static class HoldingConnector extends MqttConnector {
+		volatile MqttFuture<PushMqttMessage> last;
+
+		HoldingConnector() {
+			super(new MqttConfig());
+		}
+
+		@Override
+		public MqttFuture<PushMqttMessage> publish(PushMqttMessage message) {
+			last = new MqttFuture<PushMqttMessage>();
+			return last;
+		}
+	}
+
+	/**
+	 * @return the tasks still due, the cancelled ones are purged first
+	 */
+	private static int scheduled() {
+		ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor) MqttScheduler.getScheduler();
+		scheduler.purge();
+		return scheduler.getQueue().size();
+	}
+
+	private static Throwable cause(MqttFuture<byte[]> future) throws Exception {
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("call completed");
+			return null;
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	public void testRejectedCallFailsAtOnce() throws Exception {
+		MqttRpc rpc = new MqttRpc(new MqttConnector(new MqttConfig()));
+		int before = scheduled();
+		MqttFuture<byte[]> future = rpc.call("target", "method", null, 60000);
+		assertTrue(future.isDone());
+		Throwable cause = cause(future);
+		assertEquals(PublishException.REASON_NOT_STARTED, ((PublishException) cause).getReasonCode());
+		assertEquals(0, rpc.getPendingCount());
+		// the timeout was cancelled
+		assertEquals(before, scheduled());
+	}
+
+	public void testPublishFailureFailsCall() throws Exception {
+		HoldingConnector connector = new HoldingConnector();
+		MqttRpc rpc = new MqttRpc(connector);
+		int before = scheduled();
+		MqttFuture<byte[]> future = rpc.call("target", "method", null, 60000);
+		assertFalse(future.isDone());
+		assertEquals(1, rpc.getPendingCount());
+		assertEquals(before + 1, scheduled());
+		connector.last.fail(new PublishException(PublishException.REASON_PUBLISH_FAILED, "no ack"));
+		assertEquals(PublishException.REASON_PUBLISH_FAILED, ((PublishException) cause(future)).getReasonCode());
+		assertEquals(0, rpc.getPendingCount());
+		assertEquals(before, scheduled());
+	}
+
+	public void testTimeout() throws Exception {
+		HoldingConnector connector = new HoldingConnector();
+		MqttRpc rpc = new MqttRpc(connector);
+		MqttFuture<byte[]> future = rpc.call("target", "method", null, 50);
+		assertTrue(cause(future) instanceof TimeoutException);
+		assertEquals(0, rpc.getPendingCount());
+		// a publish failure after the timeout changes nothing
+		connector.last.fail(new PublishException(PublishException.REASON_PUBLISH_FAILED, "no ack"));
+		assertTrue(cause(future) instanceof TimeoutException);
+	}
+}
@@ -0,0 +1,78 @@
+package com.yeild.mqtt.run;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.yeild.mqtt.broker.EmbeddedBroker;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link LoadOptions} and {@link LoadGenerator}.
+ */
+public class LoadGeneratorTest extends TestCase {
+
+	public void testParseOptions() {
+		LoadOptions options = LoadOptions.parse(new String[]{"--connectors", "4", "--threads", "8", "--rate", "1000"
+				, "--payload", "64-1024", "--qos", "0:20,1:70,2:10", "--topics", "100", "--duration", "30"});
+		assertEquals(4, options.getConnectors());
+		assertEquals(8, options.getThreads());
+		assertEquals(1000, options.getRate());
+		assertEquals(64, options.getPayloadMin());
+		assertEquals(1024, options.getPayloadMax());
+		assertTrue(Arrays.equals(new int[]{20, 70, 10}, options.getQosWeights()));
+		assertEquals(100, options.getTopics());
+		assertEquals(30, options.getDuration());
+		Random random = new Random(1);
+		int[] picked = new int[3];
+		for(int i=0; i<10000; i++) {
+			picked[options.nextQos(random)]++;
+			int size = options.nextPayloadSize(random);
+			assertTrue(size >= 64 && size <= 1024);
+		}
+		assertTrue(picked[1] > picked[0] && picked[0] > picked[2] && picked[2] > 0);
+	}
+
+	public void testBadOptions() {
+		String[][] bad = {{"--threads", "0"}, {"--qos", "3"}, {"--payload", "10-5"}, {"--unknown", "1"}, {"--rate"}};
+		for(String[] args : bad) {
+			try {
+				LoadOptions.parse(args);
+				fail(Arrays.toString(args) + " accepted");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	public void testRunAgainstEmbeddedBroker() throws Exception {
+		EmbeddedBroker broker = new EmbeddedBroker();
+		broker.start();
+		try {
+			LoadOptions options = LoadOptions.parse(new String[]{"--uri", broker.getUri(), "--clientid", "load"
+					, "--connectors", "2", "--threads", "2", "--rate", "200", "--qos", "0:1,1:1", "--topics", "4", "--duration", "2"});
+			ByteArrayOutputStream live = new ByteArrayOutputStream();
+			String summary = LoadGenerator.create(options, new PrintStream(live, true)).run();
+			assertTrue(live.toString().contains("acked"));
+			assertTrue(summary, summary.contains("\"connectors\": 2"));
+			assertTrue(summary, summary.contains("\"failed\": 0"));
+			assertTrue(summary, summary.contains("\"latencyMillis\""));
+			long sent = value(summary, "sent");
+			assertTrue(summary, sent > 200);
+			assertEquals(summary, sent, value(summary, "acked"));
+			assertTrue(broker.getPublishCount() >= sent);
+		} finally {
+			broker.stop();
+		}
+	}
+
+	private static long value(String json, String name) {
+		int start = json.indexOf("\"" + name + "\": ") + name.length() + 4;
+		int end = start;
+		while(end < json.length() && Character.isDigit(json.charAt(end))) {
+			end++;
+		}
+		return Long.parseLong(json.substring(start, end));
+	}
+}
@@ -0,0 +1,47 @@
+package com.yeild.mqtt.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link AckTracker}.
+ */
+public class AckTrackerTest extends TestCase {
+	private final List<Integer> acked = new ArrayList<Integer>();
+	private final AckTracker tracker = new AckTracker(new AckTracker.Acker() {
+		@Override
+		public void ack(int messageId, int qos) {
+			acked.add(messageId);
+		}
+	});
+
+	public void testAcksInArrivalOrder() {
+		AckTracker.Ack first = tracker.track(1, 1);
+		AckTracker.Ack second = tracker.track(2, 1);
+		AckTracker.Ack third = tracker.track(3, 2);
+		third.release();
+		second.retain();
+		second.release();
+		assertTrue(acked.isEmpty());
+		first.release();
+		// the second one is still held by a consumer
+		assertEquals(1, acked.size());
+		second.release();
+		assertEquals(3, acked.size());
+		assertEquals(Integer.valueOf(2), acked.get(1));
+		assertEquals(Integer.valueOf(3), acked.get(2));
+		assertEquals(0, tracker.getPendingCount());
+	}
+
+	public void testResetForgetsLostConnection() {
+		AckTracker.Ack lost = tracker.track(1, 1);
+		tracker.reset();
+		AckTracker.Ack next = tracker.track(1, 1);
+		lost.release();
+		assertTrue(acked.isEmpty());
+		next.release();
+		assertEquals(1, acked.size());
+	}
+}
@@ -0,0 +1,139 @@
+package com.yeild.mqtt.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.yeild.mqtt.PushMqttMessage;
+import com.yeild.mqtt.dispatch.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MessagePublisher}.
+ */
+public class MessagePublisherTest extends TestCase {
+
+	private static class Collector implements Subscriber<PushMqttMessage> {
+		final List<String> payloads = new ArrayList<String>();
+		Subscription subscription;
+		Throwable error;
+		boolean completed;
+		long requestPerItem = 0;
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(PushMqttMessage item) {
+			payloads.add(new String(item.getPayload()));
+			if(requestPerItem > 0) {
+				subscription.request(requestPerItem);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+
+	private static PushMqttMessage message(String payload) {
+		PushMqttMessage message = new PushMqttMessage();
+		message.setTopic("/stream/a");
+		message.setPayload(payload);
+		return message;
+	}
+
+	public void testDemandBoundsDelivery() {
+		MessagePublisher publisher = new MessagePublisher("/stream/#", 10, OverflowPolicy.REJECT);
+		Collector collector = new Collector();
+		publisher.subscribe(collector);
+		publisher.offer(message("1"));
+		publisher.offer(message("2"));
+		publisher.offer(message("3"));
+		assertTrue(collector.payloads.isEmpty());
+		assertEquals(3, publisher.getBufferedCount());
+		collector.subscription.request(2);
+		assertEquals(2, collector.payloads.size());
+		// a request from onNext does not recurse
+		collector.requestPerItem = 1;
+		collector.subscription.request(1);
+		publisher.offer(message("4"));
+		assertEquals(4, collector.payloads.size());
+		assertEquals("4", collector.payloads.get(3));
+
+		publisher.complete();
+		assertTrue(collector.completed);
+		assertEquals(0, publisher.getSubscriberCount());
+	}
+
+	public void testDropOldestReleasesAck() {
+		final List<Integer> acked = new ArrayList<Integer>();
+		AckTracker tracker = new AckTracker(new AckTracker.Acker() {
+			@Override
+			public void ack(int messageId, int qos) {
+				acked.add(messageId);
+			}
+		});
+		MessagePublisher publisher = new MessagePublisher("/stream/#", 2, OverflowPolicy.DROP_OLDEST);
+		Collector collector = new Collector();
+		publisher.subscribe(collector);
+		for(int i=1; i<=3; i++) {
+			PushMqttMessage message = message(String.valueOf(i));
+			message.setAck(tracker.track(i, 1));
+			publisher.offer(message);
+			// released by the receiving side once the message is handed over
+			message.getAck().release();
+		}
+		assertEquals(1, publisher.getDroppedCount());
+		assertEquals(1, acked.size());
+		collector.subscription.request(Long.MAX_VALUE);
+		assertEquals("2", collector.payloads.get(0));
+		assertEquals(3, acked.size());
+	}
+
+	public void testRejectAndCancel() {
+		MessagePublisher publisher = new MessagePublisher("/stream/#", 1, OverflowPolicy.REJECT);
+		Collector collector = new Collector();
+		publisher.subscribe(collector);
+		publisher.offer(message("1"));
+		publisher.offer(message("2"));
+		assertEquals(1, publisher.getDroppedCount());
+		collector.subscription.cancel();
+		assertEquals(0, publisher.getBufferedCount());
+		collector.subscription.request(1);
+		assertTrue(collector.payloads.isEmpty());
+
+		Collector invalid = new Collector();
+		publisher.subscribe(invalid);
+		invalid.subscription.request(0);
+		assertTrue(invalid.error instanceof IllegalArgumentException);
+	}
+
+	public void testNeverBlocks() {
+		try {
+			new MessagePublisher("/stream/#", 1, OverflowPolicy.BLOCK);
+			fail("a stream blocking the receiving thread");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// a subscriber that stopped requesting costs the receiving thread nothing
+		MessagePublisher publisher = new MessagePublisher("/stream/#", 4, OverflowPolicy.DROP_OLDEST);
+		Collector collector = new Collector();
+		publisher.subscribe(collector);
+		for(int i=0; i<1000; i++) {
+			publisher.offer(message(String.valueOf(i)));
+		}
+		assertEquals(4, publisher.getBufferedCount());
+		assertEquals(996, publisher.getDroppedCount());
+		collector.subscription.request(Long.MAX_VALUE);
+		assertEquals("996", collector.payloads.get(0));
+	}
+}
@@ -0,0 +1,57 @@
+package com.yeild.mqtt.utils;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MqttUtils}.
+ */
+public class MqttUtilsTest extends TestCase {
+	/**
+	 * what setTopic did before the single pass sanitizer
+	 */
+	private static String sanitizeByRegex(String topic) {
+		return topic.replaceAll("[^0-9a-zA-Z/_\\-+#]", "");
+	}
+
+	public void testValidTopicReturnedAsIs() {
+		String topic = "/device/Sensor_1/status-a/+/#";
+		assertSame(topic, MqttUtils.sanitizeTopic(topic));
+		assertSame("", MqttUtils.sanitizeTopic(""));
+	}
+
+	public void testSameAsRegex() {
+		String[] topics = {
+			"/a b/c", " /lead", "trail ", "/dev.1/$SYS", "a\tb\nc", "/温度/sensor", "/café/1",
+			"/１２/fullwidth", "/emoji/😀/x", "/\u0000/nul", "/ÿĀ/latin",
+			"?*&%@!", "中文", "/ok/", "a\\b", "x=y;z",
+		};
+		for(String topic : topics) {
+			assertEquals(topic, sanitizeByRegex(topic), MqttUtils.sanitizeTopic(topic));
+		}
+	}
+
+	public void testRandomSameAsRegex() {
+		Random random = new Random(6);
+		char[] chars = new char[32];
+		for(int n=0; n<10000; n++) {
+			int length = random.nextInt(chars.length);
+			for(int i=0; i<length; i++) {
+				// mostly ascii, some latin-1, cjk and surrogates
+				switch (random.nextInt(4)) {
+				case 0:
+					chars[i] = (char) random.nextInt(0x100);
+					break;
+				case 1:
+					chars[i] = (char) random.nextInt(0x10000);
+					break;
+				default:
+					chars[i] = (char) random.nextInt(0x80);
+				}
+			}
+			String topic = new String(chars, 0, length);
+			assertEquals(sanitizeByRegex(topic), MqttUtils.sanitizeTopic(topic));
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package com.yeild.mqtt.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TopicInterner}.
+ */
+public class TopicInternerTest extends TestCase {
+
+	public void testSharesInstances() {
+		TopicInterner interner = new TopicInterner(16);
+		String first = interner.intern(new String("/a/b"));
+		assertEquals("/a/b", first);
+		assertSame(first, interner.intern(new String("/a/b")));
+		String sanitized = interner.intern(new String("/a b/c"));
+		assertEquals("/ab/c", sanitized);
+		assertSame(sanitized, interner.intern(new String("/a b/c")));
+		assertEquals(2, interner.size());
+	}
+
+	public void testFullCacheStillSanitizes() {
+		TopicInterner interner = new TopicInterner(2);
+		interner.intern("/one");
+		interner.intern("/two");
+		assertEquals(2, interner.size());
+		String topic = new String("/three 3");
+		String sanitized = interner.intern(topic);
+		assertEquals("/three3", sanitized);
+		// not cached, every call sanitizes again
+		assertEquals(2, interner.size());
+		assertNotSame(sanitized, interner.intern(topic));
+		assertEquals("/three3", interner.intern(topic));
+		// the cached topics are still shared
+		String cached = interner.intern(new String("/one"));
+		assertSame(cached, interner.intern(new String("/one")));
+		interner.clear();
+		assertEquals(0, interner.size());
+		assertSame(interner.intern(new String("/three")), interner.intern(new String("/three")));
+	}
+}
@@ -0,0 +1,85 @@
+package com.yeild.mqtt.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TopicTrie}.
+ */
+public class TopicTrieTest extends TestCase {
+
+	public void testExactMatch() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("a/b/c", "abc");
+		trie.add("a/b", "ab");
+		assertEquals(Arrays.asList("abc"), trie.match("a/b/c"));
+		assertEquals(Arrays.asList("ab"), trie.match("a/b"));
+		assertTrue(trie.match("a/b/c/d").isEmpty());
+		assertTrue(trie.match("a").isEmpty());
+	}
+
+	public void testSingleLevelWildcard() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("a/+/c", "plus");
+		trie.add("+", "root");
+		assertEquals(Arrays.asList("plus"), trie.match("a/b/c"));
+		assertEquals(Arrays.asList("plus"), trie.match("a//c"));
+		assertTrue(trie.match("a/b/c/d").isEmpty());
+		assertEquals(Arrays.asList("root"), trie.match("a"));
+		assertTrue(trie.match("/a").isEmpty());
+	}
+
+	public void testMultiLevelWildcard() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("sport/#", "sport");
+		trie.add("#", "all");
+		List<String> matched = trie.match("sport");
+		assertTrue(matched.contains("sport"));
+		assertTrue(matched.contains("all"));
+		assertTrue(trie.match("sport/tennis/player1").contains("sport"));
+		assertEquals(Arrays.asList("all"), trie.match("news"));
+	}
+
+	public void testDollarTopicsSkipRootWildcards() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("#", "all");
+		trie.add("+/monitor", "plus");
+		trie.add("$SYS/#", "sys");
+		assertEquals(Arrays.asList("sys"), trie.match("$SYS/monitor"));
+	}
+
+	public void testValueMatchedOnce() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("a/#", "listener");
+		trie.add("a/+", "listener");
+		assertEquals(Arrays.asList("listener"), trie.match("a/b"));
+	}
+
+	public void testRemove() {
+		TopicTrie<String> trie = new TopicTrie<String>();
+		trie.add("a/+/c", "one");
+		trie.add("a/#", "one");
+		trie.add("a/b/c", "two");
+		assertTrue(trie.remove("a/+/c", "one"));
+		assertFalse(trie.remove("a/+/c", "one"));
+		assertEquals(Arrays.asList("one", "two"), trie.match("a/b/c"));
+		trie.removeAll("one");
+		assertEquals(Arrays.asList("two"), trie.match("a/b/c"));
+		trie.remove("a/b/c", "two");
+		assertTrue(trie.isEmpty());
+		assertTrue(trie.match("a/b/c").isEmpty());
+	}
+
+	public void testInvalidFilter() {
+		String[] filters = {"", "a/#/b", "a/b#", "a+/b"};
+		for(String filter : filters) {
+			try {
+				new TopicTrie<String>().add(filter, "x");
+				fail("accepted " + filter);
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+}